@@ -22,6 +22,7 @@
 
 #include <string.h>
 #include <shared_mutex>
+#include <string>
 namespace android {
 
 static jmethodID method_onConnectStateChanged;
@@ -453,6 +454,101 @@ static jboolean sendDataNative(JNIEnv* env, jobject /* object */,
   return ret;
 }
 
+// The HAL takes reports as hex text, which is formatted here rather than by
+// the Java layer so that reports cross JNI as bytes.
+static void reportToHex(const jbyte* report, jint length, std::string& hex) {
+  static const char kHexDigits[] = "0123456789ABCDEF";
+  hex.clear();
+  for (jint i = 0; i < length; i++) {
+    uint8_t value = report[i];
+    hex.push_back(kHexDigits[value >> 4]);
+    hex.push_back(kHexDigits[value & 0x0F]);
+  }
+}
+
+static jboolean setReportBytesNative(JNIEnv* env, jobject /* object */,
+                                     jbyteArray address, jbyte reportType,
+                                     jbyteArray report) {
+  ALOGV("%s: reportType = %d", __func__, reportType);
+  if (!sBluetoothHidInterface) return JNI_FALSE;
+
+  jbyte* addr = env->GetByteArrayElements(address, NULL);
+  if (!addr) {
+    ALOGE("Bluetooth device address null");
+    return JNI_FALSE;
+  }
+  jbyte* c_report = env->GetByteArrayElements(report, NULL);
+  if (!c_report) {
+    ALOGE("%s: report null", __func__);
+    env->ReleaseByteArrayElements(address, addr, 0);
+    return JNI_FALSE;
+  }
+
+  std::string hex;
+  reportToHex(c_report, env->GetArrayLength(report), hex);
+  jboolean ret = JNI_TRUE;
+  bt_status_t status = sBluetoothHidInterface->set_report(
+      (RawAddress*)addr, (bthh_report_type_t)reportType, &hex[0]);
+  if (status != BT_STATUS_SUCCESS) {
+    ALOGE("Failed set report, status: %d", status);
+    ret = JNI_FALSE;
+  }
+  env->ReleaseByteArrayElements(report, c_report, JNI_ABORT);
+  env->ReleaseByteArrayElements(address, addr, 0);
+
+  return ret;
+}
+
+// Sends the reports packed back to back in |reports|, in order, and returns the
+// number of reports sent before the first failure.
+static jint sendReportsNative(JNIEnv* env, jobject /* object */,
+                              jbyteArray address, jbyteArray reports,
+                              jintArray reportLengths) {
+  ALOGV("%s", __func__);
+  if (!sBluetoothHidInterface) return 0;
+
+  jbyte* addr = env->GetByteArrayElements(address, NULL);
+  if (!addr) {
+    ALOGE("Bluetooth device address null");
+    return 0;
+  }
+  jbyte* c_reports = env->GetByteArrayElements(reports, NULL);
+  jint* lengths = env->GetIntArrayElements(reportLengths, NULL);
+  if (!c_reports || !lengths) {
+    ALOGE("%s: reports null", __func__);
+    if (c_reports) env->ReleaseByteArrayElements(reports, c_reports, JNI_ABORT);
+    if (lengths) env->ReleaseIntArrayElements(reportLengths, lengths, JNI_ABORT);
+    env->ReleaseByteArrayElements(address, addr, 0);
+    return 0;
+  }
+
+  jint count = env->GetArrayLength(reportLengths);
+  jint size = env->GetArrayLength(reports);
+  jint sent = 0;
+  jint offset = 0;
+  std::string hex;
+  for (; sent < count; sent++) {
+    jint length = lengths[sent];
+    if (length <= 0 || length > size - offset) {
+      ALOGE("%s: bad length %d of report %d", __func__, length, sent);
+      break;
+    }
+    reportToHex(c_reports + offset, length, hex);
+    bt_status_t status =
+        sBluetoothHidInterface->send_data((RawAddress*)addr, &hex[0]);
+    if (status != BT_STATUS_SUCCESS) {
+      ALOGE("Failed send data of report %d, status: %d", sent, status);
+      break;
+    }
+    offset += length;
+  }
+  env->ReleaseIntArrayElements(reportLengths, lengths, JNI_ABORT);
+  env->ReleaseByteArrayElements(reports, c_reports, JNI_ABORT);
+  env->ReleaseByteArrayElements(address, addr, 0);
+
+  return sent;
+}
+
 static jboolean getIdleTimeNative(JNIEnv* env, jobject /* object */,
                                   jbyteArray address) {
   if (!sBluetoothHidInterface) return JNI_FALSE;
@@ -504,6 +600,8 @@ int register_com_android_bluetooth_hid_host(JNIEnv* env) {
       {"getReportNative", "([BBBI)Z", (void*)getReportNative},
       {"setReportNative", "([BBLjava/lang/String;)Z", (void*)setReportNative},
       {"sendDataNative", "([BLjava/lang/String;)Z", (void*)sendDataNative},
+      {"setReportBytesNative", "([BB[B)Z", (void*)setReportBytesNative},
+      {"sendReportsNative", "([B[B[I)I", (void*)sendReportsNative},
       {"getIdleTimeNative", "([B)Z", (void*)getIdleTimeNative},
       {"setIdleTimeNative", "([BB)Z", (void*)setIdleTimeNative},
   };
@@ -24,10 +24,13 @@ import android.bluetooth.le.PeriodicAdvertisingCallback;
 import android.bluetooth.le.PeriodicAdvertisingManager;
 import android.bluetooth.le.ScanResult;
 import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.net.Uri;
@@ -38,6 +41,7 @@ import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
 import android.provider.Telephony;
 import android.util.Log;
 
@@ -51,6 +55,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Set;
 
 /**
@@ -135,6 +140,15 @@ public class BluetoothMethodProxy {
         return contentResolver.delete(url, where, selectionArgs);
     }
 
+    /**
+     * Proxies {@link ContentResolver#applyBatch(String, ArrayList)}.
+     */
+    public ContentProviderResult[] contentResolverApplyBatch(ContentResolver contentResolver,
+            final String authority, final ArrayList<ContentProviderOperation> operations)
+            throws RemoteException, OperationApplicationException {
+        return contentResolver.applyBatch(authority, operations);
+    }
+
     /**
      * Proxies {@link BluetoothAdapter#isEnabled()}.
      */
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattServerCallback;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Paces the notifications of a GATT server by the congestion of each connection.
+ *
+ * <p>Notifications are sent right away while the connection to the device is not congested. Once
+ * the stack reports it congested through {@link
+ * BluetoothGattServerCallback#onNotificationSent}, only the latest value of each characteristic is
+ * kept for the device, and sent when the stack reports the connection available again. The values
+ * of characteristics that must all be delivered, like control point results, are queued instead.
+ */
+public class GattNotificationScheduler {
+    private static final String TAG = "GattNotificationScheduler";
+
+    /**
+     * Delay after which a congested connection is probed with one pending notification, whose
+     * completion tells when the congestion is over.
+     */
+    @VisibleForTesting
+    static final int CONGESTION_PROBE_DELAY_MS = 100;
+
+    /** Sends the notifications of the GATT server. */
+    public interface Sender {
+        /**
+         * Notifies {@code device} of the change of {@code characteristic} to {@code value}, or to
+         * its current value if null.
+         *
+         * @return true if the notification was accepted by the stack
+         */
+        boolean notifyCharacteristicChanged(@NonNull BluetoothDevice device,
+                @NonNull BluetoothGattCharacteristic characteristic, @Nullable byte[] value);
+    }
+
+    private static final class PendingNotification {
+        private final BluetoothGattCharacteristic mCharacteristic;
+        private final byte[] mValue;
+
+        private PendingNotification(BluetoothGattCharacteristic characteristic, byte[] value) {
+            mCharacteristic = characteristic;
+            mValue = value;
+        }
+    }
+
+    private static final class DeviceState {
+        private boolean mCongested;
+        private boolean mProbeScheduled;
+        // Keyed by characteristic UUID, or by a unique key for the queued characteristics
+        private final LinkedHashMap<Object, PendingNotification> mPending = new LinkedHashMap<>();
+    }
+
+    private final Handler mHandler;
+    private final Sender mSender;
+    private final Set<UUID> mQueuedUuids;
+    private final Map<BluetoothDevice, DeviceState> mDeviceStates = new HashMap<>();
+
+    private long mSentCount;
+    private long mCoalescedCount;
+    private long mCongestionCount;
+
+    /**
+     * @param looper the looper to probe congested connections on
+     * @param sender sends the notifications to the GATT server
+     * @param queuedUuids the characteristics whose values must all be delivered
+     */
+    public GattNotificationScheduler(@NonNull Looper looper, @NonNull Sender sender,
+            @NonNull Set<UUID> queuedUuids) {
+        mHandler = new Handler(looper);
+        mSender = sender;
+        mQueuedUuids = queuedUuids;
+    }
+
+    /**
+     * Notifies {@code device} of the change of {@code characteristic} to {@code value}, or to its
+     * current value if null, once its connection is not congested.
+     */
+    public synchronized void notify(@NonNull BluetoothDevice device,
+            @NonNull BluetoothGattCharacteristic characteristic, @Nullable byte[] value) {
+        DeviceState state = mDeviceStates.get(device);
+        if (state == null || !state.mCongested) {
+            send(device, characteristic, value);
+            return;
+        }
+
+        // The characteristic may change again before the notification is sent
+        byte[] pendingValue = value != null ? value : characteristic.getValue();
+        if (pendingValue == null) {
+            return;
+        }
+        UUID uuid = characteristic.getUuid();
+        Object key = mQueuedUuids.contains(uuid) ? new Object() : uuid;
+        PendingNotification stale = state.mPending.put(key,
+                new PendingNotification(characteristic, pendingValue.clone()));
+        if (stale != null) {
+            mCoalescedCount++;
+        }
+        scheduleProbe(device, state);
+    }
+
+    /** Must be called from {@link BluetoothGattServerCallback#onNotificationSent}. */
+    public synchronized void onNotificationSent(@NonNull BluetoothDevice device, int status) {
+        DeviceState state = mDeviceStates.get(device);
+        if (status == BluetoothGatt.GATT_CONNECTION_CONGESTED) {
+            if (state == null) {
+                state = new DeviceState();
+                mDeviceStates.put(device, state);
+            }
+            if (!state.mCongested) {
+                Log.d(TAG, "onNotificationSent: connection congested, device: " + device);
+                state.mCongested = true;
+                mCongestionCount++;
+            }
+            scheduleProbe(device, state);
+            return;
+        }
+
+        if (state == null) {
+            return;
+        }
+        // Notifications sent while congested complete once the congestion is over
+        mDeviceStates.remove(device);
+        for (PendingNotification pending : state.mPending.values()) {
+            send(device, pending.mCharacteristic, pending.mValue);
+        }
+    }
+
+    /** Drops the notifications pending for {@code device}, which disconnected. */
+    public synchronized void onDeviceDisconnected(@NonNull BluetoothDevice device) {
+        mDeviceStates.remove(device);
+    }
+
+    /** Drops the notifications pending for all devices. */
+    public synchronized void clear() {
+        mDeviceStates.clear();
+        mHandler.removeCallbacksAndMessages(null);
+    }
+
+    @VisibleForTesting
+    synchronized int getPendingCount(BluetoothDevice device) {
+        DeviceState state = mDeviceStates.get(device);
+        return state == null ? 0 : state.mPending.size();
+    }
+
+    @VisibleForTesting
+    synchronized long getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    public synchronized void dump(StringBuilder sb, String prefix) {
+        sb.append(prefix + "Notifications sent: " + mSentCount + ", coalesced: " + mCoalescedCount
+                + ", connection congested: " + mCongestionCount + " times");
+        for (Map.Entry<BluetoothDevice, DeviceState> entry : mDeviceStates.entrySet()) {
+            sb.append(prefix + "\tCongested device: " + entry.getKey() + ", pending: "
+                    + entry.getValue().mPending.size());
+        }
+    }
+
+    private void send(BluetoothDevice device, BluetoothGattCharacteristic characteristic,
+            byte[] value) {
+        if (mSender.notifyCharacteristicChanged(device, characteristic, value)) {
+            mSentCount++;
+        }
+    }
+
+    private void scheduleProbe(BluetoothDevice device, DeviceState state) {
+        if (state.mProbeScheduled) {
+            return;
+        }
+        state.mProbeScheduled = true;
+        mHandler.postDelayed(() -> probe(device, state), CONGESTION_PROBE_DELAY_MS);
+    }
+
+    private synchronized void probe(BluetoothDevice device, DeviceState state) {
+        state.mProbeScheduled = false;
+        if (mDeviceStates.get(device) != state) {
+            return;
+        }
+        Iterator<PendingNotification> iterator = state.mPending.values().iterator();
+        if (!iterator.hasNext()) {
+            // Nothing was sent since the congestion, the next notification will tell
+            mDeviceStates.remove(device);
+            return;
+        }
+        PendingNotification pending = iterator.next();
+        iterator.remove();
+        if (mSender.notifyCharacteristicChanged(device, pending.mCharacteristic, pending.mValue)) {
+            mSentCount++;
+        } else if (!state.mPending.isEmpty()) {
+            scheduleProbe(device, state);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth;
+
+/**
+ * Helpers for Bluetooth device addresses packed into the low 48 bits of a {@code long}, the first
+ * octet of the address being the most significant one.
+ *
+ * <p>A packed address can be used as a primitive map key and converted from and to the byte array
+ * of the native stack and the {@code "XX:XX:XX:XX:XX:XX"} string of the framework API without
+ * going through {@link String#format} or {@link Integer#parseInt}.
+ */
+public final class PackedAddress {
+    /** Value returned for a malformed address, it cannot collide with any 48-bit address. */
+    public static final long INVALID = -1L;
+
+    private static final int ADDRESS_LENGTH = 6; // bytes
+    private static final int ADDRESS_STRING_LENGTH = 17; // characters
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private PackedAddress() {}
+
+    /** Returns the packed form of a 6 byte address, or {@link #INVALID} if malformed. */
+    public static long fromBytes(byte[] address) {
+        if (address == null || address.length != ADDRESS_LENGTH) {
+            return INVALID;
+        }
+        long packed = 0;
+        for (int i = 0; i < ADDRESS_LENGTH; i++) {
+            packed = (packed << 8) | (address[i] & 0xFF);
+        }
+        return packed;
+    }
+
+    /**
+     * Returns the packed form of a {@code "XX:XX:XX:XX:XX:XX"} address, ignoring the case of the
+     * hex digits, or {@link #INVALID} if malformed.
+     */
+    public static long fromString(String address) {
+        if (address == null || address.length() != ADDRESS_STRING_LENGTH) {
+            return INVALID;
+        }
+        long packed = 0;
+        for (int i = 0; i < ADDRESS_STRING_LENGTH; i += 3) {
+            int high = hexDigit(address.charAt(i));
+            int low = hexDigit(address.charAt(i + 1));
+            if (high < 0 || low < 0
+                    || (i + 2 < ADDRESS_STRING_LENGTH && address.charAt(i + 2) != ':')) {
+                return INVALID;
+            }
+            packed = (packed << 8) | (high << 4) | low;
+        }
+        return packed;
+    }
+
+    /*
+     * Unlike Character.digit, accepts ASCII digits only, as BluetoothAdapter.checkBluetoothAddress
+     * does.
+     */
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+
+    /** Returns the 6 byte form of a packed address. */
+    public static byte[] toBytes(long address) {
+        byte[] bytes = new byte[ADDRESS_LENGTH];
+        for (int i = ADDRESS_LENGTH - 1; i >= 0; i--) {
+            bytes[i] = (byte) address;
+            address >>>= 8;
+        }
+        return bytes;
+    }
+
+    /** Returns the upper case {@code "XX:XX:XX:XX:XX:XX"} form of a packed address. */
+    public static String toString(long address) {
+        char[] chars = new char[ADDRESS_STRING_LENGTH];
+        for (int i = ADDRESS_LENGTH - 1; i >= 0; i--) {
+            int octet = (int) address & 0xFF;
+            chars[i * 3] = HEX_DIGITS[octet >>> 4];
+            chars[i * 3 + 1] = HEX_DIGITS[octet & 0x0F];
+            if (i < ADDRESS_LENGTH - 1) {
+                chars[i * 3 + 2] = ':';
+            }
+            address >>>= 8;
+        }
+        return new String(chars);
+    }
+}
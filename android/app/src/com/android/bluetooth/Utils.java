@@ -177,8 +177,7 @@ public final class Utils {
             return null;
         }
 
-        return String.format("%02X:%02X:%02X:%02X:%02X:%02X", address[0], address[1], address[2],
-                address[3], address[4], address[5]);
+        return PackedAddress.toString(PackedAddress.fromBytes(address));
     }
 
     public static String getRedactedAddressStringFromByte(byte[] address) {
@@ -194,9 +193,14 @@ public final class Utils {
     }
 
     public static byte[] getBytesFromAddress(String address) {
+        long packed = PackedAddress.fromString(address);
+        if (packed != PackedAddress.INVALID) {
+            return PackedAddress.toBytes(packed);
+        }
+
+        // Not in the canonical form, e.g. without separators
         int i, j = 0;
         byte[] output = new byte[BD_ADDR_LEN];
-
         for (i = 0; i < address.length(); i++) {
             if (address.charAt(i) != ':') {
                 output[j] = (byte) Integer.parseInt(address.substring(i, i + 2), BD_UUID_LEN);
@@ -109,6 +109,7 @@ import android.util.SparseArray;
 
 import com.android.bluetooth.BluetoothMetricsProto;
 import com.android.bluetooth.BluetoothStatsLog;
+import com.android.bluetooth.PackedAddress;
 import com.android.bluetooth.R;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.a2dp.A2dpService;
@@ -383,6 +384,8 @@ public class AdapterService extends Service {
     private BassClientService mBassClientService;
     private BatteryService mBatteryService;
     private BluetoothQualityReportNativeInterface mBluetoothQualityReportNativeInterface;
+    private final BluetoothQualityReportAggregator mBluetoothQualityReportAggregator =
+            new BluetoothQualityReportAggregator();
     private GattService mGattService;
 
     private volatile boolean mTestModeEnabled = false;
@@ -1183,6 +1186,11 @@ public class AdapterService extends Service {
         }
     }
 
+    /** Returns the statistics of the Bluetooth Quality Reports of the remote devices. */
+    public BluetoothQualityReportAggregator getBluetoothQualityReportAggregator() {
+        return mBluetoothQualityReportAggregator;
+    }
+
     /**
      * Callback from Bluetooth Quality Report Native Interface to inform the listeners about
      * Bluetooth Quality.
@@ -1363,6 +1371,7 @@ public class AdapterService extends Service {
         if (mBluetoothQualityReportReadyCallbacks != null) {
             mBluetoothQualityReportReadyCallbacks.kill();
         }
+        mBluetoothQualityReportAggregator.clear();
 
         if (mRemoteCallbacks != null) {
             mRemoteCallbacks.kill();
@@ -5770,9 +5779,11 @@ public class AdapterService extends Service {
     }
 
     public String getIdentityAddress(String address) {
-        BluetoothDevice device =
-                BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address.toUpperCase());
-        DeviceProperties deviceProp = mRemoteDevices.getDeviceProperties(device);
+        long packedAddress = PackedAddress.fromString(address);
+        if (packedAddress == PackedAddress.INVALID) {
+            throw new IllegalArgumentException(address + " is not a valid Bluetooth address");
+        }
+        DeviceProperties deviceProp = mRemoteDevices.getDeviceProperties(packedAddress);
         if (deviceProp != null && deviceProp.getIdentityAddress() != null) {
             return deviceProp.getIdentityAddress();
         } else {
@@ -5921,6 +5932,8 @@ public class AdapterService extends Service {
      * @param device remote device of interest
      */
     public void deviceUuidUpdated(BluetoothDevice device) {
+        // The services of the device changed, its SDP records may have too.
+        invalidateSdpRecords(device);
         // Notify BondStateMachine for SDP complete / UUID changed.
         Message msg = mBondStateMachine.obtainMessage(BondStateMachine.UUID_UPDATE);
         msg.obj = device;
@@ -6954,6 +6967,18 @@ public class AdapterService extends Service {
         if (mPbapClientService != null && mPbapClientService.isAvailable()) {
             mPbapClientService.aclDisconnected(device, transport);
         }
+        // The dynamic channels and PSMs of the SDP records may change until the next connection
+        invalidateSdpRecords(device);
+    }
+
+    /**
+     * Forgets the SDP records cached for {@code device}, so that the next searches are run again.
+     * Called by the profiles when connecting to a channel or PSM found by SDP fails.
+     */
+    public void invalidateSdpRecords(BluetoothDevice device) {
+        if (mSdpManager != null) {
+            mSdpManager.invalidateRecords(device);
+        }
     }
 
     /**
@@ -7039,6 +7064,7 @@ public class AdapterService extends Service {
         if (mDatabaseManager != null) {
             mDatabaseManager.handleBondStateChanged(device, fromState, toState);
         }
+        invalidateSdpRecords(device);
     }
 
     static int convertScanModeToHal(int mode) {
@@ -7266,6 +7292,10 @@ public class AdapterService extends Service {
         }
         mSilenceDeviceManager.dump(fd, writer, args);
         mDatabaseManager.dump(writer);
+        mBluetoothQualityReportAggregator.dump(writer);
+        if (mPhonePolicy != null) {
+            mPhonePolicy.dump(writer);
+        }
 
         writer.write(sb.toString());
         writer.flush();
@@ -7516,6 +7546,7 @@ public class AdapterService extends Service {
         private static final String SCREEN_OFF_BALANCED_INTERVAL_MILLIS =
                 "screen_off_balanced_interval_millis";
         private static final String LE_AUDIO_ALLOW_LIST = "le_audio_allow_list";
+        private static final String BQR_SUMMARY_INTERVAL_MILLIS = "bqr_summary_interval_millis";
 
         /** Default denylist which matches Eddystone and iBeacon payloads. */
         private static final String DEFAULT_LOCATION_DENYLIST_ADVERTISING_DATA =
@@ -7580,6 +7611,8 @@ public class AdapterService extends Service {
                                 SCREEN_OFF_BALANCED_INTERVAL_MILLIS,
                                 ScanManager.SCAN_MODE_SCREEN_OFF_BALANCED_INTERVAL_MS);
                 mLeAudioAllowList = properties.getString(LE_AUDIO_ALLOW_LIST, "");
+                mBluetoothQualityReportAggregator.setSummaryIntervalMillis(
+                        properties.getLong(BQR_SUMMARY_INTERVAL_MILLIS, 0));
 
                 if (!mLeAudioAllowList.isEmpty()) {
                     List<String> leAudioAllowlistFromDeviceConfig =
@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import android.bluetooth.BluetoothQualityReport;
+import android.bluetooth.BluetoothQualityReport.BqrCommon;
+import android.os.SystemClock;
+
+import com.android.bluetooth.PackedAddress;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Aggregates the Bluetooth Quality Reports of each link, so that the controller can report
+ * continuously without every report being logged and forwarded to the applications.
+ *
+ * <p>Statistics are kept per remote device and report id in primitive arrays: the link quality
+ * parameters of the last {@link #WINDOW_SIZE} reports, and histograms of all the reports in fixed
+ * buckets. A periodic link quality monitoring report is forwarded to the applications at most
+ * once per summary interval for each device, the reports in between are only aggregated. Event
+ * reports, such as approaching link supervision timeout, are always forwarded.
+ */
+public class BluetoothQualityReportAggregator {
+    /** Number of reports in the rolling window of each link. */
+    @VisibleForTesting
+    static final int WINDOW_SIZE = 32;
+
+    /** Number of device and report id pairs kept, the least recently reported are dropped. */
+    @VisibleForTesting
+    static final int MAX_LINKS = 32;
+
+    public static final int METRIC_RSSI = 0;
+    public static final int METRIC_SNR = 1;
+    public static final int METRIC_RETRANSMISSIONS = 2;
+    public static final int METRIC_NO_RX = 3;
+    public static final int METRIC_NAK = 4;
+    private static final int METRIC_COUNT = 5;
+
+    private static final String[] METRIC_NAMES = {"RSSI", "SNR", "Retransmissions", "No RX", "NAK"};
+
+    // Inclusive upper bounds of the histogram buckets, one more bucket counts the larger values
+    private static final int[] COUNT_BUCKET_BOUNDS = {0, 1, 3, 7, 15, 31, 63};
+    private static final int[][] BUCKET_BOUNDS = {
+        {-90, -80, -70, -60, -50}, // RSSI, dBm
+        {5, 10, 15, 20, 25, 30}, // SNR, dB
+        COUNT_BUCKET_BOUNDS,
+        COUNT_BUCKET_BOUNDS,
+        COUNT_BUCKET_BOUNDS,
+    };
+
+    // Offset of the buckets of each metric in the histogram arrays
+    private static final int[] HISTOGRAM_OFFSETS = new int[METRIC_COUNT];
+    private static final int HISTOGRAM_SIZE;
+
+    static {
+        int size = 0;
+        for (int metric = 0; metric < METRIC_COUNT; metric++) {
+            HISTOGRAM_OFFSETS[metric] = size;
+            size += BUCKET_BOUNDS[metric].length + 1;
+        }
+        HISTOGRAM_SIZE = size;
+    }
+
+    /** The statistics of one device and report id. */
+    private static final class LinkStats {
+        private final String mAddress;
+        private final int mReportId;
+        private long mReportCount;
+        private long mForwardedCount;
+        private long mLastReportMillis;
+        private long mNextForwardMillis;
+
+        // Metric values of the last reports, WINDOW_SIZE per metric
+        private final int[] mWindow = new int[METRIC_COUNT * WINDOW_SIZE];
+        private int mWindowNext;
+        private int mWindowCount;
+        // Bucket counts of all the metrics, starting at the offset of each metric
+        private final long[] mHistograms = new long[HISTOGRAM_SIZE];
+
+        private LinkStats(String address, int reportId) {
+            mAddress = address;
+            mReportId = reportId;
+        }
+
+        private void add(int[] values) {
+            for (int metric = 0; metric < METRIC_COUNT; metric++) {
+                mWindow[metric * WINDOW_SIZE + mWindowNext] = values[metric];
+                mHistograms[HISTOGRAM_OFFSETS[metric] + getBucket(metric, values[metric])]++;
+            }
+            mWindowNext = (mWindowNext + 1) % WINDOW_SIZE;
+            mWindowCount = Math.min(mWindowCount + 1, WINDOW_SIZE);
+        }
+    }
+
+    /** A snapshot of the statistics of one device and report id. */
+    public static final class LinkSummary {
+        private final long mReportCount;
+        private final long mForwardedCount;
+        private final long mLastReportMillis;
+        private final int mWindowCount;
+        private final int[] mWindowMin = new int[METRIC_COUNT];
+        private final int[] mWindowMax = new int[METRIC_COUNT];
+        private final double[] mWindowAverage = new double[METRIC_COUNT];
+        private final long[] mHistograms;
+
+        private LinkSummary(LinkStats stats) {
+            mReportCount = stats.mReportCount;
+            mForwardedCount = stats.mForwardedCount;
+            mLastReportMillis = stats.mLastReportMillis;
+            mWindowCount = stats.mWindowCount;
+            mHistograms = stats.mHistograms.clone();
+            for (int metric = 0; metric < METRIC_COUNT; metric++) {
+                int min = Integer.MAX_VALUE;
+                int max = Integer.MIN_VALUE;
+                long sum = 0;
+                for (int i = 0; i < mWindowCount; i++) {
+                    int value = stats.mWindow[metric * WINDOW_SIZE + i];
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
+                    sum += value;
+                }
+                mWindowMin[metric] = mWindowCount > 0 ? min : 0;
+                mWindowMax[metric] = mWindowCount > 0 ? max : 0;
+                mWindowAverage[metric] = mWindowCount > 0 ? (double) sum / mWindowCount : 0;
+            }
+        }
+
+        /** Returns the number of reports received. */
+        public long getReportCount() {
+            return mReportCount;
+        }
+
+        /** Returns the number of reports forwarded to the applications. */
+        public long getForwardedCount() {
+            return mForwardedCount;
+        }
+
+        /** Returns the elapsed realtime of the last report. */
+        public long getLastReportMillis() {
+            return mLastReportMillis;
+        }
+
+        /** Returns the number of reports in the rolling window. */
+        public int getWindowCount() {
+            return mWindowCount;
+        }
+
+        /** Returns the minimum of {@code metric} over the rolling window. */
+        public int getWindowMin(int metric) {
+            return mWindowMin[metric];
+        }
+
+        /** Returns the maximum of {@code metric} over the rolling window. */
+        public int getWindowMax(int metric) {
+            return mWindowMax[metric];
+        }
+
+        /** Returns the average of {@code metric} over the rolling window. */
+        public double getWindowAverage(int metric) {
+            return mWindowAverage[metric];
+        }
+
+        /**
+         * Returns the bucket counts of {@code metric} over all the reports, see {@link
+         * BluetoothQualityReportAggregator#getBucketBounds}.
+         */
+        public long[] getHistogram(int metric) {
+            return Arrays.copyOfRange(mHistograms, HISTOGRAM_OFFSETS[metric],
+                    HISTOGRAM_OFFSETS[metric] + BUCKET_BOUNDS[metric].length + 1);
+        }
+    }
+
+    private final LinkedHashMap<Long, LinkStats> mLinks =
+            new LinkedHashMap<Long, LinkStats>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, LinkStats> eldest) {
+                    return size() > MAX_LINKS;
+                }
+            };
+    private final int[] mValues = new int[METRIC_COUNT];
+    private long mSummaryIntervalMillis;
+
+    /**
+     * Returns the inclusive upper bounds of the histogram buckets of {@code metric}. The last
+     * bucket counts the values above the last bound.
+     */
+    public static int[] getBucketBounds(int metric) {
+        return BUCKET_BOUNDS[metric].clone();
+    }
+
+    /**
+     * Sets the minimum interval between two monitoring reports forwarded for a device, or 0 to
+     * forward every report.
+     */
+    public synchronized void setSummaryIntervalMillis(long summaryIntervalMillis) {
+        mSummaryIntervalMillis = Math.max(summaryIntervalMillis, 0);
+    }
+
+    /**
+     * Returns true if the next report of {@code reportId} for the device of address
+     * {@code address} must be forwarded to the applications. Only the monitoring reports are rate
+     * limited. A forwarded report must then be counted with {@link #onForwarded}.
+     */
+    public synchronized boolean shouldForward(String address, int reportId, long nowMillis) {
+        if (reportId != BluetoothQualityReport.QUALITY_REPORT_ID_MONITOR
+                || mSummaryIntervalMillis == 0) {
+            return true;
+        }
+        long key = getKey(address, reportId);
+        LinkStats stats = key == PackedAddress.INVALID ? null : mLinks.get(key);
+        return stats == null || stats.mForwardedCount == 0
+                || nowMillis >= stats.mNextForwardMillis;
+    }
+
+    /**
+     * Counts a report of {@code reportId} for the device of address {@code address} as
+     * forwarded, and starts a new summary interval for it.
+     */
+    public synchronized void onForwarded(String address, int reportId, long nowMillis) {
+        LinkStats stats = getOrCreate(address, reportId);
+        if (stats == null) {
+            return;
+        }
+        stats.mNextForwardMillis = nowMillis + mSummaryIntervalMillis;
+        stats.mForwardedCount++;
+    }
+
+    /** Aggregates a report of the device of address {@code address}. */
+    public synchronized void addReport(String address, BluetoothQualityReport bqr,
+            long nowMillis) {
+        LinkStats stats = getOrCreate(address, bqr.getQualityReportId());
+        if (stats == null) {
+            return;
+        }
+        stats.mReportCount++;
+        stats.mLastReportMillis = nowMillis;
+
+        BqrCommon common = bqr.getBqrCommon();
+        if (common == null) {
+            return;
+        }
+        mValues[METRIC_RSSI] = common.getRssi();
+        mValues[METRIC_SNR] = common.getSnr();
+        mValues[METRIC_RETRANSMISSIONS] = toInt(common.getRetransmissionCount());
+        mValues[METRIC_NO_RX] = toInt(common.getNoRxCount());
+        mValues[METRIC_NAK] = toInt(common.getNakCount());
+        stats.add(mValues);
+    }
+
+    /** Returns the statistics of {@code reportId} for the device, or null if it has none. */
+    public synchronized LinkSummary getLinkSummary(String address, int reportId) {
+        long key = getKey(address, reportId);
+        LinkStats stats = key == PackedAddress.INVALID ? null : mLinks.get(key);
+        return stats == null ? null : new LinkSummary(stats);
+    }
+
+    /** Forgets the statistics of all devices. */
+    public synchronized void clear() {
+        mLinks.clear();
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("\nBluetooth Quality Reports: summary interval="
+                + mSummaryIntervalMillis + "ms");
+        long nowMillis = SystemClock.elapsedRealtime();
+        for (LinkStats stats : mLinks.values()) {
+            writer.println("  " + stats.mAddress + " "
+                    + BluetoothQualityReport.qualityReportIdToString(stats.mReportId)
+                    + ": reports=" + stats.mReportCount + ", forwarded=" + stats.mForwardedCount
+                    + ", last=" + (nowMillis - stats.mLastReportMillis) + "ms ago");
+            if (stats.mWindowCount == 0) {
+                continue;
+            }
+            LinkSummary summary = new LinkSummary(stats);
+            for (int metric = 0; metric < METRIC_COUNT; metric++) {
+                StringBuilder sb = new StringBuilder("    ").append(METRIC_NAMES[metric])
+                        .append(": last ").append(summary.getWindowCount())
+                        .append(" min=").append(summary.getWindowMin(metric))
+                        .append(" max=").append(summary.getWindowMax(metric))
+                        .append(" avg=")
+                        .append(String.format("%.1f", summary.getWindowAverage(metric)))
+                        .append(", all");
+                int[] bounds = BUCKET_BOUNDS[metric];
+                long[] histogram = summary.getHistogram(metric);
+                for (int bucket = 0; bucket < histogram.length; bucket++) {
+                    sb.append(bucket < bounds.length ? " <=" + bounds[bucket] : " >"
+                            + bounds[bounds.length - 1]).append(':').append(histogram[bucket]);
+                }
+                writer.println(sb);
+            }
+        }
+    }
+
+    private LinkStats getOrCreate(String address, int reportId) {
+        long key = getKey(address, reportId);
+        if (key == PackedAddress.INVALID) {
+            return null;
+        }
+        LinkStats stats = mLinks.get(key);
+        if (stats == null) {
+            stats = new LinkStats(address, reportId);
+            mLinks.put(key, stats);
+        }
+        return stats;
+    }
+
+    private static long getKey(String address, int reportId) {
+        long packed = PackedAddress.fromString(address);
+        if (packed == PackedAddress.INVALID) {
+            return PackedAddress.INVALID;
+        }
+        return (packed << 8) | (reportId & 0xFF);
+    }
+
+    private static int getBucket(int metric, int value) {
+        int[] bounds = BUCKET_BOUNDS[metric];
+        for (int bucket = 0; bucket < bounds.length; bucket++) {
+            if (value <= bounds[bucket]) {
+                return bucket;
+            }
+        }
+        return bounds.length;
+    }
+
+    private static int toInt(long value) {
+        return (int) Math.min(value, Integer.MAX_VALUE);
+    }
+}
@@ -21,6 +21,7 @@ import android.bluetooth.BluetoothClass;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothQualityReport;
 import android.bluetooth.BluetoothStatusCodes;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.android.bluetooth.Utils;
@@ -81,8 +82,30 @@ public class BluetoothQualityReportNativeInterface {
 
         String remoteAddress = Utils.getAddressStringFromByte(remoteAddr);
         BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        AdapterService adapterService = AdapterService.getAdapterService();
 
-        if (remoteAddress != null && adapter != null) {
+        if (remoteAddress == null || adapter == null) {
+            Log.e(TAG, "bqrDeliver failed: "
+                    + (remoteAddress == null ? "remoteAddress is null" : "adapter is null"));
+            return;
+        }
+        if (adapterService == null) {
+            Log.e(TAG, "bqrDeliver failed: adapterService is null");
+            return;
+        }
+        if (bqrRawData == null || bqrRawData.length == 0) {
+            Log.e(TAG, "bqrDeliver failed: bqrRawData is empty");
+            return;
+        }
+
+        // Only the reports forwarded to the applications carry the name and class of the device
+        // and are logged, the others are only aggregated.
+        BluetoothQualityReportAggregator aggregator =
+                adapterService.getBluetoothQualityReportAggregator();
+        long nowMillis = SystemClock.elapsedRealtime();
+        int reportId = bqrRawData[0] & 0xFF;
+        boolean forward = aggregator.shouldForward(remoteAddress, reportId, nowMillis);
+        if (forward) {
             device = adapter.getRemoteDevice(remoteAddress);
             if (device == null) {
                 Log.e(TAG, "bqrDeliver failed: device is null");
@@ -90,10 +113,6 @@ public class BluetoothQualityReportNativeInterface {
             }
             remoteName = device.getName();
             remoteBtClass = device.getBluetoothClass();
-        } else {
-            Log.e(TAG, "bqrDeliver failed: "
-                    + (remoteAddress == null ? "remoteAddress is null" : "adapter is null"));
-            return;
         }
 
         BluetoothQualityReport bqr;
@@ -107,18 +126,18 @@ public class BluetoothQualityReportNativeInterface {
                             .setRemoteName(remoteName)
                             .setBluetoothClass(remoteBtClass)
                             .build();
-            Log.i(TAG, bqr.toString());
         } catch (Exception e) {
             Log.e(TAG, "bqrDeliver failed: failed to create BluetotQualityReport", e);
             return;
         }
+        aggregator.addReport(remoteAddress, bqr, nowMillis);
+        if (!forward) {
+            return;
+        }
+        aggregator.onForwarded(remoteAddress, reportId, nowMillis);
+        Log.i(TAG, bqr.toString());
 
         try {
-            AdapterService adapterService = AdapterService.getAdapterService();
-            if (adapterService == null) {
-                Log.e(TAG, "bqrDeliver failed: adapterService is null");
-                return;
-            }
             int status = adapterService.bluetoothQualityReportReadyCallback(device, bqr);
             if (status != BluetoothStatusCodes.SUCCESS) {
                 Log.e(TAG, "bluetoothQualityReportReadyCallback failed, status: " + status);
@@ -28,8 +28,11 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseLongArray;
 
 import com.android.bluetooth.R;
 import com.android.bluetooth.Utils;
@@ -48,8 +51,12 @@ import com.android.bluetooth.pan.PanService;
 import com.android.bluetooth.vc.VolumeControlService;
 import com.android.internal.annotations.VisibleForTesting;
 
+import java.io.PrintWriter;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
 // Describes the phone policy
@@ -94,6 +101,28 @@ public class PhonePolicy implements AdapterService.BluetoothStateCallback {
     @VisibleForTesting boolean mAutoConnectProfilesSupported;
     @VisibleForTesting boolean mLeAudioEnabledByDefault;
 
+    /** Time taken by the connections requested for a profile. */
+    private static final class ConnectStats {
+        private int mConnectedCount;
+        private int mFailedCount;
+        private long mLastMillis;
+        private long mMaxMillis;
+        private long mTotalMillis;
+    }
+
+    // Time after which a requested connection that did not complete is counted as failed
+    @VisibleForTesting
+    static final long CONNECT_TIMEOUT_MS = 30000;
+
+    // Guarded by itself, also guards the fields below
+    private final SparseArray<ConnectStats> mConnectStats = new SparseArray<>();
+    // Elapsed realtime of the pending connection requests, by device and profile
+    private final Map<BluetoothDevice, SparseLongArray> mConnectRequestTimes = new HashMap<>();
+    // Elapsed realtime of the last auto connect, until an audio profile connects or none of its
+    // requests is pending anymore
+    private long mAutoConnectStartMillis;
+    private long mLastTimeToAudioMillis = -1;
+
     @Override
     public void onBluetoothStateChange(int prevState, int newState) {
         // Only act if the adapter has actually changed state from non-ON to ON.
@@ -106,6 +135,7 @@ public class PhonePolicy implements AdapterService.BluetoothStateCallback {
 
     public void profileConnectionStateChanged(
             int profile, BluetoothDevice device, int fromState, int toState) {
+        recordConnectResult(device, profile, toState);
         switch (profile) {
             case BluetoothProfile.A2DP:
             case BluetoothProfile.HEADSET:
@@ -619,6 +649,10 @@ public class PhonePolicy implements AdapterService.BluetoothStateCallback {
     private void resetStates() {
         mHeadsetRetrySet.clear();
         mA2dpRetrySet.clear();
+        synchronized (mConnectStats) {
+            mConnectRequestTimes.clear();
+            mAutoConnectStartMillis = 0;
+        }
     }
 
     @VisibleForTesting
@@ -685,7 +719,10 @@ public class PhonePolicy implements AdapterService.BluetoothStateCallback {
         int a2dpConnectionPolicy = a2dpService.getConnectionPolicy(device);
         if (a2dpConnectionPolicy == BluetoothProfile.CONNECTION_POLICY_ALLOWED) {
             debugLog("autoConnectA2dp: connecting A2DP with " + device);
-            a2dpService.connect(device);
+            recordAutoConnectRequest(device, BluetoothProfile.A2DP);
+            if (!a2dpService.connect(device)) {
+                recordConnectFailure(device, BluetoothProfile.A2DP);
+            }
         } else {
             debugLog("autoConnectA2dp: skipped auto-connect A2DP with device " + device
                     + " connectionPolicy " + a2dpConnectionPolicy);
@@ -702,7 +739,10 @@ public class PhonePolicy implements AdapterService.BluetoothStateCallback {
         int headsetConnectionPolicy = hsService.getConnectionPolicy(device);
         if (headsetConnectionPolicy == BluetoothProfile.CONNECTION_POLICY_ALLOWED) {
             debugLog("autoConnectHeadset: Connecting HFP with " + device);
-            hsService.connect(device);
+            recordAutoConnectRequest(device, BluetoothProfile.HEADSET);
+            if (!hsService.connect(device)) {
+                recordConnectFailure(device, BluetoothProfile.HEADSET);
+            }
         } else {
             debugLog("autoConnectHeadset: skipped auto-connect HFP with device " + device
                     + " connectionPolicy " + headsetConnectionPolicy);
@@ -780,6 +820,9 @@ public class PhonePolicy implements AdapterService.BluetoothStateCallback {
         HidHostService hidHostService = mFactory.getHidHostService();
         BassClientService bcService = mFactory.getBassClientService();
 
+        // The connections are requested in one pass, audio profiles first, and proceed
+        // concurrently in the profile state machines. A profile is only connected from the
+        // disconnected state, so its connected devices need not be checked.
         if (hsService != null) {
             if (!mHeadsetRetrySet.contains(device) && (hsService.getConnectionPolicy(device)
                     == BluetoothProfile.CONNECTION_POLICY_ALLOWED)
@@ -787,7 +830,10 @@ public class PhonePolicy implements AdapterService.BluetoothStateCallback {
                     == BluetoothProfile.STATE_DISCONNECTED)) {
                 debugLog("Retrying connection to Headset with device " + device);
                 mHeadsetRetrySet.add(device);
-                hsService.connect(device);
+                recordConnectRequest(device, BluetoothProfile.HEADSET);
+                if (!hsService.connect(device)) {
+                    recordConnectFailure(device, BluetoothProfile.HEADSET);
+                }
             }
         }
         if (a2dpService != null) {
@@ -797,60 +843,46 @@ public class PhonePolicy implements AdapterService.BluetoothStateCallback {
                     == BluetoothProfile.STATE_DISCONNECTED)) {
                 debugLog("Retrying connection to A2DP with device " + device);
                 mA2dpRetrySet.add(device);
-                a2dpService.connect(device);
-            }
-        }
-        if (panService != null) {
-            List<BluetoothDevice> panConnDevList = panService.getConnectedDevices();
-            // TODO: the panConnDevList.isEmpty() check below should be removed once
-            // Multi-PAN is supported.
-            if (panConnDevList.isEmpty() && (panService.getConnectionPolicy(device)
-                    == BluetoothProfile.CONNECTION_POLICY_ALLOWED)
-                    && (panService.getConnectionState(device)
-                    == BluetoothProfile.STATE_DISCONNECTED)) {
-                debugLog("Retrying connection to PAN with device " + device);
-                panService.connect(device);
+                recordConnectRequest(device, BluetoothProfile.A2DP);
+                if (!a2dpService.connect(device)) {
+                    recordConnectFailure(device, BluetoothProfile.A2DP);
+                }
             }
         }
         if (leAudioService != null) {
-            List<BluetoothDevice> leAudioConnDevList = leAudioService.getConnectedDevices();
-            if (!leAudioConnDevList.contains(device)
-                    && (leAudioService.getConnectionPolicy(device)
+            if ((leAudioService.getConnectionPolicy(device)
                             == BluetoothProfile.CONNECTION_POLICY_ALLOWED)
                     && (leAudioService.getConnectionState(device)
                             == BluetoothProfile.STATE_DISCONNECTED)) {
                 debugLog("Retrying connection to LEAudio with device " + device);
-                leAudioService.connect(device);
+                recordConnectRequest(device, BluetoothProfile.LE_AUDIO);
+                if (!leAudioService.connect(device)) {
+                    recordConnectFailure(device, BluetoothProfile.LE_AUDIO);
+                }
             }
         }
         if (csipSetCooridnatorService != null) {
-            List<BluetoothDevice> csipConnDevList = csipSetCooridnatorService.getConnectedDevices();
-            if (!csipConnDevList.contains(device) && (csipSetCooridnatorService.getConnectionPolicy(device)
+            if ((csipSetCooridnatorService.getConnectionPolicy(device)
                     == BluetoothProfile.CONNECTION_POLICY_ALLOWED)
                     && (csipSetCooridnatorService.getConnectionState(device)
                     == BluetoothProfile.STATE_DISCONNECTED)) {
                 debugLog("Retrying connection to CSIP with device " + device);
-                csipSetCooridnatorService.connect(device);
+                recordConnectRequest(device, BluetoothProfile.CSIP_SET_COORDINATOR);
+                if (!csipSetCooridnatorService.connect(device)) {
+                    recordConnectFailure(device, BluetoothProfile.CSIP_SET_COORDINATOR);
+                }
             }
         }
         if (volumeControlService != null) {
-            List<BluetoothDevice> vcConnDevList = volumeControlService.getConnectedDevices();
-            if (!vcConnDevList.contains(device) && (volumeControlService.getConnectionPolicy(device)
+            if ((volumeControlService.getConnectionPolicy(device)
                     == BluetoothProfile.CONNECTION_POLICY_ALLOWED)
                     && (volumeControlService.getConnectionState(device)
                     == BluetoothProfile.STATE_DISCONNECTED)) {
                 debugLog("Retrying connection to VCP with device " + device);
-                volumeControlService.connect(device);
-            }
-        }
-        if (batteryService != null) {
-            List<BluetoothDevice> connectedDevices = batteryService.getConnectedDevices();
-            if (!connectedDevices.contains(device) && (batteryService.getConnectionPolicy(device)
-                    == BluetoothProfile.CONNECTION_POLICY_ALLOWED)
-                    && (batteryService.getConnectionState(device)
-                    == BluetoothProfile.STATE_DISCONNECTED)) {
-                debugLog("Retrying connection to BAS with device " + device);
-                batteryService.connect(device);
+                recordConnectRequest(device, BluetoothProfile.VOLUME_CONTROL);
+                if (!volumeControlService.connect(device)) {
+                    recordConnectFailure(device, BluetoothProfile.VOLUME_CONTROL);
+                }
             }
         }
         if (hidHostService != null) {
@@ -862,9 +894,17 @@ public class PhonePolicy implements AdapterService.BluetoothStateCallback {
                 hidHostService.connect(device);
             }
         }
+        if (batteryService != null) {
+            if ((batteryService.getConnectionPolicy(device)
+                    == BluetoothProfile.CONNECTION_POLICY_ALLOWED)
+                    && (batteryService.getConnectionState(device)
+                    == BluetoothProfile.STATE_DISCONNECTED)) {
+                debugLog("Retrying connection to BAS with device " + device);
+                batteryService.connect(device);
+            }
+        }
         if (bcService != null) {
-            List<BluetoothDevice> connectedDevices = bcService.getConnectedDevices();
-            if (!connectedDevices.contains(device) && (bcService.getConnectionPolicy(device)
+            if ((bcService.getConnectionPolicy(device)
                     == BluetoothProfile.CONNECTION_POLICY_ALLOWED)
                     && (bcService.getConnectionState(device)
                     == BluetoothProfile.STATE_DISCONNECTED)) {
@@ -872,6 +912,184 @@ public class PhonePolicy implements AdapterService.BluetoothStateCallback {
                 bcService.connect(device);
             }
         }
+        if (panService != null) {
+            // TODO: the panService.getConnectedDevices().isEmpty() check below should be removed
+            // once Multi-PAN is supported.
+            if ((panService.getConnectionPolicy(device)
+                    == BluetoothProfile.CONNECTION_POLICY_ALLOWED)
+                    && (panService.getConnectionState(device)
+                    == BluetoothProfile.STATE_DISCONNECTED)
+                    && panService.getConnectedDevices().isEmpty()) {
+                debugLog("Retrying connection to PAN with device " + device);
+                panService.connect(device);
+            }
+        }
+    }
+
+    // Only the profiles reporting their connection state changes to the policy are timed
+    private static boolean isConnectTimed(int profile) {
+        switch (profile) {
+            case BluetoothProfile.A2DP:
+            case BluetoothProfile.HEADSET:
+            case BluetoothProfile.LE_AUDIO:
+            case BluetoothProfile.CSIP_SET_COORDINATOR:
+            case BluetoothProfile.VOLUME_CONTROL:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isAudioProfile(int profile) {
+        return profile == BluetoothProfile.A2DP || profile == BluetoothProfile.HEADSET
+                || profile == BluetoothProfile.LE_AUDIO;
+    }
+
+    private void recordConnectRequest(BluetoothDevice device, int profile) {
+        if (!isConnectTimed(profile)) {
+            return;
+        }
+        long nowMillis = SystemClock.elapsedRealtime();
+        synchronized (mConnectStats) {
+            expireConnectRequestsLocked(nowMillis);
+            SparseLongArray requestTimes = mConnectRequestTimes.get(device);
+            if (requestTimes == null) {
+                requestTimes = new SparseLongArray();
+                mConnectRequestTimes.put(device, requestTimes);
+            }
+            requestTimes.put(profile, nowMillis);
+        }
+    }
+
+    private void recordAutoConnectRequest(BluetoothDevice device, int profile) {
+        recordConnectRequest(device, profile);
+        synchronized (mConnectStats) {
+            if (mAutoConnectStartMillis == 0) {
+                mAutoConnectStartMillis = SystemClock.elapsedRealtime();
+            }
+        }
+    }
+
+    /** Records that a requested connection could not be started. */
+    private void recordConnectFailure(BluetoothDevice device, int profile) {
+        recordConnectResult(device, profile, BluetoothProfile.STATE_DISCONNECTED);
+    }
+
+    private void recordConnectResult(BluetoothDevice device, int profile, int state) {
+        if (state != BluetoothProfile.STATE_CONNECTED
+                && state != BluetoothProfile.STATE_DISCONNECTED) {
+            return;
+        }
+        long nowMillis = SystemClock.elapsedRealtime();
+        synchronized (mConnectStats) {
+            expireConnectRequestsLocked(nowMillis);
+            if (state == BluetoothProfile.STATE_CONNECTED && mAutoConnectStartMillis > 0
+                    && isAudioProfile(profile)) {
+                mLastTimeToAudioMillis = nowMillis - mAutoConnectStartMillis;
+                mAutoConnectStartMillis = 0;
+                debugLog("Audio profile connected " + mLastTimeToAudioMillis
+                        + "ms after auto connect");
+            }
+
+            SparseLongArray requestTimes = mConnectRequestTimes.get(device);
+            if (requestTimes == null || requestTimes.indexOfKey(profile) < 0) {
+                return;
+            }
+            long requestMillis = requestTimes.get(profile);
+            requestTimes.delete(profile);
+            if (requestTimes.size() == 0) {
+                mConnectRequestTimes.remove(device);
+            }
+
+            ConnectStats stats = getConnectStatsLocked(profile);
+            if (state == BluetoothProfile.STATE_DISCONNECTED) {
+                stats.mFailedCount++;
+                endAutoConnectIfDoneLocked();
+                return;
+            }
+            long elapsedMillis = nowMillis - requestMillis;
+            stats.mConnectedCount++;
+            stats.mLastMillis = elapsedMillis;
+            stats.mMaxMillis = Math.max(stats.mMaxMillis, elapsedMillis);
+            stats.mTotalMillis += elapsedMillis;
+        }
+    }
+
+    private ConnectStats getConnectStatsLocked(int profile) {
+        ConnectStats stats = mConnectStats.get(profile);
+        if (stats == null) {
+            stats = new ConnectStats();
+            mConnectStats.put(profile, stats);
+        }
+        return stats;
+    }
+
+    // Counts the requests pending for longer than CONNECT_TIMEOUT_MS as failed
+    private void expireConnectRequestsLocked(long nowMillis) {
+        Iterator<SparseLongArray> iterator = mConnectRequestTimes.values().iterator();
+        boolean expired = false;
+        while (iterator.hasNext()) {
+            SparseLongArray requestTimes = iterator.next();
+            for (int i = requestTimes.size() - 1; i >= 0; i--) {
+                if (nowMillis - requestTimes.valueAt(i) > CONNECT_TIMEOUT_MS) {
+                    getConnectStatsLocked(requestTimes.keyAt(i)).mFailedCount++;
+                    requestTimes.removeAt(i);
+                    expired = true;
+                }
+            }
+            if (requestTimes.size() == 0) {
+                iterator.remove();
+            }
+        }
+        if (expired) {
+            endAutoConnectIfDoneLocked();
+        }
+    }
+
+    // Stops timing the auto connect once none of its audio connections is pending anymore
+    private void endAutoConnectIfDoneLocked() {
+        if (mAutoConnectStartMillis == 0) {
+            return;
+        }
+        for (SparseLongArray requestTimes : mConnectRequestTimes.values()) {
+            for (int i = 0; i < requestTimes.size(); i++) {
+                if (isAudioProfile(requestTimes.keyAt(i))) {
+                    return;
+                }
+            }
+        }
+        debugLog("No audio profile connected after auto connect");
+        mAutoConnectStartMillis = 0;
+    }
+
+    /** Returns the time it took the last requested connection of {@code profile}, or -1. */
+    @VisibleForTesting
+    long getLastConnectMillis(int profile) {
+        synchronized (mConnectStats) {
+            ConnectStats stats = mConnectStats.get(profile);
+            return stats == null || stats.mConnectedCount == 0 ? -1 : stats.mLastMillis;
+        }
+    }
+
+    void dump(PrintWriter writer) {
+        synchronized (mConnectStats) {
+            expireConnectRequestsLocked(SystemClock.elapsedRealtime());
+            writer.println("\nPhonePolicy:");
+            writer.println("  Time to audio after last auto connect: "
+                    + (mLastTimeToAudioMillis < 0 ? "none" : mLastTimeToAudioMillis + "ms")
+                    + (mAutoConnectStartMillis > 0 ? " (auto connect pending)" : ""));
+            for (int i = 0; i < mConnectStats.size(); i++) {
+                ConnectStats stats = mConnectStats.valueAt(i);
+                writer.println("  " + BluetoothProfile.getProfileName(mConnectStats.keyAt(i))
+                        + " connections: " + stats.mConnectedCount + ", failed: "
+                        + stats.mFailedCount + ", last: " + stats.mLastMillis + "ms, max: "
+                        + stats.mMaxMillis + "ms, average: "
+                        + (stats.mConnectedCount == 0 ? 0
+                                : stats.mTotalMillis / stats.mConnectedCount) + "ms");
+            }
+            writer.println("  Pending connections: " + mConnectRequestTimes.size()
+                    + " devices");
+        }
     }
 
     /**
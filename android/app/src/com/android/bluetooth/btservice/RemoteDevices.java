@@ -41,8 +41,10 @@ import android.os.ParcelUuid;
 import android.os.RemoteException;
 import android.os.SystemProperties;
 import android.util.Log;
+import android.util.LongSparseArray;
 
 import com.android.bluetooth.BluetoothStatsLog;
+import com.android.bluetooth.PackedAddress;
 import com.android.bluetooth.R;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.bas.BatteryService;
@@ -52,7 +54,6 @@ import com.android.internal.annotations.VisibleForTesting;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Objects;
 import java.util.Set;
@@ -75,9 +76,11 @@ public class RemoteDevices {
     private static final int MESSAGE_UUID_INTENT = 1;
     private static final String LOG_SOURCE_DIS = "DIS";
 
-    private final HashMap<String, DeviceProperties> mDevices;
-    private final HashMap<String, String> mDualDevicesMap;
-    private ArrayDeque<String> mDeviceQueue;
+    // Keyed by packed address, see PackedAddress
+    private final LongSparseArray<DeviceProperties> mDevices;
+    // Identity address to the address the device is stored under in mDevices
+    private final LongSparseArray<Long> mDualDevicesMap;
+    private ArrayDeque<Long> mDeviceQueue;
 
     /**
      * Bluetooth HFP v1.8 specifies the Battery Charge indicator of AG can take values from
@@ -153,8 +156,8 @@ public class RemoteDevices {
         mAdapter = ((Context) service).getSystemService(BluetoothManager.class).getAdapter();
         mAdapterService = service;
         mSdpTracker = new ArrayList<BluetoothDevice>();
-        mDevices = new HashMap<String, DeviceProperties>();
-        mDualDevicesMap = new HashMap<String, String>();
+        mDevices = new LongSparseArray<DeviceProperties>();
+        mDualDevicesMap = new LongSparseArray<Long>();
         mDeviceQueue = new ArrayDeque<>();
         mHandler = new RemoteDevicesHandler(looper);
         mMainHandler = new Handler(Looper.getMainLooper());
@@ -190,15 +193,15 @@ public class RemoteDevices {
             if (mDevices != null) {
                 debugLog("reset(): Broadcasting ACL_DISCONNECTED");
 
-                mDevices.forEach(
-                        (address, deviceProperties) -> {
-                            BluetoothDevice bluetoothDevice = deviceProperties.getDevice();
+                for (int i = 0; i < mDevices.size(); i++) {
+                    DeviceProperties deviceProperties = mDevices.valueAt(i);
+                    BluetoothDevice bluetoothDevice = deviceProperties.getDevice();
 
-                            debugLog(
-                                    "reset(): address="
-                                            + address
-                                            + ", connected="
-                                            + bluetoothDevice.isConnected());
+                    debugLog(
+                            "reset(): address="
+                                    + PackedAddress.toString(mDevices.keyAt(i))
+                                    + ", connected="
+                                    + bluetoothDevice.isConnected());
 
                     if (bluetoothDevice.isConnected()) {
                         int transport = deviceProperties.getConnectionHandle(
@@ -212,7 +215,7 @@ public class RemoteDevices {
                                 | Intent.FLAG_RECEIVER_INCLUDE_BACKGROUND);
                         mAdapterService.sendBroadcast(intent, BLUETOOTH_CONNECT);
                     }
-                });
+                }
                 mDevices.clear();
             }
         }
@@ -232,25 +235,29 @@ public class RemoteDevices {
     }
 
     DeviceProperties getDeviceProperties(BluetoothDevice device) {
+        return getDeviceProperties(PackedAddress.fromString(device.getAddress()));
+    }
+
+    /**
+     * Returns the properties of the device with the given {@link PackedAddress}, which may also be
+     * the identity address of a dual mode device.
+     */
+    DeviceProperties getDeviceProperties(long address) {
         synchronized (mDevices) {
-            String address = mDualDevicesMap.get(device.getAddress());
-            // If the device is not in the dual map, use its original address
-            if (address == null || mDevices.get(address) == null) {
-                address = device.getAddress();
+            Long deviceAddress = mDualDevicesMap.get(address);
+            if (deviceAddress != null) {
+                DeviceProperties prop = mDevices.get(deviceAddress);
+                if (prop != null) {
+                    return prop;
+                }
             }
+            // If the device is not in the dual map, use its original address
             return mDevices.get(address);
         }
     }
 
     BluetoothDevice getDevice(byte[] address) {
-        String addressString = Utils.getAddressStringFromByte(address);
-        String deviceAddress = mDualDevicesMap.get(addressString);
-        // If the device is not in the dual map, use its original address
-        if (deviceAddress == null || mDevices.get(deviceAddress) == null) {
-            deviceAddress = addressString;
-        }
-
-        DeviceProperties prop = mDevices.get(deviceAddress);
+        DeviceProperties prop = getDeviceProperties(PackedAddress.fromBytes(address));
         if (prop != null) {
             return prop.getDevice();
         }
@@ -261,21 +268,23 @@ public class RemoteDevices {
     DeviceProperties addDeviceProperties(byte[] address) {
         synchronized (mDevices) {
             DeviceProperties prop = new DeviceProperties();
-            prop.setDevice(mAdapter.getRemoteDevice(Utils.getAddressStringFromByte(address)));
+            long key = PackedAddress.fromBytes(address);
+            prop.setDevice(mAdapter.getRemoteDevice(PackedAddress.toString(key)));
             prop.setAddress(address);
-            String key = Utils.getAddressStringFromByte(address);
-            DeviceProperties pv = mDevices.put(key, prop);
+            boolean isNew = mDevices.indexOfKey(key) < 0;
+            mDevices.put(key, prop);
 
-            if (pv == null) {
+            if (isNew) {
                 mDeviceQueue.offer(key);
                 if (mDeviceQueue.size() > MAX_DEVICE_QUEUE_SIZE) {
-                    String deleteKey = mDeviceQueue.poll();
+                    long deleteKey = mDeviceQueue.poll();
                     for (BluetoothDevice device : mAdapterService.getBondedDevices()) {
-                        if (device.getAddress().equals(deleteKey)) {
+                        if (PackedAddress.fromString(device.getAddress()) == deleteKey) {
                             return prop;
                         }
                     }
-                    debugLog("Removing device " + deleteKey + " from property map");
+                    debugLog("Removing device " + PackedAddress.toString(deleteKey)
+                            + " from property map");
                     mDevices.remove(deleteKey);
                 }
             }
@@ -1066,7 +1075,10 @@ public class RemoteDevices {
         deviceProperties.setIsConsolidated(true);
         deviceProperties.setDeviceType(BluetoothDevice.DEVICE_TYPE_DUAL);
         deviceProperties.setIdentityAddress(Utils.getAddressStringFromByte(secondaryAddress));
-        mDualDevicesMap.put(deviceProperties.getIdentityAddress(), Utils.getAddressStringFromByte(mainAddress));
+        synchronized (mDevices) {
+            mDualDevicesMap.put(PackedAddress.fromBytes(secondaryAddress),
+                    PackedAddress.fromBytes(mainAddress));
+        }
     }
 
     /**
@@ -1149,13 +1161,20 @@ public class RemoteDevices {
                 Utils.sendBroadcast(mAdapterService, intent, BLUETOOTH_CONNECT,
                         Utils.getTempAllowlistBroadcastOptions());
             } else if (device.getBondState() == BluetoothDevice.BOND_NONE) {
-                String key = Utils.getAddressStringFromByte(address);
-                mDevices.remove(key);
-                mDeviceQueue.remove(key); // Remove from LRU cache
-
-                // Remove from dual mode device mappings
-                mDualDevicesMap.values().remove(key);
-                mDualDevicesMap.remove(key);
+                long key = PackedAddress.fromBytes(address);
+                synchronized (mDevices) {
+                    mDevices.remove(key);
+                    mDeviceQueue.remove(key); // Remove from LRU cache
+
+                    // Remove from dual mode device mappings
+                    for (int i = 0; i < mDualDevicesMap.size(); i++) {
+                        if (mDualDevicesMap.valueAt(i) == key) {
+                            mDualDevicesMap.removeAt(i);
+                            break;
+                        }
+                    }
+                    mDualDevicesMap.remove(key);
+                }
             }
             if (state == BluetoothAdapter.STATE_ON || state == BluetoothAdapter.STATE_TURNING_OFF) {
                 mAdapterService.notifyAclDisconnected(device, transportLinkType);
@@ -28,9 +28,14 @@ import com.android.internal.annotations.VisibleForTesting;
 import com.google.protobuf.ByteString;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyStore;
@@ -47,6 +52,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import javax.crypto.BadPaddingException;
@@ -91,7 +97,14 @@ public class BluetoothKeystoreService {
     private static final String CONFIG_FILE_PATH = "/data/misc/bluedroid/bt_config.conf";
     private static final String CONFIG_BACKUP_PATH = "/data/misc/bluedroid/bt_config.bak";
 
-    private static final int BUFFER_SIZE = 400 * 10;
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    // Decrypting goes through the keystore daemon, a few requests in parallel hide its latency
+    private static final int MAX_DECRYPT_THREADS = 4;
+
+    // The encrypted key files are rewritten once they hold more lines than that and twice the
+    // number of keys, appending the changed keys otherwise
+    private static final int COMPACTION_MIN_LINES = 64;
 
     private static final int CONFIG_COMPARE_INIT = 0b00;
     private static final int CONFIG_FILE_COMPARE_PASS = 0b01;
@@ -101,9 +114,13 @@ public class BluetoothKeystoreService {
     private final BluetoothKeystoreNativeInterface mBluetoothKeystoreNativeInterface;
 
     private ComputeDataThread mEncryptDataThread;
-    private ComputeDataThread mDecryptDataThread;
-    private Map<String, String> mNameEncryptKey = new HashMap<>();
-    private Map<String, String> mNameDecryptKey = new HashMap<>();
+    private final List<ComputeDataThread> mDecryptDataThreads = new ArrayList<>();
+    private Map<String, String> mNameEncryptKey = new ConcurrentHashMap<>();
+    private Map<String, String> mNameDecryptKey = new ConcurrentHashMap<>();
+    // Encrypted keys as last written to the key files, null if the files must be rewritten
+    private Map<String, String> mPersistedEncryptKey;
+    private int mPersistedLineCount;
+    private SecretKey mSecretKey;
     private BlockingQueue<String> mPendingDecryptKey = new LinkedBlockingQueue<>();
     private BlockingQueue<String> mPendingEncryptKey = new LinkedBlockingQueue<>();
     private final List<String> mEncryptKeyNameList = List.of("LinkKey", "LE_KEY_PENC", "LE_KEY_PID",
@@ -335,6 +352,10 @@ public class BluetoothKeystoreService {
             // clear the item by prefixString.
             mNameDecryptKey.remove(prefixString);
             mNameEncryptKey.remove(prefixString);
+        } else if (decryptedString.equals(mNameDecryptKey.get(prefixString))
+                && mNameEncryptKey.containsKey(prefixString)) {
+            // Unchanged, keep the encrypted key so that it is not written again.
+            return;
         } else {
             mNameDecryptKey.put(prefixString, decryptedString);
             mPendingEncryptKey.put(prefixString);
@@ -354,6 +375,7 @@ public class BluetoothKeystoreService {
         Files.deleteIfExists(Paths.get(CONFIG_CHECKSUM_ENCRYPTION_PATH));
         Files.deleteIfExists(Paths.get(CONFIG_FILE_ENCRYPTION_PATH));
         Files.deleteIfExists(Paths.get(CONFIG_BACKUP_ENCRYPTION_PATH));
+        mPersistedEncryptKey = null;
     }
 
     /**
@@ -364,6 +386,7 @@ public class BluetoothKeystoreService {
         stopThread();
         mNameEncryptKey.clear();
         mNameDecryptKey.clear();
+        mPersistedEncryptKey = null;
         startThread();
     }
 
@@ -377,10 +400,13 @@ public class BluetoothKeystoreService {
                 mEncryptDataThread.setWaitQueueEmptyForStop();
                 mEncryptDataThread.join();
             }
-            if (mDecryptDataThread != null) {
-                mDecryptDataThread.setWaitQueueEmptyForStop();
-                mDecryptDataThread.join();
+            for (ComputeDataThread thread : mDecryptDataThreads) {
+                thread.setWaitQueueEmptyForStop();
             }
+            for (ComputeDataThread thread : mDecryptDataThreads) {
+                thread.join();
+            }
+            mDecryptDataThreads.clear();
         } catch (InterruptedException e) {
             reportBluetoothKeystoreException(e, "Interrupted while operating.");
         }
@@ -388,9 +414,14 @@ public class BluetoothKeystoreService {
 
     private void startThread() {
         mEncryptDataThread = new ComputeDataThread(true);
-        mDecryptDataThread = new ComputeDataThread(false);
         mEncryptDataThread.start();
-        mDecryptDataThread.start();
+        int decryptThreadCount =
+                Math.min(MAX_DECRYPT_THREADS, Runtime.getRuntime().availableProcessors());
+        for (int i = 0; i < decryptThreadCount; i++) {
+            ComputeDataThread thread = new ComputeDataThread(false);
+            mDecryptDataThreads.add(thread);
+            thread.start();
+        }
     }
 
     /**
@@ -412,34 +443,99 @@ public class BluetoothKeystoreService {
     public void saveEncryptedKey() {
         stopThread();
         List<String> configEncryptedLines = new ArrayList<>();
-        List<String> keyEncryptedLines = new ArrayList<>();
-        for (String key : mNameEncryptKey.keySet()) {
+        Map<String, String> keyEncryptedData = new HashMap<>();
+        for (Map.Entry<String, String> entry : mNameEncryptKey.entrySet()) {
+            String key = entry.getKey();
             if (key.equals(CONFIG_FILE_PREFIX) || key.equals(CONFIG_BACKUP_PREFIX)) {
-                configEncryptedLines.add(getEncryptedKeyData(key));
+                configEncryptedLines.add(getEncryptedKeyData(key, entry.getValue()));
             } else {
-                keyEncryptedLines.add(getEncryptedKeyData(key));
+                keyEncryptedData.put(key, entry.getValue());
             }
         }
         startThread();
 
         try {
             if (!configEncryptedLines.isEmpty()) {
-                Files.write(Paths.get(CONFIG_CHECKSUM_ENCRYPTION_PATH), configEncryptedLines);
-            }
-            if (!keyEncryptedLines.isEmpty()) {
-                Files.write(Paths.get(CONFIG_FILE_ENCRYPTION_PATH), keyEncryptedLines);
-                Files.write(Paths.get(CONFIG_BACKUP_ENCRYPTION_PATH), keyEncryptedLines);
+                writeFileAtomically(Paths.get(CONFIG_CHECKSUM_ENCRYPTION_PATH),
+                        configEncryptedLines);
             }
+            saveKeyEncryptedData(keyEncryptedData);
         } catch (IOException e) {
             throw new RuntimeException("write encryption file fail");
         }
     }
 
-    private String getEncryptedKeyData(String prefixString) {
+    /**
+     * Appends the keys changed since the last save to the encrypted key files, an empty key
+     * marking a removed one, or rewrites them once mostly made of outdated keys.
+     */
+    private void saveKeyEncryptedData(Map<String, String> keyEncryptedData) throws IOException {
+        Path filePath = Paths.get(CONFIG_FILE_ENCRYPTION_PATH);
+        Path backupPath = Paths.get(CONFIG_BACKUP_ENCRYPTION_PATH);
+        List<String> changedLines = null;
+        if (mPersistedEncryptKey != null && Files.exists(filePath) && Files.exists(backupPath)) {
+            changedLines = new ArrayList<>();
+            for (Map.Entry<String, String> entry : keyEncryptedData.entrySet()) {
+                if (!entry.getValue().equals(mPersistedEncryptKey.get(entry.getKey()))) {
+                    changedLines.add(getEncryptedKeyData(entry.getKey(), entry.getValue()));
+                }
+            }
+            for (String key : mPersistedEncryptKey.keySet()) {
+                if (!keyEncryptedData.containsKey(key)) {
+                    changedLines.add(getEncryptedKeyData(key, ""));
+                }
+            }
+            if (changedLines.isEmpty()) {
+                return;
+            }
+            if (mPersistedLineCount + changedLines.size()
+                    > Math.max(2 * keyEncryptedData.size(), COMPACTION_MIN_LINES)) {
+                changedLines = null;
+            }
+        }
+
+        if (changedLines != null) {
+            Files.write(filePath, changedLines, StandardOpenOption.APPEND);
+            Files.write(backupPath, changedLines, StandardOpenOption.APPEND);
+            mPersistedLineCount += changedLines.size();
+        } else {
+            if (keyEncryptedData.isEmpty() && mPersistedEncryptKey == null) {
+                return;
+            }
+            List<String> lines = new ArrayList<>();
+            for (Map.Entry<String, String> entry : keyEncryptedData.entrySet()) {
+                lines.add(getEncryptedKeyData(entry.getKey(), entry.getValue()));
+            }
+            writeFileAtomically(filePath, lines);
+            writeFileAtomically(backupPath, lines);
+            mPersistedLineCount = lines.size();
+        }
+        mPersistedEncryptKey = keyEncryptedData;
+    }
+
+    private static void writeFileAtomically(Path path, List<String> lines) throws IOException {
+        StringBuilder content = new StringBuilder();
+        for (String line : lines) {
+            content.append(line).append('\n');
+        }
+        Path tempPath = Paths.get(path + TEMP_FILE_SUFFIX);
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer =
+                    ByteBuffer.wrap(content.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String getEncryptedKeyData(String prefixString, String encryptedString) {
         if (prefixString == null) {
             return null;
         }
-        return prefixString.concat("-").concat(mNameEncryptKey.get(prefixString));
+        return prefixString.concat("-").concat(encryptedString);
     }
 
     /*
@@ -503,17 +599,15 @@ public class BluetoothKeystoreService {
 
     private void readHashFile(String filePathString, String prefixString)
             throws InterruptedException, NoSuchAlgorithmException {
-        byte[] dataBuffer = new byte[BUFFER_SIZE];
-        int bytesRead  = 0;
         boolean successful = false;
         int counter = 0;
         while (!successful && counter < TRY_MAX) {
-            try {
+            try (FileChannel channel = FileChannel.open(Paths.get(filePathString),
+                    StandardOpenOption.READ)) {
                 MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
-                InputStream fileStream = Files.newInputStream(Paths.get(filePathString));
-                while ((bytesRead = fileStream.read(dataBuffer)) != -1) {
-                    messageDigest.update(dataBuffer, 0, bytesRead);
-                }
+                // Digest the mapped file directly rather than copying it through a buffer.
+                messageDigest.update(
+                        channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
 
                 byte[] messageDigestBytes = messageDigest.digest();
                 StringBuilder hashString = new StringBuilder();
@@ -593,6 +687,8 @@ public class BluetoothKeystoreService {
                 return;
             }
             List<String> allLinesString = Files.readAllLines(Paths.get(filePathString));
+            // The key files are appended to, the last line of a key wins.
+            Map<String, String> fileEncryptKey = new HashMap<>();
             for (String line : allLinesString) {
                 int index = line.lastIndexOf("-");
                 if (index < 0) {
@@ -601,11 +697,20 @@ public class BluetoothKeystoreService {
                 String prefixString = line.substring(0, index);
                 String encryptedString = line.substring(index + 1);
 
-                mNameEncryptKey.put(prefixString, encryptedString);
-                if (doDecrypt) {
-                    mPendingDecryptKey.put(prefixString);
+                if (encryptedString.isEmpty()) {
+                    fileEncryptKey.remove(prefixString);
+                } else {
+                    fileEncryptKey.put(prefixString, encryptedString);
                 }
             }
+            mNameEncryptKey.putAll(fileEncryptKey);
+            if (doDecrypt) {
+                mPendingDecryptKey.addAll(fileEncryptKey.keySet());
+            }
+            if (!CONFIG_CHECKSUM_ENCRYPTION_PATH.equals(filePathString)) {
+                mPersistedEncryptKey = fileEncryptKey;
+                mPersistedLineCount = allLinesString.size();
+            }
         } catch (IOException e) {
             throw new RuntimeException("read encryption file all line fail");
         }
@@ -670,6 +775,7 @@ public class BluetoothKeystoreService {
         } catch (NoSuchPaddingException e) {
             reportKeystoreException(e, "encrypt had a padding exception");
         } catch (InvalidKeyException e) {
+            clearSecretKey();
             reportKeystoreException(e, "encrypt received an invalid key");
         } catch (BadPaddingException e) {
             reportKeystoreException(e, "encrypt had a padding problem");
@@ -722,6 +828,7 @@ public class BluetoothKeystoreService {
         } catch (BadPaddingException e) {
             reportKeystoreException(e, "decrypt had bad padding");
         } catch (InvalidKeyException e) {
+            clearSecretKey();
             reportKeystoreException(e, "decrypt had an invalid key");
         } catch (InvalidAlgorithmParameterException e) {
             reportKeystoreException(e, "decrypt had an invalid algorithm parameter");
@@ -748,6 +855,10 @@ public class BluetoothKeystoreService {
 
     // The getOrGenerate semantic on keystore is not thread safe, need to synchronized it.
     private synchronized SecretKey getOrCreateSecretKey() {
+        // Opening the keystore costs more than the computation, keep the key for the next ones.
+        if (mSecretKey != null) {
+            return mSecretKey;
+        }
         SecretKey secretKey = null;
         try {
             KeyStore keyStore = getKeyStore();
@@ -789,9 +900,14 @@ public class BluetoothKeystoreService {
         } catch (ProviderException e) {
             reportKeystoreException(e, "getOrCreateSecretKey had a provider exception.");
         }
+        mSecretKey = secretKey;
         return secretKey;
     }
 
+    private synchronized void clearSecretKey() {
+        mSecretKey = null;
+    }
+
     private static void reportKeystoreException(Exception exception, String error) {
         Log.wtf(TAG, "A keystore error was encountered: " + error, exception);
     }
@@ -823,7 +939,7 @@ public class BluetoothKeystoreService {
         private BlockingQueue<String> mSourceQueue;
         private boolean mDoEncrypt;
 
-        private boolean mWaitQueueEmptyForStop;
+        private volatile boolean mWaitQueueEmptyForStop;
 
         ComputeDataThread(boolean doEncrypt) {
             infoLog("ComputeDataThread: create, doEncrypt: " + doEncrypt);
@@ -849,7 +965,12 @@ public class BluetoothKeystoreService {
             String targetData;
             while (!mSourceQueue.isEmpty() || !mWaitQueueEmptyForStop) {
                 try {
-                    prefixString = mSourceQueue.take();
+                    // Several threads may drain the queue, only block while not stopping.
+                    prefixString = mWaitQueueEmptyForStop
+                            ? mSourceQueue.poll() : mSourceQueue.take();
+                    if (prefixString == null) {
+                        continue;
+                    }
                     if (mSourceDataMap.containsKey(prefixString)) {
                         sourceData = mSourceDataMap.get(prefixString);
                         targetData = tryCompute(sourceData, mDoEncrypt);
@@ -869,9 +990,8 @@ public class BluetoothKeystoreService {
 
         public void setWaitQueueEmptyForStop() {
             mWaitQueueEmptyForStop = true;
-            if (mPendingEncryptKey.isEmpty()) {
-                interrupt();
-            }
+            // Wakes the thread up if waiting, the remaining data is still computed
+            interrupt();
         }
     }
 }
@@ -51,14 +51,16 @@ import com.google.common.collect.EvictingQueue;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
 
 /**
  * The active device manager is responsible to handle a Room database
@@ -77,15 +79,35 @@ public class DatabaseManager {
 
     @VisibleForTesting
     final Map<String, Metadata> mMetadataCache = new HashMap<>();
+
+    // Addresses of mMetadataCache from the least to the most recently connected device
+    @GuardedBy("mMetadataCache")
+    private final LinkedHashSet<String> mRecencyOrder = new LinkedHashSet<>();
+    // Derived from mRecencyOrder, null when the cache changed since it was built
+    private volatile RecencyIndex mRecencyIndex = null;
     private final Semaphore mSemaphore = new Semaphore(1);
     private static final int METADATA_CHANGED_LOG_MAX_SIZE = 20;
     private final EvictingQueue<String> mMetadataChangedLog;
 
+    private final Object mPendingUpdatesLock = new Object();
+    // Latest metadata to write for each address, in the order the addresses were first updated
+    @GuardedBy("mPendingUpdatesLock")
+    private final Map<String, Metadata> mPendingUpdates = new LinkedHashMap<>();
+    @GuardedBy("mPendingUpdatesLock")
+    private long mCoalescedUpdateCount = 0;
+    @GuardedBy("mPendingUpdatesLock")
+    private long mWrittenUpdateCount = 0;
+    @GuardedBy("mPendingUpdatesLock")
+    private long mUpdateTransactionCount = 0;
+    private long mUpdateDatabaseDelayMs = UPDATE_DATABASE_DELAY_MS;
+
     private static final int LOAD_DATABASE_TIMEOUT = 500; // milliseconds
     private static final int MSG_LOAD_DATABASE = 0;
     private static final int MSG_UPDATE_DATABASE = 1;
     private static final int MSG_DELETE_DATABASE = 2;
     private static final int MSG_CLEAR_DATABASE = 100;
+    // Pending updates are written together after this delay, merging repeated updates of a device
+    private static final long UPDATE_DATABASE_DELAY_MS = 100;
     private static final String LOCAL_STORAGE = "LocalStorage";
 
     private static final String
@@ -120,6 +142,41 @@ public class DatabaseManager {
         mMetadataChangedLog = EvictingQueue.create(METADATA_CHANGED_LOG_MAX_SIZE);
     }
 
+    /** Immutable view of the devices in order of most recent connection */
+    private static class RecencyIndex {
+        final List<BluetoothDevice> mDevices = new ArrayList<>();
+        final Map<String, Integer> mRanks = new HashMap<>();
+        final List<BluetoothDevice> mActiveHfpDevices = new ArrayList<>();
+        final BluetoothDevice mActiveA2dpDevice;
+
+        /**
+         * @param metadataList the metadata with the most recently connected device first
+         */
+        RecencyIndex(List<Metadata> metadataList) {
+            BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+            BluetoothDevice activeA2dpDevice = null;
+            for (Metadata metadata : metadataList) {
+                BluetoothDevice device;
+                try {
+                    device = adapter.getRemoteDevice(metadata.getAddress());
+                } catch (IllegalArgumentException ex) {
+                    Log.d(TAG, "RecencyIndex: Invalid address for device "
+                            + metadata.getAnonymizedAddress());
+                    continue;
+                }
+                mRanks.put(device.getAddress(), mDevices.size());
+                mDevices.add(device);
+                if (metadata.is_active_a2dp_device && activeA2dpDevice == null) {
+                    activeA2dpDevice = device;
+                }
+                if (metadata.isActiveHfpDevice) {
+                    mActiveHfpDevices.add(device);
+                }
+            }
+            mActiveA2dpDevice = activeA2dpDevice;
+        }
+    }
+
     class DatabaseHandler extends Handler {
         DatabaseHandler(Looper looper) {
             super(looper);
@@ -145,10 +202,7 @@ public class DatabaseManager {
                     break;
                 }
                 case MSG_UPDATE_DATABASE: {
-                    Metadata data = (Metadata) msg.obj;
-                    synchronized (mDatabaseLock) {
-                        mDatabase.insert(data);
-                    }
+                    writePendingUpdates();
                     break;
                 }
                 case MSG_DELETE_DATABASE: {
@@ -211,6 +265,7 @@ public class DatabaseManager {
                 Metadata metadata = mMetadataCache.get(address);
                 if (metadata != null) {
                     mMetadataCache.remove(address);
+                    mRecencyOrder.remove(address);
                     deleteDatabase(metadata);
                 }
             }
@@ -604,6 +659,7 @@ public class DatabaseManager {
         synchronized (MetadataDatabase.class) {
             metadata.last_active_time = MetadataDatabase.sCurrentConnectionNumber++;
         }
+        moveToMostRecentLocked(address);
 
         // Only update is_active_a2dp_device if an a2dp device is connected
         if (isActiveA2dp) {
@@ -746,21 +802,7 @@ public class DatabaseManager {
      * in order of most recently connected
      */
     public List<BluetoothDevice> getMostRecentlyConnectedDevices() {
-        List<BluetoothDevice> mostRecentlyConnectedDevices = new ArrayList<>();
-        synchronized (mMetadataCache) {
-            List<Metadata> sortedMetadata = new ArrayList<>(mMetadataCache.values());
-            sortedMetadata.sort((o1, o2) -> Long.compare(o2.last_active_time, o1.last_active_time));
-            for (Metadata metadata : sortedMetadata) {
-                try {
-                    mostRecentlyConnectedDevices.add(BluetoothAdapter.getDefaultAdapter()
-                            .getRemoteDevice(metadata.getAddress()));
-                } catch (IllegalArgumentException ex) {
-                    Log.d(TAG, "getBondedDevicesOrdered: Invalid address for "
-                               + "device " + metadata.getAnonymizedAddress());
-                }
-            }
-        }
-        return mostRecentlyConnectedDevices;
+        return new ArrayList<>(getRecencyIndex().mDevices);
     }
 
     /**
@@ -778,17 +820,14 @@ public class DatabaseManager {
             return null;
         }
 
+        Map<String, Integer> ranks = getRecencyIndex().mRanks;
         BluetoothDevice mostRecentDevice = null;
-        long mostRecentLastActiveTime = -1;
-        synchronized (mMetadataCache) {
-            for (BluetoothDevice device : devicesList) {
-                String address = device.getAddress();
-                Metadata metadata = mMetadataCache.get(address);
-                if (metadata != null && (mostRecentLastActiveTime == -1
-                            || mostRecentLastActiveTime < metadata.last_active_time)) {
-                    mostRecentLastActiveTime = metadata.last_active_time;
-                    mostRecentDevice = device;
-                }
+        int mostRecentRank = Integer.MAX_VALUE;
+        for (BluetoothDevice device : devicesList) {
+            Integer rank = ranks.get(device.getAddress());
+            if (rank != null && rank < mostRecentRank) {
+                mostRecentRank = rank;
+                mostRecentDevice = device;
             }
         }
         return mostRecentDevice;
@@ -800,21 +839,7 @@ public class DatabaseManager {
      * @return the most recently active a2dp device or null if the last a2dp device was null
      */
     public BluetoothDevice getMostRecentlyConnectedA2dpDevice() {
-        synchronized (mMetadataCache) {
-            for (Map.Entry<String, Metadata> entry : mMetadataCache.entrySet()) {
-                Metadata metadata = entry.getValue();
-                if (metadata.is_active_a2dp_device) {
-                    try {
-                        return BluetoothAdapter.getDefaultAdapter().getRemoteDevice(
-                                metadata.getAddress());
-                    } catch (IllegalArgumentException ex) {
-                        Log.d(TAG, "getMostRecentlyConnectedA2dpDevice: Invalid address for "
-                                   + "device " + metadata.getAnonymizedAddress());
-                    }
-                }
-            }
-        }
-        return null;
+        return getRecencyIndex().mActiveA2dpDevice;
     }
 
     /**
@@ -823,41 +848,72 @@ public class DatabaseManager {
      * @return the most recently active HFP device or null if the last hfp device was null
      */
     public BluetoothDevice getMostRecentlyActiveHfpDevice() {
-        Map.Entry<String, Metadata> entry;
-        synchronized (mMetadataCache) {
-            entry =
-                    mMetadataCache.entrySet().stream()
-                            .filter(x -> x.getValue().isActiveHfpDevice)
-                            .findFirst()
-                            .orElse(null);
-        }
-        if (entry != null) {
-            try {
-                return BluetoothAdapter.getDefaultAdapter()
-                        .getRemoteDevice(entry.getValue().getAddress());
-            } catch (IllegalArgumentException ex) {
-                Log.d(
-                        TAG,
-                        "getMostRecentlyActiveHfpDevice: Invalid address for "
-                                + "device "
-                                + entry.getValue().getAnonymizedAddress());
-            }
-        }
-
-        return null;
+        List<BluetoothDevice> activeHfpDevices = getRecencyIndex().mActiveHfpDevices;
+        return activeHfpDevices.isEmpty() ? null : activeHfpDevices.get(0);
     }
 
     /**
      * @return the list of device registered as HFP active
      */
     public List<BluetoothDevice> getMostRecentlyActiveHfpDevices() {
-        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        return new ArrayList<>(getRecencyIndex().mActiveHfpDevices);
+    }
+
+    /**
+     * Returns the {@link RecencyIndex} of the current cache. It is only rebuilt after the cache
+     * changed, so lookups in between neither sort nor take the cache lock.
+     */
+    private RecencyIndex getRecencyIndex() {
+        RecencyIndex index = mRecencyIndex;
+        if (index != null) {
+            return index;
+        }
         synchronized (mMetadataCache) {
-            return mMetadataCache.entrySet().stream()
-                    .filter(x -> x.getValue().isActiveHfpDevice)
-                    .map(x -> adapter.getRemoteDevice(x.getValue().getAddress()))
-                    .collect(Collectors.toList());
+            List<Metadata> metadataList = getMetadataByRecencyLocked();
+            if (metadataList == null) {
+                // The cache was changed without going through the recency order, sort it again
+                List<Metadata> sortedMetadata = new ArrayList<>(mMetadataCache.values());
+                sortedMetadata.sort(
+                        (o1, o2) -> Long.compare(o1.last_active_time, o2.last_active_time));
+                mRecencyOrder.clear();
+                for (Metadata metadata : sortedMetadata) {
+                    mRecencyOrder.add(metadata.getAddress());
+                }
+                metadataList = getMetadataByRecencyLocked();
+            }
+            Collections.reverse(metadataList);
+            index = new RecencyIndex(metadataList);
+            mRecencyIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * Returns the cached metadata from the least to the most recently connected device, or null
+     * if {@link #mRecencyOrder} does not match the cache.
+     */
+    @GuardedBy("mMetadataCache")
+    private List<Metadata> getMetadataByRecencyLocked() {
+        if (mRecencyOrder.size() != mMetadataCache.size()) {
+            return null;
         }
+        List<Metadata> metadataList = new ArrayList<>(mRecencyOrder.size());
+        for (String address : mRecencyOrder) {
+            Metadata metadata = mMetadataCache.get(address);
+            if (metadata == null) {
+                return null;
+            }
+            metadataList.add(metadata);
+        }
+        return metadataList;
+    }
+
+    /** Records that {@code address} was connected after every other cached device */
+    @GuardedBy("mMetadataCache")
+    private void moveToMostRecentLocked(String address) {
+        mRecencyOrder.remove(address);
+        mRecencyOrder.add(address);
+        mRecencyIndex = null;
     }
 
     /**
@@ -1068,6 +1124,9 @@ public class DatabaseManager {
      */
     public void factoryReset() {
         Log.w(TAG, "factoryReset");
+        synchronized (mPendingUpdatesLock) {
+            mPendingUpdates.clear();
+        }
         Message message = mHandler.obtainMessage(MSG_CLEAR_DATABASE);
         mHandler.sendMessage(message);
     }
@@ -1077,10 +1136,16 @@ public class DatabaseManager {
         removeUnusedMetadata();
         mAdapterService.unregisterReceiver(mReceiver);
         if (mHandlerThread != null) {
+            // Do not lose the updates still waiting for their delayed write
+            writePendingUpdates();
             mHandlerThread.quit();
             mHandlerThread = null;
         }
-        mMetadataCache.clear();
+        synchronized (mMetadataCache) {
+            mMetadataCache.clear();
+            mRecencyOrder.clear();
+            mRecencyIndex = null;
+        }
     }
 
     void createMetadata(String address, boolean isActiveA2dpDevice) {
@@ -1105,6 +1170,7 @@ public class DatabaseManager {
                         + (" isActiveHfpDevice=" + isActiveHfpDevice)
                         + (" isActiveA2dpDevice=" + isActiveA2dpDevice));
         mMetadataCache.put(address, data);
+        moveToMostRecentLocked(address);
         updateDatabase(data);
         logMetadataChange(data, "Metadata created");
     }
@@ -1146,6 +1212,8 @@ public class DatabaseManager {
                 Log.v(TAG, "cacheMetadata: found device " + data.getAnonymizedAddress());
                 mMetadataCache.put(address, data);
             }
+            // The recency order is rebuilt from last_active_time on the next lookup
+            mRecencyIndex = null;
             Log.i(TAG, "cacheMetadata: Database is ready");
         }
     }
@@ -1351,9 +1419,65 @@ public class DatabaseManager {
             return;
         }
         Log.d(TAG, "updateDatabase " + data.getAnonymizedAddress());
-        Message message = mHandler.obtainMessage(MSG_UPDATE_DATABASE);
-        message.obj = data;
-        mHandler.sendMessage(message);
+        // Connection time or active device of the metadata may have changed
+        mRecencyIndex = null;
+        synchronized (mPendingUpdatesLock) {
+            boolean writeScheduled = !mPendingUpdates.isEmpty();
+            if (mPendingUpdates.put(data.getAddress(), data) != null) {
+                mCoalescedUpdateCount++;
+            }
+            if (writeScheduled) {
+                return;
+            }
+        }
+        mHandler.sendEmptyMessageDelayed(MSG_UPDATE_DATABASE, mUpdateDatabaseDelayMs);
+    }
+
+    /** Write all pending metadata updates to the database in a single transaction */
+    private void writePendingUpdates() {
+        synchronized (mDatabaseLock) {
+            Metadata[] updates;
+            synchronized (mPendingUpdatesLock) {
+                if (mPendingUpdates.isEmpty()) {
+                    return;
+                }
+                updates = mPendingUpdates.values().toArray(new Metadata[0]);
+                mPendingUpdates.clear();
+                mWrittenUpdateCount += updates.length;
+                mUpdateTransactionCount++;
+            }
+            Log.d(TAG, "writePendingUpdates: " + updates.length + " metadata");
+            mDatabase.insert(updates);
+        }
+    }
+
+    @VisibleForTesting
+    void setUpdateDatabaseDelayMs(long delayMs) {
+        mUpdateDatabaseDelayMs = delayMs;
+    }
+
+    /** Returns how many metadata updates were merged into a later update of the same device */
+    @VisibleForTesting
+    long getCoalescedUpdateCount() {
+        synchronized (mPendingUpdatesLock) {
+            return mCoalescedUpdateCount;
+        }
+    }
+
+    /** Returns how many metadata rows were written to the database */
+    @VisibleForTesting
+    long getWrittenUpdateCount() {
+        synchronized (mPendingUpdatesLock) {
+            return mWrittenUpdateCount;
+        }
+    }
+
+    /** Returns how many transactions were used to write the metadata rows */
+    @VisibleForTesting
+    long getUpdateTransactionCount() {
+        synchronized (mPendingUpdatesLock) {
+            return mUpdateTransactionCount;
+        }
     }
 
     @VisibleForTesting
@@ -1364,6 +1488,10 @@ public class DatabaseManager {
             return;
         }
         logMetadataChange(data, "Metadata deleted");
+        mRecencyIndex = null;
+        synchronized (mPendingUpdatesLock) {
+            mPendingUpdates.remove(address);
+        }
         Message message = mHandler.obtainMessage(MSG_DELETE_DATABASE);
         message.obj = data.getAddress();
         mHandler.sendMessage(message);
@@ -1422,6 +1550,12 @@ public class DatabaseManager {
         for (String log : mMetadataChangedLog) {
             writer.println("    " + log);
         }
+        synchronized (mPendingUpdatesLock) {
+            writer.println("  Metadata Updates: pending=" + mPendingUpdates.size()
+                    + ", coalesced=" + mCoalescedUpdateCount
+                    + ", written=" + mWrittenUpdateCount
+                    + ", transactions=" + mUpdateTransactionCount);
+        }
         writer.println("\nMetadata:");
         for (Map.Entry<String, Metadata> entry : mMetadataCache.entrySet()) {
             if (entry.getKey().equals(LOCAL_STORAGE)) {
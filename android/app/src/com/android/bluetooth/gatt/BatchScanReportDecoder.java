@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import com.android.bluetooth.PackedAddress;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decodes the batch scan reports of the controller in a single pass over the report data.
+ *
+ * <p>Records are read in place at their offset in the report: the address is packed without an
+ * intermediate array and the advertising payload is copied once, into the buffer of its
+ * {@link ScanRecord}, which is decoded lazily. A device advertising the same payload several
+ * times in a report is reported once, with its most recent RSSI and timestamp; the duplicates are
+ * recognized from the report data before any {@link ScanResult} is built for them.
+ *
+ * @hide
+ */
+/* package */ class BatchScanReportDecoder {
+    private static final String TAG = GattServiceConfig.TAG_PREFIX + "BatchScanReportDecoder";
+
+    /** Size of a truncated record: address, address type, tx power, RSSI and timestamp. */
+    static final int TRUNCATED_RESULT_SIZE = 11;
+
+    // Address, address type, tx power, RSSI and timestamp, then the advertising data length
+    private static final int FULL_RESULT_HEADER_SIZE = 11;
+    private static final int ADDRESS_LENGTH = 6;
+    private static final int RSSI_OFFSET = 8;
+    private static final int TIMESTAMP_OFFSET = 9;
+    // Timestamps count units of 50 ms
+    private static final long TIMESTAMP_UNIT_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    /** Identifies a record by its advertiser and payload, which is compared in place. */
+    private static final class RecordKey {
+        private final long mAddress;
+        private final byte[] mData;
+        private final int mAdvOffset;
+        private final int mAdvLength;
+        private final int mScanResponseOffset;
+        private final int mScanResponseLength;
+        private final int mHash;
+
+        private RecordKey(long address, byte[] data, int advOffset, int advLength,
+                int scanResponseOffset, int scanResponseLength) {
+            mAddress = address;
+            mData = data;
+            mAdvOffset = advOffset;
+            mAdvLength = advLength;
+            mScanResponseOffset = scanResponseOffset;
+            mScanResponseLength = scanResponseLength;
+            int hash = Long.hashCode(address);
+            for (int i = advOffset; i < advOffset + advLength; i++) {
+                hash = 31 * hash + data[i];
+            }
+            for (int i = scanResponseOffset; i < scanResponseOffset + scanResponseLength; i++) {
+                hash = 31 * hash + data[i];
+            }
+            mHash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof RecordKey)) {
+                return false;
+            }
+            RecordKey other = (RecordKey) o;
+            return mHash == other.mHash && mAddress == other.mAddress
+                    && Arrays.equals(mData, mAdvOffset, mAdvOffset + mAdvLength,
+                            other.mData, other.mAdvOffset, other.mAdvOffset + other.mAdvLength)
+                    && Arrays.equals(mData, mScanResponseOffset,
+                            mScanResponseOffset + mScanResponseLength, other.mData,
+                            other.mScanResponseOffset,
+                            other.mScanResponseOffset + other.mScanResponseLength);
+        }
+    }
+
+    private final BluetoothAdapter mAdapter;
+    private final byte[] mData;
+    private final long mNowNanos;
+    private final ArrayList<ScanResult> mResults;
+    private final Map<RecordKey, Integer> mIndexes;
+    private final LongSparseArray<BluetoothDevice> mDevices = new LongSparseArray<>();
+    private ScanRecord mEmptyRecord;
+
+    private BatchScanReportDecoder(BluetoothAdapter adapter, byte[] data, int numRecords,
+            long nowNanos) {
+        mAdapter = adapter;
+        mData = data;
+        mNowNanos = nowNanos;
+        mResults = new ArrayList<>(numRecords);
+        mIndexes = new HashMap<>(numRecords * 4 / 3 + 1);
+    }
+
+    /**
+     * Returns the distinct results of a batch scan report, in the order their advertiser was
+     * first found in the report.
+     *
+     * @param reportType {@link ScanManager#SCAN_RESULT_TYPE_TRUNCATED} or
+     *     {@link ScanManager#SCAN_RESULT_TYPE_FULL}
+     * @param nowNanos the elapsed realtime the timestamps of the report are relative to
+     */
+    static ArrayList<ScanResult> decode(BluetoothAdapter adapter, int reportType, int numRecords,
+            byte[] recordData, long nowNanos) {
+        if (numRecords <= 0 || recordData == null) {
+            return new ArrayList<>();
+        }
+        BatchScanReportDecoder decoder =
+                new BatchScanReportDecoder(adapter, recordData, numRecords, nowNanos);
+        if (reportType == ScanManager.SCAN_RESULT_TYPE_TRUNCATED) {
+            decoder.decodeTruncated(numRecords);
+        } else {
+            decoder.decodeFull();
+        }
+        return decoder.mResults;
+    }
+
+    /** Returns the time elapsed since a record, from its 2 byte timestamp at {@code offset}. */
+    static long parseTimestampNanos(byte[] data, int offset) {
+        int units = (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8);
+        return units * TIMESTAMP_UNIT_NANOS;
+    }
+
+    private void decodeTruncated(int numRecords) {
+        int end = Math.min(numRecords, mData.length / TRUNCATED_RESULT_SIZE)
+                * TRUNCATED_RESULT_SIZE;
+        if (end < numRecords * TRUNCATED_RESULT_SIZE) {
+            Log.w(TAG, "Truncated batch report holds fewer than " + numRecords + " records");
+        }
+        for (int position = 0; position < end; position += TRUNCATED_RESULT_SIZE) {
+            add(position, position, 0, position, 0);
+        }
+    }
+
+    private void decodeFull() {
+        int position = 0;
+        while (position < mData.length) {
+            int advLengthPosition = position + FULL_RESULT_HEADER_SIZE;
+            if (advLengthPosition >= mData.length) {
+                Log.w(TAG, "Full batch report ends within a record header");
+                return;
+            }
+            int advOffset = advLengthPosition + 1;
+            int advLength = mData[advLengthPosition] & 0xFF;
+            int scanResponseLengthPosition = advOffset + advLength;
+            if (scanResponseLengthPosition >= mData.length) {
+                Log.w(TAG, "Full batch report ends within an advertising packet");
+                return;
+            }
+            int scanResponseOffset = scanResponseLengthPosition + 1;
+            int scanResponseLength = mData[scanResponseLengthPosition] & 0xFF;
+            if (scanResponseOffset + scanResponseLength > mData.length) {
+                Log.w(TAG, "Full batch report ends within a scan response packet");
+                return;
+            }
+            add(position, advOffset, advLength, scanResponseOffset, scanResponseLength);
+            position = scanResponseOffset + scanResponseLength;
+        }
+    }
+
+    private void add(int position, int advOffset, int advLength, int scanResponseOffset,
+            int scanResponseLength) {
+        // The address is stored least significant octet first
+        long address = 0;
+        for (int i = ADDRESS_LENGTH - 1; i >= 0; i--) {
+            address = (address << 8) | (mData[position + i] & 0xFF);
+        }
+        int rssi = mData[position + RSSI_OFFSET];
+        long timestampNanos = mNowNanos - parseTimestampNanos(mData, position + TIMESTAMP_OFFSET);
+
+        RecordKey key = new RecordKey(address, mData, advOffset, advLength, scanResponseOffset,
+                scanResponseLength);
+        Integer index = mIndexes.get(key);
+        if (index != null) {
+            ScanResult previous = mResults.get(index);
+            if (previous.getTimestampNanos() < timestampNanos) {
+                mResults.set(index, new ScanResult(previous.getDevice(),
+                        previous.getScanRecord(), rssi, timestampNanos));
+            }
+            return;
+        }
+
+        mIndexes.put(key, mResults.size());
+        mResults.add(new ScanResult(getDevice(address),
+                getScanRecord(advOffset, advLength, scanResponseOffset, scanResponseLength), rssi,
+                timestampNanos));
+    }
+
+    private BluetoothDevice getDevice(long address) {
+        BluetoothDevice device = mDevices.get(address);
+        if (device == null) {
+            device = mAdapter.getRemoteDevice(PackedAddress.toString(address));
+            mDevices.put(address, device);
+        }
+        return device;
+    }
+
+    private ScanRecord getScanRecord(int advOffset, int advLength, int scanResponseOffset,
+            int scanResponseLength) {
+        if (advLength + scanResponseLength == 0) {
+            if (mEmptyRecord == null) {
+                mEmptyRecord = ScanRecord.parseFromBytes(new byte[0]);
+            }
+            return mEmptyRecord;
+        }
+        // The advertising packet and the scan response make up the scan record
+        byte[] scanRecord = new byte[advLength + scanResponseLength];
+        System.arraycopy(mData, advOffset, scanRecord, 0, advLength);
+        System.arraycopy(mData, scanResponseOffset, scanRecord, advLength, scanResponseLength);
+        return ScanRecord.parseFromBytesLazy(scanRecord);
+    }
+}
@@ -188,11 +188,38 @@ public class ContextMap<C, T> {
         }
     }
 
+    /**
+     * Immutable copy of the application list with lookup indexes, replaced whenever the list
+     * changes so that lookups do not need to take {@link #mAppsLock}.
+     */
+    private class AppsSnapshot {
+        final List<App> mApps;
+        final Map<Integer, App> mById = new HashMap<Integer, App>();
+        final Map<UUID, App> mByUuid = new HashMap<UUID, App>();
+        final Map<String, App> mByName = new HashMap<String, App>();
+
+        AppsSnapshot(List<App> apps) {
+            mApps = new ArrayList<App>(apps);
+            // The first application in the list wins, as it did for a linear search.
+            for (App app : mApps) {
+                mById.putIfAbsent(app.id, app);
+                if (app.uuid != null) {
+                    mByUuid.putIfAbsent(app.uuid, app);
+                }
+                if (app.name != null) {
+                    mByName.putIfAbsent(app.name, app);
+                }
+            }
+        }
+    }
+
     /** Our internal application list */
     private final Object mAppsLock = new Object();
     @GuardedBy("mAppsLock")
     private List<App> mApps = new ArrayList<App>();
 
+    private volatile AppsSnapshot mAppsSnapshot = new AppsSnapshot(mApps);
+
     /** Internal map to keep track of logging information by app name */
     private HashMap<Integer, AppScanStats> mAppScanStats = new HashMap<Integer, AppScanStats>();
 
@@ -209,6 +236,14 @@ public class ContextMap<C, T> {
     private Set<Connection> mConnections = new HashSet<Connection>();
     private final Object mConnectionsLock = new Object();
 
+    /** Indexes over {@link #mConnections} */
+    @GuardedBy("mConnectionsLock")
+    private final Map<Integer, Connection> mConnectionsByConnId =
+            new HashMap<Integer, Connection>();
+    @GuardedBy("mConnectionsLock")
+    private final Map<Integer, List<Connection>> mConnectionsByAppId =
+            new HashMap<Integer, List<Connection>>();
+
     /** Add an entry to the application context list. */
     App add(
             UUID uuid,
@@ -237,6 +272,7 @@ public class ContextMap<C, T> {
             }
             App app = new App(uuid, callback, (T) piInfo, appName, appScanStats);
             mApps.add(app);
+            publishAppsLocked();
             appScanStats.isRegistered = true;
             return app;
         }
@@ -265,6 +301,7 @@ public class ContextMap<C, T> {
             if (app == null) {
                 app = new App(appUid, callback, appName);
                 mApps.add(app);
+                publishAppsLocked();
             }
             return app;
         }
@@ -282,6 +319,7 @@ public class ContextMap<C, T> {
                     entry.unlinkToDeath();
                     entry.appScanStats.isRegistered = false;
                     i.remove();
+                    publishAppsLocked();
                     break;
                 }
             }
@@ -302,6 +340,7 @@ public class ContextMap<C, T> {
                     entry.unlinkToDeath();
                     entry.appScanStats.isRegistered = false;
                     i.remove();
+                    publishAppsLocked();
                     break;
                 }
             }
@@ -311,6 +350,11 @@ public class ContextMap<C, T> {
         }
     }
 
+    @GuardedBy("mAppsLock")
+    private void publishAppsLocked() {
+        mAppsSnapshot = new AppsSnapshot(mApps);
+    }
+
     List<Integer> getAllAppsIds() {
         List<Integer> appIds = new ArrayList();
         synchronized (mAppsLock) {
@@ -330,7 +374,12 @@ public class ContextMap<C, T> {
         synchronized (mConnectionsLock) {
             App entry = getById(id);
             if (entry != null) {
-                mConnections.add(new Connection(connId, address, id));
+                Connection connection = new Connection(connId, address, id);
+                mConnections.add(connection);
+                mConnectionsByConnId.put(connId, connection);
+                mConnectionsByAppId
+                        .computeIfAbsent(id, k -> new ArrayList<Connection>())
+                        .add(connection);
             }
         }
     }
@@ -340,13 +389,17 @@ public class ContextMap<C, T> {
      */
     void removeConnection(int id, int connId) {
         synchronized (mConnectionsLock) {
-            Iterator<Connection> i = mConnections.iterator();
-            while (i.hasNext()) {
-                Connection connection = i.next();
-                if (connection.connId == connId) {
-                    i.remove();
-                    break;
+            Connection connection = mConnectionsByConnId.get(connId);
+            if (connection != null) {
+                mConnections.remove(connection);
+                List<Connection> appConnections = mConnectionsByAppId.get(connection.appId);
+                if (appConnections != null) {
+                    appConnections.remove(connection);
+                    if (appConnections.isEmpty()) {
+                        mConnectionsByAppId.remove(connection.appId);
+                    }
                 }
+                unindexConnIdLocked(connection);
             }
         }
     }
@@ -356,12 +409,31 @@ public class ContextMap<C, T> {
      */
     void removeConnectionsByAppId(int appId) {
         synchronized (mConnectionsLock) {
-            Iterator<Connection> i = mConnections.iterator();
-            while (i.hasNext()) {
-                Connection connection = i.next();
-                if (connection.appId == appId) {
-                    i.remove();
-                }
+            List<Connection> appConnections = mConnectionsByAppId.remove(appId);
+            if (appConnections == null) {
+                return;
+            }
+            for (Connection connection : appConnections) {
+                mConnections.remove(connection);
+                unindexConnIdLocked(connection);
+            }
+        }
+    }
+
+    /**
+     * Drops a removed connection from the connection ID index, falling back to another connection
+     * with the same ID if there is one.
+     */
+    @GuardedBy("mConnectionsLock")
+    private void unindexConnIdLocked(Connection connection) {
+        if (mConnectionsByConnId.get(connection.connId) != connection) {
+            return;
+        }
+        mConnectionsByConnId.remove(connection.connId);
+        for (Connection other : mConnections) {
+            if (other.connId == connection.connId) {
+                mConnectionsByConnId.put(other.connId, other);
+                break;
             }
         }
     }
@@ -370,13 +442,18 @@ public class ContextMap<C, T> {
      * Get an application context by ID.
      */
     App getById(int id) {
-        synchronized (mAppsLock) {
-            Iterator<App> i = mApps.iterator();
-            while (i.hasNext()) {
-                App entry = i.next();
-                if (entry.id == id) {
-                    return entry;
+        AppsSnapshot snapshot = mAppsSnapshot;
+        App app = snapshot.mById.get(id);
+        if (app != null && app.id == id) {
+            return app;
+        }
+        // IDs are assigned once the stack registered the application, after it was indexed.
+        for (App entry : snapshot.mApps) {
+            if (entry.id == id) {
+                synchronized (mAppsLock) {
+                    publishAppsLocked();
                 }
+                return entry;
             }
         }
         Log.e(TAG, "Context not found for ID " + id);
@@ -387,14 +464,9 @@ public class ContextMap<C, T> {
      * Get an application context by UUID.
      */
     App getByUuid(UUID uuid) {
-        synchronized (mAppsLock) {
-            Iterator<App> i = mApps.iterator();
-            while (i.hasNext()) {
-                App entry = i.next();
-                if (entry.uuid.equals(uuid)) {
-                    return entry;
-                }
-            }
+        App app = mAppsSnapshot.mByUuid.get(uuid);
+        if (app != null) {
+            return app;
         }
         Log.e(TAG, "Context not found for UUID " + uuid);
         return null;
@@ -404,14 +476,9 @@ public class ContextMap<C, T> {
      * Get an application context by the calling Apps name.
      */
     App getByName(String name) {
-        synchronized (mAppsLock) {
-            Iterator<App> i = mApps.iterator();
-            while (i.hasNext()) {
-                App entry = i.next();
-                if (entry.name.equals(name)) {
-                    return entry;
-                }
-            }
+        App app = mAppsSnapshot.mByName.get(name);
+        if (app != null) {
+            return app;
         }
         Log.e(TAG, "Context not found for name " + name);
         return null;
@@ -421,13 +488,9 @@ public class ContextMap<C, T> {
      * Get an application context by the context info object.
      */
     App getByContextInfo(T contextInfo) {
-        synchronized (mAppsLock) {
-            Iterator<App> i = mApps.iterator();
-            while (i.hasNext()) {
-                App entry = i.next();
-                if (entry.info != null && entry.info.equals(contextInfo)) {
-                    return entry;
-                }
+        for (App entry : mAppsSnapshot.mApps) {
+            if (entry.info != null && entry.info.equals(contextInfo)) {
+                return entry;
             }
         }
         Log.e(TAG, "Context not found for info " + contextInfo);
@@ -605,13 +668,9 @@ public class ContextMap<C, T> {
     App getByConnId(int connId) {
         int appId = -1;
         synchronized (mConnectionsLock) {
-            Iterator<Connection> ii = mConnections.iterator();
-            while (ii.hasNext()) {
-                Connection connection = ii.next();
-                if (connection.connId == connId) {
-                    appId = connection.appId;
-                    break;
-                }
+            Connection connection = mConnectionsByConnId.get(connId);
+            if (connection != null) {
+                appId = connection.appId;
             }
         }
         if (appId >= 0) {
@@ -629,10 +688,12 @@ public class ContextMap<C, T> {
             return null;
         }
         synchronized (mConnectionsLock) {
-            Iterator<Connection> i = mConnections.iterator();
-            while (i.hasNext()) {
-                Connection connection = i.next();
-                if (connection.address.equalsIgnoreCase(address) && connection.appId == id) {
+            List<Connection> appConnections = mConnectionsByAppId.get(id);
+            if (appConnections == null) {
+                return null;
+            }
+            for (Connection connection : appConnections) {
+                if (connection.address.equalsIgnoreCase(address)) {
                     return connection.connId;
                 }
             }
@@ -645,12 +706,9 @@ public class ContextMap<C, T> {
      */
     String addressByConnId(int connId) {
         synchronized (mConnectionsLock) {
-            Iterator<Connection> i = mConnections.iterator();
-            while (i.hasNext()) {
-                Connection connection = i.next();
-                if (connection.connId == connId) {
-                    return connection.address;
-                }
+            Connection connection = mConnectionsByConnId.get(connId);
+            if (connection != null) {
+                return connection.address;
             }
         }
         return null;
@@ -659,12 +717,9 @@ public class ContextMap<C, T> {
     List<Connection> getConnectionByApp(int appId) {
         List<Connection> currentConnections = new ArrayList<Connection>();
         synchronized (mConnectionsLock) {
-            Iterator<Connection> i = mConnections.iterator();
-            while (i.hasNext()) {
-                Connection connection = i.next();
-                if (connection.appId == appId) {
-                    currentConnections.add(connection);
-                }
+            List<Connection> appConnections = mConnectionsByAppId.get(appId);
+            if (appConnections != null) {
+                currentConnections.addAll(appConnections);
             }
         }
         return currentConnections;
@@ -684,10 +739,13 @@ public class ContextMap<C, T> {
                 }
                 i.remove();
             }
+            publishAppsLocked();
         }
 
         synchronized (mConnectionsLock) {
             mConnections.clear();
+            mConnectionsByConnId.clear();
+            mConnectionsByAppId.clear();
         }
 
         synchronized (this) {
@@ -93,7 +93,6 @@ import com.android.bluetooth.btservice.BluetoothAdapterProxy;
 import com.android.bluetooth.btservice.CompanionManager;
 import com.android.bluetooth.btservice.MetricsLogger;
 import com.android.bluetooth.btservice.ProfileService;
-import com.android.bluetooth.util.NumberUtils;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.modules.utils.SynchronousResultReceiver;
 
@@ -102,6 +101,7 @@ import libcore.util.HexEncoding;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -109,7 +109,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.TimeUnit;
 import java.util.function.Predicate;
 
 /**
@@ -129,7 +128,6 @@ public class GattService extends ProfileService {
 
     private static final int MAC_ADDRESS_LENGTH = 6;
     // Batch scan related constants.
-    private static final int TRUNCATED_RESULT_SIZE = 11;
     private static final int TIME_STAMP_LENGTH = 2;
 
     private enum MatchOrigin {
@@ -138,6 +136,12 @@ public class GattService extends ProfileService {
     }
 
     private static class MatchResult {
+        static final MatchResult NO_MATCH = new MatchResult(false, MatchOrigin.PSEUDO_ADDRESS);
+        static final MatchResult PSEUDO_ADDRESS_MATCH =
+                new MatchResult(true, MatchOrigin.PSEUDO_ADDRESS);
+        static final MatchResult ORIGINAL_ADDRESS_MATCH =
+                new MatchResult(true, MatchOrigin.ORIGINAL_ADDRESS);
+
         private final boolean mMatches;
         private final MatchOrigin mOrigin;
         private MatchResult(boolean matches, MatchOrigin origin) {
@@ -237,6 +241,9 @@ public class GattService extends ProfileService {
 
     ScannerMap mScannerMap = new ScannerMap();
 
+    /** Software filters of the regular scan queue, compiled for candidate lookup. */
+    private volatile ScanFilterIndex mScanFilterIndex;
+
     /**
      * List of our registered advertisers.
      */
@@ -291,6 +298,7 @@ public class GattService extends ProfileService {
     PeriodicScanManager mPeriodicScanManager;
     DistanceMeasurementManager mDistanceMeasurementManager;
     ScanManager mScanManager;
+    ScanResultCoalescer mScanResultCoalescer;
     private AppOpsManager mAppOps;
     private CompanionDeviceManager mCompanionManager;
     private String mExposureNotificationPackage;
@@ -365,6 +373,8 @@ public class GattService extends ProfileService {
                 GattObjectsFactory.getInstance()
                         .createScanManager(
                                 this, mAdapterService, mBluetoothAdapterProxy, thread.getLooper());
+        mScanResultCoalescer =
+                new ScanResultCoalescer(thread.getLooper(), this::deliverCoalescedResults);
 
         mPeriodicScanManager = GattObjectsFactory.getInstance()
                 .createPeriodicScanManager(mAdapterService);
@@ -406,6 +416,9 @@ public class GattService extends ProfileService {
         if (mAdvertiseManager != null) {
             mAdvertiseManager.cleanup();
         }
+        if (mScanResultCoalescer != null) {
+            mScanResultCoalescer.cleanup();
+        }
         if (mScanManager != null) {
             mScanManager.cleanup();
         }
@@ -1951,9 +1964,14 @@ public class GattService extends ProfileService {
         }
 
 
-        byte[] legacyAdvData = Arrays.copyOfRange(advData, 0, 62);
+        // The advertisement is parsed at most twice (full and legacy view) no matter how many
+        // clients are scanning; the resulting ScanResult objects are immutable and shared by
+        // every client they are delivered to.
+        ScanResultCache cache = null;
+        Set<ScanClient> regularScanQueue = mScanManager.getRegularScanQueue();
+        ScanFilterIndex filterIndex = getScanFilterIndex(regularScanQueue);
 
-        for (ScanClient client : mScanManager.getRegularScanQueue()) {
+        for (ScanClient client : regularScanQueue) {
             ScannerMap.App app = mScannerMap.getById(client.scannerId);
             if (app == null) {
                 if (VDBG) {
@@ -1962,32 +1980,34 @@ public class GattService extends ProfileService {
                 continue;
             }
 
-            BluetoothDevice device =
-                BluetoothAdapter.getDefaultAdapter().getRemoteLeDevice(address, addressType);
-
             ScanSettings settings = client.settings;
-            byte[] scanRecordData;
             // This is for compability with applications that assume fixed size scan data.
-            if (settings.getLegacy()) {
-                if ((eventType & ET_LEGACY_MASK) == 0) {
-                    // If this is legacy scan, but nonlegacy result - skip.
-                    if (VDBG) {
-                        Log.d(TAG, "Legacy scan, non legacy result; skip.");
-                    }
-                    continue;
-                } else {
-                    // Some apps are used to fixed-size advertise data.
-                    scanRecordData = legacyAdvData;
+            boolean legacy = settings.getLegacy();
+            if (legacy && (eventType & ET_LEGACY_MASK) == 0) {
+                // If this is legacy scan, but nonlegacy result - skip.
+                if (VDBG) {
+                    Log.d(TAG, "Legacy scan, non legacy result; skip.");
                 }
-            } else {
-                scanRecordData = advData;
+                continue;
             }
 
-            ScanRecord scanRecord = ScanRecord.parseFromBytes(scanRecordData);
-            ScanResult result =
-                    new ScanResult(device, eventType, primaryPhy, secondaryPhy, advertisingSid,
-                            txPower, rssi, periodicAdvInt, scanRecord,
-                            SystemClock.elapsedRealtimeNanos());
+            if (cache == null) {
+                BluetoothDevice device =
+                        BluetoothAdapter.getDefaultAdapter().getRemoteLeDevice(address, addressType);
+                cache = new ScanResultCache(device, eventType, primaryPhy, secondaryPhy,
+                        advertisingSid, txPower, rssi, periodicAdvInt, advData,
+                        SystemClock.elapsedRealtimeNanos());
+            }
+            // Some apps are used to fixed-size advertise data.
+            ScanResult result = legacy ? cache.getLegacyResult() : cache.getResult();
+
+            if (!filterIndex.isCandidate(
+                    cache.getCandidates(legacy, filterIndex, originalAddress), client)) {
+                if (VDBG) {
+                    Log.d(TAG, "Skipping client: no indexed filter matches");
+                }
+                continue;
+            }
 
             if (client.hasDisavowedLocation) {
                 if (mLocationDenylistPredicate.test(result)) {
@@ -2030,6 +2050,12 @@ public class GattService extends ProfileService {
                 continue;
             }
 
+            if (ScanResultCoalescer.isCoalescing(client)) {
+                app.appScanStats.addResult(client.scannerId);
+                mScanResultCoalescer.add(client, result);
+                continue;
+            }
+
             try {
                 app.appScanStats.addResult(client.scannerId);
                 if (app.callback != null) {
@@ -2049,6 +2075,105 @@ public class GattService extends ProfileService {
         }
     }
 
+    // Delivers a batch of regular scan results collected by mScanResultCoalescer.
+    private void deliverCoalescedResults(ScanClient client, ArrayList<ScanResult> results) {
+        ScannerMap.App app = mScannerMap.getById(client.scannerId);
+        if (app == null) {
+            return;
+        }
+        try {
+            if (app.callback != null) {
+                app.callback.onBatchScanResults(results);
+            } else {
+                sendResultsByPendingIntent(app.info, results,
+                        ScanSettings.CALLBACK_TYPE_ALL_MATCHES);
+            }
+        } catch (RemoteException | PendingIntent.CanceledException e) {
+            Log.e(TAG, "Exception: " + e);
+            mScannerMap.remove(client.scannerId);
+            mScanManager.stopScan(client.scannerId);
+        }
+    }
+
+    /**
+     * Lazily builds the {@link ScanResult}s for a single advertisement so that the payload is
+     * parsed once per view rather than once per scan client.
+     */
+    @VisibleForTesting
+    static class ScanResultCache {
+        private static final int LEGACY_ADV_DATA_LENGTH = 62;
+
+        private final BluetoothDevice mDevice;
+        private final int mEventType;
+        private final int mPrimaryPhy;
+        private final int mSecondaryPhy;
+        private final int mAdvertisingSid;
+        private final int mTxPower;
+        private final int mRssi;
+        private final int mPeriodicAdvInt;
+        private final byte[] mAdvData;
+        private final long mTimestampNanos;
+
+        private ScanResult mResult;
+        private ScanResult mLegacyResult;
+        private BitSet mCandidates;
+        private BitSet mLegacyCandidates;
+
+        ScanResultCache(BluetoothDevice device, int eventType, int primaryPhy, int secondaryPhy,
+                int advertisingSid, int txPower, int rssi, int periodicAdvInt, byte[] advData,
+                long timestampNanos) {
+            mDevice = device;
+            mEventType = eventType;
+            mPrimaryPhy = primaryPhy;
+            mSecondaryPhy = secondaryPhy;
+            mAdvertisingSid = advertisingSid;
+            mTxPower = txPower;
+            mRssi = rssi;
+            mPeriodicAdvInt = periodicAdvInt;
+            mAdvData = advData;
+            mTimestampNanos = timestampNanos;
+        }
+
+        /** Returns the result built from the complete advertising payload. */
+        ScanResult getResult() {
+            if (mResult == null) {
+                mResult = build(mAdvData);
+            }
+            return mResult;
+        }
+
+        /** Returns the result built from the fixed-size legacy view of the payload. */
+        ScanResult getLegacyResult() {
+            if (mLegacyResult == null) {
+                mLegacyResult = build(Arrays.copyOfRange(mAdvData, 0, LEGACY_ADV_DATA_LENGTH));
+            }
+            return mLegacyResult;
+        }
+
+        /**
+         * Returns the clients of {@code index} which may match the full or legacy view of this
+         * advertisement.
+         */
+        BitSet getCandidates(boolean legacy, ScanFilterIndex index, String originalAddress) {
+            if (legacy) {
+                if (mLegacyCandidates == null) {
+                    mLegacyCandidates = index.getCandidates(getLegacyResult(), originalAddress);
+                }
+                return mLegacyCandidates;
+            }
+            if (mCandidates == null) {
+                mCandidates = index.getCandidates(getResult(), originalAddress);
+            }
+            return mCandidates;
+        }
+
+        private ScanResult build(byte[] scanRecordData) {
+            return new ScanResult(mDevice, mEventType, mPrimaryPhy, mSecondaryPhy,
+                    mAdvertisingSid, mTxPower, mRssi, mPeriodicAdvInt,
+                    ScanRecord.parseFromBytesLazy(scanRecordData), mTimestampNanos);
+        }
+    }
+
     private void sendResultByPendingIntent(PendingIntentInfo pii, ScanResult result,
             int callbackType, ScanClient client) {
         ArrayList<ScanResult> results = new ArrayList<>();
@@ -2124,6 +2249,19 @@ public class GattService extends ProfileService {
         return client.hasLocationPermission && !Utils.blockedByLocationOff(this, client.userHandle);
     }
 
+    /**
+     * Returns the filter index for the given regular scan queue, rebuilding it if clients or their
+     * filters changed since it was last compiled.
+     */
+    private ScanFilterIndex getScanFilterIndex(Set<ScanClient> regularScanQueue) {
+        ScanFilterIndex index = mScanFilterIndex;
+        if (index == null || !index.isCurrent(regularScanQueue)) {
+            index = new ScanFilterIndex(regularScanQueue);
+            mScanFilterIndex = index;
+        }
+        return index;
+    }
+
     // Check if a scan record matches a specific filters.
     private MatchResult matchesFilters(ScanClient client, ScanResult scanResult) {
         return matchesFilters(client, scanResult, null);
@@ -2134,19 +2272,19 @@ public class GattService extends ProfileService {
             String originalAddress) {
         if (client.filters == null || client.filters.isEmpty()) {
             // TODO: Do we really wanna return true here?
-            return new MatchResult(true, MatchOrigin.PSEUDO_ADDRESS);
+            return MatchResult.PSEUDO_ADDRESS_MATCH;
         }
         for (ScanFilter filter : client.filters) {
             // Need to check the filter matches, and the original address without changing the API
             if (filter.matches(scanResult)) {
-                return new MatchResult(true, MatchOrigin.PSEUDO_ADDRESS);
+                return MatchResult.PSEUDO_ADDRESS_MATCH;
             }
             if (originalAddress != null
                     && originalAddress.equalsIgnoreCase(filter.getDeviceAddress())) {
-                return new MatchResult(true, MatchOrigin.ORIGINAL_ADDRESS);
+                return MatchResult.ORIGINAL_ADDRESS_MATCH;
             }
         }
-        return new MatchResult(false, MatchOrigin.PSEUDO_ADDRESS);
+        return MatchResult.NO_MATCH;
     }
 
     void onClientRegistered(int status, int clientIf, long uuidLsb, long uuidMsb)
@@ -2716,7 +2854,12 @@ public class GattService extends ProfileService {
                     + ", reportType=" + reportType + ", numRecords=" + numRecords);
         }
 
-        Set<ScanResult> results = parseBatchScanResults(numRecords, reportType, recordData);
+        if (VDBG) {
+            Log.d(TAG, "Batch record : " + Arrays.toString(recordData));
+        }
+        ArrayList<ScanResult> results = BatchScanReportDecoder.decode(
+                BluetoothAdapter.getDefaultAdapter(), reportType, numRecords, recordData,
+                SystemClock.elapsedRealtimeNanos());
         if (reportType == ScanManager.SCAN_RESULT_TYPE_TRUNCATED) {
             // We only support single client for truncated mode.
             ScannerMap.App app = mScannerMap.getById(scannerId);
@@ -2731,7 +2874,7 @@ public class GattService extends ProfileService {
 
             ArrayList<ScanResult> permittedResults;
             if (hasScanResultPermission(client)) {
-                permittedResults = new ArrayList<ScanResult>(results);
+                permittedResults = results;
             } else {
                 permittedResults = new ArrayList<ScanResult>();
                 for (ScanResult scanResult : results) {
@@ -2762,10 +2905,7 @@ public class GattService extends ProfileService {
                 }
             }
         } else {
-            for (ScanClient client : mScanManager.getFullBatchScanQueue()) {
-                // Deliver results for each client.
-                deliverBatchScan(client, results);
-            }
+            deliverBatchScan(mScanManager.getFullBatchScanQueue(), results);
         }
         mScanManager.callbackDone(scannerId, status);
     }
@@ -2799,143 +2939,73 @@ public class GattService extends ProfileService {
         }
     }
 
-    // Check and deliver scan results for different scan clients.
-    private void deliverBatchScan(ScanClient client, Set<ScanResult> allResults)
-            throws RemoteException {
-        ScannerMap.App app = mScannerMap.getById(client.scannerId);
-        if (app == null) {
+    // Check and deliver scan results for different scan clients, matching each result against
+    // the filters of all clients at once.
+    private void deliverBatchScan(Set<ScanClient> clients, List<ScanResult> allResults) {
+        List<ScanClient> targets = new ArrayList<>(clients.size());
+        List<ScannerMap.App> apps = new ArrayList<>(clients.size());
+        for (ScanClient client : clients) {
+            ScannerMap.App app = mScannerMap.getById(client.scannerId);
+            if (app != null) {
+                targets.add(client);
+                apps.add(app);
+            }
+        }
+        int count = targets.size();
+        if (count == 0) {
             return;
         }
 
-        ArrayList<ScanResult> permittedResults;
-        if (hasScanResultPermission(client)) {
-            permittedResults = new ArrayList<ScanResult>(allResults);
-        } else {
-            permittedResults = new ArrayList<ScanResult>();
-            for (ScanResult scanResult : allResults) {
-                for (String associatedDevice : client.associatedDevices) {
-                    if (associatedDevice.equalsIgnoreCase(scanResult.getDevice().getAddress())) {
-                        permittedResults.add(scanResult);
+        boolean[] hasPermission = new boolean[count];
+        // Clients without permission only receive the results of their associated devices
+        boolean[] hasAssociatedResult = new boolean[count];
+        List<ArrayList<ScanResult>> clientResults = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            hasPermission[i] = hasScanResultPermission(targets.get(i));
+            clientResults.add(new ArrayList<>());
+        }
+        ScanFilterIndex filterIndex = new ScanFilterIndex(targets);
+
+        for (ScanResult result : allResults) {
+            String address = result.getDevice().getAddress();
+            BitSet candidates = null;
+            for (int i = 0; i < count; i++) {
+                ScanClient client = targets.get(i);
+                if (!hasPermission[i]) {
+                    if (!isAssociatedDevice(client, address)) {
+                        continue;
                     }
+                    hasAssociatedResult[i] = true;
+                }
+                if (candidates == null) {
+                    candidates = filterIndex.getCandidates(result, null);
+                }
+                if (filterIndex.isCandidate(candidates, client)
+                        && matchesFilters(client, result).getMatches()) {
+                    clientResults.get(i).add(result);
                 }
-            }
-            if (permittedResults.isEmpty()) {
-                return;
             }
         }
 
-        if (client.filters == null || client.filters.isEmpty()) {
-            sendBatchScanResults(app, client, permittedResults);
-            // TODO: Question to reviewer: Shouldn't there be a return here?
-        }
-        // Reconstruct the scan results.
-        ArrayList<ScanResult> results = new ArrayList<ScanResult>();
-        for (ScanResult scanResult : permittedResults) {
-            if (matchesFilters(client, scanResult).getMatches()) {
-                results.add(scanResult);
+        for (int i = 0; i < count; i++) {
+            if (hasPermission[i] || hasAssociatedResult[i]) {
+                sendBatchScanResults(apps.get(i), targets.get(i), clientResults.get(i));
             }
         }
-        sendBatchScanResults(app, client, results);
     }
 
-    private Set<ScanResult> parseBatchScanResults(int numRecords, int reportType,
-            byte[] batchRecord) {
-        if (numRecords == 0) {
-            return Collections.emptySet();
-        }
-        if (DBG) {
-            Log.d(TAG, "current time is " + SystemClock.elapsedRealtimeNanos());
-        }
-        if (reportType == ScanManager.SCAN_RESULT_TYPE_TRUNCATED) {
-            return parseTruncatedResults(numRecords, batchRecord);
-        } else {
-            return parseFullResults(numRecords, batchRecord);
-        }
-    }
-
-    private Set<ScanResult> parseTruncatedResults(int numRecords, byte[] batchRecord) {
-        if (DBG) {
-            Log.d(TAG, "batch record " + Arrays.toString(batchRecord));
-        }
-        Set<ScanResult> results = new HashSet<ScanResult>(numRecords);
-        long now = SystemClock.elapsedRealtimeNanos();
-        for (int i = 0; i < numRecords; ++i) {
-            byte[] record =
-                    extractBytes(batchRecord, i * TRUNCATED_RESULT_SIZE, TRUNCATED_RESULT_SIZE);
-            byte[] address = extractBytes(record, 0, 6);
-            reverse(address);
-            BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
-            int rssi = record[8];
-            long timestampNanos = now - parseTimestampNanos(extractBytes(record, 9, 2));
-            results.add(new ScanResult(device, ScanRecord.parseFromBytes(new byte[0]), rssi,
-                    timestampNanos));
+    private static boolean isAssociatedDevice(ScanClient client, String address) {
+        for (String associatedDevice : client.associatedDevices) {
+            if (associatedDevice.equalsIgnoreCase(address)) {
+                return true;
+            }
         }
-        return results;
+        return false;
     }
 
     @VisibleForTesting
     long parseTimestampNanos(byte[] data) {
-        long timestampUnit = NumberUtils.littleEndianByteArrayToInt(data);
-        // Timestamp is in every 50 ms.
-        return TimeUnit.MILLISECONDS.toNanos(timestampUnit * 50);
-    }
-
-    private Set<ScanResult> parseFullResults(int numRecords, byte[] batchRecord) {
-        if (DBG) {
-            Log.d(TAG, "Batch record : " + Arrays.toString(batchRecord));
-        }
-        Set<ScanResult> results = new HashSet<ScanResult>(numRecords);
-        int position = 0;
-        long now = SystemClock.elapsedRealtimeNanos();
-        while (position < batchRecord.length) {
-            byte[] address = extractBytes(batchRecord, position, 6);
-            // TODO: remove temp hack.
-            reverse(address);
-            BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
-            position += 6;
-            // Skip address type.
-            position++;
-            // Skip tx power level.
-            position++;
-            int rssi = batchRecord[position++];
-            long timestampNanos = now - parseTimestampNanos(extractBytes(batchRecord, position, 2));
-            position += 2;
-
-            // Combine advertise packet and scan response packet.
-            int advertisePacketLen = batchRecord[position++];
-            byte[] advertiseBytes = extractBytes(batchRecord, position, advertisePacketLen);
-            position += advertisePacketLen;
-            int scanResponsePacketLen = batchRecord[position++];
-            byte[] scanResponseBytes = extractBytes(batchRecord, position, scanResponsePacketLen);
-            position += scanResponsePacketLen;
-            byte[] scanRecord = new byte[advertisePacketLen + scanResponsePacketLen];
-            System.arraycopy(advertiseBytes, 0, scanRecord, 0, advertisePacketLen);
-            System.arraycopy(scanResponseBytes, 0, scanRecord, advertisePacketLen,
-                    scanResponsePacketLen);
-            if (DBG) {
-                Log.d(TAG, "ScanRecord : " + Arrays.toString(scanRecord));
-            }
-            results.add(new ScanResult(device, ScanRecord.parseFromBytes(scanRecord), rssi,
-                    timestampNanos));
-        }
-        return results;
-    }
-
-    // Reverse byte array.
-    private void reverse(byte[] address) {
-        int len = address.length;
-        for (int i = 0; i < len / 2; ++i) {
-            byte b = address[i];
-            address[i] = address[len - 1 - i];
-            address[len - 1 - i] = b;
-        }
-    }
-
-    // Helper method to extract bytes from byte array.
-    private static byte[] extractBytes(byte[] scanRecord, int start, int length) {
-        byte[] bytes = new byte[length];
-        System.arraycopy(scanRecord, start, bytes, 0, length);
-        return bytes;
+        return BatchScanReportDecoder.parseTimestampNanos(data, 0);
     }
 
     @RequiresPermission(android.Manifest.permission.BLUETOOTH_SCAN)
@@ -3381,6 +3451,7 @@ public class GattService extends ProfileService {
             app.recordScanStop(scannerId);
         }
 
+        mScanResultCoalescer.remove(scannerId);
         mScanManager.stopScan(scannerId);
     }
 
@@ -4954,6 +5025,8 @@ public class GattService extends ProfileService {
                         .setReportDelay(floor)
                         .setScanMode(settings.getScanMode())
                         .setScanResultType(settings.getScanResultType())
+                        .setResultCoalescing(settings.getResultCoalescingWindowMillis(),
+                                settings.getResultCoalescingMaxResults())
                         .build();
             }
         } finally {
@@ -5035,6 +5108,9 @@ public class GattService extends ProfileService {
 
         sb.append("GATT Scanner Map\n");
         mScannerMap.dump(sb);
+        if (mScanResultCoalescer != null) {
+            mScanResultCoalescer.dump(sb);
+        }
 
         sb.append("GATT Advertiser Map\n");
         mAdvertiserMap.dumpAdvertiser(sb);
@@ -22,16 +22,22 @@ import android.bluetooth.le.IPeriodicAdvertisingCallback;
 import android.bluetooth.le.PeriodicAdvertisingReport;
 import android.bluetooth.le.ScanRecord;
 import android.bluetooth.le.ScanResult;
+import android.os.Binder;
 import android.os.IBinder;
 import android.os.IInterface;
 import android.os.RemoteException;
+import android.provider.DeviceConfig;
 import android.util.Log;
 
 import com.android.bluetooth.btservice.AdapterService;
 import com.android.internal.annotations.VisibleForTesting;
 
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -45,9 +51,22 @@ public class PeriodicScanManager {
     private static final boolean DBG = GattServiceConfig.DBG;
     private static final String TAG = GattServiceConfig.TAG_PREFIX + "SyncManager";
 
+    /**
+     * Device config flag which, when set, drops the complete periodic advertising reports whose
+     * data is identical to the previous report of the same sync.
+     */
+    @VisibleForTesting
+    static final String CHANGED_REPORTS_ONLY_FLAG = "periodic_scan_changed_reports_only";
+
     private final BluetoothAdapter mAdapter;
     private final PeriodicScanNativeInterface mNativeInterface;
     Map<IBinder, SyncInfo> mSyncs = new ConcurrentHashMap<>();
+    // Immutable snapshots of the syncs by id, updated along with mSyncs while holding its lock,
+    // so that reports are dispatched without walking or copying mSyncs.
+    private final Map<Integer, List<SyncInfo>> mSyncsById = new ConcurrentHashMap<>();
+    // Data of the last complete report of each sync handle, when only changes are reported
+    private final Map<Integer, byte[]> mLastReportData = new ConcurrentHashMap<>();
+    private volatile boolean mChangedReportsOnly;
     Map<IBinder, SyncTransferInfo> mSyncTransfers = Collections.synchronizedMap(new HashMap<>());
     static int sTempRegistrationId = -1;
     private static final int PA_SOURCE_LOCAL = 1;
@@ -60,6 +79,15 @@ public class PeriodicScanManager {
         mAdapter = BluetoothAdapter.getDefaultAdapter();
         mNativeInterface = PeriodicScanNativeInterface.getInstance();
         mNativeInterface.init(this);
+
+        // Need to clear identity to pass device config permission check
+        final long callerToken = Binder.clearCallingIdentity();
+        try {
+            mChangedReportsOnly = DeviceConfig.getBoolean(DeviceConfig.NAMESPACE_BLUETOOTH,
+                    CHANGED_REPORTS_ONLY_FLAG, false);
+        } finally {
+            Binder.restoreCallingIdentity(callerToken);
+        }
     }
 
     void cleanup() {
@@ -67,10 +95,20 @@ public class PeriodicScanManager {
             Log.d(TAG, "cleanup()");
         }
         mNativeInterface.cleanup();
-        mSyncs.clear();
+        synchronized (mSyncs) {
+            mSyncs.clear();
+            mSyncsById.clear();
+        }
+        mLastReportData.clear();
         sTempRegistrationId = -1;
     }
 
+    @VisibleForTesting
+    void setChangedReportsOnly(boolean changedReportsOnly) {
+        mChangedReportsOnly = changedReportsOnly;
+        mLastReportData.clear();
+    }
+
     class SyncTransferInfo {
         public String address;
         public SyncDeathRecipient deathRecipient;
@@ -138,14 +176,12 @@ public class PeriodicScanManager {
     }
 
     Map.Entry<IBinder, SyncInfo> findSync(int syncHandle) {
-        Map.Entry<IBinder, SyncInfo> entry = null;
-        for (Map.Entry<IBinder, SyncInfo> e : mSyncs.entrySet()) {
-            if (e.getValue().id == syncHandle) {
-                entry = e;
-                break;
-            }
+        List<SyncInfo> syncs = getSyncs(syncHandle);
+        if (syncs.isEmpty()) {
+            return null;
         }
-        return entry;
+        SyncInfo sync = syncs.get(0);
+        return new AbstractMap.SimpleImmutableEntry<>(toBinder(sync.callback), sync);
     }
 
     Map.Entry<IBinder, SyncInfo> findMatchingSync(int advSid, String address) {
@@ -158,61 +194,81 @@ public class PeriodicScanManager {
         return entry;
     }
 
-    Map<IBinder, SyncInfo> findAllSync(int syncHandle) {
-        Map<IBinder, SyncInfo> syncMap = new HashMap<IBinder, SyncInfo>();
-        for (Map.Entry<IBinder, SyncInfo> e : mSyncs.entrySet()) {
-            if (e.getValue().id != syncHandle) {
-                continue;
-            }
-            syncMap.put(e.getKey(), new SyncInfo(e.getValue().id,
-                                                 e.getValue().advSid,
-                                                 e.getValue().address,
-                                                 e.getValue().skip,
-                                                 e.getValue().timeout,
-                                                 e.getValue().deathRecipient,
-                                                 e.getValue().callback));
-        }
-        return syncMap;
+    /**
+     * Returns the syncs of {@code id}, a sync handle or the registration id of a pending sync. The
+     * returned list is an immutable snapshot.
+     */
+    List<SyncInfo> getSyncs(int id) {
+        List<SyncInfo> syncs = mSyncsById.get(id);
+        return syncs != null ? syncs : Collections.emptyList();
+    }
+
+    // Must be called while holding the mSyncs lock.
+    private void putSync(IBinder binder, SyncInfo sync) {
+        SyncInfo previous = mSyncs.put(binder, sync);
+        if (previous != null) {
+            removeFromIndex(previous);
+        }
+        List<SyncInfo> syncs = getSyncs(sync.id);
+        List<SyncInfo> updated = new ArrayList<>(syncs.size() + 1);
+        updated.addAll(syncs);
+        updated.add(sync);
+        mSyncsById.put(sync.id, Collections.unmodifiableList(updated));
+    }
+
+    // Must be called while holding the mSyncs lock.
+    private SyncInfo removeSync(IBinder binder) {
+        SyncInfo sync = mSyncs.remove(binder);
+        if (sync != null) {
+            removeFromIndex(sync);
+        }
+        return sync;
+    }
+
+    private void removeFromIndex(SyncInfo sync) {
+        List<SyncInfo> updated = new ArrayList<>(getSyncs(sync.id));
+        updated.remove(sync);
+        if (updated.isEmpty()) {
+            mSyncsById.remove(sync.id);
+            mLastReportData.remove(sync.id);
+        } else {
+            mSyncsById.put(sync.id, Collections.unmodifiableList(updated));
+        }
     }
 
     void onSyncStarted(int regId, int syncHandle, int sid, int addressType, String address, int phy,
             int interval, int status) throws Exception {
-        Map<IBinder, SyncInfo> syncMap = findAllSync(regId);
-        if (syncMap.size() == 0) {
+        if (getSyncs(regId).isEmpty()) {
             Log.d(TAG, "onSyncStarted() - no callback found for regId " + regId);
             mNativeInterface.stopSync(syncHandle);
             return;
         }
 
         synchronized (mSyncs) {
-            for (Map.Entry<IBinder, SyncInfo> e : mSyncs.entrySet()) {
-                if (e.getValue().id != regId) {
-                    continue;
-                }
-                IPeriodicAdvertisingCallback callback = e.getValue().callback;
+            for (SyncInfo sync : getSyncs(regId)) {
+                IPeriodicAdvertisingCallback callback = sync.callback;
+                IBinder binder = toBinder(callback);
                 if (status == 0) {
                     Log.d(TAG, "onSyncStarted: updating id with syncHandle " + syncHandle);
-                    e.setValue(new SyncInfo(syncHandle, sid, address, e.getValue().skip,
-                                            e.getValue().timeout, e.getValue().deathRecipient,
-                                            callback));
+                    putSync(binder, new SyncInfo(syncHandle, sid, address, sync.skip,
+                                                 sync.timeout, sync.deathRecipient, callback));
                     callback.onSyncEstablished(
                             syncHandle,
                             mAdapter.getRemoteLeDevice(address, addressType),
                             sid,
-                            e.getValue().skip,
-                            e.getValue().timeout,
+                            sync.skip,
+                            sync.timeout,
                             status);
                 } else {
                     callback.onSyncEstablished(
                             syncHandle,
                             mAdapter.getRemoteLeDevice(address, addressType),
                             sid,
-                            e.getValue().skip,
-                            e.getValue().timeout,
+                            sync.skip,
+                            sync.timeout,
                             status);
-                    IBinder binder = e.getKey();
-                    binder.unlinkToDeath(e.getValue().deathRecipient, 0);
-                    mSyncs.remove(binder);
+                    binder.unlinkToDeath(sync.deathRecipient, 0);
+                    removeSync(binder);
                 }
             }
         }
@@ -220,31 +276,44 @@ public class PeriodicScanManager {
 
     void onSyncReport(int syncHandle, int txPower, int rssi, int dataStatus, byte[] data)
             throws Exception {
-        Map<IBinder, SyncInfo> syncMap = findAllSync(syncHandle);
-        if (syncMap.isEmpty()) {
+        List<SyncInfo> syncs = getSyncs(syncHandle);
+        if (syncs.isEmpty()) {
             Log.i(TAG, "onSyncReport() - no callback found for syncHandle " + syncHandle);
             return;
         }
-        for (Map.Entry<IBinder, SyncInfo> e :syncMap.entrySet()) {
-            IPeriodicAdvertisingCallback callback = e.getValue().callback;
-            PeriodicAdvertisingReport report =
-                    new PeriodicAdvertisingReport(syncHandle, txPower, rssi, dataStatus,
-                            ScanRecord.parseFromBytes(data));
-            callback.onPeriodicAdvertisingReport(report);
+        if (mChangedReportsOnly && isUnchangedReport(syncHandle, dataStatus, data)) {
+            return;
+        }
+        // The report is immutable, it is parsed once and shared by all callbacks.
+        PeriodicAdvertisingReport report =
+                new PeriodicAdvertisingReport(syncHandle, txPower, rssi, dataStatus,
+                        ScanRecord.parseFromBytesLazy(data));
+        for (SyncInfo sync : syncs) {
+            sync.callback.onPeriodicAdvertisingReport(report);
+        }
+    }
+
+    private boolean isUnchangedReport(int syncHandle, int dataStatus, byte[] data) {
+        if (dataStatus != PeriodicAdvertisingReport.DATA_COMPLETE || data == null) {
+            // The fragments of chained data are always delivered, and so is the data after them
+            mLastReportData.remove(syncHandle);
+            return false;
         }
+        byte[] lastData = mLastReportData.put(syncHandle, data);
+        return Arrays.equals(lastData, data);
     }
 
     void onSyncLost(int syncHandle) throws Exception {
-        Map<IBinder, SyncInfo> syncMap = findAllSync(syncHandle);
-        if (syncMap.isEmpty()) {
+        List<SyncInfo> syncs = getSyncs(syncHandle);
+        if (syncs.isEmpty()) {
             Log.i(TAG, "onSyncLost() - no callback found for syncHandle " + syncHandle);
             return;
         }
-        for (Map.Entry<IBinder, SyncInfo> e :syncMap.entrySet()) {
-            IPeriodicAdvertisingCallback callback = e.getValue().callback;
+        for (SyncInfo sync : syncs) {
+            IPeriodicAdvertisingCallback callback = sync.callback;
             IBinder binder = toBinder(callback);
             synchronized (mSyncs) {
-                mSyncs.remove(binder);
+                removeSync(binder);
             }
             callback.onSyncLost(syncHandle);
 
@@ -252,14 +321,13 @@ public class PeriodicScanManager {
     }
 
     void onBigInfoReport(int syncHandle, boolean encrypted) throws Exception {
-        Map<IBinder, SyncInfo> syncMap = findAllSync(syncHandle);
-        if (syncMap.isEmpty()) {
+        List<SyncInfo> syncs = getSyncs(syncHandle);
+        if (syncs.isEmpty()) {
             Log.i(TAG, "onBigInfoReport() - no callback found for syncHandle " + syncHandle);
             return;
         }
-        for (Map.Entry<IBinder, SyncInfo> e : syncMap.entrySet()) {
-            IPeriodicAdvertisingCallback callback = e.getValue().callback;
-            callback.onBigInfoAdvertisingReport(syncHandle, encrypted);
+        for (SyncInfo sync : syncs) {
+            sync.callback.onBigInfoAdvertisingReport(syncHandle, encrypted);
         }
     }
 
@@ -293,7 +361,7 @@ public class PeriodicScanManager {
                 if (DBG) {
                     Log.d(TAG, "startSync: Matching entry found");
                 }
-                mSyncs.put(binder, new SyncInfo(entry.getValue().id, sid, address,
+                putSync(binder, new SyncInfo(entry.getValue().id, sid, address,
                         entry.getValue().skip, entry.getValue().timeout, deathRecipient,
                         callback));
                 if (entry.getValue().id >= 0) {
@@ -316,8 +384,10 @@ public class PeriodicScanManager {
         }
 
         int cbId = --sTempRegistrationId;
-        mSyncs.put(binder, new SyncInfo(cbId, sid, address, skip, timeout,
-                deathRecipient, callback));
+        synchronized (mSyncs) {
+            putSync(binder, new SyncInfo(cbId, sid, address, skip, timeout,
+                    deathRecipient, callback));
+        }
 
         if (DBG) {
             Log.d(TAG, "startSync() - reg_id=" + cbId + ", callback: " + binder);
@@ -332,7 +402,7 @@ public class PeriodicScanManager {
         }
         SyncInfo sync = null;
         synchronized (mSyncs) {
-            sync = mSyncs.remove(binder);
+            sync = removeSync(binder);
         }
         if (sync == null) {
             Log.e(TAG, "stopSync() - no client found for callback");
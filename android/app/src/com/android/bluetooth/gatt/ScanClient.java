@@ -118,6 +118,8 @@ import java.util.Objects;
                 .setMatchMode(settings.getMatchMode())
                 .setLegacy(settings.getLegacy())
                 .setPhy(settings.getPhy())
+                .setResultCoalescing(settings.getResultCoalescingWindowMillis(),
+                        settings.getResultCoalescingMaxResults())
                 .build();
         return true;
     }
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.os.ParcelUuid;
+import android.util.SparseArray;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Index over the software scan filters of a set of {@link ScanClient}s.
+ *
+ * <p>Every {@link ScanFilter} is filed under its most selective exact-match key (device address,
+ * manufacturer id, service data UUID, unmasked service UUID or device name). For an incoming
+ * advertisement only the buckets of the keys it carries are consulted, which yields the set of
+ * clients that may match. Clients with a filter that has none of these keys, or without any
+ * filter at all, are always candidates. Candidates must still be checked with
+ * {@link ScanFilter#matches}; the index only rules out clients that cannot match.
+ *
+ * @hide
+ */
+/* package */ class ScanFilterIndex {
+    private final ScanClient[] mClients;
+    private final List<ScanFilter>[] mFilters;
+    private final Map<ScanClient, Integer> mOrdinals = new HashMap<>();
+
+    private final BitSet mAlwaysCandidates = new BitSet();
+    private final Map<String, BitSet> mByAddress = new HashMap<>();
+    private final SparseArray<BitSet> mByManufacturerId = new SparseArray<>();
+    private final Map<ParcelUuid, BitSet> mByServiceDataUuid = new HashMap<>();
+    private final Map<ParcelUuid, BitSet> mByServiceUuid = new HashMap<>();
+    private final Map<String, BitSet> mByName = new HashMap<>();
+
+    @SuppressWarnings("unchecked")
+    ScanFilterIndex(Collection<ScanClient> clients) {
+        mClients = clients.toArray(new ScanClient[0]);
+        mFilters = new List[mClients.length];
+        for (int ordinal = 0; ordinal < mClients.length; ordinal++) {
+            ScanClient client = mClients[ordinal];
+            mOrdinals.put(client, ordinal);
+            mFilters[ordinal] = client.filters;
+            if (client.filters == null || client.filters.isEmpty()) {
+                mAlwaysCandidates.set(ordinal);
+                continue;
+            }
+            for (ScanFilter filter : client.filters) {
+                addFilter(ordinal, filter);
+            }
+        }
+    }
+
+    private void addFilter(int ordinal, ScanFilter filter) {
+        if (filter.getDeviceAddress() != null) {
+            // The original (identity) address is compared ignoring case, so is the bucket key.
+            getOrCreate(mByAddress, filter.getDeviceAddress().toUpperCase(Locale.US)).set(ordinal);
+        } else if (filter.getManufacturerId() >= 0) {
+            BitSet bits = mByManufacturerId.get(filter.getManufacturerId());
+            if (bits == null) {
+                bits = new BitSet();
+                mByManufacturerId.put(filter.getManufacturerId(), bits);
+            }
+            bits.set(ordinal);
+        } else if (filter.getServiceDataUuid() != null) {
+            getOrCreate(mByServiceDataUuid, filter.getServiceDataUuid()).set(ordinal);
+        } else if (filter.getServiceUuid() != null && filter.getServiceUuidMask() == null) {
+            getOrCreate(mByServiceUuid, filter.getServiceUuid()).set(ordinal);
+        } else if (filter.getDeviceName() != null) {
+            getOrCreate(mByName, filter.getDeviceName()).set(ordinal);
+        } else {
+            mAlwaysCandidates.set(ordinal);
+        }
+    }
+
+    private static <K> BitSet getOrCreate(Map<K, BitSet> map, K key) {
+        BitSet bits = map.get(key);
+        if (bits == null) {
+            bits = new BitSet();
+            map.put(key, bits);
+        }
+        return bits;
+    }
+
+    /**
+     * Returns true if this index was built from exactly the given clients and their current
+     * filter lists.
+     */
+    boolean isCurrent(Collection<ScanClient> clients) {
+        if (clients.size() != mClients.length) {
+            return false;
+        }
+        for (ScanClient client : clients) {
+            Integer ordinal = mOrdinals.get(client);
+            if (ordinal == null || mClients[ordinal] != client
+                    || mFilters[ordinal] != client.filters) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the clients which may match {@code result}, to be queried with
+     * {@link #isCandidate}.
+     *
+     * @param originalAddress the identity address of the advertiser, if known
+     */
+    BitSet getCandidates(ScanResult result, String originalAddress) {
+        BitSet candidates = (BitSet) mAlwaysCandidates.clone();
+
+        if (!mByAddress.isEmpty()) {
+            BluetoothDevice device = result.getDevice();
+            if (device != null) {
+                orBucket(candidates, mByAddress.get(device.getAddress().toUpperCase(Locale.US)));
+            }
+            if (originalAddress != null) {
+                orBucket(candidates, mByAddress.get(originalAddress.toUpperCase(Locale.US)));
+            }
+        }
+
+        ScanRecord record = result.getScanRecord();
+        if (record == null) {
+            return candidates;
+        }
+
+        if (mByManufacturerId.size() > 0) {
+            SparseArray<byte[]> manufacturerData = record.getManufacturerSpecificData();
+            if (manufacturerData != null) {
+                for (int i = 0; i < manufacturerData.size(); i++) {
+                    orBucket(candidates, mByManufacturerId.get(manufacturerData.keyAt(i)));
+                }
+            }
+        }
+
+        if (!mByServiceDataUuid.isEmpty()) {
+            Map<ParcelUuid, byte[]> serviceData = record.getServiceData();
+            if (serviceData != null) {
+                for (ParcelUuid uuid : serviceData.keySet()) {
+                    orBucket(candidates, mByServiceDataUuid.get(uuid));
+                }
+            }
+        }
+
+        if (!mByServiceUuid.isEmpty()) {
+            List<ParcelUuid> serviceUuids = record.getServiceUuids();
+            if (serviceUuids != null) {
+                for (ParcelUuid uuid : serviceUuids) {
+                    orBucket(candidates, mByServiceUuid.get(uuid));
+                }
+            }
+        }
+
+        if (!mByName.isEmpty() && record.getDeviceName() != null) {
+            orBucket(candidates, mByName.get(record.getDeviceName()));
+        }
+
+        return candidates;
+    }
+
+    private static void orBucket(BitSet candidates, BitSet bucket) {
+        if (bucket != null) {
+            candidates.or(bucket);
+        }
+    }
+
+    /**
+     * Returns true if {@code client} is in {@code candidates}. Clients unknown to this index are
+     * always reported as candidates.
+     */
+    boolean isCandidate(BitSet candidates, ScanClient client) {
+        Integer ordinal = mOrdinals.get(client);
+        if (ordinal == null || mClients[ordinal] != client) {
+            return true;
+        }
+        return candidates.get(ordinal);
+    }
+}
@@ -1414,6 +1414,8 @@ public class ScanManager {
             builder.setScanResultType(settings.getScanResultType());
             builder.setReportDelay(settings.getReportDelayMillis());
             builder.setNumOfMatches(settings.getNumOfMatches());
+            builder.setResultCoalescing(settings.getResultCoalescingWindowMillis(),
+                    settings.getResultCoalescingMaxResults());
             client.settings = builder.build();
         }
 
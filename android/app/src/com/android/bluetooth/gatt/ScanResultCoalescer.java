@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Collects regular scan results of scanners which opted in with
+ * {@link ScanSettings.Builder#setResultCoalescing} and hands them over in batches.
+ *
+ * <p>A batch is delivered when the coalescing window of its first result expires or when it holds
+ * the configured maximum number of results, whichever comes first. Results with the same device
+ * address and payload replace each other inside a batch.
+ *
+ * <p>Batches are handed to the callback on the looper thread, in the order they were closed.
+ */
+class ScanResultCoalescer {
+    private static final boolean VDBG = GattServiceConfig.VDBG;
+    private static final String TAG = GattServiceConfig.TAG_PREFIX + "ScanResultCoalescer";
+
+    private static final int MSG_FLUSH = 1;
+    private static final int MSG_DELIVER = 2;
+
+    /** Receives the coalesced results of a scanner. */
+    interface Callback {
+        void onCoalescedResults(ScanClient client, ArrayList<ScanResult> results);
+    }
+
+    private final Callback mCallback;
+    private final Handler mHandler;
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private final SparseArray<Batch> mBatches = new SparseArray<>();
+
+    @GuardedBy("mLock")
+    private long mCoalescedResults;
+
+    @GuardedBy("mLock")
+    private long mDeliveredBatches;
+
+    private static class Batch {
+        final ScanClient mClient;
+        final ArrayList<ScanResult> mResults = new ArrayList<>();
+        final Map<ResultKey, Integer> mPositions = new HashMap<>();
+
+        Batch(ScanClient client) {
+            mClient = client;
+        }
+    }
+
+    /** Identifies repeated advertisements: same advertiser and same payload. */
+    private static class ResultKey {
+        private final String mAddress;
+        private final byte[] mPayload;
+        private final int mHashCode;
+
+        ResultKey(ScanResult result) {
+            BluetoothDevice device = result.getDevice();
+            ScanRecord record = result.getScanRecord();
+            mAddress = device == null ? null : device.getAddress();
+            mPayload = record == null ? null : record.getBytes();
+            mHashCode = 31 * Objects.hashCode(mAddress) + Arrays.hashCode(mPayload);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof ResultKey)) {
+                return false;
+            }
+            ResultKey other = (ResultKey) obj;
+            return mHashCode == other.mHashCode
+                    && Objects.equals(mAddress, other.mAddress)
+                    && Arrays.equals(mPayload, other.mPayload);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+
+    ScanResultCoalescer(Looper looper, Callback callback) {
+        mCallback = callback;
+        mHandler = new Handler(looper) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case MSG_FLUSH:
+                        flush((Batch) msg.obj);
+                        break;
+                    case MSG_DELIVER:
+                        Batch batch = (Batch) msg.obj;
+                        mCallback.onCoalescedResults(batch.mClient, batch.mResults);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        };
+    }
+
+    /** Returns true if results of {@code client} are coalesced. */
+    static boolean isCoalescing(ScanClient client) {
+        return client.settings.getResultCoalescingWindowMillis() > 0;
+    }
+
+    /**
+     * Queues {@code result} for {@code client}, which must be {@link #isCoalescing coalescing}.
+     * The batch is delivered right away if it reached its size limit.
+     */
+    void add(ScanClient client, ScanResult result) {
+        ScanSettings settings = client.settings;
+        synchronized (mLock) {
+            Batch batch = mBatches.get(client.scannerId);
+            if (batch == null || batch.mClient != client) {
+                batch = new Batch(client);
+                mBatches.put(client.scannerId, batch);
+                mHandler.sendMessageDelayed(
+                        mHandler.obtainMessage(MSG_FLUSH, batch),
+                        settings.getResultCoalescingWindowMillis());
+            }
+            ResultKey key = new ResultKey(result);
+            Integer position = batch.mPositions.get(key);
+            if (position != null) {
+                batch.mResults.set(position, result);
+                mCoalescedResults++;
+                return;
+            }
+            batch.mPositions.put(key, batch.mResults.size());
+            batch.mResults.add(result);
+            if (batch.mResults.size() >= settings.getResultCoalescingMaxResults()) {
+                deliverLocked(batch);
+            }
+        }
+    }
+
+    private void flush(Batch batch) {
+        synchronized (mLock) {
+            if (mBatches.get(batch.mClient.scannerId) != batch) {
+                // Already delivered or dropped.
+                return;
+            }
+            deliverLocked(batch);
+        }
+    }
+
+    /**
+     * Delivers the pending results of {@code scannerId}, e.g. because its scan was stopped, and
+     * forgets the scanner.
+     */
+    void remove(int scannerId) {
+        synchronized (mLock) {
+            Batch batch = mBatches.get(scannerId);
+            if (batch != null) {
+                deliverLocked(batch);
+            }
+        }
+    }
+
+    /** Drops all pending results. */
+    void cleanup() {
+        synchronized (mLock) {
+            mBatches.clear();
+        }
+        mHandler.removeCallbacksAndMessages(null);
+    }
+
+    /*
+     * Closes the batch and queues it behind the batches closed before it, so the callback sees
+     * them in order whichever thread closed them.
+     */
+    @GuardedBy("mLock")
+    private void deliverLocked(Batch batch) {
+        mBatches.remove(batch.mClient.scannerId);
+        mHandler.removeMessages(MSG_FLUSH, batch);
+        mDeliveredBatches++;
+        if (VDBG) {
+            Log.d(TAG, "deliver " + batch.mResults.size() + " results to scanner "
+                    + batch.mClient.scannerId);
+        }
+        mHandler.sendMessage(mHandler.obtainMessage(MSG_DELIVER, batch));
+    }
+
+    @VisibleForTesting
+    long getCoalescedResultCount() {
+        synchronized (mLock) {
+            return mCoalescedResults;
+        }
+    }
+
+    @VisibleForTesting
+    long getDeliveredBatchCount() {
+        synchronized (mLock) {
+            return mDeliveredBatches;
+        }
+    }
+
+    void dump(StringBuilder sb) {
+        synchronized (mLock) {
+            sb.append("  Scan result coalescing: pending scanners=").append(mBatches.size())
+                    .append(", delivered batches=").append(mDeliveredBatches)
+                    .append(", coalesced duplicates=").append(mCoalescedResults).append("\n");
+        }
+    }
+}
@@ -23,15 +23,19 @@ import android.bluetooth.BluetoothDevice;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.SystemProperties;
 import android.provider.CallLog.Calls;
+import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.PhoneLookup;
 import android.telephony.PhoneNumberUtils;
 import android.util.Log;
+import android.util.LruCache;
 
 import com.android.bluetooth.BluetoothMethodProxy;
 import com.android.bluetooth.R;
@@ -41,6 +45,7 @@ import com.android.bluetooth.util.GsmAlphabet;
 import com.android.internal.annotations.VisibleForTesting;
 
 import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Helper for managing phonebook presentation over AT commands
@@ -73,6 +78,10 @@ public class AtPhonebook {
     private static final String INCOMING_CALL_WHERE = Calls.TYPE + "=" + Calls.INCOMING_TYPE;
     private static final String MISSED_CALL_WHERE = Calls.TYPE + "=" + Calls.MISSED_TYPE;
 
+    /** Number of caller ID lookups of the call log phonebooks to remember. */
+    @VisibleForTesting
+    static final int NAME_CACHE_SIZE = 256;
+
     @VisibleForTesting
     class PhonebookResult {
         public Cursor cursor; // result set of last query
@@ -101,12 +110,25 @@ public class AtPhonebook {
     final HashMap<String, PhonebookResult> mPhonebooks =
             new HashMap<String, PhonebookResult>(4);
 
+    // Display names found by caller ID lookup, keyed by number, "" if none was found. Car kits
+    // read the call log phonebooks right after connecting, and the same numbers come up often.
+    @VisibleForTesting
+    final LruCache<String, String> mNameCache = new LruCache<>(NAME_CACHE_SIZE);
+
+    // The phonebook results are kept between AT+CPBR reads until their provider changes. The
+    // observers run on the handler of the state machine, which also handles the AT commands.
+    @VisibleForTesting
+    final ContentObserver mCallLogObserver;
+
+    @VisibleForTesting
+    final ContentObserver mContactsObserver;
+
     static final int TYPE_UNKNOWN = -1;
     static final int TYPE_READ = 0;
     static final int TYPE_SET = 1;
     static final int TYPE_TEST = 2;
 
-    public AtPhonebook(Context context, HeadsetNativeInterface nativeInterface) {
+    public AtPhonebook(Context context, HeadsetNativeInterface nativeInterface, Handler handler) {
         mContext = context;
         mPairingPackage = SystemProperties.get(
             Utils.PAIRING_UI_PROPERTY,
@@ -119,10 +141,37 @@ public class AtPhonebook {
         mPhonebooks.put("ME", new PhonebookResult());  // mobile phonebook
         mCurrentPhonebook = "ME";  // default to mobile phonebook
         mCpbrIndex1 = mCpbrIndex2 = -1;
+        mCallLogObserver = new ContentObserver(handler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                invalidatePhonebooks(false);
+            }
+        };
+        mContactsObserver = new ContentObserver(handler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                invalidatePhonebooks(true);
+            }
+        };
+        try {
+            mContentResolver.registerContentObserver(Calls.CONTENT_URI, true, mCallLogObserver);
+            mContentResolver.registerContentObserver(ContactsContract.AUTHORITY_URI, true,
+                    mContactsObserver);
+        } catch (SecurityException e) {
+            Log.w(TAG, "Phonebook results will not be cached", e);
+        }
     }
 
-    public void cleanup() {
+    public synchronized void cleanup() {
+        mContentResolver.unregisterContentObserver(mCallLogObserver);
+        mContentResolver.unregisterContentObserver(mContactsObserver);
+        for (PhonebookResult pbr : mPhonebooks.values()) {
+            if (pbr.cursor != null) {
+                pbr.cursor.close();
+            }
+        }
         mPhonebooks.clear();
+        mNameCache.evictAll();
     }
 
     /** Returns the last dialled number, or null if no numbers have been called */
@@ -228,17 +277,14 @@ public class AtPhonebook {
                     atCommandResult = HeadsetHalConstants.AT_RESPONSE_OK;
                     break;
                 }
-                PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, true);
-                if (pbr == null) {
+                int size = getPhonebookSize(mCurrentPhonebook);
+                if (size < 0) {
                     atCommandErrorCode = BluetoothCmeError.OPERATION_NOT_SUPPORTED;
                     break;
                 }
-                int size = pbr.cursor.getCount();
                 atCommandResponse =
                         "+CPBS: \"" + mCurrentPhonebook + "\"," + size + "," + getMaxPhoneBookSize(
                                 size);
-                pbr.cursor.close();
-                pbr.cursor = null;
                 atCommandResult = HeadsetHalConstants.AT_RESPONSE_OK;
                 break;
             case TYPE_TEST: // Test
@@ -299,17 +345,14 @@ public class AtPhonebook {
                 if ("SM".equals(mCurrentPhonebook)) {
                     size = 0;
                 } else {
-                    PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, true); //false);
-                    if (pbr == null) {
+                    size = getPhonebookSize(mCurrentPhonebook);
+                    if (size < 0) {
                         atCommandErrorCode = BluetoothCmeError.OPERATION_NOT_ALLOWED;
                         mNativeInterface.atResponseCode(remoteDevice, atCommandResult,
                                 atCommandErrorCode);
                         break;
                     }
-                    size = pbr.cursor.getCount();
                     log("handleCpbrCommand - size = " + size);
-                    pbr.cursor.close();
-                    pbr.cursor = null;
                 }
                 if (size == 0) {
                     /* Sending "+CPBR: (1-0)" can confused some carkits, send "1-1" * instead */
@@ -415,6 +458,15 @@ public class AtPhonebook {
         return pbr;
     }
 
+    /*
+     * Returns the number of entries of the given phone book, reusing its kept result if it was not
+     * invalidated since, or -1 if the phone book cannot be queried.
+     */
+    private synchronized int getPhonebookSize(String pb) {
+        PhonebookResult pbr = getPhonebookResult(pb, false);
+        return pbr == null ? -1 : pbr.cursor.getCount();
+    }
+
     private synchronized boolean queryPhonebook(String pb, PhonebookResult pbr) {
         String where;
         boolean ancillaryPhonebook = true;
@@ -474,6 +526,28 @@ public class AtPhonebook {
         return true;
     }
 
+    /**
+     * Drops the phonebook results that may be outdated, so that the next AT+CPBR queries them
+     * again.
+     *
+     * @param contactsChanged true if the contacts changed, which also outdates the names found by
+     *     caller ID lookup, false if only the call log did
+     */
+    @VisibleForTesting
+    synchronized void invalidatePhonebooks(boolean contactsChanged) {
+        for (Map.Entry<String, PhonebookResult> entry : mPhonebooks.entrySet()) {
+            PhonebookResult pbr = entry.getValue();
+            if (pbr.cursor == null || (!contactsChanged && "ME".equals(entry.getKey()))) {
+                continue;
+            }
+            pbr.cursor.close();
+            pbr.cursor = null;
+        }
+        if (contactsChanged) {
+            mNameCache.evictAll();
+        }
+    }
+
     synchronized void resetAtState() {
         mCharacterSet = "UTF-8";
         mCpbrIndex1 = mCpbrIndex2 = -1;
@@ -504,7 +578,7 @@ public class AtPhonebook {
     }
 
     // process CPBR command after permission check
-    /*package*/ int processCpbrCommand(BluetoothDevice device) {
+    /*package*/ synchronized int processCpbrCommand(BluetoothDevice device) {
         log("processCpbrCommand");
         int atCommandResult = HeadsetHalConstants.AT_RESPONSE_ERROR;
         int atCommandErrorCode = -1;
@@ -519,7 +593,7 @@ public class AtPhonebook {
         }
 
         // Check phonebook
-        PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, true); //false);
+        PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, false);
         if (pbr == null) {
             Log.e(TAG, "pbr is null");
             atCommandErrorCode = BluetoothCmeError.OPERATION_NOT_ALLOWED;
@@ -552,31 +626,7 @@ public class AtPhonebook {
             String name = null;
             int type = -1;
             if (pbr.nameColumn == -1 && number != null && number.length() > 0) {
-                // try caller id lookup
-                // TODO: This code is horribly inefficient. I saw it
-                // take 7 seconds to process 100 missed calls.
-                Cursor c =
-                        BluetoothMethodProxy.getInstance()
-                                .contentResolverQuery(
-                                        mContentResolver,
-                                        Uri.withAppendedPath(
-                                                PhoneLookup.ENTERPRISE_CONTENT_FILTER_URI,
-                                                Uri.encode(number)),
-                                        new String[] {PhoneLookup.DISPLAY_NAME, PhoneLookup.TYPE},
-                                        null,
-                                        null,
-                                        null);
-                if (c != null) {
-                    if (c.moveToFirst()) {
-                        name = c.getString(0);
-                        type = c.getInt(1);
-                    }
-                    c.close();
-                }
-                if (DBG && name == null) {
-                    log("Caller ID lookup failed for " + number);
-                }
-
+                name = lookupCallerName(number);
             } else if (pbr.nameColumn != -1) {
                 name = pbr.cursor.getString(pbr.nameColumn);
             } else {
@@ -635,13 +685,39 @@ public class AtPhonebook {
                 break;
             }
         }
-        if (pbr.cursor != null) {
-            pbr.cursor.close();
-            pbr.cursor = null;
-        }
         return atCommandResult;
     }
 
+    /** Returns the display name of the contact owning {@code number}, or null if none. */
+    private String lookupCallerName(String number) {
+        String name = mNameCache.get(number);
+        if (name != null) {
+            return name.isEmpty() ? null : name;
+        }
+        Cursor c =
+                BluetoothMethodProxy.getInstance()
+                        .contentResolverQuery(
+                                mContentResolver,
+                                Uri.withAppendedPath(
+                                        PhoneLookup.ENTERPRISE_CONTENT_FILTER_URI,
+                                        Uri.encode(number)),
+                                new String[] {PhoneLookup.DISPLAY_NAME},
+                                null,
+                                null,
+                                null);
+        if (c != null) {
+            if (c.moveToFirst()) {
+                name = c.getString(0);
+            }
+            c.close();
+        }
+        if (DBG && name == null) {
+            log("Caller ID lookup failed for " + number);
+        }
+        mNameCache.put(number, name == null ? "" : name);
+        return name;
+    }
+
     /**
      * Checks if the remote device has premission to read our phone book.
      * If the return value is {@link BluetoothDevice#ACCESS_UNKNOWN}, it means this method has sent
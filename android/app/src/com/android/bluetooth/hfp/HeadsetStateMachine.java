@@ -227,7 +227,7 @@ public class HeadsetStateMachine extends StateMachine {
         }
 
         // Create phonebook helper
-        mPhonebook = new AtPhonebook(mHeadsetService, mNativeInterface);
+        mPhonebook = new AtPhonebook(mHeadsetService, mNativeInterface, getHandler());
         // Initialize state machine
         addState(mDisconnected);
         addState(mConnecting);
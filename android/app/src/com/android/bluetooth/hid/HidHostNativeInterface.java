@@ -92,6 +92,19 @@ public class HidHostNativeInterface {
         return sendDataNative(address, report);
     }
 
+    boolean setReport(byte[] address, byte reportType, byte[] report) {
+        return setReportBytesNative(address, reportType, report);
+    }
+
+    /**
+     * Sends the reports stored back to back in {@code reports}, in order.
+     *
+     * @return the number of reports sent before the first failure
+     */
+    int sendReports(byte[] address, byte[] reports, int[] reportLengths) {
+        return sendReportsNative(address, reports, reportLengths);
+    }
+
     boolean setIdleTime(byte[] address, byte idleTime) {
         return setIdleTimeNative(address, idleTime);
     }
@@ -183,6 +196,11 @@ public class HidHostNativeInterface {
 
     private native boolean sendDataNative(byte[] btAddress, String report);
 
+    private native boolean setReportBytesNative(
+            byte[] btAddress, byte reportType, byte[] report);
+
+    private native int sendReportsNative(byte[] btAddress, byte[] reports, int[] reportLengths);
+
     private native boolean setIdleTimeNative(byte[] btAddress, byte idleTime);
 
     private native boolean getIdleTimeNative(byte[] btAddress);
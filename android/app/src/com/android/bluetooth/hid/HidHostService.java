@@ -28,12 +28,15 @@ import android.bluetooth.BluetoothHidHost;
 import android.bluetooth.BluetoothProfile;
 import android.bluetooth.BluetoothUuid;
 import android.bluetooth.IBluetoothHidHost;
+import android.bluetooth.IBluetoothHidHostReportCallback;
 import android.content.AttributionSource;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
 import android.os.UserHandle;
 import android.sysprop.BluetoothProperties;
 import android.util.Log;
@@ -72,6 +75,13 @@ public class HidHostService extends ProfileService {
     private AdapterService mAdapterService;
     private final HidHostNativeInterface mNativeInterface;
 
+    // Receive the reports without registering for the ACTION_REPORT broadcasts
+    private final RemoteCallbackList<IBluetoothHidHostReportCallback> mReportCallbacks =
+            new RemoteCallbackList<>();
+    // Keeps the reports of concurrent callers from interleaving, and sendData, setReportBytes and
+    // sendReports in the order they are called
+    private final Object mSendLock = new Object();
+
     private static final int MESSAGE_CONNECT = 1;
     private static final int MESSAGE_DISCONNECT = 2;
     private static final int MESSAGE_CONNECT_STATE_CHANGED = 3;
@@ -150,6 +160,7 @@ public class HidHostService extends ProfileService {
             }
             mInputDevices.clear();
         }
+        mReportCallbacks.kill();
         // TODO(b/72948646): this should be moved to stop()
         setHidHostService(null);
     }
@@ -576,6 +587,68 @@ public class HidHostService extends ProfileService {
             }
         }
 
+        @Override
+        public void setReportBytes(BluetoothDevice device, byte reportType, byte[] report,
+                AttributionSource source, SynchronousResultReceiver receiver) {
+            try {
+                HidHostService service = getService(source);
+                boolean defaultValue = false;
+                if (service != null) {
+                    defaultValue = service.setReportBytes(device, reportType, report);
+                }
+                receiver.send(defaultValue);
+            } catch (RuntimeException e) {
+                receiver.propagateException(e);
+            }
+        }
+
+        @Override
+        public void sendReports(BluetoothDevice device, byte[] reports, int[] reportLengths,
+                AttributionSource source, SynchronousResultReceiver receiver) {
+            try {
+                HidHostService service = getService(source);
+                int defaultValue = 0;
+                if (service != null) {
+                    defaultValue = service.sendReports(device, reports, reportLengths);
+                }
+                receiver.send(defaultValue);
+            } catch (RuntimeException e) {
+                receiver.propagateException(e);
+            }
+        }
+
+        @Override
+        public void registerReportCallback(IBluetoothHidHostReportCallback callback,
+                AttributionSource source, SynchronousResultReceiver receiver) {
+            try {
+                HidHostService service = getService(source);
+                boolean defaultValue = false;
+                if (service != null) {
+                    enforceBluetoothPrivilegedPermission(service);
+                    defaultValue = service.registerReportCallback(callback);
+                }
+                receiver.send(defaultValue);
+            } catch (RuntimeException e) {
+                receiver.propagateException(e);
+            }
+        }
+
+        @Override
+        public void unregisterReportCallback(IBluetoothHidHostReportCallback callback,
+                AttributionSource source, SynchronousResultReceiver receiver) {
+            try {
+                HidHostService service = getService(source);
+                boolean defaultValue = false;
+                if (service != null) {
+                    enforceBluetoothPrivilegedPermission(service);
+                    defaultValue = service.unregisterReportCallback(callback);
+                }
+                receiver.send(defaultValue);
+            } catch (RuntimeException e) {
+                receiver.propagateException(e);
+            }
+        }
+
         @Override
         public void setIdleTime(BluetoothDevice device, byte idleTime,
                 AttributionSource source, SynchronousResultReceiver receiver) {
@@ -823,7 +896,76 @@ public class HidHostService extends ProfileService {
             return false;
         }
 
-        return mNativeInterface.sendData(getByteAddress(device), report);
+        synchronized (mSendLock) {
+            return mNativeInterface.sendData(getByteAddress(device), report);
+        }
+    }
+
+    boolean setReportBytes(BluetoothDevice device, byte reportType, byte[] report) {
+        if (DBG) {
+            Log.d(TAG, "setReportBytes: " + device);
+        }
+        int state = this.getConnectionState(device);
+        if (state != BluetoothProfile.STATE_CONNECTED || report == null) {
+            return false;
+        }
+        synchronized (mSendLock) {
+            return mNativeInterface.setReport(getByteAddress(device), reportType, report);
+        }
+    }
+
+    /**
+     * Sends several reports to the device in one call, in order, and without interleaving them
+     * with the reports of other callers.
+     *
+     * @param reports the reports, stored back to back
+     * @param reportLengths the length of each report in {@code reports}
+     * @return the number of reports sent before the first failure
+     */
+    int sendReports(BluetoothDevice device, byte[] reports, int[] reportLengths) {
+        if (DBG) {
+            Log.d(TAG, "sendReports: " + device);
+        }
+        int state = this.getConnectionState(device);
+        if (state != BluetoothProfile.STATE_CONNECTED || reports == null
+                || reportLengths == null) {
+            return 0;
+        }
+        long total = 0;
+        for (int length : reportLengths) {
+            if (length <= 0) {
+                Log.e(TAG, "sendReports: bad report length " + length);
+                return 0;
+            }
+            total += length;
+        }
+        if (total > reports.length) {
+            Log.e(TAG, "sendReports: " + total + " bytes of reports in " + reports.length);
+            return 0;
+        }
+
+        synchronized (mSendLock) {
+            return mNativeInterface.sendReports(getByteAddress(device), reports, reportLengths);
+        }
+    }
+
+    /**
+     * Registers {@code callback} to receive the reports of all the devices. Unlike the
+     * ACTION_REPORT broadcast, the callback is not bound to an attribution, so registering requires
+     * BLUETOOTH_PRIVILEGED.
+     */
+    boolean registerReportCallback(IBluetoothHidHostReportCallback callback) {
+        if (callback == null) {
+            return false;
+        }
+        return mReportCallbacks.register(callback);
+    }
+
+    boolean unregisterReportCallback(IBluetoothHidHostReportCallback callback) {
+        if (callback == null) {
+            return false;
+        }
+        return mReportCallbacks.unregister(callback);
     }
 
     boolean getIdleTime(BluetoothDevice device) {
@@ -870,6 +1012,8 @@ public class HidHostService extends ProfileService {
 
     void onGetReport(byte[] address, byte[] report, int rptSize) {
         if (DBG) Log.d(TAG, "onGetReport()");
+        // Reports are delivered to the callbacks from the native thread, in order
+        deliverReport(address, report, rptSize);
         Message msg = mHandler.obtainMessage(MESSAGE_ON_GET_REPORT);
         msg.obj = address;
         Bundle data = new Bundle();
@@ -967,6 +1111,29 @@ public class HidHostService extends ProfileService {
                 Utils.getTempAllowlistBroadcastOptions());
     }
 
+    /*
+     * Only called from the native callback thread, so broadcasts never overlap. The callbacks are
+     * oneway, so a slow client does not hold that thread.
+     */
+    private void deliverReport(byte[] address, byte[] report, int rptSize) {
+        int n = mReportCallbacks.beginBroadcast();
+        try {
+            if (n == 0) {
+                return;
+            }
+            BluetoothDevice device = mAdapterService.getDeviceFromByte(address);
+            for (int i = 0; i < n; i++) {
+                try {
+                    mReportCallbacks.getBroadcastItem(i).onReport(device, report, rptSize);
+                } catch (RemoteException e) {
+                    Log.e(TAG, "deliverReport: failed to notify callback", e);
+                }
+            }
+        } finally {
+            mReportCallbacks.finishBroadcast();
+        }
+    }
+
     private void broadcastVirtualUnplugStatus(BluetoothDevice device, int status) {
         Intent intent = new Intent(BluetoothHidHost.ACTION_VIRTUAL_UNPLUG_STATUS);
         intent.putExtra(BluetoothDevice.EXTRA_DEVICE, device);
@@ -1029,6 +1196,7 @@ public class HidHostService extends ProfileService {
     public void dump(StringBuilder sb) {
         super.dump(sb);
         println(sb, "mTargetDevice: " + mTargetDevice);
+        println(sb, "Report callbacks: " + mReportCallbacks.getRegisteredCallbackCount());
         println(sb, "mInputDevices:");
         for (BluetoothDevice device : mInputDevices.keySet()) {
             println(sb, "  " + device + " : " + mInputDevices.get(device));
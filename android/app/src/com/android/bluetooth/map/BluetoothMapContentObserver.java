@@ -36,6 +36,7 @@ import android.os.Message;
 import android.os.ParcelFileDescriptor;
 import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserManager;
 import android.provider.Telephony;
 import android.provider.Telephony.Mms;
@@ -76,6 +77,7 @@ import java.util.Calendar;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
@@ -132,6 +134,12 @@ public class BluetoothMapContentObserver {
     //       cases.
     private static final long PROVIDER_ANR_TIMEOUT = 20 * DateUtils.SECOND_IN_MILLIS;
 
+    /* While SMS/MMS changes keep coming in, only the status columns of the tables are compared
+     * against the message lists, and only the new or changed rows are read in full. The complete
+     * tables are compared at most once per interval. */
+    @VisibleForTesting
+    static final long FULL_RECONCILIATION_INTERVAL_MS = 10 * DateUtils.SECOND_IN_MILLIS;
+
     private Context mContext;
     private ContentResolver mResolver;
     @VisibleForTesting
@@ -479,7 +487,26 @@ public class BluetoothMapContentObserver {
         return smsType;
     }
 
-    private final ContentObserver mObserver = new ContentObserver(new Handler()) {
+    private final Handler mHandler = new Handler();
+
+    /* Above this many new or changed rows, the complete tables are compared instead of selecting
+     * the rows by ID. */
+    private static final int MAX_CHANGED_ROWS = 500;
+
+    // Largest _id seen in the SMS and MMS tables, -1 if unknown
+    private long mSmsMaxId = -1;
+    private long mMmsMaxId = -1;
+    // Time of the last comparison of the complete SMS and MMS tables, -1 if none yet
+    @VisibleForTesting
+    long mLastFullReconciliationMs = -1;
+
+    private final Runnable mFullReconciliation = () -> {
+        if (mObserverRegistered && mEnableSmsMms) {
+            reconcileMsgListSmsMms();
+        }
+    };
+
+    private final ContentObserver mObserver = new ContentObserver(mHandler) {
         @Override
         public void onChange(boolean selfChange) {
             onChange(selfChange, null);
@@ -1078,6 +1105,8 @@ public class BluetoothMapContentObserver {
         }
         mResolver.unregisterContentObserver(mObserver);
         mObserverRegistered = false;
+        mHandler.removeCallbacks(mFullReconciliation);
+        mLastFullReconciliationMs = -1;
         if (mProviderClient != null) {
             mProviderClient.close();
             mProviderClient = null;
@@ -1422,21 +1451,34 @@ public class BluetoothMapContentObserver {
 
     @VisibleForTesting
     void handleMsgListChangesSms() {
+        handleMsgListChangesSms(null, null);
+    }
+
+    /**
+     * Compares the SMS table against the SMS message list and sends the resulting events.
+     *
+     * @param selection if not null, only the selected rows are compared and updated in the list,
+     *     and messages missing from the result are not reported as deleted
+     */
+    private void handleMsgListChangesSms(String selection, String[] selectionArgs) {
         if (V) {
-            Log.d(TAG, "handleMsgListChangesSms");
+            Log.d(TAG, "handleMsgListChangesSms, selection: " + selection);
         }
 
-        HashMap<Long, Msg> msgListSms = new HashMap<Long, Msg>();
+        boolean incremental = selection != null;
         boolean listChanged = false;
+        long maxId = -1;
 
         Cursor c;
         synchronized (getMsgListSms()) {
+            Map<Long, Msg> msgListSms = incremental ? getMsgListSms() : new HashMap<Long, Msg>();
             if (mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
                 c = BluetoothMethodProxy.getInstance().contentResolverQuery(mResolver,
-                        Sms.CONTENT_URI, SMS_PROJECTION_SHORT, null, null, null);
+                        Sms.CONTENT_URI, SMS_PROJECTION_SHORT, selection, selectionArgs, null);
             } else {
                 c = BluetoothMethodProxy.getInstance().contentResolverQuery(mResolver,
-                        Sms.CONTENT_URI, SMS_PROJECTION_SHORT_EXT, null, null, null);
+                        Sms.CONTENT_URI, SMS_PROJECTION_SHORT_EXT, selection, selectionArgs,
+                        null);
             }
             try {
                 if (c != null && c.moveToFirst()) {
@@ -1447,6 +1489,7 @@ public class BluetoothMapContentObserver {
                             continue;
                         }
                         long id = c.getLong(idIndex);
+                        maxId = Math.max(maxId, id);
                         int type = c.getInt(c.getColumnIndex(Sms.TYPE));
                         int threadId = c.getInt(c.getColumnIndex(Sms.THREAD_ID));
                         int read = c.getInt(c.getColumnIndex(Sms.READ));
@@ -1572,17 +1615,22 @@ public class BluetoothMapContentObserver {
                     c.close();
                 }
             }
-            String eventType = EVENT_TYPE_DELETE;
-            for (Msg msg : getMsgListSms().values()) {
-                // "old_folder" used only for MessageShift event
-                if (mMapEventReportVersion >= BluetoothMapUtils.MAP_EVENT_REPORT_V12) {
-                    eventType = EVENT_TYPE_REMOVED;
-                    if (V) Log.v(TAG," sent EVENT_TYPE_REMOVED");
+            if (incremental) {
+                mSmsMaxId = Math.max(mSmsMaxId, maxId);
+            } else {
+                String eventType = EVENT_TYPE_DELETE;
+                for (Msg msg : getMsgListSms().values()) {
+                    // "old_folder" used only for MessageShift event
+                    if (mMapEventReportVersion >= BluetoothMapUtils.MAP_EVENT_REPORT_V12) {
+                        eventType = EVENT_TYPE_REMOVED;
+                        if (V) Log.v(TAG," sent EVENT_TYPE_REMOVED");
+                    }
+                    Event evt = new Event(eventType, msg.id, getSmsFolderName(msg.type), null,
+                            mSmsType);
+                    sendEvent(evt);
+                    listChanged = true;
                 }
-                Event evt = new Event(eventType, msg.id, getSmsFolderName(msg.type), null,
-                        mSmsType);
-                sendEvent(evt);
-                listChanged = true;
+                mSmsMaxId = maxId;
             }
 
             setMsgListSms(msgListSms, listChanged);
@@ -1591,20 +1639,33 @@ public class BluetoothMapContentObserver {
 
     @VisibleForTesting
     void handleMsgListChangesMms() {
+        handleMsgListChangesMms(null, null);
+    }
+
+    /**
+     * Compares the MMS table against the MMS message list and sends the resulting events.
+     *
+     * @param selection if not null, only the selected rows are compared and updated in the list,
+     *     and messages missing from the result are not reported as deleted
+     */
+    private void handleMsgListChangesMms(String selection, String[] selectionArgs) {
         if (V) {
-            Log.d(TAG, "handleMsgListChangesMms");
+            Log.d(TAG, "handleMsgListChangesMms, selection: " + selection);
         }
 
-        HashMap<Long, Msg> msgListMms = new HashMap<Long, Msg>();
+        boolean incremental = selection != null;
         boolean listChanged = false;
+        long maxId = -1;
         Cursor c;
         synchronized (getMsgListMms()) {
+            Map<Long, Msg> msgListMms = incremental ? getMsgListMms() : new HashMap<Long, Msg>();
             if (mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
                 c = BluetoothMethodProxy.getInstance().contentResolverQuery(mResolver,
-                        Mms.CONTENT_URI, MMS_PROJECTION_SHORT, null, null, null);
+                        Mms.CONTENT_URI, MMS_PROJECTION_SHORT, selection, selectionArgs, null);
             } else {
                 c = BluetoothMethodProxy.getInstance().contentResolverQuery(mResolver,
-                        Mms.CONTENT_URI, MMS_PROJECTION_SHORT_EXT, null, null, null);
+                        Mms.CONTENT_URI, MMS_PROJECTION_SHORT_EXT, selection, selectionArgs,
+                        null);
             }
 
             try {
@@ -1616,6 +1677,7 @@ public class BluetoothMapContentObserver {
                             continue;
                         }
                         long id = c.getLong(idIndex);
+                        maxId = Math.max(maxId, id);
                         int type = c.getInt(c.getColumnIndex(Mms.MESSAGE_BOX));
                         int mtype = c.getInt(c.getColumnIndex(Mms.MESSAGE_TYPE));
                         int threadId = c.getInt(c.getColumnIndex(Mms.THREAD_ID));
@@ -1757,12 +1819,17 @@ public class BluetoothMapContentObserver {
                     c.close();
                 }
             }
-            for (Msg msg : getMsgListMms().values()) {
-                // "old_folder" used only for MessageShift event
-                Event evt = new Event(EVENT_TYPE_DELETE, msg.id, getMmsFolderName(msg.type), null,
-                        TYPE.MMS);
-                sendEvent(evt);
-                listChanged = true;
+            if (incremental) {
+                mMmsMaxId = Math.max(mMmsMaxId, maxId);
+            } else {
+                for (Msg msg : getMsgListMms().values()) {
+                    // "old_folder" used only for MessageShift event
+                    Event evt = new Event(EVENT_TYPE_DELETE, msg.id, getMmsFolderName(msg.type),
+                            null, TYPE.MMS);
+                    sendEvent(evt);
+                    listChanged = true;
+                }
+                mMmsMaxId = maxId;
             }
             setMsgListMms(msgListMms, listChanged);
         }
@@ -1978,9 +2045,128 @@ public class BluetoothMapContentObserver {
         }
         // TODO: check to see if there could be problem with IM and SMS in one instance
         if (mEnableSmsMms) {
-            handleMsgListChangesSms();
-            handleMsgListChangesMms();
+            handleMsgListChangesSmsMms(uri);
+        }
+    }
+
+    /**
+     * Handles a change of the SMS/MMS provider. The complete tables are compared if that was not
+     * done within {@link #FULL_RECONCILIATION_INTERVAL_MS}, otherwise only the changed row or the
+     * rows which are new or changed in the status columns, and a complete comparison is scheduled
+     * for the end of the interval. A deleted message also triggers a complete comparison.
+     */
+    @VisibleForTesting
+    void handleMsgListChangesSmsMms(Uri uri) {
+        long now = SystemClock.elapsedRealtime();
+        if (mLastFullReconciliationMs < 0
+                || now - mLastFullReconciliationMs >= FULL_RECONCILIATION_INTERVAL_MS) {
+            reconcileMsgListSmsMms();
+            return;
+        }
+
+        long smsRowId = getChangedRowId(uri, Sms.CONTENT_URI.getAuthority());
+        long mmsRowId = getChangedRowId(uri, Mms.CONTENT_URI.getAuthority());
+        if (smsRowId >= 0) {
+            handleMsgListChangesSms(Sms._ID + "=?", new String[] {Long.toString(smsRowId)});
+        } else if (mmsRowId >= 0) {
+            handleMsgListChangesMms(Mms._ID + "=?", new String[] {Long.toString(mmsRowId)});
+        } else {
+            List<String> smsIds = getChangedRowIds(Sms.CONTENT_URI, SMS_PROJECTION_SHORT,
+                    Sms.TYPE, getMsgListSms(), mSmsMaxId);
+            List<String> mmsIds = getChangedRowIds(Mms.CONTENT_URI, MMS_PROJECTION_SHORT,
+                    Mms.MESSAGE_BOX, getMsgListMms(), mMmsMaxId);
+            if (smsIds == null || mmsIds == null) {
+                reconcileMsgListSmsMms();
+                return;
+            }
+            if (!smsIds.isEmpty()) {
+                handleMsgListChangesSms(getRowsSelection(smsIds.size()),
+                        smsIds.toArray(new String[0]));
+            }
+            if (!mmsIds.isEmpty()) {
+                handleMsgListChangesMms(getRowsSelection(mmsIds.size()),
+                        mmsIds.toArray(new String[0]));
+            }
+        }
+
+        if (!mHandler.hasCallbacks(mFullReconciliation)) {
+            mHandler.postDelayed(mFullReconciliation,
+                    mLastFullReconciliationMs + FULL_RECONCILIATION_INTERVAL_MS - now);
+        }
+    }
+
+    private void reconcileMsgListSmsMms() {
+        mHandler.removeCallbacks(mFullReconciliation);
+        mLastFullReconciliationMs = SystemClock.elapsedRealtime();
+        handleMsgListChangesSms();
+        handleMsgListChangesMms();
+    }
+
+    /** Returns the row ID if {@code uri} refers to a single row of {@code authority}, or -1. */
+    private static long getChangedRowId(Uri uri, String authority) {
+        if (!authority.equals(uri.getAuthority())) {
+            return -1;
+        }
+        String segment = uri.getLastPathSegment();
+        if (TextUtils.isEmpty(segment) || !TextUtils.isDigitsOnly(segment)) {
+            return -1;
+        }
+        return Long.parseLong(segment);
+    }
+
+    /**
+     * Reads only the ID, folder, thread and read columns of {@code uri} and returns the IDs of the
+     * rows added after {@code maxId} or whose status differs from {@code msgList}. Returns null if
+     * a message of the list is gone from the table, or if there are too many rows to select by ID.
+     */
+    private List<String> getChangedRowIds(Uri uri, String[] projection, String typeColumn,
+            Map<Long, Msg> msgList, long maxId) {
+        List<String> ids = new ArrayList<>();
+        int listed = 0;
+        synchronized (msgList) {
+            Cursor c = BluetoothMethodProxy.getInstance().contentResolverQuery(mResolver, uri,
+                    projection, null, null, null);
+            if (c == null) {
+                return ids;
+            }
+            try {
+                // The SMS and MMS tables share the _id, thread_id and read column names
+                int idIndex = c.getColumnIndexOrThrow(Sms._ID);
+                int typeIndex = c.getColumnIndexOrThrow(typeColumn);
+                int threadIdIndex = c.getColumnIndexOrThrow(Sms.THREAD_ID);
+                int readIndex = c.getColumnIndexOrThrow(Sms.READ);
+                while (c.moveToNext()) {
+                    long id = c.getLong(idIndex);
+                    Msg msg = msgList.get(id);
+                    if (msg == null) {
+                        // Rows not in the list at or below maxId were skipped on purpose
+                        if (id > maxId) {
+                            ids.add(Long.toString(id));
+                        }
+                        continue;
+                    }
+                    listed++;
+                    if (c.getInt(typeIndex) != msg.type || c.getInt(threadIdIndex) != msg.threadId
+                            || c.getInt(readIndex) != msg.flagRead) {
+                        ids.add(Long.toString(id));
+                    }
+                }
+            } finally {
+                c.close();
+            }
+            if (listed < msgList.size() || ids.size() > MAX_CHANGED_ROWS) {
+                return null;
+            }
+        }
+        return ids;
+    }
+
+    private static String getRowsSelection(int count) {
+        StringBuilder selection = new StringBuilder("_id IN (?");
+        for (int i = 1; i < count; i++) {
+            selection.append(",?");
         }
+        return selection.append(')').toString();
     }
 
     @VisibleForTesting
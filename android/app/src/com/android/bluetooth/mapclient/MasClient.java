@@ -27,6 +27,7 @@ import android.util.Log;
 
 import com.android.bluetooth.BluetoothObexTransport;
 import com.android.bluetooth.ObexAppParameters;
+import com.android.bluetooth.btservice.AdapterService;
 import com.android.internal.util.StateMachine;
 import com.android.obex.ClientSession;
 import com.android.obex.HeaderSet;
@@ -120,7 +121,16 @@ public class MasClient {
                 mSocket = mRemoteDevice.createRfcommSocket(mSdpMasRecord.getRfcommCannelNumber());
             }
             if (DBG) Log.d(TAG, mRemoteDevice.toString() + "Socket: " + mSocket.toString());
-            mSocket.connect();
+            try {
+                mSocket.connect();
+            } catch (IOException e) {
+                // The channel or PSM of the record may be stale
+                AdapterService adapterService = AdapterService.getAdapterService();
+                if (adapterService != null) {
+                    adapterService.invalidateSdpRecords(mRemoteDevice);
+                }
+                throw e;
+            }
             mTransport = new BluetoothObexTransport(mSocket);
 
             mSession = new ClientSession(mTransport);
@@ -36,6 +36,7 @@ import android.bluetooth.BluetoothGattServerCallback;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
+import android.bluetooth.BluetoothStatusCodes;
 import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
@@ -44,6 +45,7 @@ import android.util.Log;
 import android.util.Pair;
 
 import com.android.bluetooth.BluetoothEventLogger;
+import com.android.bluetooth.GattNotificationScheduler;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.a2dp.A2dpService;
 import com.android.bluetooth.btservice.AdapterService;
@@ -59,6 +61,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
 
 /**
@@ -137,6 +140,10 @@ public class MediaControlGattService implements MediaControlGattServiceInterface
     private BluetoothGattServerProxy mBluetoothGattServer;
     private BluetoothGattService mGattService = null;
     private Handler mHandler = new Handler(Looper.getMainLooper());
+    // Every control point result is notified, other characteristics only with their latest value
+    private final GattNotificationScheduler mNotificationScheduler =
+            new GattNotificationScheduler(Looper.getMainLooper(), this::sendNotification,
+                    Set.of(UUID_MEDIA_CONTROL_POINT, UUID_SEARCH_CONTROL_POINT));
     private Map<Integer, BluetoothGattCharacteristic> mCharacteristics = new HashMap<>();
     private MediaState mCurrentMediaState = MediaState.INACTIVE;
     private Map<BluetoothDevice, List<GattOpContext>> mPendingGattOperations = new HashMap<>();
@@ -832,9 +839,19 @@ public class MediaControlGattService implements MediaControlGattServiceInterface
             }
             if (newState == BluetoothProfile.STATE_DISCONNECTED) {
                 ClearUnauthorizedGattOperations(device);
+                mNotificationScheduler.onDeviceDisconnected(device);
             }
         }
 
+        @Override
+        public void onNotificationSent(BluetoothDevice device, int status) {
+            super.onNotificationSent(device, status);
+            if (VDBG) {
+                Log.d(TAG, "BluetoothGattServerCallback: onNotificationSent status= " + status);
+            }
+            mNotificationScheduler.onNotificationSent(device, status);
+        }
+
         @Override
         public void onServiceAdded(int status, BluetoothGattService service) {
             super.onServiceAdded(status, service);
@@ -1084,6 +1101,12 @@ public class MediaControlGattService implements MediaControlGattServiceInterface
                     device, characteristic, confirm);
         }
 
+        public int notifyCharacteristicChanged(BluetoothDevice device,
+                BluetoothGattCharacteristic characteristic, boolean confirm, byte[] value) {
+            return mBluetoothGattServer.notifyCharacteristicChanged(
+                    device, characteristic, confirm, value);
+        }
+
         public List<BluetoothDevice> getConnectedDevices() {
             return mBluetoothManager.getConnectedDevices(BluetoothProfile.GATT_SERVER);
         }
@@ -1637,6 +1660,7 @@ public class MediaControlGattService implements MediaControlGattServiceInterface
         }
 
         mAdapterService.unregisterBluetoothStateCallback(mBluetoothStateChangeCallback);
+        mNotificationScheduler.clear();
 
         if (mBluetoothGattServer == null) {
             return;
@@ -1694,7 +1718,16 @@ public class MediaControlGattService implements MediaControlGattServiceInterface
         if (!Arrays.equals(ccc, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE)) return;
 
         if (VDBG) Log.d(TAG, "notifyCharacteristic: sending notification");
-        mBluetoothGattServer.notifyCharacteristicChanged(device, characteristic, false);
+        mNotificationScheduler.notify(device, characteristic, null);
+    }
+
+    private boolean sendNotification(BluetoothDevice device,
+            BluetoothGattCharacteristic characteristic, byte[] value) {
+        if (value == null) {
+            return mBluetoothGattServer.notifyCharacteristicChanged(device, characteristic, false);
+        }
+        return mBluetoothGattServer.notifyCharacteristicChanged(device, characteristic, false,
+                value) == BluetoothStatusCodes.SUCCESS;
     }
 
     private void notifyCharacteristic(
@@ -2276,6 +2309,8 @@ public class MediaControlGattService implements MediaControlGattServiceInterface
             }
         }
 
+        mNotificationScheduler.dump(sb, "\n\t\t");
+
         sb.append("\n\n");
         mEventLogger.dump(sb);
     }
@@ -54,7 +54,6 @@ import com.android.obex.ResponseCodes;
 
 import com.google.common.annotations.VisibleForTesting;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -385,6 +384,7 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
             ClientOperation putOperation = null;
             OutputStream outputStream = null;
             InputStream inputStream = null;
+            BluetoothOppStreamPipe filePipe = null;
             try {
                 synchronized (this) {
                     mWaitingForRemote = true;
@@ -452,12 +452,14 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                     long timestamp = 0;
                     long currentTime = 0;
                     long prevTimestamp = SystemClock.elapsedRealtime();
-                    int outputBufferSize = putOperation.getMaxPacketSize();
-                    byte[] buffer = new byte[outputBufferSize];
-                    BufferedInputStream a = new BufferedInputStream(fileInfo.mInputStream, 0x4000);
+                    BluetoothOppStreamPipe.Chunk chunk;
+                    // Read the next packet from the file while the current one is sent
+                    filePipe = BluetoothOppStreamPipe.startReading(fileInfo.mFileName,
+                            fileInfo.mInputStream, putOperation.getMaxPacketSize());
 
                     if (!mInterrupted && (position != fileInfo.mLength)) {
-                        readLength = readFully(a, buffer, outputBufferSize);
+                        chunk = filePipe.take();
+                        readLength = chunk.mLength;
 
                         mCallbackHandler.sendMessageDelayed(
                                 mCallbackHandler.obtainMessage(
@@ -468,7 +470,8 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                         }
 
                         // first packet will block here
-                        outputStream.write(buffer, 0, readLength);
+                        outputStream.write(chunk.mData, 0, readLength);
+                        filePipe.release(chunk);
 
                         position += readLength;
 
@@ -509,8 +512,15 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                             timestamp = SystemClock.elapsedRealtime();
                         }
 
-                        readLength = a.read(buffer, 0, outputBufferSize);
-                        outputStream.write(buffer, 0, readLength);
+                        chunk = filePipe.take();
+                        readLength = chunk.mLength;
+                        if (readLength == 0) {
+                            Log.e(TAG, "File " + fileInfo.mFileName + " ended at " + position
+                                    + " of " + fileInfo.mLength);
+                            break;
+                        }
+                        outputStream.write(chunk.mData, 0, readLength);
+                        filePipe.release(chunk);
 
                         /* check remote abort */
                         responseCode = putOperation.getResponseCode();
@@ -529,11 +539,15 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                                         + " readLength " + readLength + " bytes took "
                                         + (currentTime - timestamp) + " ms");
                             }
-                            // Update the Progress Bar only if there is change in percentage
-                            // or once per a period to notify NFC of this transfer is still alive
+                            // Update the Progress Bar only if there is change in percentage,
+                            // at most once per PROGRESS_UPDATE_INTERVAL_MS unless the file is
+                            // complete, or once per a period to notify NFC of this transfer is
+                            // still alive
                             percent = position * 100 / fileInfo.mLength;
-                            if (percent > prevPercent
-                                    || currentTime - prevTimestamp > Constants.NFC_ALIVE_CHECK_MS) {
+                            long sinceLastUpdate = currentTime - prevTimestamp;
+                            if ((percent > prevPercent && (position == fileInfo.mLength
+                                    || sinceLastUpdate >= Constants.PROGRESS_UPDATE_INTERVAL_MS))
+                                    || sinceLastUpdate > Constants.NFC_ALIVE_CHECK_MS) {
                                 updateValues = new ContentValues();
                                 updateValues.put(BluetoothShare.CURRENT_BYTES, position);
                                 mContext1.getContentResolver()
@@ -572,6 +586,9 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
             } catch (IndexOutOfBoundsException e) {
                 handleSendException(e.toString());
             } finally {
+                if (filePipe != null) {
+                    filePipe.close();
+                }
                 try {
                     if (outputStream != null) {
                         outputStream.close();
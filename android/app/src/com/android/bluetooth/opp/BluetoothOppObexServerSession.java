@@ -479,12 +479,13 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler
         }
 
         if (!error) {
-            int outputBufferSize = op.getMaxPacketSize();
-            byte[] b = new byte[outputBufferSize];
             int readLength;
             long timestamp = 0;
             long currentTime;
             long prevTimestamp = SystemClock.elapsedRealtime();
+            // Write the previous packet to the file while the next one is received
+            BluetoothOppStreamPipe filePipe = BluetoothOppStreamPipe.startWriting(
+                    fileInfo.mFileName, os, op.getMaxPacketSize());
             try {
                 while ((!mInterrupted) && (position != fileInfo.mLength)) {
 
@@ -492,7 +493,8 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler
                         timestamp = SystemClock.elapsedRealtime();
                     }
 
-                    readLength = is.read(b);
+                    BluetoothOppStreamPipe.Chunk chunk = filePipe.obtain();
+                    readLength = is.read(chunk.mData);
 
                     if (readLength == -1) {
                         if (D) {
@@ -501,7 +503,8 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler
                         break;
                     }
 
-                    os.write(b, 0, readLength);
+                    chunk.mLength = readLength;
+                    filePipe.submit(chunk);
                     position += readLength;
                     percent = position * 100 / fileInfo.mLength;
                     currentTime = SystemClock.elapsedRealtime();
@@ -512,10 +515,13 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler
                                         + " bytes took " + (currentTime - timestamp) + " ms");
                     }
 
-                    // Update the Progress Bar only if there is change in percentage
-                    // or once per a period to notify NFC of this transfer is still alive
-                    if (percent > prevPercent
-                            || currentTime - prevTimestamp > Constants.NFC_ALIVE_CHECK_MS) {
+                    // Update the Progress Bar only if there is change in percentage, at most once
+                    // per PROGRESS_UPDATE_INTERVAL_MS unless the file is complete, or once per a
+                    // period to notify NFC of this transfer is still alive
+                    long sinceLastUpdate = currentTime - prevTimestamp;
+                    if ((percent > prevPercent && (position == fileInfo.mLength
+                            || sinceLastUpdate >= Constants.PROGRESS_UPDATE_INTERVAL_MS))
+                            || sinceLastUpdate > Constants.NFC_ALIVE_CHECK_MS) {
                         ContentValues updateValues = new ContentValues();
                         updateValues.put(BluetoothShare.CURRENT_BYTES, position);
                         BluetoothMethodProxy.getInstance().contentResolverUpdate(
@@ -525,7 +531,10 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler
                         prevTimestamp = currentTime;
                     }
                 }
+                // The file must be complete before the transfer is reported
+                filePipe.finish();
             } catch (IOException e1) {
+                filePipe.close();
                 Log.e(TAG, "Error when receiving file: " + e1);
                 /* OBEX Abort packet received from remote device */
                 if ("Abort Received".equals(e1.getMessage())) {
@@ -543,7 +552,7 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler
             }
             status = BluetoothShare.STATUS_CANCELED;
         } else {
-            if (position == fileInfo.mLength) {
+            if (!error && position == fileInfo.mLength) {
                 if (D) {
                     Log.d(TAG, "Receiving file completed for " + fileInfo.mFileName);
                 }
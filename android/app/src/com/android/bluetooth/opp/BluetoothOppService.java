@@ -38,6 +38,7 @@ import android.bluetooth.BluetoothDevicePicker;
 import android.bluetooth.BluetoothSocket;
 import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
@@ -68,8 +69,12 @@ import com.android.obex.ObexTransport;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.Set;
 
 /**
  * Performs the background Bluetooth OPP transfer. It also starts thread to
@@ -119,8 +124,23 @@ public class BluetoothOppService extends ProfileService implements IObexConnecti
             }
             updateFromProvider();
         }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            if (V) {
+                Log.v(TAG, "ContentObserver received notification for " + uri);
+            }
+            int id = getShareId(uri);
+            if (id == INVALID_SHARE_ID) {
+                updateFromProvider();
+            } else {
+                updateFromProvider(id);
+            }
+        }
     }
 
+    private static final int INVALID_SHARE_ID = -1;
+
     private static final String TAG = "BtOppService";
 
     /** Observer to get notified when the content observer's data changes */
@@ -131,6 +151,11 @@ public class BluetoothOppService extends ProfileService implements IObexConnecti
 
     private boolean mPendingUpdate;
 
+    // Whether the pending update needs the whole table, otherwise only the shares of
+    // mPendingShareIds changed. Progress updates of a transfer only notify its own share.
+    private boolean mPendingFullUpdate;
+    private final Set<Integer> mPendingShareIds = new HashSet<>();
+
     @VisibleForTesting UpdateThread mUpdateThread;
 
     private boolean mUpdateThreadRunning;
@@ -327,6 +352,13 @@ public class BluetoothOppService extends ProfileService implements IObexConnecti
                         + info.mTotalBytes);
             }
         }
+        List<String> transferStats = BluetoothOppStreamPipe.getRecentStats();
+        if (!transferStats.isEmpty()) {
+            println(sb, "Recent transfers:");
+            for (String stats : transferStats) {
+                println(sb, "  " + stats);
+            }
+        }
     }
 
     /**
@@ -623,6 +655,37 @@ public class BluetoothOppService extends ProfileService implements IObexConnecti
     };
 
     private void updateFromProvider() {
+        synchronized (BluetoothOppService.this) {
+            mPendingFullUpdate = true;
+            mPendingShareIds.clear();
+            startUpdateThread();
+        }
+    }
+
+    private void updateFromProvider(int id) {
+        synchronized (BluetoothOppService.this) {
+            if (!mPendingFullUpdate) {
+                mPendingShareIds.add(id);
+            }
+            startUpdateThread();
+        }
+    }
+
+    /** Returns the ID of the share {@code uri} points to, or -1 if it is not a share URI. */
+    @VisibleForTesting
+    static int getShareId(Uri uri) {
+        if (uri == null || uri.getPathSegments().size() != 2
+                || !BluetoothShare.CONTENT_URI.getAuthority().equals(uri.getAuthority())) {
+            return INVALID_SHARE_ID;
+        }
+        try {
+            return Integer.parseInt(uri.getLastPathSegment());
+        } catch (NumberFormatException e) {
+            return INVALID_SHARE_ID;
+        }
+    }
+
+    private void startUpdateThread() {
         synchronized (BluetoothOppService.this) {
             mPendingUpdate = true;
             if (mUpdateThread == null) {
@@ -656,6 +719,8 @@ public class BluetoothOppService extends ProfileService implements IObexConnecti
             Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
 
             while (!mIsInterrupted) {
+                boolean fullUpdate;
+                List<Integer> shareIds;
                 synchronized (BluetoothOppService.this) {
                     if (mUpdateThread != this) {
                         mUpdateThreadRunning = false;
@@ -672,103 +737,176 @@ public class BluetoothOppService extends ProfileService implements IObexConnecti
                         return;
                     }
                     mPendingUpdate = false;
+                    fullUpdate = mPendingFullUpdate;
+                    shareIds = new ArrayList<>(mPendingShareIds);
+                    mPendingFullUpdate = false;
+                    mPendingShareIds.clear();
                 }
-                Cursor cursor =
-                        getContentResolver().query(BluetoothShare.CONTENT_URI, null, null, null,
-                                BluetoothShare._ID);
-
-                if (cursor == null) {
-                    mUpdateThreadRunning = false;
-                    return;
+                if (fullUpdate) {
+                    if (!updateAllShares()) {
+                        mUpdateThreadRunning = false;
+                        return;
+                    }
+                } else {
+                    updateShares(shareIds);
                 }
 
-                cursor.moveToFirst();
-
-                int arrayPos = 0;
-
-                boolean isAfterLast = cursor.isAfterLast();
-
-                int idColumn = cursor.getColumnIndexOrThrow(BluetoothShare._ID);
-                /*
-                 * Walk the cursor and the local array to keep them in sync. The
-                 * key to the algorithm is that the ids are unique and sorted
-                 * both in the cursor and in the array, so that they can be
-                 * processed in order in both sources at the same time: at each
-                 * step, both sources point to the lowest id that hasn't been
-                 * processed from that source, and the algorithm processes the
-                 * lowest id from those two possibilities. At each step: -If the
-                 * array contains an entry that's not in the cursor, remove the
-                 * entry, move to next entry in the array. -If the array
-                 * contains an entry that's in the cursor, nothing to do, move
-                 * to next cursor row and next array entry. -If the cursor
-                 * contains an entry that's not in the array, insert a new entry
-                 * in the array, move to next cursor row and next array entry.
-                 */
-                while (!isAfterLast || arrayPos < mShares.size() && mListenStarted) {
-                    if (isAfterLast) {
-                        // We're beyond the end of the cursor but there's still some
-                        // stuff in the local array, which can only be junk
-                        if (mShares.size() != 0) {
-                            if (V) {
-                                Log.v(TAG, "Array update: trimming " + mShares.get(arrayPos).mId
-                                        + " @ " + arrayPos);
-                            }
-                        }
+                mNotifier.updateNotification();
+            }
 
-                        deleteShare(arrayPos); // this advances in the array
-                    } else {
-                        int id = cursor.getInt(idColumn);
+            mUpdateThreadRunning = false;
+        }
+    }
 
-                        if (arrayPos == mShares.size()) {
-                            insertShare(cursor, arrayPos);
-                            if (V) {
-                                Log.v(TAG, "Array update: inserting " + id + " @ " + arrayPos);
-                            }
-                            ++arrayPos;
-                            cursor.moveToNext();
-                            isAfterLast = cursor.isAfterLast();
-                        } else {
-                            int arrayId = 0;
-                            if (mShares.size() != 0) {
-                                arrayId = mShares.get(arrayPos).mId;
-                            }
+    /**
+     * Walks the whole provider table and the local array to keep them in sync.
+     *
+     * @return false if the provider could not be queried
+     */
+    private boolean updateAllShares() {
+        Cursor cursor =
+                getContentResolver().query(BluetoothShare.CONTENT_URI, null, null, null,
+                        BluetoothShare._ID);
 
-                            if (arrayId < id) {
-                                if (V) {
-                                    Log.v(TAG,
-                                            "Array update: removing " + arrayId + " @ " + arrayPos);
-                                }
-                                deleteShare(arrayPos);
-                            } else if (arrayId == id) {
-                                // This cursor row already exists in the stored array.
-                                updateShare(cursor, arrayPos);
-                                scanFileIfNeeded(arrayPos);
-                                ++arrayPos;
-                                cursor.moveToNext();
-                                isAfterLast = cursor.isAfterLast();
-                            } else {
-                                // This cursor entry didn't exist in the stored
-                                // array
-                                if (V) {
-                                    Log.v(TAG, "Array update: appending " + id + " @ " + arrayPos);
-                                }
-                                insertShare(cursor, arrayPos);
-
-                                ++arrayPos;
-                                cursor.moveToNext();
-                                isAfterLast = cursor.isAfterLast();
-                            }
+        if (cursor == null) {
+            return false;
+        }
+
+        cursor.moveToFirst();
+
+        int arrayPos = 0;
+
+        boolean isAfterLast = cursor.isAfterLast();
+
+        int idColumn = cursor.getColumnIndexOrThrow(BluetoothShare._ID);
+        /*
+         * Walk the cursor and the local array to keep them in sync. The
+         * key to the algorithm is that the ids are unique and sorted
+         * both in the cursor and in the array, so that they can be
+         * processed in order in both sources at the same time: at each
+         * step, both sources point to the lowest id that hasn't been
+         * processed from that source, and the algorithm processes the
+         * lowest id from those two possibilities. At each step: -If the
+         * array contains an entry that's not in the cursor, remove the
+         * entry, move to next entry in the array. -If the array
+         * contains an entry that's in the cursor, nothing to do, move
+         * to next cursor row and next array entry. -If the cursor
+         * contains an entry that's not in the array, insert a new entry
+         * in the array, move to next cursor row and next array entry.
+         */
+        while (!isAfterLast || arrayPos < mShares.size() && mListenStarted) {
+            if (isAfterLast) {
+                // We're beyond the end of the cursor but there's still some
+                // stuff in the local array, which can only be junk
+                if (mShares.size() != 0) {
+                    if (V) {
+                        Log.v(TAG, "Array update: trimming " + mShares.get(arrayPos).mId
+                                + " @ " + arrayPos);
+                    }
+                }
+
+                deleteShare(arrayPos); // this advances in the array
+            } else {
+                int id = cursor.getInt(idColumn);
+
+                if (arrayPos == mShares.size()) {
+                    insertShare(cursor, arrayPos);
+                    if (V) {
+                        Log.v(TAG, "Array update: inserting " + id + " @ " + arrayPos);
+                    }
+                    ++arrayPos;
+                    cursor.moveToNext();
+                    isAfterLast = cursor.isAfterLast();
+                } else {
+                    int arrayId = 0;
+                    if (mShares.size() != 0) {
+                        arrayId = mShares.get(arrayPos).mId;
+                    }
+
+                    if (arrayId < id) {
+                        if (V) {
+                            Log.v(TAG,
+                                    "Array update: removing " + arrayId + " @ " + arrayPos);
+                        }
+                        deleteShare(arrayPos);
+                    } else if (arrayId == id) {
+                        // This cursor row already exists in the stored array.
+                        updateShare(cursor, arrayPos);
+                        scanFileIfNeeded(arrayPos);
+                        ++arrayPos;
+                        cursor.moveToNext();
+                        isAfterLast = cursor.isAfterLast();
+                    } else {
+                        // This cursor entry didn't exist in the stored
+                        // array
+                        if (V) {
+                            Log.v(TAG, "Array update: appending " + id + " @ " + arrayPos);
                         }
+                        insertShare(cursor, arrayPos);
+
+                        ++arrayPos;
+                        cursor.moveToNext();
+                        isAfterLast = cursor.isAfterLast();
                     }
                 }
+            }
+        }
 
-                mNotifier.updateNotification();
+        cursor.close();
+        return true;
+    }
 
-                cursor.close();
+    /** Syncs the local array with the provider rows of the given shares only. */
+    @VisibleForTesting
+    void updateShares(List<Integer> shareIds) {
+        Collections.sort(shareIds);
+        for (int id : shareIds) {
+            Uri uri = ContentUris.withAppendedId(BluetoothShare.CONTENT_URI, id);
+            Cursor cursor = BluetoothMethodProxy.getInstance().contentResolverQuery(
+                    getContentResolver(), uri, null, null, null, null);
+            if (cursor == null) {
+                continue;
             }
+            int arrayPos = findShare(id);
+            if (cursor.moveToFirst()) {
+                if (arrayPos >= 0) {
+                    updateShare(cursor, arrayPos);
+                    scanFileIfNeeded(arrayPos);
+                } else {
+                    if (V) {
+                        Log.v(TAG, "Array update: inserting " + id + " @ " + (-arrayPos - 1));
+                    }
+                    insertShare(cursor, -arrayPos - 1);
+                }
+            } else if (arrayPos >= 0) {
+                if (V) {
+                    Log.v(TAG, "Array update: removing " + id + " @ " + arrayPos);
+                }
+                deleteShare(arrayPos);
+            }
+            cursor.close();
+        }
+    }
 
-            mUpdateThreadRunning = false;
+    /**
+     * Returns the position of the share {@code id} in the local array, which is sorted by ID, or
+     * {@code -(insertion point) - 1} if it is not there.
+     */
+    private int findShare(int id) {
+        int low = 0;
+        int high = mShares.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midId = mShares.get(mid).mId;
+            if (midId < id) {
+                low = mid + 1;
+            } else if (midId > id) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
         }
+        return -(low + 1);
     }
 
     private void insertShare(Cursor cursor, int arrayPos) {
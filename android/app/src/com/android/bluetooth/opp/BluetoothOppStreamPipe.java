@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.opp;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Moves the storage side of a file transfer to a worker thread, so that the file is read ahead of
+ * or written behind the OBEX packets instead of alternating with them.
+ *
+ * <p>A pipe owns a pool of {@link #BUFFER_COUNT} buffers of the OBEX packet size. When sending,
+ * the worker fills them from the file while the session thread sends the previous one; when
+ * receiving, the session thread fills them from the link while the worker writes the previous one
+ * to the file.
+ */
+class BluetoothOppStreamPipe {
+    private static final String TAG = "BtOppStreamPipe";
+    private static final boolean V = Constants.VERBOSE;
+
+    /** Number of buffers in the pool, one in flight on each side. */
+    @VisibleForTesting
+    static final int BUFFER_COUNT = 2;
+
+    /** Time {@link #close} waits for the worker to stop touching the stream. */
+    @VisibleForTesting
+    static final long CLOSE_TIMEOUT_MS = 1000;
+
+    /** Number of finished transfers whose statistics are kept for dumpsys. */
+    private static final int MAX_RECENT_STATS = 10;
+
+    private static final ArrayDeque<String> sRecentStats = new ArrayDeque<>();
+
+    /** A buffer of the pool and the number of valid bytes in it. */
+    static final class Chunk {
+        final byte[] mData;
+        int mLength;
+
+        private Chunk(int size) {
+            mData = new byte[size];
+        }
+    }
+
+    // Marks the end of the data, or an error of the worker
+    private final Chunk mEnd = new Chunk(0);
+
+    private final String mName;
+    private final boolean mSending;
+    private final InputStream mSource;
+    private final OutputStream mSink;
+    private final BlockingQueue<Chunk> mFree = new ArrayBlockingQueue<>(BUFFER_COUNT);
+    private final BlockingQueue<Chunk> mFilled = new ArrayBlockingQueue<>(BUFFER_COUNT + 1);
+    private final Thread mWorker;
+
+    private volatile IOException mError;
+    private long mBytes;
+    private final long mStartMillis = SystemClock.elapsedRealtime();
+    // Time the session thread waited for the storage, and the storage for the session thread
+    private long mSessionWaitMillis;
+    private volatile long mWorkerWaitMillis;
+    private boolean mStatsRecorded;
+
+    private BluetoothOppStreamPipe(String name, InputStream source, OutputStream sink,
+            int bufferSize) {
+        mName = name;
+        mSending = source != null;
+        mSource = source;
+        mSink = sink;
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            mFree.add(new Chunk(bufferSize));
+        }
+        mWorker = new Thread(mSending ? this::readAhead : this::writeBehind,
+                "BtOpp " + (mSending ? "reader" : "writer"));
+    }
+
+    /** Starts reading {@code source} ahead in chunks of {@code bufferSize} bytes. */
+    static BluetoothOppStreamPipe startReading(String name, InputStream source, int bufferSize) {
+        BluetoothOppStreamPipe pipe = new BluetoothOppStreamPipe(name, source, null, bufferSize);
+        pipe.mWorker.start();
+        return pipe;
+    }
+
+    /** Starts writing the chunks submitted by the session thread to {@code sink}. */
+    static BluetoothOppStreamPipe startWriting(String name, OutputStream sink, int bufferSize) {
+        BluetoothOppStreamPipe pipe = new BluetoothOppStreamPipe(name, null, sink, bufferSize);
+        pipe.mWorker.start();
+        return pipe;
+    }
+
+    /**
+     * Returns the next chunk read from the source, which must be given back with {@link
+     * #release}. The chunk is shorter than the buffer only at the end of the source, and empty
+     * after it.
+     */
+    Chunk take() throws IOException {
+        Chunk chunk = await(mFilled);
+        if (chunk == mEnd) {
+            // Let the following calls see the end too
+            mFilled.offer(mEnd);
+            throwIfFailed();
+            return chunk;
+        }
+        mBytes += chunk.mLength;
+        return chunk;
+    }
+
+    /** Gives back a chunk returned by {@link #take} once it has been sent. */
+    void release(Chunk chunk) {
+        if (chunk != mEnd) {
+            mFree.offer(chunk);
+        }
+    }
+
+    /** Returns an empty chunk to fill from the link and {@link #submit}. */
+    Chunk obtain() throws IOException {
+        throwIfFailed();
+        Chunk chunk = await(mFree);
+        chunk.mLength = 0;
+        return chunk;
+    }
+
+    /** Hands a chunk returned by {@link #obtain} over to the worker for writing. */
+    void submit(Chunk chunk) throws IOException {
+        throwIfFailed();
+        mBytes += chunk.mLength;
+        mFilled.offer(chunk);
+    }
+
+    /** Waits until all submitted chunks are written, and reports a failure to write any. */
+    void finish() throws IOException {
+        mFilled.offer(mEnd);
+        try {
+            mWorker.join();
+        } catch (InterruptedException e) {
+            mWorker.interrupt();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing " + mName);
+        }
+        recordStats();
+        throwIfFailed();
+    }
+
+    /**
+     * Stops the worker without waiting for the chunks not transferred yet, so that the caller can
+     * flush and close the stream. Must be called once the transfer is over, unless {@link #finish}
+     * was.
+     */
+    void close() {
+        mWorker.interrupt();
+        // Wait even if the session thread was interrupted, and keep its interrupt status
+        boolean interrupted = Thread.interrupted();
+        try {
+            mWorker.join(CLOSE_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            interrupted = true;
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (mWorker.isAlive()) {
+            Log.w(TAG, "Worker of " + mName + " did not stop in " + CLOSE_TIMEOUT_MS + " ms");
+        }
+        recordStats();
+    }
+
+    @VisibleForTesting
+    long getTransferredBytes() {
+        return mBytes;
+    }
+
+    private Chunk await(BlockingQueue<Chunk> queue) throws IOException {
+        Chunk chunk = queue.poll();
+        if (chunk != null) {
+            return chunk;
+        }
+        long start = SystemClock.elapsedRealtime();
+        try {
+            chunk = queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + mName);
+        }
+        mSessionWaitMillis += SystemClock.elapsedRealtime() - start;
+        return chunk;
+    }
+
+    private void throwIfFailed() throws IOException {
+        IOException error = mError;
+        if (error != null) {
+            throw new IOException("Failed to " + (mSending ? "read " : "write ") + mName, error);
+        }
+    }
+
+    private void readAhead() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        try {
+            while (true) {
+                long start = SystemClock.elapsedRealtime();
+                Chunk chunk = mFree.take();
+                mWorkerWaitMillis += SystemClock.elapsedRealtime() - start;
+                chunk.mLength = BluetoothOppObexClientSession.readFully(mSource, chunk.mData,
+                        chunk.mData.length);
+                if (chunk.mLength == 0) {
+                    break;
+                }
+                mFilled.put(chunk);
+                if (chunk.mLength < chunk.mData.length) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            mError = e;
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while reading " + mName);
+        }
+        mFilled.offer(mEnd);
+    }
+
+    private void writeBehind() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        try {
+            while (true) {
+                long start = SystemClock.elapsedRealtime();
+                Chunk chunk = mFilled.take();
+                mWorkerWaitMillis += SystemClock.elapsedRealtime() - start;
+                if (chunk == mEnd) {
+                    break;
+                }
+                if (mError == null) {
+                    try {
+                        mSink.write(chunk.mData, 0, chunk.mLength);
+                    } catch (IOException e) {
+                        // Keep recycling the chunks, the session thread fails on its next call
+                        mError = e;
+                    }
+                }
+                mFree.put(chunk);
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while writing " + mName);
+        }
+    }
+
+    private void recordStats() {
+        if (mStatsRecorded) {
+            return;
+        }
+        mStatsRecorded = true;
+        long elapsedMillis = Math.max(SystemClock.elapsedRealtime() - mStartMillis, 1);
+        String stats = (mSending ? "sent " : "received ") + mName + ": " + mBytes + " bytes in "
+                + elapsedMillis + " ms (" + (mBytes * 1000 / 1024 / elapsedMillis) + " KB/s), "
+                + "link waited " + mSessionWaitMillis + " ms for storage, storage waited "
+                + mWorkerWaitMillis + " ms for link";
+        if (V) {
+            Log.v(TAG, stats);
+        }
+        synchronized (sRecentStats) {
+            if (sRecentStats.size() == MAX_RECENT_STATS) {
+                sRecentStats.removeFirst();
+            }
+            sRecentStats.addLast(stats);
+        }
+    }
+
+    /** Returns the statistics of the last finished transfers, oldest first. */
+    static List<String> getRecentStats() {
+        synchronized (sRecentStats) {
+            return new ArrayList<>(sRecentStats);
+        }
+    }
+}
@@ -55,6 +55,7 @@ import android.util.Log;
 import com.android.bluetooth.BluetoothMethodProxy;
 import com.android.bluetooth.BluetoothObexTransport;
 import com.android.bluetooth.Utils;
+import com.android.bluetooth.btservice.AdapterService;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.obex.ObexTransport;
 
@@ -851,6 +852,11 @@ public class BluetoothOppTransfer implements BluetoothOppBatch.BluetoothOppBatch
                 mSessionHandler.obtainMessage(TRANSPORT_CONNECTED, transport).sendToTarget();
             } catch (IOException e) {
                 Log.e(TAG, "L2cap socket connect exception", e);
+                // The PSM found by SDP may be stale
+                AdapterService adapterService = AdapterService.getAdapterService();
+                if (adapterService != null) {
+                    adapterService.invalidateSdpRecords(mDevice);
+                }
                 try {
                     mBtSocket.close();
                 } catch (IOException e3) {
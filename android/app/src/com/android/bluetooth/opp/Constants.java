@@ -206,6 +206,13 @@ public class Constants {
     /** Notify NFC of the transfer progress periodically, or it will timeout after 20sec. */
     static final int NFC_ALIVE_CHECK_MS = 10000;
 
+    /**
+     * Minimum interval between two progress updates of a transfer in the provider. Each update
+     * makes the service and the notification sync with the provider, percent steps alone would
+     * write up to 100 times per file however fast it goes.
+     */
+    static final int PROGRESS_UPDATE_INTERVAL_MS = 500;
+
     /**
      * To log debug/verbose in OPP, use the command "setprop log.tag.BluetoothOpp DEBUG" or
      * "setprop log.tag.BluetoothOpp VERBOSE" and then "adb root" + "adb shell "stop; start""
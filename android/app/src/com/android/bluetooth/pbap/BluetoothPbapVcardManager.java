@@ -34,9 +34,11 @@
 package com.android.bluetooth.pbap;
 
 import android.content.ContentResolver;
+import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.CursorWindowAllocationException;
+import android.database.DatabaseUtils;
 import android.database.MatrixCursor;
 import android.net.Uri;
 import android.provider.CallLog;
@@ -46,6 +48,7 @@ import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.PhoneLookup;
+import android.provider.ContactsContract.RawContacts;
 import android.provider.ContactsContract.RawContactsEntity;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
@@ -65,6 +68,11 @@ import com.android.vcard.VCardPhoneNumberTranslationCallback;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class BluetoothPbapVcardManager {
     private static final String TAG = "BluetoothPbapVcardManager";
@@ -369,12 +377,13 @@ public class BluetoothPbapVcardManager {
                 if (idColumn < 0) {
                     idColumn = contactCursor.getColumnIndex(Contacts._ID);
                 }
+                RawContactEntityLoader loader =
+                        new RawContactEntityLoader(mResolver, contactCursor, idColumn);
 
                 int i = 0;
                 contactCursor.moveToFirst();
                 while (!contactCursor.isAfterLast()) {
-                    String vcard = composer.buildVCard(RawContactsEntity.queryRawContactEntity(
-                                mResolver, contactCursor.getLong(idColumn)));
+                    String vcard = buildVCard(composer, loader, contactCursor.getLong(idColumn));
                     if (!contactCursor.moveToNext()) {
                         Log.i(TAG, "Cursor#moveToNext() returned false");
                     }
@@ -702,6 +711,126 @@ public class BluetoothPbapVcardManager {
         }
     }
 
+    /**
+     * Loads the raw contact entities of the contacts of a contact ID cursor in blocks, to build
+     * the vCards without querying the contacts provider once per contact.
+     *
+     * <p>A contact missing from its block is queried again on its own when it is composed, like
+     * every contact was before, so a contact deleted during the operation is skipped just as it
+     * was. A contact deleted after its block was loaded is still sent, with the data of that
+     * block.
+     */
+    @VisibleForTesting
+    static final class RawContactEntityLoader {
+        /* The first block is kept small so the first vCards can be sent early. */
+        @VisibleForTesting
+        static final int FIRST_BLOCK_SIZE = 10;
+        @VisibleForTesting
+        static final int BLOCK_SIZE = 100;
+
+        private final ContentResolver mResolver;
+        private final Cursor mContactIdCursor;
+        private final int mIdColumn;
+
+        private final Set<Long> mLoadedIds = new HashSet<>();
+        private final Map<Long, Map<String, List<ContentValues>>> mContactData = new HashMap<>();
+        private int mBlockSize = FIRST_BLOCK_SIZE;
+
+        RawContactEntityLoader(ContentResolver resolver, Cursor contactIdCursor, int idColumn) {
+            mResolver = resolver;
+            mContactIdCursor = contactIdCursor;
+            mIdColumn = idColumn;
+        }
+
+        /**
+         * Returns the data rows of contact {@code contactId}, which must be at the current
+         * position of the contact ID cursor, keyed by MIME type. Returns null if the contact has
+         * no raw contact, e.g. because it was deleted.
+         */
+        Map<String, List<ContentValues>> getContactData(long contactId) {
+            if (!mLoadedIds.contains(contactId)) {
+                loadBlock();
+            }
+            Map<String, List<ContentValues>> data = mContactData.get(contactId);
+            if (data == null) {
+                query(RawContacts.CONTACT_ID + "=?", new String[] {Long.toString(contactId)});
+                data = mContactData.get(contactId);
+            }
+            return data;
+        }
+
+        /* Loads the contacts from the current position of the contact ID cursor onwards. */
+        private void loadBlock() {
+            mLoadedIds.clear();
+            mContactData.clear();
+
+            int position = mContactIdCursor.getPosition();
+            StringBuilder selection = new StringBuilder(RawContacts.CONTACT_ID).append(" IN (");
+            List<String> selectionArgs = new ArrayList<>();
+            do {
+                long contactId = mContactIdCursor.getLong(mIdColumn);
+                if (Contacts.isEnterpriseContactId(contactId)) {
+                    continue;
+                }
+                if (mLoadedIds.add(contactId)) {
+                    selection.append(selectionArgs.isEmpty() ? "?" : ",?");
+                    selectionArgs.add(Long.toString(contactId));
+                }
+            } while (mLoadedIds.size() < mBlockSize && mContactIdCursor.moveToNext());
+            mContactIdCursor.moveToPosition(position);
+            selection.append(')');
+            mBlockSize = BLOCK_SIZE;
+
+            if (!selectionArgs.isEmpty()) {
+                query(selection.toString(), selectionArgs.toArray(new String[0]));
+            }
+        }
+
+        /* Adds the data rows of the contacts matching the selection to mContactData. */
+        private void query(String selection, String[] selectionArgs) {
+            Cursor cursor = BluetoothMethodProxy.getInstance().contentResolverQuery(mResolver,
+                    RawContactsEntity.CONTENT_URI, null, selection, selectionArgs,
+                    RawContacts.CONTACT_ID + "," + RawContacts._ID);
+            if (cursor == null) {
+                Log.e(TAG, "Failed to query raw contact entities");
+                return;
+            }
+            try {
+                int contactIdColumn = cursor.getColumnIndexOrThrow(RawContacts.CONTACT_ID);
+                int mimeTypeColumn = cursor.getColumnIndex(Data.MIMETYPE);
+                int dataIdColumn = cursor.getColumnIndex(RawContactsEntity.DATA_ID);
+                while (cursor.moveToNext()) {
+                    Map<String, List<ContentValues>> data = mContactData.computeIfAbsent(
+                            cursor.getLong(contactIdColumn), id -> new HashMap<>());
+                    // A raw contact without data has a single row with null data columns
+                    if (mimeTypeColumn < 0 || cursor.isNull(mimeTypeColumn)) {
+                        continue;
+                    }
+                    ContentValues values = new ContentValues();
+                    DatabaseUtils.cursorRowToContentValues(cursor, values);
+                    if (dataIdColumn >= 0) {
+                        values.put(Data._ID, cursor.getLong(dataIdColumn));
+                    }
+                    data.computeIfAbsent(cursor.getString(mimeTypeColumn),
+                            mimeType -> new ArrayList<>()).add(values);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    /* Returns the vCard of a contact, or an empty string if the contact no longer exists. */
+    private String buildVCard(VCardComposer composer, RawContactEntityLoader loader,
+            long contactId) {
+        if (Contacts.isEnterpriseContactId(contactId)) {
+            return composer.buildVCard(
+                    RawContactsEntity.queryRawContactEntity(mResolver, contactId));
+        }
+        Map<String, List<ContentValues>> data = loader.getContactData(contactId);
+        return data == null ? "" : composer.buildVCard(data);
+    }
+
     private int composeContactsAndSendVCards(Operation op, final Cursor contactIdCursor,
             final boolean vcardType21, String ownerVCard, boolean ignorefilter, byte[] filter) {
         long timestamp = 0;
@@ -757,6 +886,8 @@ public class BluetoothPbapVcardManager {
             if (idColumn < 0) {
                 idColumn = contactIdCursor.getColumnIndex(Contacts._ID);
             }
+            RawContactEntityLoader loader =
+                    new RawContactEntityLoader(mResolver, contactIdCursor, idColumn);
 
             while (!contactIdCursor.isAfterLast()) {
                 if (BluetoothPbapObexServer.sIsAborted) {
@@ -764,8 +895,7 @@ public class BluetoothPbapVcardManager {
                     BluetoothPbapObexServer.sIsAborted = false;
                     break;
                 }
-                String vcard = composer.buildVCard(RawContactsEntity.queryRawContactEntity(
-                            mResolver, contactIdCursor.getLong(idColumn)));
+                String vcard = buildVCard(composer, loader, contactIdCursor.getLong(idColumn));
                 if (!contactIdCursor.moveToNext()) {
                     Log.i(TAG, "Cursor#moveToNext() returned false");
                 }
@@ -780,8 +910,7 @@ public class BluetoothPbapVcardManager {
                     Log.v(TAG, "vCard from composer: " + vcard);
                 }
 
-                vcard = vcardfilter.apply(vcard, vcardType21);
-                vcard = stripTelephoneNumber(vcard);
+                vcard = vcardfilter.applyAndStripTelephoneNumber(vcard, vcardType21);
 
                 if (V) {
                     Log.v(TAG, "vCard after cleanup: " + vcard);
@@ -862,6 +991,8 @@ public class BluetoothPbapVcardManager {
             if (idColumn < 0) {
                 idColumn = contactIdCursor.getColumnIndex(Contacts._ID);
             }
+            RawContactEntityLoader loader =
+                    new RawContactEntityLoader(mResolver, contactIdCursor, idColumn);
 
             while (!contactIdCursor.isAfterLast()) {
                 if (BluetoothPbapObexServer.sIsAborted) {
@@ -869,8 +1000,7 @@ public class BluetoothPbapVcardManager {
                     BluetoothPbapObexServer.sIsAborted = false;
                     break;
                 }
-                String vcard = composer.buildVCard(RawContactsEntity.queryRawContactEntity(
-                            mResolver, contactIdCursor.getLong(idColumn)));
+                String vcard = buildVCard(composer, loader, contactIdCursor.getLong(idColumn));
                 if (!contactIdCursor.moveToNext()) {
                     Log.i(TAG, "Cursor#moveToNext() returned false");
                 }
@@ -895,8 +1025,7 @@ public class BluetoothPbapVcardManager {
                 Log.e(TAG, "vcard selector check pass");
 
                 if (needSendBody == NEED_SEND_BODY) {
-                    vcard = vcardfilter.apply(vcard, vcardType21);
-                    vcard = stripTelephoneNumber(vcard);
+                    vcard = vcardfilter.applyAndStripTelephoneNumber(vcard, vcardType21);
 
                     if (V) {
                         Log.v(TAG, "vCard after cleanup: " + vcard);
@@ -1015,37 +1144,13 @@ public class BluetoothPbapVcardManager {
     }
 
     public String stripTelephoneNumber(String vCard) {
-        String separator = System.getProperty("line.separator");
-        String[] attr = vCard.split(separator);
-        String stripedVCard = "";
-        for (int i = 0; i < attr.length; i++) {
-            if (attr[i].startsWith("TEL")) {
-                String[] vTagAndTel = attr[i].split(":", 2);
-                int telLenBefore = vTagAndTel[1].length();
-                // Remove '-', '(', ')' or ' ' from TEL number
-                vTagAndTel[1] = vTagAndTel[1].replace("-", "")
-                                             .replace("(", "")
-                                             .replace(")", "")
-                                             .replace(" ", "");
-                if (vTagAndTel[1].length() < telLenBefore) {
-                    if (V) {
-                        Log.v(TAG, "Fixing vCard TEL to " + vTagAndTel[1]);
-                    }
-                    attr[i] = new StringBuilder().append(vTagAndTel[0]).append(":")
-                                                 .append(vTagAndTel[1]).toString();
-                }
-            }
-        }
-
-        for (int i = 0; i < attr.length; i++) {
-            if (!attr[i].isEmpty()) {
-                stripedVCard = stripedVCard.concat(attr[i] + separator);
-            }
-        }
+        StringBuilder stripedVCard = new StringBuilder(vCard.length());
+        VCardFilter.appendFiltered(stripedVCard, vCard, /*filter=*/ null,
+                /*vCardType21=*/ false, /*stripTelephoneNumber=*/ true);
         if (V) {
             Log.v(TAG, "vCard with stripped telephone no.: " + stripedVCard);
         }
-        return stripedVCard;
+        return stripedVCard.toString();
     }
 
     public static class VCardFilter {
@@ -1079,6 +1184,9 @@ public class BluetoothPbapVcardManager {
 
         private static final String SEPARATOR = System.getProperty("line.separator");
         private final byte[] mFilter;
+        // Properties filtered out of vCard 2.1 and 3.0 entries, decoded once from mFilter
+        private final Set<String> mExcludedV21 = new HashSet<>();
+        private final Set<String> mExcludedV30 = new HashSet<>();
 
         //This function returns true if the attributes needs to be included in the filtered vcard.
         private boolean isFilteredIn(FilterBit bit, boolean vCardType21) {
@@ -1096,8 +1204,26 @@ public class BluetoothPbapVcardManager {
             return ((mFilter[mFilter.length - offset] >> bitPos) & 0x01) != 0;
         }
 
+        private boolean isFilteredIn(String property, boolean vCardType21) {
+            // Since PBAP does not have filter bits for IM and SIP,
+            // exclude them by default. Easiest way is to exclude all
+            // X- fields, except date time....
+            if (property.startsWith("X-")) {
+                return property.equals(FilterBit.DATETIME.prop);
+            }
+            return !(vCardType21 ? mExcludedV21 : mExcludedV30).contains(property);
+        }
+
         VCardFilter(byte[] filter) {
             this.mFilter = filter;
+            for (FilterBit bit : FilterBit.values()) {
+                if (!isFilteredIn(bit, true)) {
+                    mExcludedV21.add(bit.prop);
+                }
+                if (!isFilteredIn(bit, false)) {
+                    mExcludedV30.add(bit.prop);
+                }
+            }
         }
 
         public boolean isPhotoEnabled() {
@@ -1108,42 +1234,75 @@ public class BluetoothPbapVcardManager {
             if (mFilter == null) {
                 return vCard;
             }
-            String[] lines = vCard.split(SEPARATOR);
-            StringBuilder filteredVCard = new StringBuilder();
-            boolean filteredIn = false;
+            StringBuilder filteredVCard = new StringBuilder(vCard.length());
+            appendFiltered(filteredVCard, vCard, this, vCardType21, false);
+            return filteredVCard.toString();
+        }
 
-            for (String line : lines) {
-                // Check whether the current property is changing (ignoring multi-line properties)
-                // and determine if the current property is filtered in.
-                if (!Character.isWhitespace(line.charAt(0)) && !line.startsWith("=")) {
-                    String currentProp = line.split("[;:]")[0];
-                    filteredIn = true;
+        /**
+         * Returns {@code stripTelephoneNumber(apply(vCard, vCardType21))}, computed in a single
+         * pass over {@code vCard}.
+         */
+        String applyAndStripTelephoneNumber(String vCard, boolean vCardType21) {
+            StringBuilder filteredVCard = new StringBuilder(vCard.length());
+            appendFiltered(filteredVCard, vCard, mFilter == null ? null : this, vCardType21,
+                    true);
+            return filteredVCard.toString();
+        }
 
-                    for (FilterBit bit : FilterBit.values()) {
-                        if (bit.prop.equals(currentProp)) {
-                            filteredIn = isFilteredIn(bit, vCardType21);
-                            break;
+        /**
+         * Appends the lines of {@code vCard} filtered in by {@code filter}, if not null, to
+         * {@code out}, walking the text once without splitting it. Empty lines are dropped.
+         *
+         * @param stripTelephoneNumber whether to remove '-', '(', ')' and ' ' from TEL values
+         */
+        static void appendFiltered(StringBuilder out, String vCard, VCardFilter filter,
+                boolean vCardType21, boolean stripTelephoneNumber) {
+            final int length = vCard.length();
+            boolean filteredIn = filter == null;
+            int lineStart = 0;
+            while (lineStart < length) {
+                int lineEnd = vCard.indexOf(SEPARATOR, lineStart);
+                if (lineEnd < 0) {
+                    lineEnd = length;
+                }
+                if (lineEnd > lineStart) {
+                    // Check whether the current property is changing (ignoring multi-line
+                    // properties) and determine if the current property is filtered in.
+                    char first = vCard.charAt(lineStart);
+                    if (filter != null && !Character.isWhitespace(first) && first != '=') {
+                        int nameEnd = lineStart;
+                        while (nameEnd < lineEnd && vCard.charAt(nameEnd) != ';'
+                                && vCard.charAt(nameEnd) != ':') {
+                            nameEnd++;
                         }
+                        filteredIn = filter.isFilteredIn(vCard.substring(lineStart, nameEnd),
+                                vCardType21);
                     }
-
-                    // Since PBAP does not have filter bits for IM and SIP,
-                    // exclude them by default. Easiest way is to exclude all
-                    // X- fields, except date time....
-                    if (currentProp.startsWith("X-")) {
-                        filteredIn = false;
-                        if (currentProp.equals("X-IRMC-CALL-DATETIME")) {
-                            filteredIn = true;
-                        }
+                    if (filteredIn) {
+                        appendLine(out, vCard, lineStart, lineEnd, stripTelephoneNumber
+                                && vCard.startsWith("TEL", lineStart));
                     }
                 }
+                lineStart = lineEnd + SEPARATOR.length();
+            }
+        }
 
-                // Build filtered vCard
-                if (filteredIn) {
-                    filteredVCard.append(line + SEPARATOR);
+        private static void appendLine(StringBuilder out, String vCard, int start, int end,
+                boolean stripTelephoneNumber) {
+            int valueStart = stripTelephoneNumber ? vCard.indexOf(':', start) + 1 : 0;
+            if (valueStart <= 0 || valueStart > end) {
+                out.append(vCard, start, end).append(SEPARATOR);
+                return;
+            }
+            out.append(vCard, start, valueStart);
+            for (int i = valueStart; i < end; i++) {
+                char c = vCard.charAt(i);
+                if (c != '-' && c != '(' && c != ')' && c != ' ') {
+                    out.append(c);
                 }
             }
-
-            return filteredVCard.toString();
+            out.append(SEPARATOR);
         }
     }
 
@@ -1177,10 +1336,15 @@ public class BluetoothPbapVcardManager {
         }
 
         private static final String SEPARATOR = System.getProperty("line.separator");
-        private final byte[] mSelector;
+        // Properties whose bit is set in the selector, decoded once
+        private final Set<String> mSelectedProperties = new HashSet<>();
 
         PropertySelector(byte[] selector) {
-            this.mSelector = selector;
+            for (PropertyMask mask : PropertyMask.values()) {
+                if (checkBit(mask.mBitPosition, selector)) {
+                    mSelectedProperties.add(mask.mProperty);
+                }
+            }
         }
 
         boolean checkVCardSelector(String vCard, String vCardSelectorOperator) {
@@ -1189,45 +1353,57 @@ public class BluetoothPbapVcardManager {
             final boolean checkAtLeastOnePropertyExists = vCardSelectorOperator.equals("0");
             final boolean checkAllPropertiesExist = vCardSelectorOperator.equals("1");
 
-            boolean result = true;
+            if ((!checkAtLeastOnePropertyExists && !checkAllPropertiesExist)
+                    || mSelectedProperties.isEmpty()) {
+                return true;
+            }
 
+            int found = countSelectedProperties(vCard, checkAtLeastOnePropertyExists);
             if (checkAtLeastOnePropertyExists) {
-                for (PropertyMask mask : PropertyMask.values()) {
-                    if (!checkBit(mask.mBitPosition, mSelector)) {
-                        continue;
-                    }
-                    Log.d(TAG, "checking for prop :" + mask.mProperty);
+                return found > 0;
+            }
+            return found == mSelectedProperties.size();
+        }
 
-                    if (doesVCardHaveProperty(vCard, mask.mProperty)) {
-                        Log.d(TAG, "mask.prop.equals current prop :" + mask.mProperty);
-                        return true;
-                    } else {
-                        result = false;
-                    }
+        /*
+         * Counts the distinct selected properties present in vCard, in a single pass over it.
+         * Stops at the first one if stopAtFirst is true.
+         */
+        private int countSelectedProperties(String vCard, boolean stopAtFirst) {
+            Set<String> found = new HashSet<>();
+            final int length = vCard.length();
+            int lineStart = 0;
+            while (lineStart < length) {
+                int lineEnd = vCard.indexOf(SEPARATOR, lineStart);
+                if (lineEnd < 0) {
+                    lineEnd = length;
                 }
-            } else if (checkAllPropertiesExist) {
-                for (PropertyMask mask : PropertyMask.values()) {
-                    if (!checkBit(mask.mBitPosition, mSelector)) {
-                        continue;
-                    }
-                    Log.d(TAG, "checking for prop :" + mask.mProperty);
-
-                    if (!doesVCardHaveProperty(vCard, mask.mProperty)) {
-                        Log.d(TAG, "mask.prop.notequals current prop" + mask.mProperty);
-                        return false;
+                if (lineEnd > lineStart) {
+                    char first = vCard.charAt(lineStart);
+                    if (!Character.isWhitespace(first) && first != '=') {
+                        int nameEnd = lineStart;
+                        while (nameEnd < lineEnd && vCard.charAt(nameEnd) != ';'
+                                && vCard.charAt(nameEnd) != ':') {
+                            nameEnd++;
+                        }
+                        String property = vCard.substring(lineStart, nameEnd);
+                        if (mSelectedProperties.contains(property) && found.add(property)
+                                && (stopAtFirst || found.size() == mSelectedProperties.size())) {
+                            break;
+                        }
                     }
                 }
+                lineStart = lineEnd + SEPARATOR.length();
             }
-
-            return result;
+            return found.size();
         }
 
         private boolean checkBit(int attrBit, byte[] selector) {
             int offset = (attrBit / 8) + 1;
-            if (mSelector == null || offset > mSelector.length) {
+            if (selector == null || offset > selector.length) {
                 return false;
             }
-            return ((selector[mSelector.length - offset] >> (attrBit % 8)) & 0x01) != 0;
+            return ((selector[selector.length - offset] >> (attrBit % 8)) & 0x01) != 0;
         }
     }
 
@@ -1303,17 +1479,4 @@ public class BluetoothPbapVcardManager {
         Log.d(TAG, "returning name: " + name);
         return name;
     }
-
-    private static boolean doesVCardHaveProperty(String vCard, String property) {
-        String[] lines = vCard.split(PropertySelector.SEPARATOR);
-        for (String line : lines) {
-            if (!Character.isWhitespace(line.charAt(0)) && !line.startsWith("=")) {
-                String currentProperty = line.split("[;:]")[0];
-                if (property.equals(currentProperty)) {
-                    return true;
-                }
-            }
-        }
-        return false;
-    }
 }
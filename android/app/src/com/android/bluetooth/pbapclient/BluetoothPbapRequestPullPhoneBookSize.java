@@ -29,6 +29,10 @@ final class BluetoothPbapRequestPullPhoneBookSize extends BluetoothPbapRequest {
 
     private int mSize;
 
+    private byte[] mDatabaseIdentifier;
+
+    private byte[] mPrimaryVersionCounter;
+
     BluetoothPbapRequestPullPhoneBookSize(String pbName, long filter) {
         mHeaderSet.setHeader(HeaderSet.NAME, pbName);
 
@@ -57,9 +61,25 @@ final class BluetoothPbapRequestPullPhoneBookSize extends BluetoothPbapRequest {
         if (oap.exists(OAP_TAGID_PHONEBOOK_SIZE)) {
             mSize = oap.getShort(OAP_TAGID_PHONEBOOK_SIZE);
         }
+        // Only sent by PSEs supporting the database identifier and folder version counters
+        // features. See PBAP v1.2.3, Sec. 5.1.4.
+        mDatabaseIdentifier = oap.getByteArray(OAP_TAGID_DATABASE_IDENTIFIER);
+        mPrimaryVersionCounter = oap.getByteArray(OAP_TAGID_PRIMARY_VERSION_COUNTER);
     }
 
     public int getSize() {
         return mSize;
     }
+
+    /**
+     * Returns the version of the phonebook folder, or null if the PSE did not report its database
+     * identifier and primary version counter.
+     */
+    PbapClientSyncState.FolderVersion getFolderVersion() {
+        if (mDatabaseIdentifier == null || mPrimaryVersionCounter == null) {
+            return null;
+        }
+        return new PbapClientSyncState.FolderVersion(mDatabaseIdentifier, mPrimaryVersionCounter,
+                mSize);
+    }
 }
@@ -26,6 +26,10 @@ import android.os.RemoteException;
 import android.provider.CallLog;
 import android.provider.CallLog.Calls;
 import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.PhoneLookup;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
 import android.util.Log;
 import android.util.Pair;
 
@@ -37,8 +41,11 @@ import com.android.vcard.VCardEntry.PhoneData;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 
 public class CallLogPullRequest extends PullRequest {
     private static final String TAG = "CallLogPullRequest";
@@ -49,6 +56,16 @@ public class CallLogPullRequest extends PullRequest {
     static final String TIMESTAMP_PROPERTY = "X-IRMC-CALL-DATETIME";
     private static final String TIMESTAMP_FORMAT = "yyyyMMdd'T'HHmmss";
 
+    // Each number is bound twice, stay well below the SQLite limit of 999 host parameters
+    @VisibleForTesting
+    static final int MAX_NUMBERS_PER_QUERY = 400;
+    private static final String[] PHONE_PROJECTION =
+            new String[] {Phone.CONTACT_ID, Phone.NUMBER, Phone.NORMALIZED_NUMBER};
+    // The numbers formatted differently in the contacts are then looked up one by one
+    @VisibleForTesting
+    static final int MAX_PHONE_LOOKUPS = 50;
+    private static final String[] PHONE_LOOKUP_PROJECTION = new String[] {PhoneLookup.CONTACT_ID};
+
     private final Account mAccount;
     private Context mContext;
     private HashMap<String, Integer> mCallCounter;
@@ -145,28 +162,126 @@ public class CallLogPullRequest extends PullRequest {
 
     @VisibleForTesting
     void updateTimesContacted() {
-        for (String key : mCallCounter.keySet()) {
-            ContentValues values = new ContentValues();
-            values.put(ContactsContract.RawContacts.TIMES_CONTACTED, mCallCounter.get(key));
-            Uri uri = Uri.withAppendedPath(ContactsContract.PhoneLookup.CONTENT_FILTER_URI,
-                    Uri.encode(key));
+        // Numbers formatted differently in the call log are counted together
+        Map<String, Integer> counts = new HashMap<>();
+        Map<String, String> numbers = new HashMap<>();
+        for (Map.Entry<String, Integer> entry : mCallCounter.entrySet()) {
+            String normalized = PhoneNumberUtils.normalizeNumber(entry.getKey());
+            if (TextUtils.isEmpty(normalized)) {
+                continue;
+            }
+            counts.merge(normalized, entry.getValue(), Integer::sum);
+            numbers.put(entry.getKey(), normalized);
+        }
+
+        Map<String, Long> contactIds = resolveContactIds(numbers);
+        Map<Long, Integer> timesContacted = new HashMap<>();
+        for (Map.Entry<String, Long> entry : contactIds.entrySet()) {
+            timesContacted.merge(entry.getValue(), counts.get(entry.getKey()), Integer::sum);
+        }
+        if (timesContacted.isEmpty()) {
+            return;
+        }
+
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        for (Map.Entry<Long, Integer> entry : timesContacted.entrySet()) {
+            if (VDBG) {
+                Log.d(TAG, "updateTimesContacted: ID " + entry.getKey() + " count "
+                        + entry.getValue());
+            }
+            ops.add(ContentProviderOperation.newUpdate(ContactsContract.RawContacts.CONTENT_URI)
+                    .withSelection(ContactsContract.RawContacts.CONTACT_ID + "=?",
+                            new String[] {String.valueOf(entry.getKey())})
+                    .withValue(ContactsContract.RawContacts.TIMES_CONTACTED, entry.getValue())
+                    .withYieldAllowed(true)
+                    .build());
+        }
+        try {
+            BluetoothMethodProxy.getInstance().contentResolverApplyBatch(
+                    mContext.getContentResolver(), ContactsContract.AUTHORITY, ops);
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.w(TAG, "Failed to update TIMES_CONTACTED", e);
+            return;
+        }
+        if (DBG) {
+            Log.d(TAG, "Updated TIMES_CONTACTED of " + ops.size() + " contacts");
+        }
+    }
+
+    /**
+     * Resolves the contact owning each of the {@code numbers}, which map the numbers as found in
+     * the call log to their normalized form, with one phone query per
+     * {@link #MAX_NUMBERS_PER_QUERY} numbers. The numbers left unresolved are then matched
+     * loosely with {@link PhoneLookup}, up to {@link #MAX_PHONE_LOOKUPS} of them.
+     *
+     * @return the ID of the first contact found, keyed by normalized number
+     */
+    private Map<String, Long> resolveContactIds(Map<String, String> numbers) {
+        Map<String, Long> contactIds = new HashMap<>();
+        List<String> rawNumbers = new ArrayList<>(numbers.keySet());
+        for (int from = 0; from < rawNumbers.size(); from += MAX_NUMBERS_PER_QUERY) {
+            List<String> chunk = rawNumbers.subList(from,
+                    Math.min(from + MAX_NUMBERS_PER_QUERY, rawNumbers.size()));
+            String[] selectionArgs = new String[chunk.size() * 2];
+            for (int i = 0; i < chunk.size(); i++) {
+                selectionArgs[i] = chunk.get(i);
+                selectionArgs[chunk.size() + i] = numbers.get(chunk.get(i));
+            }
+            String placeholders = String.join(",", Collections.nCopies(chunk.size(), "?"));
+            String selection = Phone.NUMBER + " IN (" + placeholders + ") OR "
+                    + Phone.NORMALIZED_NUMBER + " IN (" + placeholders + ")";
+
             try (Cursor c = BluetoothMethodProxy.getInstance().contentResolverQuery(
-                    mContext.getContentResolver(), uri, null, null, null)) {
-                if (c != null && c.getCount() > 0) {
-                    c.moveToNext();
-                    String contactId = c.getString(c.getColumnIndex(
-                            ContactsContract.PhoneLookup.CONTACT_ID));
-                    if (VDBG) {
-                        Log.d(TAG, "onPullComplete: ID " + contactId + " key : " + key);
+                    mContext.getContentResolver(), Phone.CONTENT_URI, PHONE_PROJECTION, selection,
+                    selectionArgs, null)) {
+                if (c == null) {
+                    continue;
+                }
+                int contactIdIndex = c.getColumnIndex(Phone.CONTACT_ID);
+                int numberIndex = c.getColumnIndex(Phone.NUMBER);
+                int normalizedNumberIndex = c.getColumnIndex(Phone.NORMALIZED_NUMBER);
+                while (c.moveToNext()) {
+                    long contactId = c.getLong(contactIdIndex);
+                    String number = c.getString(numberIndex);
+                    if (number != null) {
+                        contactIds.putIfAbsent(PhoneNumberUtils.normalizeNumber(number),
+                                contactId);
+                    }
+                    String normalizedNumber = c.getString(normalizedNumberIndex);
+                    if (normalizedNumber != null) {
+                        contactIds.putIfAbsent(normalizedNumber, contactId);
                     }
-                    String where = ContactsContract.RawContacts.CONTACT_ID + "=" + contactId;
-                    mContext.getContentResolver().update(
-                            ContactsContract.RawContacts.CONTENT_URI, values, where, null);
                 }
             }
         }
-        if (DBG) {
-            Log.d(TAG, "Updated TIMES_CONTACTED");
+        // Drop the numbers of the contacts that were not in the call log
+        contactIds.keySet().retainAll(numbers.values());
+
+        int lookups = 0;
+        for (String normalized : new HashSet<>(numbers.values())) {
+            if (contactIds.containsKey(normalized)) {
+                continue;
+            }
+            if (lookups++ >= MAX_PHONE_LOOKUPS) {
+                Log.w(TAG, "Too many unresolved numbers, skipping the remaining lookups");
+                break;
+            }
+            Long contactId = lookupContactId(normalized);
+            if (contactId != null) {
+                contactIds.put(normalized, contactId);
+            }
+        }
+        return contactIds;
+    }
+
+    private Long lookupContactId(String number) {
+        Uri uri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(number));
+        try (Cursor c = BluetoothMethodProxy.getInstance().contentResolverQuery(
+                mContext.getContentResolver(), uri, PHONE_LOOKUP_PROJECTION, null, null)) {
+            if (c == null || !c.moveToFirst()) {
+                return null;
+            }
+            return c.getLong(c.getColumnIndex(PhoneLookup.CONTACT_ID));
         }
     }
 
@@ -25,13 +25,17 @@ import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.provider.CallLog;
 import android.provider.CallLog.Calls;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.RawContacts;
 import android.util.Log;
 
 import com.android.bluetooth.BluetoothObexTransport;
 import com.android.bluetooth.ObexAppParameters;
 import com.android.bluetooth.R;
+import com.android.bluetooth.btservice.AdapterService;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.obex.ClientSession;
 import com.android.obex.HeaderSet;
@@ -86,6 +90,8 @@ class PbapClientConnectionHandler extends Handler {
     };
 
     private static final int PBAP_FEATURE_DEFAULT_IMAGE_FORMAT = 0x00000200;
+    private static final int PBAP_FEATURE_FOLDER_VERSION_COUNTERS = 0x00000008;
+    private static final int PBAP_FEATURE_DATABASE_IDENTIFIER = 0x00000004;
     private static final int PBAP_FEATURE_BROWSING = 0x00000002;
     private static final int PBAP_FEATURE_DOWNLOADING = 0x00000001;
 
@@ -99,7 +105,8 @@ class PbapClientConnectionHandler extends Handler {
     private static final long PBAP_FILTER_NICKNAME = 1 << 23;
 
     private static final int PBAP_SUPPORTED_FEATURE =
-            PBAP_FEATURE_DEFAULT_IMAGE_FORMAT | PBAP_FEATURE_DOWNLOADING;
+            PBAP_FEATURE_DEFAULT_IMAGE_FORMAT | PBAP_FEATURE_FOLDER_VERSION_COUNTERS
+                    | PBAP_FEATURE_DATABASE_IDENTIFIER | PBAP_FEATURE_DOWNLOADING;
     private static final long PBAP_REQUESTED_FIELDS =
             PBAP_FILTER_VERSION | PBAP_FILTER_FN | PBAP_FILTER_N | PBAP_FILTER_PHOTO
                     | PBAP_FILTER_ADR | PBAP_FILTER_EMAIL | PBAP_FILTER_TEL | PBAP_FILTER_NICKNAME;
@@ -137,6 +144,7 @@ class PbapClientConnectionHandler extends Handler {
     private BluetoothPbapObexAuthenticator mAuth = null;
     private final PbapClientStateMachine mPbapClientStateMachine;
     private boolean mAccountCreated;
+    private final PbapClientSyncState mSyncState;
 
     /**
      * Constructs PCEConnectionHandler object
@@ -152,6 +160,7 @@ class PbapClientConnectionHandler extends Handler {
         mAccountManager = AccountManager.get(mPbapClientStateMachine.getContext());
         mAccount =
                 new Account(mDevice.getAddress(), mContext.getString(R.string.pbap_account_type));
+        mSyncState = new PbapClientSyncState(mContext);
     }
 
     public static class Builder {
@@ -240,27 +249,29 @@ class PbapClientConnectionHandler extends Handler {
                 if (DBG) {
                     Log.d(TAG, "Completing Disconnect");
                 }
-                removeAccount();
+                // A synced phonebook whose version can be checked on the next connection is kept
+                // while the device stays bonded, if enabled
+                if (!shouldKeepAccount()) {
+                    mSyncState.remove(mAccount.name);
+                    removeAccount();
+                }
                 removeCallLog();
 
                 mPbapClientStateMachine.sendMessage(PbapClientStateMachine.MSG_CONNECTION_CLOSED);
                 break;
 
             case MSG_DOWNLOAD:
-                mAccountCreated = addAccount();
-                if (!mAccountCreated) {
-                    Log.e(TAG, "Account creation failed.");
-                    return;
-                }
-                if (isRepositorySupported(SUPPORTED_REPOSITORIES_FAVORITES)) {
-                    downloadContacts(FAV_PATH);
-                }
-                if (isRepositorySupported(SUPPORTED_REPOSITORIES_LOCALPHONEBOOK)) {
-                    downloadContacts(PB_PATH);
-                }
-                if (isRepositorySupported(SUPPORTED_REPOSITORIES_SIMCARD)) {
-                    downloadContacts(SIM_PB_PATH);
+                boolean accountKept = accountExists();
+                if (!accountKept) {
+                    mAccountCreated = addAccount();
+                    if (!mAccountCreated) {
+                        Log.e(TAG, "Account creation failed.");
+                        return;
+                    }
+                } else {
+                    mAccountCreated = true;
                 }
+                downloadPhonebook(accountKept);
 
                 HashMap<String, Integer> callCounter = new HashMap<>();
                 downloadCallLog(MCH_PATH, callCounter);
@@ -311,6 +322,13 @@ class PbapClientConnectionHandler extends Handler {
             }
         } catch (IOException e) {
             Log.e(TAG, "Error while connecting socket", e);
+            if (mPseRec != null) {
+                // The channel or PSM of the record may be stale
+                AdapterService adapterService = AdapterService.getAdapterService();
+                if (adapterService != null) {
+                    adapterService.invalidateSdpRecords(mDevice);
+                }
+            }
         }
         return false;
     }
@@ -385,14 +403,86 @@ class PbapClientConnectionHandler extends Handler {
         }
     }
 
+    /*
+     * Downloads the supported phonebook folders into the account. If the account was kept from a
+     * previous connection, the download is skipped when the PSE reports the same folder versions
+     * as at the end of that sync, and the kept contacts are replaced otherwise.
+     */
     @VisibleForTesting
-    void downloadContacts(String path) {
+    void downloadPhonebook(boolean accountKept) {
+        ArrayList<String> paths = new ArrayList<>();
+        if (isRepositorySupported(SUPPORTED_REPOSITORIES_FAVORITES)) {
+            paths.add(FAV_PATH);
+        }
+        if (isRepositorySupported(SUPPORTED_REPOSITORIES_LOCALPHONEBOOK)) {
+            paths.add(PB_PATH);
+        }
+        if (isRepositorySupported(SUPPORTED_REPOSITORIES_SIMCARD)) {
+            paths.add(SIM_PB_PATH);
+        }
+
+        HashMap<String, PbapClientSyncState.FolderVersion> versions = getFolderVersions(paths);
+        if (accountKept) {
+            if (versions != null && versions.equals(mSyncState.get(mAccount.name))) {
+                Log.i(TAG, "Phonebook unchanged since last sync, skipping download");
+                return;
+            }
+            removeContacts();
+        }
+        mSyncState.remove(mAccount.name);
+
+        boolean complete = true;
+        for (String path : paths) {
+            complete &= downloadContacts(path);
+        }
+        if (complete && versions != null && !Thread.currentThread().isInterrupted()) {
+            mSyncState.put(mAccount.name, versions);
+        }
+    }
+
+    /*
+     * Returns the versions of the given phonebook folders, keyed by path, or null if the PSE does
+     * not report them.
+     */
+    private HashMap<String, PbapClientSyncState.FolderVersion> getFolderVersions(
+            ArrayList<String> paths) {
+        if (paths.isEmpty() || mPseRec == null || mPseRec.getProfileVersion() < PBAP_V1_2) {
+            return null;
+        }
+        int required = PBAP_FEATURE_FOLDER_VERSION_COUNTERS | PBAP_FEATURE_DATABASE_IDENTIFIER;
+        if ((mPseRec.getSupportedFeatures() & required) != required) {
+            return null;
+        }
+        HashMap<String, PbapClientSyncState.FolderVersion> versions = new HashMap<>();
+        try {
+            for (String path : paths) {
+                BluetoothPbapRequestPullPhoneBookSize request =
+                        new BluetoothPbapRequestPullPhoneBookSize(path, PBAP_REQUESTED_FIELDS);
+                request.execute(mObexSession);
+                PbapClientSyncState.FolderVersion version = request.getFolderVersion();
+                if (version == null) {
+                    return null;
+                }
+                versions.put(path, version);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to get phonebook versions", e);
+            return null;
+        }
+        return versions;
+    }
+
+    /* Returns true if all the contacts of the phonebook folder at path were downloaded. */
+    @VisibleForTesting
+    boolean downloadContacts(String path) {
+        boolean complete = false;
+        PhonebookPullPipeline pipeline = null;
         try {
             PhonebookPullRequest processor =
                     new PhonebookPullRequest(mPbapClientStateMachine.getContext(),
                             mAccount);
 
-            // Download contacts in batches of size DEFAULT_BATCH_SIZE
+            // Download contacts in batches, starting with DEFAULT_BATCH_SIZE
             BluetoothPbapRequestPullPhoneBookSize requestPbSize =
                     new BluetoothPbapRequestPullPhoneBookSize(path,
                             PBAP_REQUESTED_FIELDS);
@@ -409,10 +499,15 @@ class PbapClientConnectionHandler extends Handler {
                 numberOfContactsRemaining -= 1;
             }
 
+            // Batches are stored into the contacts provider by the pipeline while the next one is
+            // pulled here.
+            pipeline = new PhonebookPullPipeline(processor, DEFAULT_BATCH_SIZE);
+            pipeline.start();
             while ((numberOfContactsRemaining > 0) && (startOffset <= UPPER_LIMIT)) {
                 int numberOfContactsToDownload =
-                        Math.min(Math.min(DEFAULT_BATCH_SIZE, numberOfContactsRemaining),
+                        Math.min(Math.min(pipeline.getBatchSize(), numberOfContactsRemaining),
                         UPPER_LIMIT - startOffset + 1);
+                long start = SystemClock.elapsedRealtime();
                 BluetoothPbapRequestPullPhoneBook request =
                         new BluetoothPbapRequestPullPhoneBook(path, mAccount,
                                 PBAP_REQUESTED_FIELDS, VCARD_TYPE_30,
@@ -425,19 +520,43 @@ class PbapClientConnectionHandler extends Handler {
                         v.setStarred(true);
                     }
                 }
-                processor.setResults(vcards);
-                processor.onPullComplete();
+                pipeline.submit(vcards, SystemClock.elapsedRealtime() - start);
 
                 startOffset += numberOfContactsToDownload;
                 numberOfContactsRemaining -= numberOfContactsToDownload;
             }
             if ((startOffset > UPPER_LIMIT) && (numberOfContactsRemaining > 0)) {
                 Log.w(TAG, "Download contacts incomplete, index exceeded upper limit.");
+            } else {
+                complete = true;
             }
         } catch (IOException e) {
             Log.e(TAG, "Download contacts failure", e);
         } catch (IllegalArgumentException e) {
             Log.e(TAG, "Download contacts failure: " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Download contacts interrupted");
+            Thread.currentThread().interrupt();
+        } finally {
+            if (pipeline != null) {
+                finishPipeline(pipeline);
+            }
+        }
+        return complete;
+    }
+
+    /* Waits for the pulled contacts to be stored, or drops them if the download was aborted. */
+    private static void finishPipeline(PhonebookPullPipeline pipeline) {
+        if (Thread.currentThread().isInterrupted()) {
+            pipeline.abort();
+            return;
+        }
+        try {
+            pipeline.finish();
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while storing contacts");
+            pipeline.abort();
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -470,6 +589,37 @@ class PbapClientConnectionHandler extends Handler {
         return false;
     }
 
+    private boolean shouldKeepAccount() {
+        return mContext.getResources().getBoolean(R.bool.pbap_client_keep_contacts_on_disconnect)
+                && mDevice.getBondState() == BluetoothDevice.BOND_BONDED
+                && mSyncState.contains(mAccount.name);
+    }
+
+    @VisibleForTesting
+    boolean accountExists() {
+        for (Account account : mAccountManager.getAccountsByType(mAccount.type)) {
+            if (mAccount.equals(account)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* Removes the contacts kept in the account since a previous connection. */
+    @VisibleForTesting
+    void removeContacts() {
+        try {
+            mContext.getContentResolver().delete(
+                    RawContacts.CONTENT_URI.buildUpon()
+                            .appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true")
+                            .build(),
+                    RawContacts.ACCOUNT_NAME + "=? AND " + RawContacts.ACCOUNT_TYPE + "=?",
+                    new String[] {mAccount.name, mAccount.type});
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Contacts could not be deleted", e);
+        }
+    }
+
     @VisibleForTesting
     void removeAccount() {
         if (mAccountManager.removeAccountExplicitly(mAccount)) {
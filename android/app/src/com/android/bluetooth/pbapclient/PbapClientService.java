@@ -154,6 +154,7 @@ public class PbapClientService extends ProfileService {
         filter.setPriority(IntentFilter.SYSTEM_HIGH_PRIORITY);
         // delay initial download until after the user is unlocked to add an account.
         filter.addAction(Intent.ACTION_USER_UNLOCKED);
+        filter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
         try {
             registerReceiver(mPbapBroadcastReceiver, filter);
         } catch (Exception e) {
@@ -257,6 +258,25 @@ public class PbapClientService extends ProfileService {
             // The device ID is the name of the account.
             accountManager.removeAccountExplicitly(acc);
         }
+        new PbapClientSyncState(this).clear();
+    }
+
+    /*
+     * Removes the phonebook kept for an unpaired device. If the device is still connected, only
+     * its sync state is forgotten, so that its account is removed on disconnection.
+     */
+    private void removeKeptAccount(BluetoothDevice device) {
+        PbapClientSyncState syncState = new PbapClientSyncState(this);
+        if (!syncState.contains(device.getAddress())) {
+            return;
+        }
+        Log.i(TAG, "Removing phonebook kept for " + device);
+        syncState.remove(device.getAddress());
+        if (mPbapClientStateMachineMap.containsKey(device)) {
+            return;
+        }
+        AccountManager.get(this).removeAccountExplicitly(
+                new Account(device.getAddress(), getString(R.string.pbap_account_type)));
     }
 
     private void removeHfpCallLog(String accountName, Context context) {
@@ -318,6 +338,13 @@ public class PbapClientService extends ProfileService {
                 for (PbapClientStateMachine stateMachine : mPbapClientStateMachineMap.values()) {
                     stateMachine.tryDownloadIfConnected();
                 }
+            } else if (action.equals(BluetoothDevice.ACTION_BOND_STATE_CHANGED)) {
+                int bondState = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE,
+                        BluetoothDevice.ERROR);
+                BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                if (bondState == BluetoothDevice.BOND_NONE && device != null) {
+                    removeKeptAccount(device);
+                }
             }
         }
     }
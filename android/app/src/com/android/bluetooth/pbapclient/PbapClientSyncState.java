@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.pbapclient;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Remembers, per remote device, the version of the phonebook folders last synced into the contacts
+ * account of the device, as reported by PSEs supporting the PBAP 1.2 database identifier and
+ * folder version counters. A reconnection can then keep the synced contacts instead of pulling an
+ * unchanged phonebook again.
+ */
+class PbapClientSyncState {
+    private static final String TAG = "PbapClientSyncState";
+
+    private static final String PREFERENCES_NAME = "pbap_client_sync_state";
+    private static final String KEY_SEPARATOR = "|";
+    private static final String VALUE_SEPARATOR = ",";
+    private static final int BASE64_FLAGS = Base64.NO_WRAP | Base64.NO_PADDING | Base64.URL_SAFE;
+
+    /** Version of a phonebook folder, as reported in the response to a PullPhoneBook request. */
+    static final class FolderVersion {
+        private final byte[] mDatabaseIdentifier;
+        private final byte[] mPrimaryVersionCounter;
+        private final int mSize;
+
+        FolderVersion(byte[] databaseIdentifier, byte[] primaryVersionCounter, int size) {
+            mDatabaseIdentifier = Objects.requireNonNull(databaseIdentifier);
+            mPrimaryVersionCounter = Objects.requireNonNull(primaryVersionCounter);
+            mSize = size;
+        }
+
+        private String encode() {
+            return Base64.encodeToString(mDatabaseIdentifier, BASE64_FLAGS) + VALUE_SEPARATOR
+                    + Base64.encodeToString(mPrimaryVersionCounter, BASE64_FLAGS)
+                    + VALUE_SEPARATOR + mSize;
+        }
+
+        private static FolderVersion decode(String value) {
+            String[] fields = value.split(VALUE_SEPARATOR);
+            if (fields.length != 3) {
+                return null;
+            }
+            try {
+                return new FolderVersion(Base64.decode(fields[0], BASE64_FLAGS),
+                        Base64.decode(fields[1], BASE64_FLAGS), Integer.parseInt(fields[2]));
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Malformed folder version: " + value);
+                return null;
+            }
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof FolderVersion)) {
+                return false;
+            }
+            FolderVersion other = (FolderVersion) obj;
+            return mSize == other.mSize
+                    && Arrays.equals(mDatabaseIdentifier, other.mDatabaseIdentifier)
+                    && Arrays.equals(mPrimaryVersionCounter, other.mPrimaryVersionCounter);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(Arrays.hashCode(mDatabaseIdentifier),
+                    Arrays.hashCode(mPrimaryVersionCounter), mSize);
+        }
+
+        @Override
+        public String toString() {
+            return encode();
+        }
+    }
+
+    private final SharedPreferences mPreferences;
+
+    PbapClientSyncState(Context context) {
+        mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /** Returns the folder versions last synced for {@code address}, keyed by path. */
+    Map<String, FolderVersion> get(String address) {
+        Map<String, FolderVersion> versions = new HashMap<>();
+        String prefix = address + KEY_SEPARATOR;
+        for (Map.Entry<String, ?> entry : mPreferences.getAll().entrySet()) {
+            if (!entry.getKey().startsWith(prefix) || !(entry.getValue() instanceof String)) {
+                continue;
+            }
+            FolderVersion version = FolderVersion.decode((String) entry.getValue());
+            if (version != null) {
+                versions.put(entry.getKey().substring(prefix.length()), version);
+            }
+        }
+        return versions;
+    }
+
+    /** Returns true if a sync of {@code address} has been recorded. */
+    boolean contains(String address) {
+        return !get(address).isEmpty();
+    }
+
+    /** Records that the folders of {@code address} were synced at {@code versions}. */
+    void put(String address, Map<String, FolderVersion> versions) {
+        SharedPreferences.Editor editor = mPreferences.edit();
+        removeKeys(editor, address);
+        for (Map.Entry<String, FolderVersion> entry : versions.entrySet()) {
+            editor.putString(address + KEY_SEPARATOR + entry.getKey(),
+                    entry.getValue().encode());
+        }
+        editor.apply();
+    }
+
+    /** Forgets the sync of {@code address}. */
+    void remove(String address) {
+        SharedPreferences.Editor editor = mPreferences.edit();
+        removeKeys(editor, address);
+        editor.apply();
+    }
+
+    /** Forgets the sync of all devices. */
+    void clear() {
+        mPreferences.edit().clear().apply();
+    }
+
+    private void removeKeys(SharedPreferences.Editor editor, String address) {
+        String prefix = address + KEY_SEPARATOR;
+        for (String key : mPreferences.getAll().keySet()) {
+            if (key.startsWith(prefix)) {
+                editor.remove(key);
+            }
+        }
+    }
+}
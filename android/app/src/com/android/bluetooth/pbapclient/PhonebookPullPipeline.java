@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.pbapclient;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.vcard.VCardEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Stores pulled phonebook batches into the contacts provider on a worker thread, so the next
+ * batch can be pulled over OBEX while the previous one is being written.
+ *
+ * <p>At most {@link #MAX_PENDING_BATCHES} batches wait for the writer, {@link #submit} blocks
+ * beyond that. The size of the next batch to pull follows the measured pull and write rates: it
+ * grows while pulling is the bottleneck, to amortize the per-request OBEX overhead, and shrinks
+ * while writing is, to bound the memory held by waiting batches.
+ */
+class PhonebookPullPipeline {
+    private static final String TAG = "PhonebookPullPipeline";
+    private static final boolean VDBG = Log.isLoggable(TAG, Log.VERBOSE);
+
+    @VisibleForTesting
+    static final int MIN_BATCH_SIZE = 50;
+    @VisibleForTesting
+    static final int MAX_BATCH_SIZE = 1000;
+    @VisibleForTesting
+    static final int MAX_PENDING_BATCHES = 2;
+    // Time abort() waits for the writer to leave the contacts provider
+    @VisibleForTesting
+    static final long ABORT_TIMEOUT_MS = 1000;
+
+    // Marks the end of the submitted batches
+    private static final List<VCardEntry> END = new ArrayList<>();
+
+    private final PullRequest mProcessor;
+    private final BlockingQueue<List<VCardEntry>> mQueue =
+            new ArrayBlockingQueue<>(MAX_PENDING_BATCHES);
+    private final Thread mWriter;
+
+    // Write time per entry of the last written batch, in microseconds, -1 if none yet
+    private volatile long mWriteMicrosPerEntry = -1;
+    private int mBatchSize;
+    private int mWrittenBatches;
+
+    PhonebookPullPipeline(PullRequest processor, int initialBatchSize) {
+        mProcessor = processor;
+        mBatchSize = initialBatchSize;
+        mWriter = new Thread(this::writeBatches, "PBAP PCE contacts writer");
+    }
+
+    void start() {
+        mWriter.start();
+    }
+
+    /** Returns the number of entries to pull in the next batch. */
+    int getBatchSize() {
+        return mBatchSize;
+    }
+
+    /**
+     * Hands a pulled batch over to the writer, blocking while {@link #MAX_PENDING_BATCHES} are
+     * already waiting.
+     *
+     * @param pullMillis time spent pulling and parsing {@code batch}
+     */
+    void submit(List<VCardEntry> batch, long pullMillis) throws InterruptedException {
+        if (!batch.isEmpty()) {
+            adaptBatchSize(pullMillis * 1000 / batch.size());
+        }
+        mQueue.put(batch);
+    }
+
+    /** Waits until all submitted batches are written and stops the writer. */
+    void finish() throws InterruptedException {
+        mQueue.put(END);
+        mWriter.join();
+    }
+
+    /**
+     * Drops the batches not written yet and stops the writer, waiting for it up to {@link
+     * #ABORT_TIMEOUT_MS}. The interrupt status of the calling thread is kept.
+     */
+    void abort() {
+        mQueue.clear();
+        mWriter.interrupt();
+        boolean interrupted = Thread.interrupted();
+        try {
+            mWriter.join(ABORT_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            interrupted = true;
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (mWriter.isAlive()) {
+            Log.w(TAG, "Writer did not stop in " + ABORT_TIMEOUT_MS + " ms");
+        }
+    }
+
+    @VisibleForTesting
+    int getWrittenBatchCount() {
+        synchronized (this) {
+            return mWrittenBatches;
+        }
+    }
+
+    private void adaptBatchSize(long pullMicrosPerEntry) {
+        long writeMicrosPerEntry = mWriteMicrosPerEntry;
+        if (writeMicrosPerEntry < 0) {
+            return;
+        }
+        mBatchSize = getNextBatchSize(mBatchSize, pullMicrosPerEntry, writeMicrosPerEntry);
+        if (VDBG) {
+            Log.v(TAG, "pull=" + pullMicrosPerEntry + "us, write=" + writeMicrosPerEntry
+                    + "us per entry, next batch size=" + mBatchSize);
+        }
+    }
+
+    @VisibleForTesting
+    static int getNextBatchSize(int batchSize, long pullMicrosPerEntry,
+            long writeMicrosPerEntry) {
+        if (pullMicrosPerEntry >= writeMicrosPerEntry) {
+            return Math.min(batchSize * 2, MAX_BATCH_SIZE);
+        }
+        return Math.max(batchSize / 2, MIN_BATCH_SIZE);
+    }
+
+    private void writeBatches() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                List<VCardEntry> batch = mQueue.take();
+                if (batch == END) {
+                    return;
+                }
+                long start = SystemClock.elapsedRealtime();
+                mProcessor.setResults(batch);
+                try {
+                    mProcessor.onPullComplete();
+                } catch (RuntimeException e) {
+                    // Keep draining the queue, the puller would block on it otherwise
+                    Log.e(TAG, "Failed to write contacts", e);
+                }
+                if (!batch.isEmpty()) {
+                    mWriteMicrosPerEntry =
+                            (SystemClock.elapsedRealtime() - start) * 1000 / batch.size();
+                }
+                synchronized (this) {
+                    mWrittenBatches++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while waiting for contacts to write");
+        }
+    }
+}
@@ -29,6 +29,7 @@ import android.os.Handler;
 import android.os.Message;
 import android.os.ParcelUuid;
 import android.os.Parcelable;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.android.bluetooth.Utils;
@@ -37,6 +38,7 @@ import com.android.bluetooth.btservice.AdapterService;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 public class SdpManager {
     private static final String TAG = SdpManager.class.getSimpleName();
@@ -73,12 +75,17 @@ public class SdpManager {
     private final SdpManagerNativeInterface mNativeInterface =
             SdpManagerNativeInterface.getInstance();
 
+    /* Records of the last complete searches, guarded by TRACKER_LOCK */
+    private final SdpRecordCache mRecordCache = new SdpRecordCache();
+
     /* Inner class used for wrapping sdp search instance data */
     private class SdpSearchInstance {
         private final BluetoothDevice mDevice;
         private final ParcelUuid mUuid;
         private int mStatus = 0;
         private boolean mSearching;
+        private final ArrayList<Parcelable> mRecords = new ArrayList<Parcelable>();
+        private boolean mCacheable = true;
 
         /* TODO: If we change the API to use another mechanism than intents for
          *       delivering the results, this would be the place to keep a list
@@ -122,6 +129,23 @@ public class SdpManager {
         public boolean isSearching() {
             return mSearching;
         }
+
+        /* A failed or timed out search delivers no record, and is not cached. */
+        void addRecord(Parcelable record) {
+            if (record == null) {
+                mCacheable = false;
+            } else {
+                mRecords.add(record);
+            }
+        }
+
+        List<Parcelable> getRecords() {
+            return mRecords;
+        }
+
+        boolean isCacheable() {
+            return mCacheable && !mRecords.isEmpty();
+        }
     }
 
 
@@ -202,6 +226,9 @@ public class SdpManager {
                 sSdpSearchTracker.clear();
             }
         }
+        synchronized (TRACKER_LOCK) {
+            mRecordCache.clear();
+        }
 
         if (sNativeAvailable) {
             mNativeInterface.cleanup();
@@ -403,6 +430,20 @@ public class SdpManager {
         }
     }
 
+    /**
+     * Forgets the records found for {@code device}, so that the next searches are run again. Must
+     * be called when the services of the device may have changed, or its bond did.
+     */
+    public void invalidateRecords(BluetoothDevice device) {
+        synchronized (TRACKER_LOCK) {
+            mRecordCache.remove(device.getAddress());
+            String identityAddress = sAdapterService.getIdentityAddress(device.getAddress());
+            if (identityAddress != null) {
+                mRecordCache.remove(identityAddress);
+            }
+        }
+    }
+
     public void sdpSearch(BluetoothDevice device, ParcelUuid uuid) {
         if (!sNativeAvailable) {
             Log.e(TAG, "Native not initialized!");
@@ -414,6 +455,23 @@ public class SdpManager {
                 return;
             }
 
+            String address = sAdapterService.getIdentityAddress(device.getAddress());
+            List<Parcelable> records =
+                    mRecordCache.get(address, uuid, SystemClock.elapsedRealtime());
+            if (records != null) {
+                /* Answer from the last search, asynchronously as a search would */
+                if (D) {
+                    Log.d(TAG, "sdpSearch: " + records.size() + " cached records for UUID: "
+                            + uuid);
+                }
+                mHandler.post(() -> {
+                    for (Parcelable record : records) {
+                        sendSdpRecord(device, uuid, AbstractionLayer.BT_STATUS_SUCCESS, record);
+                    }
+                });
+                return;
+            }
+
             SdpSearchInstance inst = new SdpSearchInstance(0, device, uuid);
             sSdpSearchTracker.add(inst); // Queue the request
 
@@ -450,31 +508,41 @@ public class SdpManager {
     private void sendSdpIntent(SdpSearchInstance inst, Parcelable record, boolean moreResults) {
 
         inst.stopSearch();
+        inst.addRecord(record);
 
-        sAdapterService.sendSdpSearchRecord(
-                inst.getDevice(), inst.getStatus(), record, inst.getUuid());
+        sendSdpRecord(inst.getDevice(), inst.getUuid(), inst.getStatus(), record);
+
+        if (!moreResults) {
+            if (inst.isCacheable()) {
+                mRecordCache.put(
+                        sAdapterService.getIdentityAddress(inst.getDevice().getAddress()),
+                        inst.getUuid(), inst.getRecords(), SystemClock.elapsedRealtime());
+            }
+            //Remove the outstanding UUID request
+            sSdpSearchTracker.remove(inst);
+            sSearchInProgress = false;
+            startSearch();
+        }
+    }
+
+    private void sendSdpRecord(BluetoothDevice device, ParcelUuid uuid, int status,
+            Parcelable record) {
+        sAdapterService.sendSdpSearchRecord(device, status, record, uuid);
 
         Intent intent = new Intent(BluetoothDevice.ACTION_SDP_RECORD);
 
-        intent.putExtra(BluetoothDevice.EXTRA_DEVICE, inst.getDevice());
-        intent.putExtra(BluetoothDevice.EXTRA_SDP_SEARCH_STATUS, inst.getStatus());
+        intent.putExtra(BluetoothDevice.EXTRA_DEVICE, device);
+        intent.putExtra(BluetoothDevice.EXTRA_SDP_SEARCH_STATUS, status);
         if (record != null) {
             intent.putExtra(BluetoothDevice.EXTRA_SDP_RECORD, record);
         }
-        intent.putExtra(BluetoothDevice.EXTRA_UUID, inst.getUuid());
+        intent.putExtra(BluetoothDevice.EXTRA_UUID, uuid);
         /* TODO:  BLUETOOTH_ADMIN_PERM was private... change to callback interface.
          * Keep in mind that the MAP client needs to use this as well,
          * hence to make it call-backs, the MAP client profile needs to be
          * part of the Bluetooth APK. */
         Utils.sendBroadcast(sAdapterService, intent, BLUETOOTH_CONNECT,
                 Utils.getTempAllowlistBroadcastOptions());
-
-        if (!moreResults) {
-            //Remove the outstanding UUID request
-            sSdpSearchTracker.remove(inst);
-            sSearchInProgress = false;
-            startSearch();
-        }
     }
 
     private final Handler mHandler = new Handler() {
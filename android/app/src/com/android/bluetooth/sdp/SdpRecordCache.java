@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.sdp;
+
+import android.os.ParcelUuid;
+import android.os.Parcelable;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the records found by the last complete SDP search of a remote device for a UUID, so that
+ * a profile connecting again shortly after can be answered without a new search.
+ *
+ * <p>Not thread safe, the caller must hold {@link SdpManager#TRACKER_LOCK}.
+ */
+class SdpRecordCache {
+    /** Time after which cached records are searched again. */
+    @VisibleForTesting
+    static final long ENTRY_TIMEOUT_MS = 30 * 60 * 1000;
+
+    /** Number of device and UUID pairs cached, the least recently used are dropped first. */
+    @VisibleForTesting
+    static final int MAX_ENTRIES = 64;
+
+    private static final String KEY_SEPARATOR = "|";
+
+    private static final class Entry {
+        private final List<Parcelable> mRecords;
+        private final long mTimestampMillis;
+
+        private Entry(List<Parcelable> records, long timestampMillis) {
+            mRecords = Collections.unmodifiableList(new ArrayList<>(records));
+            mTimestampMillis = timestampMillis;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    /**
+     * Returns the records cached for {@code uuid} on the device of identity address
+     * {@code address}, or null if there are none or they are older than {@link
+     * #ENTRY_TIMEOUT_MS}.
+     */
+    List<Parcelable> get(String address, ParcelUuid uuid, long nowMillis) {
+        String key = getKey(address, uuid);
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (nowMillis - entry.mTimestampMillis > ENTRY_TIMEOUT_MS) {
+            mEntries.remove(key);
+            return null;
+        }
+        return entry.mRecords;
+    }
+
+    /** Caches the records found by a complete search of {@code uuid} on {@code address}. */
+    void put(String address, ParcelUuid uuid, List<Parcelable> records, long nowMillis) {
+        mEntries.put(getKey(address, uuid), new Entry(records, nowMillis));
+    }
+
+    /** Forgets the records of all UUIDs of {@code address}. */
+    void remove(String address) {
+        String prefix = address + KEY_SEPARATOR;
+        Iterator<String> keys = mEntries.keySet().iterator();
+        while (keys.hasNext()) {
+            if (keys.next().startsWith(prefix)) {
+                keys.remove();
+            }
+        }
+    }
+
+    /** Forgets the records of all devices. */
+    void clear() {
+        mEntries.clear();
+    }
+
+    @VisibleForTesting
+    int size() {
+        return mEntries.size();
+    }
+
+    private static String getKey(String address, ParcelUuid uuid) {
+        return address + KEY_SEPARATOR + uuid;
+    }
+}
@@ -27,6 +27,7 @@ import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattServerCallback;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
+import android.bluetooth.BluetoothStatusCodes;
 import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
@@ -34,6 +35,7 @@ import android.os.ParcelUuid;
 import android.util.Log;
 
 import com.android.bluetooth.BluetoothEventLogger;
+import com.android.bluetooth.GattNotificationScheduler;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
 import com.android.internal.annotations.GuardedBy;
@@ -48,6 +50,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
 
 public class TbsGatt {
@@ -150,6 +153,11 @@ public class TbsGatt {
     @GuardedBy("mPendingGattOperationsLock")
     private Map<BluetoothDevice, List<GattOpContext>> mPendingGattOperations = new HashMap<>();
     private BluetoothGattServerProxy mBluetoothGattServer;
+    // Every control point result and termination reason is notified, other characteristics only
+    // with their latest value
+    private final GattNotificationScheduler mNotificationScheduler =
+            new GattNotificationScheduler(Looper.getMainLooper(), this::sendNotification,
+                    Set.of(UUID_CALL_CONTROL_POINT, UUID_TERMINATION_REASON));
     private Handler mHandler;
     private Callback mCallback;
     private AdapterService mAdapterService;
@@ -366,6 +374,7 @@ public class TbsGatt {
 
     public void cleanup() {
         mAdapterService.unregisterBluetoothStateCallback(mBluetoothStateChangeCallback);
+        mNotificationScheduler.clear();
 
         if (mBluetoothGattServer == null) {
             return;
@@ -476,19 +485,14 @@ public class TbsGatt {
                 BluetoothGattCharacteristic characteristic, byte[] value) {
             if (getDeviceAuthorization(device) != BluetoothDevice.ACCESS_ALLOWED) return;
             if (value == null) return;
-            if (mBluetoothGattServer != null) {
-                mBluetoothGattServer.notifyCharacteristicChanged(device, characteristic, false,
-                                                                 value);
-            }
+            mNotificationScheduler.notify(device, characteristic, value);
         }
 
         private void notifyCharacteristicChanged(BluetoothDevice device,
                 BluetoothGattCharacteristic characteristic) {
             if (getDeviceAuthorization(device) != BluetoothDevice.ACCESS_ALLOWED) return;
 
-            if (mBluetoothGattServer != null) {
-                mBluetoothGattServer.notifyCharacteristicChanged(device, characteristic, false);
-            }
+            mNotificationScheduler.notify(device, characteristic, null);
         }
 
         public void notifyWithValue(BluetoothDevice device,
@@ -511,6 +515,18 @@ public class TbsGatt {
         }
     }
 
+    private boolean sendNotification(BluetoothDevice device,
+            BluetoothGattCharacteristic characteristic, byte[] value) {
+        if (mBluetoothGattServer == null) {
+            return false;
+        }
+        if (value == null) {
+            return mBluetoothGattServer.notifyCharacteristicChanged(device, characteristic, false);
+        }
+        return mBluetoothGattServer.notifyCharacteristicChanged(device, characteristic, false,
+                value) == BluetoothStatusCodes.SUCCESS;
+    }
+
     /** Wrapper class for BluetoothGattCharacteristic */
     private class GattCharacteristic extends BluetoothGattCharacteristic {
 
@@ -1438,9 +1454,16 @@ public class TbsGatt {
             }
             if (newState == BluetoothProfile.STATE_DISCONNECTED) {
                 clearUnauthorizedGattOperationss(device);
+                mNotificationScheduler.onDeviceDisconnected(device);
             }
         }
 
+        @Override
+        public void onNotificationSent(BluetoothDevice device, int status) {
+            super.onNotificationSent(device, status);
+            mNotificationScheduler.onNotificationSent(device, status);
+        }
+
         @Override
         public void onServiceAdded(int status, BluetoothGattService service) {
             if (DBG) {
@@ -1596,6 +1619,8 @@ public class TbsGatt {
             }
         }
 
+        mNotificationScheduler.dump(sb, "\n\t");
+
         if (mEventLogger != null) {
             sb.append("\n\n");
             mEventLogger.dump(sb);
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.aryEq;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.test.TestLooper;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Test for GattNotificationScheduler.java
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class GattNotificationSchedulerTest {
+    private static final UUID UUID_POSITION =
+            UUID.fromString("00002b99-0000-1000-8000-00805f9b34fb");
+    private static final UUID UUID_CONTROL_POINT =
+            UUID.fromString("00002ba4-0000-1000-8000-00805f9b34fb");
+
+    @Mock private GattNotificationScheduler.Sender mSender;
+
+    private final BluetoothGattCharacteristic mPosition = new BluetoothGattCharacteristic(
+            UUID_POSITION, BluetoothGattCharacteristic.PROPERTY_NOTIFY, 0);
+    private final BluetoothGattCharacteristic mControlPoint = new BluetoothGattCharacteristic(
+            UUID_CONTROL_POINT, BluetoothGattCharacteristic.PROPERTY_NOTIFY, 0);
+    private BluetoothDevice mDevice;
+    private BluetoothDevice mOtherDevice;
+    private TestLooper mTestLooper;
+    private GattNotificationScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        doReturn(true).when(mSender).notifyCharacteristicChanged(any(), any(), any());
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        mDevice = TestUtils.getTestDevice(adapter, 0);
+        mOtherDevice = TestUtils.getTestDevice(adapter, 1);
+        mTestLooper = new TestLooper();
+        mScheduler = new GattNotificationScheduler(mTestLooper.getLooper(), mSender,
+                Set.of(UUID_CONTROL_POINT));
+    }
+
+    @Test
+    public void notify_notCongested_sendsRightAway() {
+        mScheduler.notify(mDevice, mPosition, null);
+        mScheduler.notify(mDevice, mPosition, null);
+
+        verify(mSender, times(2)).notifyCharacteristicChanged(mDevice, mPosition, null);
+        assertThat(mScheduler.getCoalescedCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void notify_congested_keepsLatestValueUntilCongestionIsOver() {
+        mScheduler.onNotificationSent(mDevice, BluetoothGatt.GATT_CONNECTION_CONGESTED);
+
+        for (int position = 1; position <= 3; position++) {
+            mPosition.setValue(position, BluetoothGattCharacteristic.FORMAT_SINT32, 0);
+            mScheduler.notify(mDevice, mPosition, null);
+        }
+        mScheduler.notify(mOtherDevice, mPosition, null);
+
+        verify(mSender, never()).notifyCharacteristicChanged(eq(mDevice), any(), any());
+        verify(mSender).notifyCharacteristicChanged(mOtherDevice, mPosition, null);
+        assertThat(mScheduler.getPendingCount(mDevice)).isEqualTo(1);
+        assertThat(mScheduler.getCoalescedCount()).isEqualTo(2);
+
+        mScheduler.onNotificationSent(mDevice, BluetoothGatt.GATT_SUCCESS);
+
+        verify(mSender).notifyCharacteristicChanged(eq(mDevice), eq(mPosition),
+                aryEq(new byte[] {3, 0, 0, 0}));
+        assertThat(mScheduler.getPendingCount(mDevice)).isEqualTo(0);
+    }
+
+    @Test
+    public void notify_congested_queuesEveryControlPointValue() {
+        mScheduler.onNotificationSent(mDevice, BluetoothGatt.GATT_CONNECTION_CONGESTED);
+
+        mScheduler.notify(mDevice, mControlPoint, new byte[] {0x01, 0x01});
+        mScheduler.notify(mDevice, mControlPoint, new byte[] {0x02, 0x01});
+        mScheduler.onNotificationSent(mDevice, BluetoothGatt.GATT_SUCCESS);
+
+        InOrder order = inOrder(mSender);
+        order.verify(mSender).notifyCharacteristicChanged(eq(mDevice), eq(mControlPoint),
+                aryEq(new byte[] {0x01, 0x01}));
+        order.verify(mSender).notifyCharacteristicChanged(eq(mDevice), eq(mControlPoint),
+                aryEq(new byte[] {0x02, 0x01}));
+        assertThat(mScheduler.getCoalescedCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void notify_congested_probesConnectionAfterDelay() {
+        mScheduler.onNotificationSent(mDevice, BluetoothGatt.GATT_CONNECTION_CONGESTED);
+        mScheduler.notify(mDevice, mControlPoint, new byte[] {0x01, 0x01});
+        mScheduler.notify(mDevice, mControlPoint, new byte[] {0x02, 0x01});
+
+        mTestLooper.moveTimeForward(GattNotificationScheduler.CONGESTION_PROBE_DELAY_MS);
+        mTestLooper.dispatchAll();
+
+        // Only one notification is sent until the stack reports its completion
+        verify(mSender).notifyCharacteristicChanged(eq(mDevice), eq(mControlPoint),
+                aryEq(new byte[] {0x01, 0x01}));
+        verify(mSender, never()).notifyCharacteristicChanged(eq(mDevice), eq(mControlPoint),
+                aryEq(new byte[] {0x02, 0x01}));
+        assertThat(mScheduler.getPendingCount(mDevice)).isEqualTo(1);
+    }
+
+    @Test
+    public void onDeviceDisconnected_dropsPendingNotifications() {
+        mScheduler.onNotificationSent(mDevice, BluetoothGatt.GATT_CONNECTION_CONGESTED);
+        mScheduler.notify(mDevice, mControlPoint, new byte[] {0x01, 0x01});
+
+        mScheduler.onDeviceDisconnected(mDevice);
+        mScheduler.notify(mDevice, mPosition, null);
+
+        verify(mSender).notifyCharacteristicChanged(mDevice, mPosition, null);
+        verify(mSender, never()).notifyCharacteristicChanged(eq(mDevice), eq(mControlPoint),
+                any());
+        assertThat(mScheduler.getPendingCount(mDevice)).isEqualTo(0);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Test for PackedAddress.java
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class PackedAddressTest {
+    private static final String ADDRESS = "00:A1:B2:C3:D4:FF";
+    private static final byte[] ADDRESS_BYTES =
+            new byte[] {0x00, (byte) 0xA1, (byte) 0xB2, (byte) 0xC3, (byte) 0xD4, (byte) 0xFF};
+    private static final long PACKED_ADDRESS = 0x00A1B2C3D4FFL;
+
+    @Test
+    public void fromBytes() {
+        assertThat(PackedAddress.fromBytes(ADDRESS_BYTES)).isEqualTo(PACKED_ADDRESS);
+    }
+
+    @Test
+    public void fromBytes_invalidLength_returnsInvalid() {
+        assertThat(PackedAddress.fromBytes(null)).isEqualTo(PackedAddress.INVALID);
+        assertThat(PackedAddress.fromBytes(new byte[5])).isEqualTo(PackedAddress.INVALID);
+    }
+
+    @Test
+    public void fromString_ignoresCase() {
+        assertThat(PackedAddress.fromString(ADDRESS)).isEqualTo(PACKED_ADDRESS);
+        assertThat(PackedAddress.fromString(ADDRESS.toLowerCase())).isEqualTo(PACKED_ADDRESS);
+    }
+
+    @Test
+    public void fromString_malformed_returnsInvalid() {
+        assertThat(PackedAddress.fromString(null)).isEqualTo(PackedAddress.INVALID);
+        assertThat(PackedAddress.fromString("00:A1:B2:C3:D4")).isEqualTo(PackedAddress.INVALID);
+        assertThat(PackedAddress.fromString("00-A1-B2-C3-D4-FF")).isEqualTo(PackedAddress.INVALID);
+        assertThat(PackedAddress.fromString("00:A1:B2:C3:D4:FG")).isEqualTo(PackedAddress.INVALID);
+        // Fullwidth and Arabic-Indic digits are digits for Character.digit, not for addresses
+        assertThat(PackedAddress.fromString("00:A1:B2:C3:D4:F\uFF11"))
+                .isEqualTo(PackedAddress.INVALID);
+        assertThat(PackedAddress.fromString("00:A1:B2:C3:D4:F\u0661"))
+                .isEqualTo(PackedAddress.INVALID);
+    }
+
+    @Test
+    public void toStringAndBytes_roundTrip() {
+        assertThat(PackedAddress.toString(PACKED_ADDRESS)).isEqualTo(ADDRESS);
+        assertThat(PackedAddress.toBytes(PACKED_ADDRESS)).isEqualTo(ADDRESS_BYTES);
+        assertThat(PackedAddress.toString(0xFFFFFFFFFFFFL)).isEqualTo("FF:FF:FF:FF:FF:FF");
+    }
+
+    @Test
+    public void utils_matchFormatting() {
+        assertThat(Utils.getAddressStringFromByte(ADDRESS_BYTES)).isEqualTo(ADDRESS);
+        assertThat(Utils.getBytesFromAddress(ADDRESS.toLowerCase())).isEqualTo(ADDRESS_BYTES);
+        assertThat(Utils.getBytesFromAddress("00A1B2C3D4FF")).isEqualTo(ADDRESS_BYTES);
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.bluetooth.BluetoothQualityReport;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Test cases for {@link BluetoothQualityReportAggregator}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BluetoothQualityReportAggregatorTest {
+    private static final String ADDRESS = "00:01:02:03:04:05";
+    private static final String OTHER_ADDRESS = "00:01:02:03:04:06";
+    private static final int MONITOR = BluetoothQualityReport.QUALITY_REPORT_ID_MONITOR;
+    private static final int APPROACH_LSTO =
+            BluetoothQualityReport.QUALITY_REPORT_ID_APPROACH_LSTO;
+
+    // Length and offsets of the common part of the raw reports
+    private static final int BQR_COMMON_LEN = 55;
+    private static final int RSSI_OFFSET = 6;
+    private static final int SNR_OFFSET = 7;
+    private static final int RETRANSMISSION_OFFSET = 16;
+    private static final int NO_RX_OFFSET = 20;
+    private static final int NAK_OFFSET = 24;
+
+    private final BluetoothQualityReportAggregator mAggregator =
+            new BluetoothQualityReportAggregator();
+
+    @Test
+    public void shouldForward_noSummaryInterval_forwardsEveryReport() {
+        for (int i = 0; i < 5; i++) {
+            assertThat(forward(ADDRESS, MONITOR, 1000 + i)).isTrue();
+        }
+        assertThat(mAggregator.getLinkSummary(ADDRESS, MONITOR).getForwardedCount())
+                .isEqualTo(5);
+    }
+
+    @Test
+    public void shouldForward_summaryInterval_forwardsOneMonitorReportPerInterval() {
+        mAggregator.setSummaryIntervalMillis(1000);
+
+        assertThat(forward(ADDRESS, MONITOR, 1000)).isTrue();
+        assertThat(forward(ADDRESS, MONITOR, 1500)).isFalse();
+        assertThat(forward(ADDRESS, MONITOR, 1999)).isFalse();
+        // Other devices are rate limited separately
+        assertThat(forward(OTHER_ADDRESS, MONITOR, 1500)).isTrue();
+        assertThat(forward(ADDRESS, MONITOR, 2000)).isTrue();
+
+        assertThat(mAggregator.getLinkSummary(ADDRESS, MONITOR).getForwardedCount())
+                .isEqualTo(2);
+    }
+
+    @Test
+    public void shouldForward_summaryInterval_forwardsEveryEventReport() {
+        mAggregator.setSummaryIntervalMillis(1000);
+
+        for (int i = 0; i < 5; i++) {
+            assertThat(forward(ADDRESS, APPROACH_LSTO, 1000 + i)).isTrue();
+        }
+        assertThat(mAggregator.getLinkSummary(ADDRESS, APPROACH_LSTO).getForwardedCount())
+                .isEqualTo(5);
+    }
+
+    @Test
+    public void shouldForward_reportNotForwarded_doesNotStartInterval() {
+        mAggregator.setSummaryIntervalMillis(1000);
+
+        // The first report could not be built, so it was not counted as forwarded
+        assertThat(mAggregator.shouldForward(ADDRESS, MONITOR, 1000)).isTrue();
+        assertThat(forward(ADDRESS, MONITOR, 1500)).isTrue();
+        assertThat(forward(ADDRESS, MONITOR, 2000)).isFalse();
+
+        assertThat(mAggregator.getLinkSummary(ADDRESS, MONITOR).getForwardedCount())
+                .isEqualTo(1);
+    }
+
+    @Test
+    public void shouldForward_invalidAddress_forwardsReport() {
+        mAggregator.setSummaryIntervalMillis(1000);
+
+        assertThat(forward("invalid", MONITOR, 1000)).isTrue();
+        assertThat(forward("invalid", MONITOR, 1001)).isTrue();
+        assertThat(mAggregator.getLinkSummary("invalid", MONITOR)).isNull();
+    }
+
+    @Test
+    public void addReport_computesWindowStatisticsAndHistograms() {
+        mAggregator.addReport(ADDRESS, buildReport(-85, 12, 0, 2, 40), 1000);
+        mAggregator.addReport(ADDRESS, buildReport(-55, 28, 5, 0, 100), 2000);
+        mAggregator.addReport(ADDRESS, buildReport(-70, 20, 1, 0, 0), 3000);
+
+        BluetoothQualityReportAggregator.LinkSummary summary =
+                mAggregator.getLinkSummary(ADDRESS, MONITOR);
+        assertThat(summary.getReportCount()).isEqualTo(3);
+        assertThat(summary.getLastReportMillis()).isEqualTo(3000);
+        assertThat(summary.getWindowCount()).isEqualTo(3);
+        assertThat(summary.getWindowMin(BluetoothQualityReportAggregator.METRIC_RSSI))
+                .isEqualTo(-85);
+        assertThat(summary.getWindowMax(BluetoothQualityReportAggregator.METRIC_RSSI))
+                .isEqualTo(-55);
+        assertThat(summary.getWindowAverage(BluetoothQualityReportAggregator.METRIC_SNR))
+                .isEqualTo(20.0);
+        assertThat(summary.getWindowMax(BluetoothQualityReportAggregator.METRIC_NAK))
+                .isEqualTo(100);
+
+        // RSSI bounds are -90, -80, -70, -60 and -50
+        assertThat(summary.getHistogram(BluetoothQualityReportAggregator.METRIC_RSSI))
+                .isEqualTo(new long[] {0, 1, 1, 0, 1, 0});
+        // Count bounds are 0, 1, 3, 7, 15, 31 and 63
+        assertThat(summary.getHistogram(BluetoothQualityReportAggregator.METRIC_RETRANSMISSIONS))
+                .isEqualTo(new long[] {1, 1, 0, 1, 0, 0, 0, 0});
+        assertThat(summary.getHistogram(BluetoothQualityReportAggregator.METRIC_NAK))
+                .isEqualTo(new long[] {1, 0, 0, 0, 0, 0, 1, 1});
+    }
+
+    @Test
+    public void addReport_windowKeepsLastReports() {
+        int reportCount = BluetoothQualityReportAggregator.WINDOW_SIZE + 8;
+        for (int i = 0; i < reportCount; i++) {
+            mAggregator.addReport(ADDRESS, buildReport(-100 + i, 0, 0, 0, 0), i);
+        }
+
+        BluetoothQualityReportAggregator.LinkSummary summary =
+                mAggregator.getLinkSummary(ADDRESS, MONITOR);
+        assertThat(summary.getReportCount()).isEqualTo(reportCount);
+        assertThat(summary.getWindowCount())
+                .isEqualTo(BluetoothQualityReportAggregator.WINDOW_SIZE);
+        assertThat(summary.getWindowMin(BluetoothQualityReportAggregator.METRIC_RSSI))
+                .isEqualTo(-92);
+        assertThat(summary.getWindowMax(BluetoothQualityReportAggregator.METRIC_RSSI))
+                .isEqualTo(-100 + reportCount - 1);
+        long total = 0;
+        for (long count : summary.getHistogram(BluetoothQualityReportAggregator.METRIC_RSSI)) {
+            total += count;
+        }
+        assertThat(total).isEqualTo(reportCount);
+    }
+
+    @Test
+    public void addReport_tooManyLinks_dropsLeastRecentlyReported() {
+        for (int i = 0; i <= BluetoothQualityReportAggregator.MAX_LINKS; i++) {
+            mAggregator.addReport(String.format("00:00:00:00:00:%02X", i),
+                    buildReport(-60, 20, 0, 0, 0), i);
+            if (i > 0) {
+                // Keep the first device the most recently reported
+                mAggregator.addReport("00:00:00:00:00:00", buildReport(-60, 20, 0, 0, 0), i);
+            }
+        }
+
+        assertThat(mAggregator.getLinkSummary("00:00:00:00:00:00", MONITOR)).isNotNull();
+        assertThat(mAggregator.getLinkSummary("00:00:00:00:00:01", MONITOR)).isNull();
+        assertThat(mAggregator.getLinkSummary(String.format("00:00:00:00:00:%02X",
+                BluetoothQualityReportAggregator.MAX_LINKS), MONITOR)).isNotNull();
+    }
+
+    @Test
+    public void clear_dropsAllLinks() {
+        mAggregator.addReport(ADDRESS, buildReport(-60, 20, 0, 0, 0), 1000);
+
+        mAggregator.clear();
+
+        assertThat(mAggregator.getLinkSummary(ADDRESS, MONITOR)).isNull();
+    }
+
+    // Checks whether a report is forwarded, and counts it as forwarded if it is
+    private boolean forward(String address, int reportId, long nowMillis) {
+        if (!mAggregator.shouldForward(address, reportId, nowMillis)) {
+            return false;
+        }
+        mAggregator.onForwarded(address, reportId, nowMillis);
+        return true;
+    }
+
+    private static BluetoothQualityReport buildReport(int rssi, int snr, int retransmissions,
+            int noRx, int nak) {
+        ByteBuffer raw = ByteBuffer.allocate(BQR_COMMON_LEN).order(ByteOrder.LITTLE_ENDIAN);
+        raw.put(0, (byte) MONITOR);
+        raw.put(RSSI_OFFSET, (byte) rssi);
+        raw.put(SNR_OFFSET, (byte) snr);
+        raw.putInt(RETRANSMISSION_OFFSET, retransmissions);
+        raw.putInt(NO_RX_OFFSET, noRx);
+        raw.putInt(NAK_OFFSET, nak);
+        return new BluetoothQualityReport.Builder(raw.array()).setRemoteAddress(ADDRESS).build();
+    }
+}
@@ -19,6 +19,8 @@ package com.android.bluetooth.btservice;
 import static com.android.bluetooth.TestUtils.getTestDevice;
 import static com.android.bluetooth.TestUtils.waitForLooperToFinishScheduledTask;
 
+import static com.google.common.truth.Truth.assertThat;
+
 import static org.mockito.Mockito.*;
 
 import android.bluetooth.BluetoothAdapter;
@@ -51,6 +53,8 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -344,6 +348,74 @@ public class PhonePolicyTest {
         verify(mHeadsetService).connect(eq(bondedDevice));
     }
 
+    /**
+     * Test that the time taken by the connections requested on auto connect is reported
+     */
+    @Test
+    public void testAutoConnectRecordsConnectTimes() {
+        when(mAdapterService.getState()).thenReturn(BluetoothAdapter.STATE_ON);
+        when(mAdapterService.isQuietModeEnabled()).thenReturn(false);
+        BluetoothDevice bondedDevice = getTestDevice(mAdapter, 0);
+        when(mDatabaseManager.getMostRecentlyConnectedA2dpDevice()).thenReturn(bondedDevice);
+        when(mAdapterService.getBondState(bondedDevice)).thenReturn(BluetoothDevice.BOND_BONDED);
+        when(mHeadsetService.getConnectionPolicy(bondedDevice)).thenReturn(
+                BluetoothProfile.CONNECTION_POLICY_ALLOWED);
+        when(mA2dpService.getConnectionPolicy(bondedDevice)).thenReturn(
+                BluetoothProfile.CONNECTION_POLICY_ALLOWED);
+        when(mA2dpService.connect(bondedDevice)).thenReturn(true);
+        when(mHeadsetService.connect(bondedDevice)).thenReturn(true);
+
+        mPhonePolicy.onBluetoothStateChange(BluetoothAdapter.STATE_OFF, BluetoothAdapter.STATE_ON);
+
+        verify(mA2dpService).connect(eq(bondedDevice));
+        verify(mHeadsetService).connect(eq(bondedDevice));
+        assertThat(mPhonePolicy.getLastConnectMillis(BluetoothProfile.A2DP)).isEqualTo(-1);
+
+        updateProfileConnectionStateHelper(bondedDevice, BluetoothProfile.A2DP,
+                BluetoothProfile.STATE_CONNECTED, BluetoothProfile.STATE_CONNECTING);
+        updateProfileConnectionStateHelper(bondedDevice, BluetoothProfile.HEADSET,
+                BluetoothProfile.STATE_DISCONNECTED, BluetoothProfile.STATE_CONNECTING);
+
+        assertThat(mPhonePolicy.getLastConnectMillis(BluetoothProfile.A2DP)).isAtLeast(0L);
+        assertThat(mPhonePolicy.getLastConnectMillis(BluetoothProfile.HEADSET)).isEqualTo(-1);
+        StringWriter dump = new StringWriter();
+        mPhonePolicy.dump(new PrintWriter(dump));
+        assertThat(dump.toString()).contains("A2DP connections: 1, failed: 0");
+        assertThat(dump.toString()).contains("HEADSET connections: 0, failed: 1");
+        assertThat(dump.toString()).doesNotContain("Time to audio after last auto connect: none");
+    }
+
+    @Test
+    public void testAutoConnectFailureClearsConnectTimes() {
+        when(mAdapterService.getState()).thenReturn(BluetoothAdapter.STATE_ON);
+        when(mAdapterService.isQuietModeEnabled()).thenReturn(false);
+        BluetoothDevice bondedDevice = getTestDevice(mAdapter, 0);
+        when(mDatabaseManager.getMostRecentlyConnectedA2dpDevice()).thenReturn(bondedDevice);
+        when(mAdapterService.getBondState(bondedDevice)).thenReturn(BluetoothDevice.BOND_BONDED);
+        when(mHeadsetService.getConnectionPolicy(bondedDevice)).thenReturn(
+                BluetoothProfile.CONNECTION_POLICY_ALLOWED);
+        when(mA2dpService.getConnectionPolicy(bondedDevice)).thenReturn(
+                BluetoothProfile.CONNECTION_POLICY_ALLOWED);
+        when(mA2dpService.connect(bondedDevice)).thenReturn(false);
+        when(mHeadsetService.connect(bondedDevice)).thenReturn(false);
+
+        mPhonePolicy.onBluetoothStateChange(BluetoothAdapter.STATE_OFF, BluetoothAdapter.STATE_ON);
+
+        StringWriter dump = new StringWriter();
+        mPhonePolicy.dump(new PrintWriter(dump));
+        assertThat(dump.toString()).contains("A2DP connections: 0, failed: 1");
+        assertThat(dump.toString()).contains("HEADSET connections: 0, failed: 1");
+        assertThat(dump.toString()).contains("Time to audio after last auto connect: none\n");
+        assertThat(dump.toString()).contains("Pending connections: 0 devices");
+
+        // A later connection is not timed from the failed auto connect
+        updateProfileConnectionStateHelper(bondedDevice, BluetoothProfile.A2DP,
+                BluetoothProfile.STATE_CONNECTED, BluetoothProfile.STATE_CONNECTING);
+        dump = new StringWriter();
+        mPhonePolicy.dump(new PrintWriter(dump));
+        assertThat(dump.toString()).contains("Time to audio after last auto connect: none");
+    }
+
     /**
      * Test that when an active device is disconnected, we will not auto connect it
      */
@@ -18,6 +18,7 @@ package com.android.bluetooth.btservice.bluetoothkeystore;
 
 import android.os.Binder;
 import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.junit.After;
@@ -58,6 +59,8 @@ public final class BluetoothKeystoreServiceTest {
     private static final String CONFIG_CHECKSUM_ENCRYPTION_PATH =
             "/data/misc/bluedroid/bt_config.checksum.encrypted";
 
+    private static final int SYNTHETIC_KEY_COUNT = 500;
+
     // bt_config file test content.
     private final List<String> mConfigTestData = List.of("[Info]",
             "FileSource = Empty",
@@ -314,4 +317,59 @@ public final class BluetoothKeystoreServiceTest {
 
         Assert.assertTrue(mBluetoothKeystoreService.getCompareResult() == 0);
     }
+
+    @Test
+    public void testSaveEncryptedKeyAppendsChangedKeys() throws IOException {
+        testEncrypt();
+        mBluetoothKeystoreService.saveEncryptedKey();
+        Assert.assertEquals(mNameDecryptKeyResult.size(),
+                Files.readAllLines(Paths.get(CONFIG_FILE_ENCRYPTION_PATH)).size());
+
+        // Change a key, remove another and set a third one again unchanged.
+        String linkKey = "aa:bb:cc:dd:ee:ff-LinkKey";
+        String pidKey = "aa:bb:cc:dd:ee:ff-LE_KEY_PID";
+        String pencKey = "aa:bb:cc:dd:ee:ff-LE_KEY_PENC";
+        Assert.assertTrue(setEncryptKeyOrRemoveKey(linkKey, "ffeeddccbbaa99887766554433221100"));
+        Assert.assertTrue(setEncryptKeyOrRemoveKey(pidKey, ""));
+        Assert.assertTrue(setEncryptKeyOrRemoveKey(pencKey, mNameDecryptKeyResult.get(pencKey)));
+        mBluetoothKeystoreService.saveEncryptedKey();
+
+        // Only the changed and removed keys are appended.
+        Assert.assertEquals(mNameDecryptKeyResult.size() + 2,
+                Files.readAllLines(Paths.get(CONFIG_FILE_ENCRYPTION_PATH)).size());
+
+        mBluetoothKeystoreService.cleanupMemory();
+        Assert.assertTrue(loadEncryptionFile(CONFIG_FILE_ENCRYPTION_PATH, true));
+        mBluetoothKeystoreService.stopThread();
+
+        Map<String, String> expected = new HashMap<>(mNameDecryptKeyResult);
+        expected.put(linkKey, "ffeeddccbbaa99887766554433221100");
+        expected.remove(pidKey);
+        Assert.assertTrue(doCompareMap(expected, mBluetoothKeystoreService.getNameDecryptKey()));
+    }
+
+    @Test
+    public void testLoadConfigDataWithManySyntheticKeys() {
+        List<String> configData = new ArrayList<>(mConfigTestData);
+        for (int i = 0; i < SYNTHETIC_KEY_COUNT; i++) {
+            configData.add("");
+            configData.add(String.format("[00:11:22:33:%02x:%02x]", i / 256, i % 256));
+            configData.add(String.format("LinkKey = %032x", i));
+        }
+        overwriteConfigFile(configData);
+        Assert.assertTrue(parseConfigFile(CONFIG_FILE_PATH));
+        // Saves the encrypted keys and the config checksum.
+        Assert.assertTrue(setEncryptKeyOrRemoveKey(CONFIG_FILE_PREFIX, CONFIG_FILE_HASH));
+        Map<String, String> expected = new HashMap<>(mBluetoothKeystoreService.getNameDecryptKey());
+        mBluetoothKeystoreService.cleanupMemory();
+
+        long start = SystemClock.elapsedRealtime();
+        mBluetoothKeystoreService.loadConfigData();
+        // Wait for decryption to complete
+        mBluetoothKeystoreService.stopThread();
+        Log.i(TAG, "Loaded " + SYNTHETIC_KEY_COUNT + " synthetic keys in "
+                + (SystemClock.elapsedRealtime() - start) + " ms");
+
+        Assert.assertTrue(doCompareMap(expected, mBluetoothKeystoreService.getNameDecryptKey()));
+    }
 }
@@ -119,6 +119,8 @@ public final class DatabaseManagerTest {
         mFakeFlagsImpl = new FakeFeatureFlagsImpl();
 
         mDatabaseManager = new DatabaseManager(mAdapterService, mFakeFlagsImpl);
+        // Write updates as soon as the handler thread is idle so tests can wait on the looper
+        mDatabaseManager.setUpdateDatabaseDelayMs(0);
 
         BluetoothDevice[] bondedDevices = {mTestDevice};
         doReturn(bondedDevices).when(mAdapterService).getBondedDevices();
@@ -1461,6 +1463,132 @@ public final class DatabaseManagerTest {
                 CoreMatchers.is(data));
     }
 
+    @Test
+    public void testUpdateDatabase_burstOfUpdates_writtenInOneTransaction() {
+        int numDevices = 100;
+        List<BluetoothDevice> devices = new ArrayList<>();
+        for (int i = 0; i < numDevices; i++) {
+            devices.add(BluetoothAdapter.getDefaultAdapter().getRemoteDevice(
+                    String.format("00:01:02:03:04:%02X", i)));
+        }
+        long transactions = mDatabaseManager.getUpdateTransactionCount();
+        long written = mDatabaseManager.getWrittenUpdateCount();
+        long coalesced = mDatabaseManager.getCoalescedUpdateCount();
+
+        // Update from the handler thread so that no write can happen during the burst
+        TestUtils.runOnLooperSync(mDatabaseManager.getHandlerLooper(), () -> {
+            for (BluetoothDevice device : devices) {
+                mDatabaseManager.setProfileConnectionPolicy(device, BluetoothProfile.HEADSET,
+                        BluetoothProfile.CONNECTION_POLICY_ALLOWED);
+                mDatabaseManager.setProfileConnectionPolicy(device, BluetoothProfile.A2DP,
+                        BluetoothProfile.CONNECTION_POLICY_ALLOWED);
+            }
+        });
+        TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
+
+        Assert.assertEquals(transactions + 1, mDatabaseManager.getUpdateTransactionCount());
+        Assert.assertEquals(written + numDevices, mDatabaseManager.getWrittenUpdateCount());
+        Assert.assertTrue(mDatabaseManager.getCoalescedUpdateCount() >= coalesced + numDevices);
+
+        List<Metadata> list = mDatabase.load();
+        Assert.assertEquals(numDevices, list.size());
+        for (Metadata metadata : list) {
+            Assert.assertEquals(BluetoothProfile.CONNECTION_POLICY_ALLOWED,
+                    metadata.getProfileConnectionPolicy(BluetoothProfile.HEADSET));
+            Assert.assertEquals(BluetoothProfile.CONNECTION_POLICY_ALLOWED,
+                    metadata.getProfileConnectionPolicy(BluetoothProfile.A2DP));
+        }
+    }
+
+    @Test
+    public void testUpdateDatabase_deleteDropsPendingUpdate() {
+        mDatabaseManager.setUpdateDatabaseDelayMs(TimeUnit.MINUTES.toMillis(1));
+
+        mDatabaseManager.setProfileConnectionPolicy(mTestDevice, BluetoothProfile.HEADSET,
+                BluetoothProfile.CONNECTION_POLICY_ALLOWED);
+        Metadata data = mDatabaseManager.mMetadataCache.remove(TEST_BT_ADDR);
+        mDatabaseManager.deleteDatabase(data);
+        TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
+
+        // A pending write must not bring the deleted device back when it is finally flushed
+        restartDatabaseManagerHelper();
+        Assert.assertEquals(0, mDatabase.load().size());
+    }
+
+    @Test
+    public void testGetMostRecentlyConnectedDevices_manyDevices() {
+        mFakeFlagsImpl.setFlag(Flags.FLAG_AUTO_CONNECT_ON_MULTIPLE_HFP_WHEN_NO_A2DP_DEVICE, false);
+        int numDevices = 200;
+        List<BluetoothDevice> devices = new ArrayList<>();
+        for (int i = 0; i < numDevices; i++) {
+            BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(
+                    String.format("00:01:02:03:%02X:%02X", i / 256, i % 256));
+            devices.add(device);
+            mDatabaseManager.setConnection(device, BluetoothProfile.A2DP);
+        }
+        BluetoothDevice oldest = devices.get(0);
+        BluetoothDevice newest = devices.get(numDevices - 1);
+
+        List<BluetoothDevice> ordered = mDatabaseManager.getMostRecentlyConnectedDevices();
+        Assert.assertEquals(numDevices, ordered.size());
+        for (int i = 0; i < numDevices; i++) {
+            Assert.assertEquals(devices.get(numDevices - 1 - i), ordered.get(i));
+        }
+        Assert.assertEquals(newest, mDatabaseManager.getMostRecentlyConnectedA2dpDevice());
+        Assert.assertEquals(newest,
+                mDatabaseManager.getMostRecentlyConnectedDevicesInList(devices));
+
+        // Reconnecting the oldest device makes it the most recent one
+        mDatabaseManager.setConnection(oldest, BluetoothProfile.HEADSET);
+        Assert.assertEquals(oldest, mDatabaseManager.getMostRecentlyConnectedDevices().get(0));
+        Assert.assertEquals(oldest, mDatabaseManager.getMostRecentlyActiveHfpDevice());
+        Assert.assertEquals(newest, mDatabaseManager.getMostRecentlyConnectedA2dpDevice());
+        Assert.assertEquals(oldest,
+                mDatabaseManager.getMostRecentlyConnectedDevicesInList(List.of(newest, oldest)));
+
+        // Unbonding removes the device from the order
+        mDatabaseManager.bondStateChanged(oldest, BluetoothDevice.BOND_NONE);
+        ordered = mDatabaseManager.getMostRecentlyConnectedDevices();
+        Assert.assertEquals(numDevices - 1, ordered.size());
+        Assert.assertEquals(newest, ordered.get(0));
+        Assert.assertNull(mDatabaseManager.getMostRecentlyActiveHfpDevice());
+        Assert.assertNull(mDatabaseManager.getMostRecentlyConnectedDevicesInList(
+                List.of(oldest)));
+    }
+
+    @Test
+    public void testGetMostRecentlyConnectedDevices_cacheChangedDirectly() {
+        Metadata older = new Metadata(TEST_BT_ADDR);
+        Metadata newer = new Metadata(TEST_BT_ADDR2);
+        newer.is_active_a2dp_device = true;
+        mDatabaseManager.mMetadataCache.put(TEST_BT_ADDR2, newer);
+        mDatabaseManager.mMetadataCache.put(TEST_BT_ADDR, older);
+
+        List<BluetoothDevice> ordered = mDatabaseManager.getMostRecentlyConnectedDevices();
+
+        Assert.assertEquals(2, ordered.size());
+        Assert.assertEquals(mTestDevice2, ordered.get(0));
+        Assert.assertEquals(mTestDevice, ordered.get(1));
+        Assert.assertEquals(mTestDevice2, mDatabaseManager.getMostRecentlyConnectedA2dpDevice());
+    }
+
+    @Test
+    public void testCleanup_writesPendingUpdates() {
+        mDatabaseManager.setUpdateDatabaseDelayMs(TimeUnit.MINUTES.toMillis(1));
+
+        mDatabaseManager.setProfileConnectionPolicy(mTestDevice, BluetoothProfile.HEADSET,
+                BluetoothProfile.CONNECTION_POLICY_ALLOWED);
+        TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
+        Assert.assertEquals(0, mDatabase.load().size());
+
+        mDatabaseManager.cleanup();
+
+        List<Metadata> list = mDatabase.load();
+        Assert.assertEquals(1, list.size());
+        Assert.assertEquals(BluetoothProfile.CONNECTION_POLICY_ALLOWED,
+                list.get(0).getProfileConnectionPolicy(BluetoothProfile.HEADSET));
+    }
+
     void restartDatabaseManagerHelper() {
         Metadata data = new Metadata(LOCAL_STORAGE);
         data.migrated = true;
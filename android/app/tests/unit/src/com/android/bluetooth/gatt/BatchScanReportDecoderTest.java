@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.ScanResult;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test cases for {@link BatchScanReportDecoder}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BatchScanReportDecoderTest {
+    private static final String TAG = "BatchScanReportDecoderTest";
+
+    private static final long NOW_NANOS = TimeUnit.SECONDS.toNanos(1000);
+    private static final int BENCHMARK_RECORD_COUNT = 5000;
+    private static final int BENCHMARK_DEVICE_COUNT = 500;
+
+    private final BluetoothAdapter mAdapter = BluetoothAdapter.getDefaultAdapter();
+
+    @Test
+    public void decode_fullReport_combinesAdvertisingAndScanResponse() {
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        writeFullRecord(report, 0x010203040506L, -60, 2,
+                new byte[] {0x02, 0x01, 0x06}, new byte[] {0x03, 0x09, 'B', 'T'});
+
+        List<ScanResult> results = BatchScanReportDecoder.decode(mAdapter,
+                ScanManager.SCAN_RESULT_TYPE_FULL, 1, report.toByteArray(), NOW_NANOS);
+
+        assertThat(results).hasSize(1);
+        ScanResult result = results.get(0);
+        assertThat(result.getDevice().getAddress()).isEqualTo("01:02:03:04:05:06");
+        assertThat(result.getRssi()).isEqualTo(-60);
+        assertThat(result.getTimestampNanos())
+                .isEqualTo(NOW_NANOS - TimeUnit.MILLISECONDS.toNanos(100));
+        assertThat(result.getScanRecord().getBytes())
+                .isEqualTo(new byte[] {0x02, 0x01, 0x06, 0x03, 0x09, 'B', 'T'});
+        assertThat(result.getScanRecord().getDeviceName()).isEqualTo("BT");
+    }
+
+    @Test
+    public void decode_repeatedAdvertisement_keepsMostRecentRecord() {
+        byte[] advData = new byte[] {0x02, 0x01, 0x06};
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        writeFullRecord(report, 0x010203040506L, -70, 10, advData, new byte[0]);
+        writeFullRecord(report, 0x0A0B0C0D0E0FL, -50, 9, advData, new byte[0]);
+        writeFullRecord(report, 0x010203040506L, -40, 4, advData, new byte[0]);
+        writeFullRecord(report, 0x010203040506L, -80, 8, new byte[] {0x02, 0x01, 0x04},
+                new byte[0]);
+
+        List<ScanResult> results = BatchScanReportDecoder.decode(mAdapter,
+                ScanManager.SCAN_RESULT_TYPE_FULL, 4, report.toByteArray(), NOW_NANOS);
+
+        assertThat(results).hasSize(3);
+        assertThat(results.get(0).getDevice().getAddress()).isEqualTo("01:02:03:04:05:06");
+        assertThat(results.get(0).getRssi()).isEqualTo(-40);
+        assertThat(results.get(1).getDevice().getAddress()).isEqualTo("0A:0B:0C:0D:0E:0F");
+        assertThat(results.get(2).getRssi()).isEqualTo(-80);
+        assertThat(results.get(2).getDevice()).isSameInstanceAs(results.get(0).getDevice());
+    }
+
+    @Test
+    public void decode_truncatedReport() {
+        byte[] report = new byte[] {
+                0x06, 0x05, 0x04, 0x03, 0x02, 0x01, 0x00, 0x00, (byte) -55, 0x02, 0x00,
+                0x0F, 0x0E, 0x0D, 0x0C, 0x0B, 0x0A, 0x00, 0x00, (byte) -65, 0x01, 0x00};
+
+        List<ScanResult> results = BatchScanReportDecoder.decode(mAdapter,
+                ScanManager.SCAN_RESULT_TYPE_TRUNCATED, 2, report, NOW_NANOS);
+
+        assertThat(results).hasSize(2);
+        assertThat(results.get(0).getDevice().getAddress()).isEqualTo("01:02:03:04:05:06");
+        assertThat(results.get(0).getRssi()).isEqualTo(-55);
+        assertThat(results.get(1).getDevice().getAddress()).isEqualTo("0A:0B:0C:0D:0E:0F");
+        assertThat(results.get(1).getScanRecord().getBytes()).isEmpty();
+    }
+
+    @Test
+    public void decode_malformedReport_keepsCompleteRecords() {
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        writeFullRecord(report, 0x010203040506L, -60, 0, new byte[] {0x02, 0x01, 0x06},
+                new byte[0]);
+        byte[] data = report.toByteArray();
+        byte[] truncated = new byte[data.length + 13];
+        System.arraycopy(data, 0, truncated, 0, data.length);
+        // The advertising data length of the second record exceeds the report
+        truncated[data.length + 11] = 0x7F;
+
+        assertThat(BatchScanReportDecoder.decode(mAdapter, ScanManager.SCAN_RESULT_TYPE_FULL, 2,
+                truncated, NOW_NANOS)).hasSize(1);
+        assertThat(BatchScanReportDecoder.decode(mAdapter,
+                ScanManager.SCAN_RESULT_TYPE_TRUNCATED, 3, new byte[12], NOW_NANOS)).hasSize(1);
+    }
+
+    @Test
+    public void decode_largeFullReport() {
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        for (int i = 0; i < BENCHMARK_RECORD_COUNT; i++) {
+            int device = i % BENCHMARK_DEVICE_COUNT;
+            // Flags and manufacturer data carrying the device number
+            byte[] advData = new byte[] {0x02, 0x01, 0x06, 0x05, (byte) 0xFF, 0x4C, 0x00,
+                    (byte) (device >> 8), (byte) device};
+            writeFullRecord(report, 0xC00000000000L | device, -50 - (i % 40),
+                    BENCHMARK_RECORD_COUNT - i, advData, new byte[0]);
+        }
+        byte[] data = report.toByteArray();
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        List<ScanResult> results = BatchScanReportDecoder.decode(mAdapter,
+                ScanManager.SCAN_RESULT_TYPE_FULL, BENCHMARK_RECORD_COUNT, data, NOW_NANOS);
+        long elapsedMicros =
+                TimeUnit.NANOSECONDS.toMicros(SystemClock.elapsedRealtimeNanos() - start);
+        Log.i(TAG, "Decoded " + BENCHMARK_RECORD_COUNT + " records in " + elapsedMicros + " us");
+
+        assertThat(results).hasSize(BENCHMARK_DEVICE_COUNT);
+        // The last record of each device is the most recent one
+        int lastRound = BENCHMARK_RECORD_COUNT - BENCHMARK_DEVICE_COUNT;
+        assertThat(results.get(0).getRssi()).isEqualTo(-50 - (lastRound % 40));
+    }
+
+    private static void writeFullRecord(ByteArrayOutputStream out, long address, int rssi,
+            int timestampUnits, byte[] advData, byte[] scanResponse) {
+        // The address is reported least significant octet first
+        for (int i = 0; i < 6; i++) {
+            out.write((int) (address >>> (8 * i)));
+        }
+        out.write(0); // address type
+        out.write(0); // tx power
+        out.write(rssi);
+        out.write(timestampUnits);
+        out.write(timestampUnits >> 8);
+        out.write(advData.length);
+        out.write(advData, 0, advData.length);
+        out.write(scanResponse.length);
+        out.write(scanResponse, 0, scanResponse.length);
+    }
+}
@@ -45,6 +45,8 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.Spy;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 /**
@@ -102,6 +104,90 @@ public class ContextMapTest {
         assertThat(contextMapByName.name).isEqualTo(APP_NAME);
     }
 
+    @Test
+    public void getByMethods_manyAppsAndConnections() {
+        ContextMap<Void, Void> contextMap = new ContextMap<>();
+        int numApps = 32;
+        int connectionsPerApp = 2;
+
+        List<UUID> uuids = new ArrayList<>();
+        for (int i = 0; i < numApps; i++) {
+            UUID uuid = UUID.randomUUID();
+            uuids.add(uuid);
+            // IDs are assigned after registration, as GattService does.
+            contextMap.add(uuid, null, null, null, mMockGatt).id = i + 1;
+        }
+        for (int i = 0; i < numApps; i++) {
+            for (int j = 0; j < connectionsPerApp; j++) {
+                int connId = i * connectionsPerApp + j + 1;
+                contextMap.addConnection(i + 1, connId, addressOf(connId));
+            }
+        }
+
+        for (int i = 0; i < numApps; i++) {
+            ContextMap.App app = contextMap.getById(i + 1);
+            assertThat(app).isNotNull();
+            assertThat(contextMap.getByUuid(uuids.get(i))).isSameInstanceAs(app);
+            assertThat(contextMap.getConnectionByApp(i + 1)).hasSize(connectionsPerApp);
+            for (int j = 0; j < connectionsPerApp; j++) {
+                int connId = i * connectionsPerApp + j + 1;
+                assertThat(contextMap.getByConnId(connId)).isSameInstanceAs(app);
+                assertThat(contextMap.addressByConnId(connId)).isEqualTo(addressOf(connId));
+                assertThat(contextMap.connIdByAddress(i + 1, addressOf(connId).toLowerCase()))
+                        .isEqualTo(connId);
+            }
+        }
+        assertThat(contextMap.getConnectedDevices()).hasSize(numApps * connectionsPerApp);
+    }
+
+    @Test
+    public void getById_afterIdReassigned() {
+        ContextMap<Void, Void> contextMap = new ContextMap<>();
+        ContextMap.App app = contextMap.add(UUID.randomUUID(), null, null, null, mMockGatt);
+        app.id = 1;
+        assertThat(contextMap.getById(1)).isSameInstanceAs(app);
+
+        app.id = 2;
+
+        assertThat(contextMap.getById(1)).isNull();
+        assertThat(contextMap.getById(2)).isSameInstanceAs(app);
+    }
+
+    @Test
+    public void removeConnection_updatesLookups() {
+        ContextMap<Void, Void> contextMap = new ContextMap<>();
+        contextMap.add(UUID.randomUUID(), null, null, null, mMockGatt).id = 1;
+        contextMap.add(UUID.randomUUID(), null, null, null, mMockGatt).id = 2;
+        contextMap.addConnection(1, 10, addressOf(10));
+        contextMap.addConnection(1, 11, addressOf(11));
+        contextMap.addConnection(2, 20, addressOf(20));
+
+        contextMap.removeConnection(1, 10);
+
+        assertThat(contextMap.addressByConnId(10)).isNull();
+        assertThat(contextMap.connIdByAddress(1, addressOf(10))).isNull();
+        assertThat(contextMap.connIdByAddress(1, addressOf(11))).isEqualTo(11);
+
+        contextMap.removeConnectionsByAppId(1);
+
+        assertThat(contextMap.getConnectionByApp(1)).isEmpty();
+        assertThat(contextMap.getByConnId(11)).isNull();
+        assertThat(contextMap.getByConnId(20).id).isEqualTo(2);
+        assertThat(contextMap.getConnectedDevices()).hasSize(1);
+    }
+
+    @Test
+    public void remove_updatesLookups() {
+        ContextMap<Void, Void> contextMap = new ContextMap<>();
+        UUID uuid = UUID.randomUUID();
+        contextMap.add(uuid, null, null, null, mMockGatt).id = 1;
+
+        contextMap.remove(1);
+
+        assertThat(contextMap.getById(1)).isNull();
+        assertThat(contextMap.getByUuid(uuid)).isNull();
+    }
+
     @Test
     public void advertisingSetAndData() {
         ContextMap contextMap = new ContextMap<>();
@@ -180,4 +266,8 @@ public class ContextMapTest {
 
         contextMap.dumpAdvertiser(sb);
     }
+
+    private static String addressOf(int connId) {
+        return String.format("00:01:02:03:04:%02X", connId);
+    }
 }
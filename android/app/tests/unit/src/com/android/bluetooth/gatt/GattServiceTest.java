@@ -36,6 +36,7 @@ import android.bluetooth.le.IDistanceMeasurementCallback;
 import android.bluetooth.le.IPeriodicAdvertisingCallback;
 import android.bluetooth.le.IScannerCallback;
 import android.bluetooth.le.PeriodicAdvertisingParameters;
+import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.content.AttributionSource;
@@ -61,6 +62,7 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.ArgumentMatcher;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
@@ -321,6 +323,111 @@ public class GattServiceTest {
         verify(callback).onBatchScanResults(any());
     }
 
+    @Test
+    public void onBatchScanReportsInternal_fullReport_deliversMatchingResultsOncePerClient()
+            throws RemoteException {
+        int scannerId = 1;
+        // Two records of devices advertising the manufacturer data of 0x004C and 0x00E0.
+        byte[] recordData = new byte[] {
+                0x55, 0x44, 0x33, 0x22, 0x11, 0x00, 0x00, 0x00, (byte) -60, 0x01, 0x00,
+                0x07, 0x06, (byte) 0xFF, 0x4C, 0x00, 0x01, 0x02, 0x03, 0x00,
+                0x66, 0x55, 0x44, 0x33, 0x22, 0x11, 0x00, 0x00, (byte) -70, 0x01, 0x00,
+                0x07, 0x06, (byte) 0xFF, (byte) 0xE0, 0x00, 0x01, 0x02, 0x03, 0x00};
+        List<List<ScanFilter>> clientFilters = List.of(
+                List.of(new ScanFilter.Builder().setManufacturerData(0x004C, new byte[0])
+                        .build()),
+                List.of(new ScanFilter.Builder().setManufacturerData(0x00E0, new byte[0])
+                        .build()),
+                List.of());
+
+        Set<ScanClient> scanClientSet = new HashSet<>();
+        List<IScannerCallback> callbacks = new ArrayList<>();
+        for (int i = 0; i < clientFilters.size(); i++) {
+            ScanClient scanClient = new ScanClient(scannerId + i,
+                    new ScanSettings.Builder().build(), clientFilters.get(i));
+            scanClient.hasNetworkSettingsPermission = true;
+            scanClientSet.add(scanClient);
+
+            GattService.ScannerMap.App app = mock(GattService.ScannerMap.App.class);
+            app.callback = mock(IScannerCallback.class);
+            callbacks.add(app.callback);
+            doReturn(app).when(mScannerMap).getById(scanClient.scannerId);
+        }
+        doReturn(scanClientSet).when(mScanManager).getFullBatchScanQueue();
+
+        mService.onBatchScanReportsInternal(0, scannerId, ScanManager.SCAN_RESULT_TYPE_FULL, 2,
+                recordData);
+
+        List<List<String>> expectedAddresses = List.of(List.of("00:11:22:33:44:55"),
+                List.of("11:22:33:44:55:66"), List.of("00:11:22:33:44:55", "11:22:33:44:55:66"));
+        for (int i = 0; i < callbacks.size(); i++) {
+            ArgumentCaptor<List<ScanResult>> captor = ArgumentCaptor.forClass(List.class);
+            verify(callbacks.get(i)).onBatchScanResults(captor.capture());
+            List<String> addresses = new ArrayList<>();
+            for (ScanResult result : captor.getValue()) {
+                addresses.add(result.getDevice().getAddress());
+            }
+            assertThat(addresses).containsExactlyElementsIn(expectedAddresses.get(i));
+        }
+        verify(mScanManager).callbackDone(scannerId, 0);
+    }
+
+    @Test
+    public void onScanResultInternal_multipleClients_shareSingleParsedResult()
+            throws RemoteException {
+        int numClients = 20;
+        int eventType = 0;
+        byte[] advData = new byte[255];
+        // Flags AD structure followed by zero padding.
+        advData[0] = 0x02;
+        advData[1] = 0x01;
+        advData[2] = 0x06;
+
+        Set<ScanClient> scanClientSet = new HashSet<>();
+        List<IScannerCallback> callbacks = new ArrayList<>();
+        for (int scannerId = 0; scannerId < numClients; scannerId++) {
+            ScanClient scanClient = new ScanClient(scannerId,
+                    new ScanSettings.Builder().setLegacy(false).build(), null);
+            scanClient.hasNetworkSettingsPermission = true;
+            scanClientSet.add(scanClient);
+
+            GattService.ScannerMap.App app = mock(GattService.ScannerMap.App.class);
+            app.callback = mock(IScannerCallback.class);
+            app.appScanStats = mock(AppScanStats.class);
+            callbacks.add(app.callback);
+            doReturn(app).when(mScannerMap).getById(scannerId);
+        }
+        doReturn(scanClientSet).when(mScanManager).getRegularScanQueue();
+
+        mService.onScanResultInternal(eventType, BluetoothDevice.ADDRESS_TYPE_PUBLIC,
+                REMOTE_DEVICE_ADDRESS, 1, 0, 0xff, 127, -54, 0x0, advData, REMOTE_DEVICE_ADDRESS);
+
+        ScanResult delivered = null;
+        for (IScannerCallback callback : callbacks) {
+            ArgumentCaptor<ScanResult> captor = ArgumentCaptor.forClass(ScanResult.class);
+            verify(callback).onScanResult(captor.capture());
+            if (delivered == null) {
+                delivered = captor.getValue();
+            }
+            assertThat(captor.getValue()).isSameInstanceAs(delivered);
+        }
+    }
+
+    @Test
+    public void scanResultCache_parsesEachViewOnce() {
+        byte[] advData = new byte[255];
+        GattService.ScanResultCache cache = new GattService.ScanResultCache(mDevice, 0, 1, 0,
+                0xff, 127, -54, 0, advData, 0);
+
+        ScanResult result = cache.getResult();
+        ScanResult legacyResult = cache.getLegacyResult();
+
+        assertThat(cache.getResult()).isSameInstanceAs(result);
+        assertThat(cache.getLegacyResult()).isSameInstanceAs(legacyResult);
+        assertThat(result.getScanRecord().getBytes()).hasLength(255);
+        assertThat(legacyResult.getScanRecord().getBytes()).hasLength(62);
+    }
+
     @Test
     public void clientConnect() throws Exception {
         int clientIf = 1;
@@ -24,12 +24,15 @@ import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.le.IPeriodicAdvertisingCallback;
+import android.bluetooth.le.PeriodicAdvertisingReport;
 import android.bluetooth.le.ScanResult;
 import android.content.Context;
 import android.os.IBinder;
@@ -64,6 +67,9 @@ public class PeriodicScanManagerTest {
     private Context mTargetContext;
 
     private static final String REMOTE_DEVICE_ADDRESS = "00:01:02:03:04:05";
+    private static final int SYNC_HANDLE = 1;
+    // Service data of the Basic Audio Announcement service
+    private static final byte[] REPORT_DATA = new byte[] {0x04, 0x16, 0x51, 0x18, 0x01};
 
     @Before
     public void setUp() throws Exception {
@@ -118,4 +124,71 @@ public class PeriodicScanManagerTest {
                 0);
         verify(mCallback).onSyncEstablished(anyInt(), eq(mTestDevice), eq(0), eq(0), eq(0), eq(0));
     }
+
+    @Test
+    public void onSyncReport_multipleCallbacks_shareSingleParsedReport() throws Exception {
+        IPeriodicAdvertisingCallback otherCallback = mock(IPeriodicAdvertisingCallback.class);
+        doReturn(mock(IBinder.class)).when(otherCallback).asBinder();
+        establishSync(mCallback, otherCallback);
+
+        mPeriodicScanManager.onSyncReport(SYNC_HANDLE, 0, -60,
+                PeriodicAdvertisingReport.DATA_COMPLETE, REPORT_DATA);
+
+        ArgumentCaptor<PeriodicAdvertisingReport> report =
+                ArgumentCaptor.forClass(PeriodicAdvertisingReport.class);
+        ArgumentCaptor<PeriodicAdvertisingReport> otherReport =
+                ArgumentCaptor.forClass(PeriodicAdvertisingReport.class);
+        verify(mCallback).onPeriodicAdvertisingReport(report.capture());
+        verify(otherCallback).onPeriodicAdvertisingReport(otherReport.capture());
+        assertThat(otherReport.getValue()).isSameInstanceAs(report.getValue());
+        assertThat(report.getValue().getData().getBytes()).isEqualTo(REPORT_DATA);
+    }
+
+    @Test
+    public void onSyncReport_changedReportsOnly_dropsRepeatedData() throws Exception {
+        mPeriodicScanManager.setChangedReportsOnly(true);
+        establishSync(mCallback);
+        byte[] otherData = new byte[] {0x04, 0x16, 0x51, 0x18, 0x02};
+
+        mPeriodicScanManager.onSyncReport(SYNC_HANDLE, 0, -60,
+                PeriodicAdvertisingReport.DATA_COMPLETE, REPORT_DATA);
+        mPeriodicScanManager.onSyncReport(SYNC_HANDLE, 0, -61,
+                PeriodicAdvertisingReport.DATA_COMPLETE, REPORT_DATA.clone());
+        mPeriodicScanManager.onSyncReport(SYNC_HANDLE, 0, -62,
+                PeriodicAdvertisingReport.DATA_COMPLETE, otherData);
+        verify(mCallback, times(2)).onPeriodicAdvertisingReport(any());
+
+        // Chained data is delivered in full, even if its last fragment is unchanged.
+        mPeriodicScanManager.onSyncReport(SYNC_HANDLE, 0, -60,
+                PeriodicAdvertisingReport.DATA_INCOMPLETE_TRUNCATED, otherData);
+        mPeriodicScanManager.onSyncReport(SYNC_HANDLE, 0, -60,
+                PeriodicAdvertisingReport.DATA_COMPLETE, otherData);
+        verify(mCallback, times(4)).onPeriodicAdvertisingReport(any());
+    }
+
+    @Test
+    public void onSyncLost_removesSyncs() throws Exception {
+        establishSync(mCallback);
+
+        mPeriodicScanManager.onSyncLost(SYNC_HANDLE);
+        mPeriodicScanManager.onSyncReport(SYNC_HANDLE, 0, -60,
+                PeriodicAdvertisingReport.DATA_COMPLETE, REPORT_DATA);
+
+        verify(mCallback).onSyncLost(SYNC_HANDLE);
+        verify(mCallback, never()).onPeriodicAdvertisingReport(any());
+        assertThat(mPeriodicScanManager.getSyncs(SYNC_HANDLE)).isEmpty();
+        assertThat(mPeriodicScanManager.mSyncs).isEmpty();
+    }
+
+    private void establishSync(IPeriodicAdvertisingCallback... callbacks) throws Exception {
+        for (IPeriodicAdvertisingCallback callback : callbacks) {
+            mPeriodicScanManager.startSync(mScanResult, 0, 0, callback);
+        }
+        ArgumentCaptor<Integer> regId = ArgumentCaptor.forClass(Integer.class);
+        verify(mPeriodicScanNativeInterface)
+                .startSync(eq(0), eq(REMOTE_DEVICE_ADDRESS), eq(0), eq(0), regId.capture());
+        mPeriodicScanManager.onSyncStarted(regId.getValue(), SYNC_HANDLE, 0,
+                BluetoothDevice.ADDRESS_TYPE_RANDOM, REMOTE_DEVICE_ADDRESS, 0, 100, 0);
+        assertThat(mPeriodicScanManager.getSyncs(SYNC_HANDLE)).hasSize(callbacks.length);
+    }
 }
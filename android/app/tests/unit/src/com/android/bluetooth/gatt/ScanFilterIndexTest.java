@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.os.ParcelUuid;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Test cases for {@link ScanFilterIndex}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ScanFilterIndexTest {
+
+    private static final String ADDRESS = "00:01:02:03:04:05";
+    private static final String OTHER_ADDRESS = "AA:BB:CC:DD:EE:FF";
+    private static final int MANUFACTURER_ID = 0x004C;
+
+    // Flags, complete 16-bit service UUID 0x180F and manufacturer data for 0x004C.
+    private static final byte[] ADV_DATA = new byte[] {
+            0x02, 0x01, 0x06,
+            0x03, 0x03, 0x0F, 0x18,
+            0x05, (byte) 0xFF, 0x4C, 0x00, 0x02, 0x15};
+
+    private final BluetoothDevice mDevice =
+            BluetoothAdapter.getDefaultAdapter().getRemoteDevice(ADDRESS);
+
+    @Test
+    public void getCandidates_selectsOnlyClientsWithMatchingKeys() {
+        ScanClient addressClient = newClient(1,
+                new ScanFilter.Builder().setDeviceAddress(ADDRESS).build());
+        ScanClient otherAddressClient = newClient(2,
+                new ScanFilter.Builder().setDeviceAddress(OTHER_ADDRESS).build());
+        ScanClient manufacturerClient = newClient(3,
+                new ScanFilter.Builder().setManufacturerData(MANUFACTURER_ID, new byte[0])
+                        .build());
+        ScanClient otherManufacturerClient = newClient(4,
+                new ScanFilter.Builder().setManufacturerData(0x00E0, new byte[0]).build());
+        ScanClient uuidClient = newClient(5,
+                new ScanFilter.Builder()
+                        .setServiceUuid(ParcelUuid.fromString(
+                                "0000180F-0000-1000-8000-00805F9B34FB"))
+                        .build());
+        ScanClient nameClient = newClient(6,
+                new ScanFilter.Builder().setDeviceName("Tag").build());
+        ScanClient noFilterClient = new ScanClient(7);
+
+        List<ScanClient> clients = List.of(addressClient, otherAddressClient, manufacturerClient,
+                otherManufacturerClient, uuidClient, nameClient, noFilterClient);
+        ScanFilterIndex index = new ScanFilterIndex(clients);
+        BitSet candidates = index.getCandidates(newResult(), null);
+
+        assertThat(index.isCandidate(candidates, addressClient)).isTrue();
+        assertThat(index.isCandidate(candidates, otherAddressClient)).isFalse();
+        assertThat(index.isCandidate(candidates, manufacturerClient)).isTrue();
+        assertThat(index.isCandidate(candidates, otherManufacturerClient)).isFalse();
+        assertThat(index.isCandidate(candidates, uuidClient)).isTrue();
+        assertThat(index.isCandidate(candidates, nameClient)).isFalse();
+        assertThat(index.isCandidate(candidates, noFilterClient)).isTrue();
+    }
+
+    @Test
+    public void getCandidates_matchesOriginalAddressIgnoringCase() {
+        ScanClient client = newClient(1,
+                new ScanFilter.Builder().setDeviceAddress(OTHER_ADDRESS).build());
+        ScanFilterIndex index = new ScanFilterIndex(List.of(client));
+
+        BitSet candidates = index.getCandidates(newResult(), OTHER_ADDRESS.toLowerCase());
+
+        assertThat(index.isCandidate(candidates, client)).isTrue();
+    }
+
+    @Test
+    public void isCandidate_unknownClient_returnsTrue() {
+        ScanFilterIndex index = new ScanFilterIndex(new ArrayList<>());
+
+        BitSet candidates = index.getCandidates(newResult(), null);
+
+        assertThat(index.isCandidate(candidates, new ScanClient(1))).isTrue();
+    }
+
+    @Test
+    public void isCurrent_detectsQueueAndFilterChanges() {
+        ScanClient client = newClient(1,
+                new ScanFilter.Builder().setDeviceAddress(ADDRESS).build());
+        List<ScanClient> clients = new ArrayList<>(List.of(client));
+        ScanFilterIndex index = new ScanFilterIndex(clients);
+
+        assertThat(index.isCurrent(clients)).isTrue();
+
+        client.filters = new ArrayList<>();
+        assertThat(index.isCurrent(clients)).isFalse();
+
+        index = new ScanFilterIndex(clients);
+        clients.add(new ScanClient(2));
+        assertThat(index.isCurrent(clients)).isFalse();
+    }
+
+    private ScanResult newResult() {
+        return new ScanResult(mDevice, 0, 1, 0, 0xff, 127, -54, 0,
+                ScanRecord.parseFromBytes(ADV_DATA), 0);
+    }
+
+    private static ScanClient newClient(int scannerId, ScanFilter filter) {
+        List<ScanFilter> filters = new ArrayList<>();
+        filters.add(filter);
+        ScanClient client = new ScanClient(scannerId);
+        client.filters = filters;
+        return client;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.test.TestLooper;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test cases for {@link ScanResultCoalescer}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ScanResultCoalescerTest {
+
+    private static final long WINDOW_MS = 50;
+    private static final int MAX_RESULTS = 3;
+
+    private final BluetoothAdapter mAdapter = BluetoothAdapter.getDefaultAdapter();
+    private final List<List<ScanResult>> mDelivered = new ArrayList<>();
+
+    private TestLooper mLooper;
+    private ScanResultCoalescer mCoalescer;
+    private ScanClient mClient;
+
+    @Before
+    public void setUp() {
+        mLooper = new TestLooper();
+        mCoalescer = new ScanResultCoalescer(mLooper.getLooper(),
+                (client, results) -> mDelivered.add(results));
+        mClient = new ScanClient(1,
+                new ScanSettings.Builder().setResultCoalescing(WINDOW_MS, MAX_RESULTS).build(),
+                null);
+    }
+
+    @Test
+    public void isCoalescing() {
+        assertThat(ScanResultCoalescer.isCoalescing(mClient)).isTrue();
+        assertThat(ScanResultCoalescer.isCoalescing(new ScanClient(2))).isFalse();
+    }
+
+    @Test
+    public void add_deliversWhenWindowExpires() {
+        mCoalescer.add(mClient, newResult("00:01:02:03:04:05", 0x01, -50));
+        mCoalescer.add(mClient, newResult("00:01:02:03:04:06", 0x01, -50));
+        mLooper.dispatchAll();
+        assertThat(mDelivered).isEmpty();
+
+        mLooper.moveTimeForward(WINDOW_MS);
+        mLooper.dispatchAll();
+
+        assertThat(mDelivered).hasSize(1);
+        assertThat(mDelivered.get(0)).hasSize(2);
+        assertThat(mCoalescer.getDeliveredBatchCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void add_deliversWhenBatchIsFull() {
+        for (int i = 0; i < MAX_RESULTS; i++) {
+            mCoalescer.add(mClient, newResult("00:01:02:03:04:0" + i, 0x01, -50));
+        }
+        // Delivered on the looper thread, not on the caller's
+        assertThat(mDelivered).isEmpty();
+
+        mLooper.dispatchAll();
+
+        assertThat(mDelivered).hasSize(1);
+        assertThat(mDelivered.get(0)).hasSize(MAX_RESULTS);
+
+        // The window timer of the delivered batch must not fire again.
+        mLooper.moveTimeForward(WINDOW_MS);
+        mLooper.dispatchAll();
+        assertThat(mDelivered).hasSize(1);
+    }
+
+    @Test
+    public void add_fullBatchThenWindowExpires_deliversInOrder() {
+        for (int i = 0; i <= MAX_RESULTS; i++) {
+            mCoalescer.add(mClient, newResult("00:01:02:03:04:0" + i, 0x01, -50));
+        }
+
+        mLooper.moveTimeForward(WINDOW_MS);
+        mLooper.dispatchAll();
+
+        assertThat(mDelivered).hasSize(2);
+        assertThat(mDelivered.get(0)).hasSize(MAX_RESULTS);
+        assertThat(mDelivered.get(1)).hasSize(1);
+    }
+
+    @Test
+    public void add_duplicatePayload_keepsLatestResult() {
+        mCoalescer.add(mClient, newResult("00:01:02:03:04:05", 0x01, -70));
+        mCoalescer.add(mClient, newResult("00:01:02:03:04:05", 0x01, -40));
+        mCoalescer.add(mClient, newResult("00:01:02:03:04:05", 0x02, -60));
+
+        mLooper.moveTimeForward(WINDOW_MS);
+        mLooper.dispatchAll();
+
+        assertThat(mDelivered).hasSize(1);
+        assertThat(mDelivered.get(0)).hasSize(2);
+        assertThat(mDelivered.get(0).get(0).getRssi()).isEqualTo(-40);
+        assertThat(mCoalescer.getCoalescedResultCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void remove_deliversPendingResults() {
+        mCoalescer.add(mClient, newResult("00:01:02:03:04:05", 0x01, -50));
+
+        mCoalescer.remove(mClient.scannerId);
+        mLooper.dispatchAll();
+
+        assertThat(mDelivered).hasSize(1);
+        assertThat(mDelivered.get(0)).hasSize(1);
+
+        // The window timer of the delivered batch must not fire again.
+        mLooper.moveTimeForward(WINDOW_MS);
+        mLooper.dispatchAll();
+        assertThat(mDelivered).hasSize(1);
+    }
+
+    private ScanResult newResult(String address, int flags, int rssi) {
+        BluetoothDevice device = mAdapter.getRemoteDevice(address);
+        byte[] advData = new byte[] {0x02, 0x01, (byte) flags};
+        return new ScanResult(device, 0, 1, 0, 0xff, 127, rssi, 0,
+                ScanRecord.parseFromBytes(advData), 0);
+    }
+}
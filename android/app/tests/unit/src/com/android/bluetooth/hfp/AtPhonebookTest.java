@@ -23,6 +23,7 @@ import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -30,6 +31,8 @@ import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.content.Context;
 import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.CallLog;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.telephony.PhoneNumberUtils;
@@ -76,11 +79,13 @@ public class AtPhonebookTest {
         mAdapter = BluetoothAdapter.getDefaultAdapter();
         mTestDevice = mAdapter.getRemoteDevice("00:01:02:03:04:05");
         // Spy on native interface
-        mAtPhonebook = new AtPhonebook(mTargetContext, mNativeInterface);
+        mAtPhonebook = new AtPhonebook(mTargetContext, mNativeInterface,
+                new Handler(Looper.getMainLooper()));
     }
 
     @After
     public void tearDown() throws Exception {
+        mAtPhonebook.cleanup();
         TestUtils.clearAdapterService(mAdapterService);
         BluetoothMethodProxy.setInstanceForTesting(null);
     }
@@ -315,6 +320,69 @@ public class AtPhonebookTest {
         mAtPhonebook.processCpbrCommand(mTestDevice);
     }
 
+    @Test
+    public void processCpbrCommand_withRepeatedNumber_looksUpNameOnce() {
+        String number = "0123456789";
+        String name = "Name";
+        Cursor mockCursorOne = mock(Cursor.class);
+        when(mockCursorOne.getCount()).thenReturn(2);
+        when(mockCursorOne.getColumnIndexOrThrow(CallLog.Calls.NUMBER)).thenReturn(1);
+        when(mockCursorOne.getColumnIndexOrThrow(CallLog.Calls.NUMBER_PRESENTATION)).thenReturn(2);
+        when(mockCursorOne.getString(1)).thenReturn(number);
+        when(mockCursorOne.getInt(2)).thenReturn(CallLog.Calls.PRESENTATION_ALLOWED);
+        when(mockCursorOne.moveToNext()).thenReturn(true, false);
+        doReturn(mockCursorOne).when(mHfpMethodProxy).contentResolverQuery(any(), any(), any(),
+                any(), any());
+
+        Cursor mockCursorTwo = mock(Cursor.class);
+        when(mockCursorTwo.moveToFirst()).thenReturn(true);
+        when(mockCursorTwo.getString(0)).thenReturn(name);
+        doReturn(mockCursorTwo).when(mHfpMethodProxy).contentResolverQuery(any(), any(), any(),
+                any(), any(), any());
+
+        mAtPhonebook.mCurrentPhonebook = "DC";
+        mAtPhonebook.mCpbrIndex1 = 1;
+        mAtPhonebook.mCpbrIndex2 = 2;
+
+        mAtPhonebook.processCpbrCommand(mTestDevice);
+
+        String expected = "+CPBR: " + 2 + ",\"" + number + "\","
+                + PhoneNumberUtils.toaFromString(number) + ",\"" + name + "\"" + "\r\n\r\n";
+        verify(mNativeInterface).atResponseString(mTestDevice, expected);
+        verify(mHfpMethodProxy).contentResolverQuery(any(), any(), any(), any(), any(), any());
+        assertThat(mAtPhonebook.mNameCache.get(number)).isEqualTo(name);
+    }
+
+    @Test
+    public void processCpbrCommand_keepsResultUntilInvalidated() {
+        Cursor mockCursor = mock(Cursor.class);
+        when(mockCursor.getCount()).thenReturn(1);
+        when(mockCursor.getColumnIndexOrThrow(CallLog.Calls.NUMBER)).thenReturn(1);
+        when(mockCursor.getColumnIndexOrThrow(CallLog.Calls.NUMBER_PRESENTATION)).thenReturn(2);
+        when(mockCursor.getInt(2)).thenReturn(CallLog.Calls.PRESENTATION_ALLOWED);
+        doReturn(mockCursor).when(mHfpMethodProxy).contentResolverQuery(any(), any(), any(),
+                any(), any());
+
+        mAtPhonebook.mCurrentPhonebook = "MC";
+        mAtPhonebook.mCpbrIndex1 = 1;
+        mAtPhonebook.mCpbrIndex2 = 1;
+
+        mAtPhonebook.processCpbrCommand(mTestDevice);
+        mAtPhonebook.processCpbrCommand(mTestDevice);
+        verify(mHfpMethodProxy).contentResolverQuery(any(), any(), any(), any(), any());
+
+        mAtPhonebook.mNameCache.put("0123456789", "Name");
+        mAtPhonebook.invalidatePhonebooks(false);
+        verify(mockCursor).close();
+        assertThat(mAtPhonebook.mNameCache.size()).isEqualTo(1);
+
+        mAtPhonebook.processCpbrCommand(mTestDevice);
+        verify(mHfpMethodProxy, times(2)).contentResolverQuery(any(), any(), any(), any(), any());
+
+        mAtPhonebook.invalidatePhonebooks(true);
+        assertThat(mAtPhonebook.mNameCache.size()).isEqualTo(0);
+    }
+
     @Test
     public void setCpbrIndex() {
         int index = 1;
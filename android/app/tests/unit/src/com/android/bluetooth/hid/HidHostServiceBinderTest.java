@@ -16,11 +16,13 @@
 
 package com.android.bluetooth.hid;
 
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothProfile;
+import android.bluetooth.IBluetoothHidHostReportCallback;
 
 import androidx.test.filters.SmallTest;
 import androidx.test.runner.AndroidJUnit4;
@@ -159,6 +161,42 @@ public class HidHostServiceBinderTest {
         verify(mService).sendData(mRemoteDevice, report);
     }
 
+    @Test
+    public void setReportBytes_callsServiceMethod() {
+        byte reportType = 2;
+        byte[] report = new byte[] {0x01, 0x02};
+        mBinder.setReportBytes(mRemoteDevice, reportType, report, null,
+                SynchronousResultReceiver.get());
+
+        verify(mService).setReportBytes(mRemoteDevice, reportType, report);
+    }
+
+    @Test
+    public void sendReports_callsServiceMethod() {
+        byte[] reports = new byte[] {0x01, 0x02, 0x03};
+        int[] reportLengths = new int[] {1, 2};
+        mBinder.sendReports(mRemoteDevice, reports, reportLengths, null,
+                SynchronousResultReceiver.get());
+
+        verify(mService).sendReports(mRemoteDevice, reports, reportLengths);
+    }
+
+    @Test
+    public void registerReportCallback_callsServiceMethod() {
+        IBluetoothHidHostReportCallback callback = mock(IBluetoothHidHostReportCallback.class);
+        mBinder.registerReportCallback(callback, null, SynchronousResultReceiver.get());
+
+        verify(mService).registerReportCallback(callback);
+    }
+
+    @Test
+    public void unregisterReportCallback_callsServiceMethod() {
+        IBluetoothHidHostReportCallback callback = mock(IBluetoothHidHostReportCallback.class);
+        mBinder.unregisterReportCallback(callback, null, SynchronousResultReceiver.get());
+
+        verify(mService).unregisterReportCallback(callback);
+    }
+
     @Test
     public void setIdleTime_callsServiceMethod() {
         byte idleTime = 1;
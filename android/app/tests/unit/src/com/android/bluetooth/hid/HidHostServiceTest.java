@@ -15,18 +15,23 @@
  */
 package com.android.bluetooth.hid;
 
+import static com.google.common.truth.Truth.assertThat;
+
 import static org.mockito.Mockito.*;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothProfile;
+import android.bluetooth.IBluetoothHidHostReportCallback;
 import android.content.Context;
+import android.os.Binder;
 
 import androidx.test.InstrumentationRegistry;
 import androidx.test.filters.MediumTest;
 import androidx.test.runner.AndroidJUnit4;
 
 import com.android.bluetooth.TestUtils;
+import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
 import com.android.bluetooth.btservice.storage.DatabaseManager;
 
@@ -35,12 +40,21 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.util.ArrayList;
+import java.util.List;
+
 @MediumTest
 @RunWith(AndroidJUnit4.class)
 public class HidHostServiceTest {
+    // Reports sent and received in order, in batches of REPORTS_PER_BATCH when sending
+    private static final int REPORT_COUNT = 1000;
+    private static final int REPORTS_PER_BATCH = 10;
+    private static final int REPORT_LENGTH = 8;
+
     private HidHostService mService = null;
     private BluetoothAdapter mAdapter = null;
     private BluetoothDevice mTestDevice;
@@ -49,6 +63,7 @@ public class HidHostServiceTest {
     @Mock private AdapterService mAdapterService;
     @Mock private DatabaseManager mDatabaseManager;
     @Mock private HidHostNativeInterface mNativeInterface;
+    @Mock private IBluetoothHidHostReportCallback mReportCallback;
 
     @Before
     public void setUp() throws Exception {
@@ -124,11 +139,109 @@ public class HidHostServiceTest {
                 badBondState, badPriorityValue, false);
     }
 
+    @Test
+    public void sendReports_manyBatches_sendsAllReportsInOrder() {
+        HidHostService service = spy(mService);
+        doReturn(BluetoothProfile.STATE_CONNECTED).when(service).getConnectionState(mTestDevice);
+        List<Integer> sent = new ArrayList<>();
+        doAnswer(invocation -> {
+            byte[] reports = invocation.getArgument(1);
+            int[] reportLengths = invocation.getArgument(2);
+            int offset = 0;
+            for (int length : reportLengths) {
+                sent.add(getSequenceNumber(reports, offset));
+                offset += length;
+            }
+            return reportLengths.length;
+        }).when(mNativeInterface).sendReports(any(), any(), any());
+
+        for (int first = 0; first < REPORT_COUNT; first += REPORTS_PER_BATCH) {
+            byte[] reports = new byte[REPORTS_PER_BATCH * REPORT_LENGTH];
+            int[] reportLengths = new int[REPORTS_PER_BATCH];
+            for (int i = 0; i < REPORTS_PER_BATCH; i++) {
+                setSequenceNumber(reports, i * REPORT_LENGTH, first + i);
+                reportLengths[i] = REPORT_LENGTH;
+            }
+            Assert.assertEquals(REPORTS_PER_BATCH,
+                    service.sendReports(mTestDevice, reports, reportLengths));
+        }
+
+        assertThat(sent).hasSize(REPORT_COUNT);
+        for (int i = 0; i < REPORT_COUNT; i++) {
+            assertThat(sent.get(i)).isEqualTo(i);
+        }
+    }
+
+    @Test
+    public void setReportBytesThenSendReports_sendsInCallOrder() {
+        HidHostService service = spy(mService);
+        doReturn(BluetoothProfile.STATE_CONNECTED).when(service).getConnectionState(mTestDevice);
+        doReturn(true).when(mNativeInterface).setReport(any(), anyByte(), any());
+        doReturn(1).when(mNativeInterface).sendReports(any(), any(), any());
+        byte[] report = new byte[REPORT_LENGTH];
+
+        Assert.assertTrue(service.setReportBytes(mTestDevice, (byte) 2, report));
+        Assert.assertEquals(1,
+                service.sendReports(mTestDevice, report, new int[] {REPORT_LENGTH}));
+
+        InOrder inOrder = inOrder(mNativeInterface);
+        inOrder.verify(mNativeInterface).setReport(any(), eq((byte) 2), eq(report));
+        inOrder.verify(mNativeInterface).sendReports(any(), eq(report), any());
+    }
+
+    @Test
+    public void sendReports_badReportLengths_sendsNothing() {
+        HidHostService service = spy(mService);
+        doReturn(BluetoothProfile.STATE_CONNECTED).when(service).getConnectionState(mTestDevice);
+
+        Assert.assertEquals(0, service.sendReports(mTestDevice, new byte[4], new int[] {2, 3}));
+        Assert.assertEquals(0, service.sendReports(mTestDevice, new byte[4], new int[] {0, 2}));
+        Assert.assertEquals(0, mService.sendReports(mTestDevice, new byte[4], new int[] {4}));
+        verify(mNativeInterface, never()).sendReports(any(), any(), any());
+    }
+
+    @Test
+    public void onGetReport_manyReports_deliversAllReportsInOrder() throws Exception {
+        byte[] address = Utils.getByteAddress(mTestDevice);
+        doReturn(mTestDevice).when(mAdapterService).getDeviceFromByte(address);
+        doReturn(new Binder()).when(mReportCallback).asBinder();
+        List<Integer> received = new ArrayList<>();
+        doAnswer(invocation -> {
+            received.add(getSequenceNumber(invocation.getArgument(1), 0));
+            return null;
+        }).when(mReportCallback).onReport(eq(mTestDevice), any(), eq(REPORT_LENGTH));
+        Assert.assertTrue(mService.registerReportCallback(mReportCallback));
+
+        for (int i = 0; i < REPORT_COUNT; i++) {
+            byte[] report = new byte[REPORT_LENGTH];
+            setSequenceNumber(report, 0, i);
+            mService.onGetReport(address, report, REPORT_LENGTH);
+        }
+
+        assertThat(received).hasSize(REPORT_COUNT);
+        for (int i = 0; i < REPORT_COUNT; i++) {
+            assertThat(received.get(i)).isEqualTo(i);
+        }
+
+        Assert.assertTrue(mService.unregisterReportCallback(mReportCallback));
+        mService.onGetReport(address, new byte[REPORT_LENGTH], REPORT_LENGTH);
+        assertThat(received).hasSize(REPORT_COUNT);
+    }
+
     @Test
     public void testDumpDoesNotCrash() {
         mService.dump(new StringBuilder());
     }
 
+    private static void setSequenceNumber(byte[] reports, int offset, int sequenceNumber) {
+        reports[offset] = (byte) sequenceNumber;
+        reports[offset + 1] = (byte) (sequenceNumber >> 8);
+    }
+
+    private static int getSequenceNumber(byte[] reports, int offset) {
+        return (reports[offset] & 0xFF) | ((reports[offset + 1] & 0xFF) << 8);
+    }
+
     /**
      * Helper function to test okToConnect() method.
      *
@@ -30,6 +30,7 @@ import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserManager;
 import android.provider.ContactsContract;
 import android.provider.Telephony;
@@ -1951,4 +1952,138 @@ public class BluetoothMapContentObserverTest {
                 "msg").addFolder(folderName);
         subFolder.setFolderId(folderId);
     }
+
+    @Test
+    public void handleMsgListChangesSmsMms_withRowUri_queriesOnlyChangedRow() {
+        MatrixCursor cursor = new MatrixCursor(new String[] {Sms._ID, Sms.TYPE, Sms.THREAD_ID,
+                Sms.READ});
+        cursor.addRow(new Object[] {TEST_HANDLE_ONE, TEST_SMS_TYPE_INBOX, TEST_THREAD_ID,
+                TEST_READ_FLAG_ONE});
+        doReturn(cursor).when(mMapMethodProxy).contentResolverQuery(any(), any(), any(), any(),
+                any(), any());
+
+        Map<Long, BluetoothMapContentObserver.Msg> map = new HashMap<>();
+        map.put(TEST_HANDLE_TWO, new BluetoothMapContentObserver.Msg(TEST_HANDLE_TWO,
+                TEST_SMS_TYPE_INBOX, TEST_READ_FLAG_ONE));
+        mObserver.setMsgListSms(map, true);
+        mObserver.mMapEventReportVersion = BluetoothMapUtils.MAP_EVENT_REPORT_V10;
+        mObserver.mLastFullReconciliationMs = SystemClock.elapsedRealtime();
+
+        mObserver.handleMsgListChangesSmsMms(
+                Uri.withAppendedPath(Sms.CONTENT_URI, Long.toString(TEST_HANDLE_ONE)));
+
+        verify(mMapMethodProxy).contentResolverQuery(any(), eq(Sms.CONTENT_URI), any(),
+                eq(Sms._ID + "=?"), eq(new String[] {Long.toString(TEST_HANDLE_ONE)}), any());
+        verify(mMapMethodProxy, never()).contentResolverQuery(any(), eq(Mms.CONTENT_URI), any(),
+                any(), any(), any());
+        // Messages outside of the selection are not considered deleted
+        Assert.assertEquals(2, mObserver.getMsgListSms().size());
+        Assert.assertNotNull(mObserver.getMsgListSms().get(TEST_HANDLE_ONE));
+        Assert.assertNotNull(mObserver.getMsgListSms().get(TEST_HANDLE_TWO));
+    }
+
+    @Test
+    public void handleMsgListChangesSmsMms_withoutFullReconciliation_queriesAllRows() {
+        doReturn(new MatrixCursor(new String[] {Sms._ID})).when(mMapMethodProxy)
+                .contentResolverQuery(any(), any(), any(), any(), any(), any());
+        mObserver.mMapEventReportVersion = BluetoothMapUtils.MAP_EVENT_REPORT_V10;
+
+        mObserver.handleMsgListChangesSmsMms(
+                Uri.withAppendedPath(Sms.CONTENT_URI, Long.toString(TEST_HANDLE_ONE)));
+
+        verify(mMapMethodProxy).contentResolverQuery(any(), eq(Sms.CONTENT_URI), any(),
+                isNull(), isNull(), any());
+        verify(mMapMethodProxy).contentResolverQuery(any(), eq(Mms.CONTENT_URI), any(),
+                isNull(), isNull(), any());
+        Assert.assertTrue(mObserver.mLastFullReconciliationMs >= 0);
+    }
+
+    @Test
+    public void handleMsgListChangesSmsMms_withLargeProvider_readsOnlyNewRowsInFull() {
+        final int messageCount = 100000;
+        MatrixCursor allRows = newSmsCursor();
+        MatrixCursor statusRows = newSmsCursor();
+        for (int i = 1; i <= messageCount; i++) {
+            allRows.addRow(new Object[] {i, TEST_SMS_TYPE_INBOX, TEST_THREAD_ID,
+                    TEST_READ_FLAG_ONE});
+            statusRows.addRow(new Object[] {i, TEST_SMS_TYPE_INBOX, TEST_THREAD_ID,
+                    TEST_READ_FLAG_ONE});
+        }
+        statusRows.addRow(new Object[] {messageCount + 1, TEST_SMS_TYPE_INBOX, TEST_THREAD_ID,
+                TEST_READ_FLAG_ONE});
+        MatrixCursor newRows = newSmsCursor();
+        newRows.addRow(new Object[] {messageCount + 1, TEST_SMS_TYPE_INBOX, TEST_THREAD_ID,
+                TEST_READ_FLAG_ONE});
+        doReturn(allRows, statusRows, newRows).when(mMapMethodProxy).contentResolverQuery(any(),
+                eq(Sms.CONTENT_URI), any(), any(), any(), any());
+        doReturn(null).when(mMapMethodProxy).contentResolverQuery(any(), eq(Mms.CONTENT_URI),
+                any(), any(), any(), any());
+        mObserver.mMapEventReportVersion = BluetoothMapUtils.MAP_EVENT_REPORT_V10;
+
+        mObserver.handleMsgListChangesSmsMms(Telephony.MmsSms.CONTENT_URI);
+        Assert.assertEquals(messageCount, mObserver.getMsgListSms().size());
+
+        mObserver.handleMsgListChangesSmsMms(Telephony.MmsSms.CONTENT_URI);
+
+        verify(mMapMethodProxy).contentResolverQuery(any(), eq(Sms.CONTENT_URI), any(),
+                eq("_id IN (?)"), eq(new String[] {Integer.toString(messageCount + 1)}), any());
+        Assert.assertEquals(messageCount + 1, mObserver.getMsgListSms().size());
+    }
+
+    @Test
+    public void handleMsgListChangesSmsMms_withReadStatusChange_updatesListWithinInterval() {
+        MatrixCursor allRows = newSmsCursor();
+        allRows.addRow(new Object[] {TEST_HANDLE_ONE, TEST_SMS_TYPE_INBOX, TEST_THREAD_ID, 0});
+        allRows.addRow(new Object[] {TEST_HANDLE_TWO, TEST_SMS_TYPE_INBOX, TEST_THREAD_ID, 0});
+        MatrixCursor statusRows = newSmsCursor();
+        statusRows.addRow(new Object[] {TEST_HANDLE_ONE, TEST_SMS_TYPE_INBOX, TEST_THREAD_ID, 1});
+        statusRows.addRow(new Object[] {TEST_HANDLE_TWO, TEST_SMS_TYPE_INBOX, TEST_THREAD_ID, 0});
+        MatrixCursor changedRows = newSmsCursor();
+        changedRows.addRow(new Object[] {TEST_HANDLE_ONE, TEST_SMS_TYPE_INBOX, TEST_THREAD_ID, 1});
+        doReturn(allRows, statusRows, changedRows).when(mMapMethodProxy).contentResolverQuery(
+                any(), eq(Sms.CONTENT_URI), any(), any(), any(), any());
+        doReturn(null).when(mMapMethodProxy).contentResolverQuery(any(), eq(Mms.CONTENT_URI),
+                any(), any(), any(), any());
+        mObserver.mMapEventReportVersion = BluetoothMapUtils.MAP_EVENT_REPORT_V10;
+
+        mObserver.handleMsgListChangesSmsMms(Telephony.MmsSms.CONTENT_URI);
+        long lastFullReconciliationMs = mObserver.mLastFullReconciliationMs;
+        mObserver.handleMsgListChangesSmsMms(Telephony.MmsSms.CONTENT_URI);
+
+        verify(mMapMethodProxy).contentResolverQuery(any(), eq(Sms.CONTENT_URI), any(),
+                eq("_id IN (?)"), eq(new String[] {Long.toString(TEST_HANDLE_ONE)}), any());
+        Assert.assertEquals(lastFullReconciliationMs, mObserver.mLastFullReconciliationMs);
+        Assert.assertEquals(1, mObserver.getMsgListSms().get(TEST_HANDLE_ONE).flagRead);
+        Assert.assertEquals(0, mObserver.getMsgListSms().get(TEST_HANDLE_TWO).flagRead);
+    }
+
+    @Test
+    public void handleMsgListChangesSmsMms_withDeletedMessage_comparesCompleteTables() {
+        MatrixCursor allRows = newSmsCursor();
+        allRows.addRow(new Object[] {TEST_HANDLE_ONE, TEST_SMS_TYPE_INBOX, TEST_THREAD_ID, 0});
+        allRows.addRow(new Object[] {TEST_HANDLE_TWO, TEST_SMS_TYPE_INBOX, TEST_THREAD_ID, 0});
+        MatrixCursor remainingRows = newSmsCursor();
+        remainingRows.addRow(new Object[] {TEST_HANDLE_ONE, TEST_SMS_TYPE_INBOX, TEST_THREAD_ID,
+                0});
+        MatrixCursor remainingRowsAgain = newSmsCursor();
+        remainingRowsAgain.addRow(new Object[] {TEST_HANDLE_ONE, TEST_SMS_TYPE_INBOX,
+                TEST_THREAD_ID, 0});
+        doReturn(allRows, remainingRows, remainingRowsAgain).when(mMapMethodProxy)
+                .contentResolverQuery(any(), eq(Sms.CONTENT_URI), any(), any(), any(), any());
+        doReturn(null).when(mMapMethodProxy).contentResolverQuery(any(), eq(Mms.CONTENT_URI),
+                any(), any(), any(), any());
+        mObserver.mMapEventReportVersion = BluetoothMapUtils.MAP_EVENT_REPORT_V10;
+
+        mObserver.handleMsgListChangesSmsMms(Telephony.MmsSms.CONTENT_URI);
+        mObserver.handleMsgListChangesSmsMms(Telephony.MmsSms.CONTENT_URI);
+
+        verify(mMapMethodProxy, times(3)).contentResolverQuery(any(), eq(Sms.CONTENT_URI),
+                any(), isNull(), isNull(), any());
+        Assert.assertEquals(1, mObserver.getMsgListSms().size());
+        Assert.assertNull(mObserver.getMsgListSms().get(TEST_HANDLE_TWO));
+    }
+
+    private static MatrixCursor newSmsCursor() {
+        return new MatrixCursor(new String[] {Sms._ID, Sms.TYPE, Sms.THREAD_ID, Sms.READ});
+    }
 }
@@ -31,8 +31,10 @@ import static org.mockito.Mockito.verify;
 
 import android.bluetooth.BluetoothAdapter;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.Context;
 import android.database.MatrixCursor;
+import android.net.Uri;
 
 import androidx.test.filters.MediumTest;
 import androidx.test.platform.app.InstrumentationRegistry;
@@ -51,6 +53,9 @@ import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 
+import java.util.ArrayList;
+import java.util.List;
+
 @MediumTest
 @RunWith(AndroidJUnit4.class)
 public class BluetoothOppServiceTest {
@@ -211,4 +216,86 @@ public class BluetoothOppServiceTest {
                         eq(BluetoothShare._ID + " < " + 20),
                         any());
     }
+
+    @Test
+    public void getShareId() {
+        assertThat(BluetoothOppService.getShareId(
+                ContentUris.withAppendedId(BluetoothShare.CONTENT_URI, 12))).isEqualTo(12);
+        assertThat(BluetoothOppService.getShareId(BluetoothShare.CONTENT_URI)).isEqualTo(-1);
+        assertThat(BluetoothOppService.getShareId(null)).isEqualTo(-1);
+        assertThat(BluetoothOppService.getShareId(
+                Uri.withAppendedPath(BluetoothShare.CONTENT_URI, "abc"))).isEqualTo(-1);
+    }
+
+    @Test
+    public void updateShares_updatesOnlyGivenShares() {
+        BluetoothOppShareInfo info1 = createShareInfo(1, 10);
+        BluetoothOppShareInfo info3 = createShareInfo(3, 10);
+        mService.mShares.clear();
+        mService.mShares.add(info1);
+        mService.mShares.add(info3);
+
+        doReturn(createShareCursor(3, 50))
+                .when(mBluetoothMethodProxy)
+                .contentResolverQuery(
+                        any(),
+                        eq(ContentUris.withAppendedId(BluetoothShare.CONTENT_URI, 3)),
+                        any(),
+                        any(),
+                        any(),
+                        any());
+
+        mService.updateShares(new ArrayList<>(List.of(3)));
+
+        assertThat(mService.mShares).containsExactly(info1, info3).inOrder();
+        assertThat(info1.mCurrentBytes).isEqualTo(10);
+        assertThat(info3.mCurrentBytes).isEqualTo(50);
+    }
+
+    @Test
+    public void updateShares_removesDeletedShares() {
+        BluetoothOppShareInfo info1 = createShareInfo(1, 10);
+        BluetoothOppShareInfo info3 = createShareInfo(3, 10);
+        mService.mShares.clear();
+        mService.mShares.add(info1);
+        mService.mShares.add(info3);
+        mService.mBatches.clear();
+
+        doReturn(new MatrixCursor(new String[] {BluetoothShare._ID}))
+                .when(mBluetoothMethodProxy)
+                .contentResolverQuery(
+                        any(),
+                        eq(ContentUris.withAppendedId(BluetoothShare.CONTENT_URI, 1)),
+                        any(),
+                        any(),
+                        any(),
+                        any());
+
+        mService.updateShares(new ArrayList<>(List.of(1)));
+
+        assertThat(mService.mShares).containsExactly(info3);
+    }
+
+    private static BluetoothOppShareInfo createShareInfo(int id, long currentBytes) {
+        return new BluetoothOppShareInfo(id, Uri.parse("content://test/" + id), "hint",
+                "filename", "image/jpeg", BluetoothShare.DIRECTION_OUTBOUND, "AA:BB:CC:DD:EE:FF",
+                BluetoothShare.VISIBILITY_VISIBLE, BluetoothShare.USER_CONFIRMATION_CONFIRMED,
+                BluetoothShare.STATUS_RUNNING, 100, currentBytes, 123456789, false);
+    }
+
+    private static MatrixCursor createShareCursor(int id, long currentBytes) {
+        MatrixCursor cursor = new MatrixCursor(new String[] {
+                BluetoothShare._ID, BluetoothShare.URI, BluetoothShare.FILENAME_HINT,
+                BluetoothShare._DATA, BluetoothShare.MIMETYPE, BluetoothShare.DIRECTION,
+                BluetoothShare.DESTINATION, BluetoothShare.VISIBILITY,
+                BluetoothShare.USER_CONFIRMATION, BluetoothShare.STATUS,
+                BluetoothShare.TOTAL_BYTES, BluetoothShare.CURRENT_BYTES,
+                BluetoothShare.TIMESTAMP, Constants.MEDIA_SCANNED});
+        cursor.addRow(new Object[] {id, "content://test/" + id, "hint", "filename", "image/jpeg",
+                BluetoothShare.DIRECTION_OUTBOUND, "AA:BB:CC:DD:EE:FF",
+                BluetoothShare.VISIBILITY_VISIBLE, BluetoothShare.USER_CONFIRMATION_CONFIRMED,
+                BluetoothShare.STATUS_RUNNING, 100, currentBytes, 123456789,
+                Constants.MEDIA_SCANNED_NOT_SCANNED});
+        return cursor;
+    }
 }
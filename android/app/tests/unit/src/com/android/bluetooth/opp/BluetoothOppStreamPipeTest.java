@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.opp;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BluetoothOppStreamPipeTest {
+    private static final int BUFFER_SIZE = 10;
+
+    @Test
+    public void startReading_returnsFileInChunksThenEmptyChunk() throws IOException {
+        byte[] file = createData(25);
+        BluetoothOppStreamPipe pipe = BluetoothOppStreamPipe.startReading("file",
+                new ByteArrayInputStream(file), BUFFER_SIZE);
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+
+        BluetoothOppStreamPipe.Chunk chunk;
+        while ((chunk = pipe.take()).mLength > 0) {
+            sent.write(chunk.mData, 0, chunk.mLength);
+            pipe.release(chunk);
+        }
+        pipe.close();
+
+        assertThat(sent.toByteArray()).isEqualTo(file);
+        assertThat(pipe.getTransferredBytes()).isEqualTo(file.length);
+        assertThat(pipe.take().mLength).isEqualTo(0);
+    }
+
+    @Test
+    public void startWriting_writesAllSubmittedChunksInOrder() throws IOException {
+        byte[] file = createData(35);
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        BluetoothOppStreamPipe pipe = BluetoothOppStreamPipe.startWriting("file", written,
+                BUFFER_SIZE);
+
+        for (int offset = 0; offset < file.length; offset += BUFFER_SIZE) {
+            BluetoothOppStreamPipe.Chunk chunk = pipe.obtain();
+            chunk.mLength = Math.min(BUFFER_SIZE, file.length - offset);
+            System.arraycopy(file, offset, chunk.mData, 0, chunk.mLength);
+            pipe.submit(chunk);
+        }
+        pipe.finish();
+
+        assertThat(written.toByteArray()).isEqualTo(file);
+        assertThat(BluetoothOppStreamPipe.getRecentStats()).isNotEmpty();
+    }
+
+    @Test
+    public void startWriting_whenWriteFails_finishThrows() throws IOException {
+        OutputStream failing = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("No space left");
+            }
+        };
+        BluetoothOppStreamPipe pipe = BluetoothOppStreamPipe.startWriting("file", failing,
+                BUFFER_SIZE);
+
+        BluetoothOppStreamPipe.Chunk chunk = pipe.obtain();
+        chunk.mLength = BUFFER_SIZE;
+        pipe.submit(chunk);
+
+        assertThrows(IOException.class, pipe::finish);
+    }
+
+    private static byte[] createData(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+}
@@ -18,27 +18,43 @@ package com.android.bluetooth.pbap;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import android.content.ContentResolver;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.res.Resources;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.RawContactsEntity;
 
 import androidx.test.filters.SmallTest;
 import androidx.test.runner.AndroidJUnit4;
 
 import com.android.bluetooth.pbap.BluetoothPbapVcardManager.ContactCursorFilter;
+import com.android.bluetooth.BluetoothMethodProxy;
 import com.android.bluetooth.pbap.BluetoothPbapVcardManager.PropertySelector;
+import com.android.bluetooth.pbap.BluetoothPbapVcardManager.RawContactEntityLoader;
 import com.android.bluetooth.pbap.BluetoothPbapVcardManager.VCardFilter;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 
 @SmallTest
@@ -51,10 +67,19 @@ public class BluetoothPbapVcardManagerNestedClassesTest {
     @Mock
     Resources mResources;
 
+    @Mock
+    BluetoothMethodProxy mMethodProxy;
+
     @Before
     public void setUp() throws Exception {
         MockitoAnnotations.initMocks(this);
         when(mContext.getResources()).thenReturn(mResources);
+        BluetoothMethodProxy.setInstanceForTesting(mMethodProxy);
+    }
+
+    @After
+    public void tearDown() {
+        BluetoothMethodProxy.setInstanceForTesting(null);
     }
 
     @Test
@@ -98,6 +123,30 @@ public class BluetoothPbapVcardManagerNestedClassesTest {
                 .isEqualTo(expectedVCard);
     }
 
+    @Test
+    public void VCardFilter_applyAndStripTelephoneNumber_filtersAndStripsInOnePass() {
+        final String separator = System.getProperty("line.separator");
+        String vCard = "BEGIN:VCARD" + separator
+                + "FN:Test Full Name" + separator
+                + "EMAIL:android@android.com:" + separator
+                + "TEL;TYPE=CELL:+1-(588)-328-382" + separator
+                + "X-ANDROID-CUSTOM:some value" + separator
+                + " folded continuation" + separator
+                + "NOTE:a note" + separator
+                + "END:VCARD";
+
+        byte[] emailExcludeFilter = new byte[] {(byte) 0xFE, (byte) 0xFF};
+        VCardFilter vCardFilter = new VCardFilter(/*filter=*/ emailExcludeFilter);
+        String expectedVCard = "BEGIN:VCARD" + separator
+                + "FN:Test Full Name" + separator
+                + "TEL;TYPE=CELL:+1588328382" + separator
+                + "NOTE:a note" + separator
+                + "END:VCARD" + separator;
+
+        assertThat(vCardFilter.applyAndStripTelephoneNumber(vCard, /*vCardType21=*/ false))
+                .isEqualTo(expectedVCard);
+    }
+
     @Test
     public void PropertySelector_checkVCardSelector_atLeastOnePropertyExists_returnsTrue() {
         final String separator = System.getProperty("line.separator");
@@ -208,6 +257,110 @@ public class BluetoothPbapVcardManagerNestedClassesTest {
         assertThat(getContactsIdFromCursor(resultCursor, 2)).isEqualTo(1004);
     }
 
+    @Test
+    public void RawContactEntityLoader_getContactData_loadsBlockInOneQuery() {
+        MatrixCursor contactIdCursor = new MatrixCursor(
+                new String[] {ContactsContract.Data.CONTACT_ID});
+        contactIdCursor.addRow(new Object[] {1001L});
+        contactIdCursor.addRow(new Object[] {1002L});
+        contactIdCursor.addRow(new Object[] {1003L});
+        MatrixCursor entityCursor = new MatrixCursor(new String[] {
+                RawContactsEntity._ID, RawContactsEntity.CONTACT_ID, RawContactsEntity.DATA_ID,
+                RawContactsEntity.MIMETYPE, RawContactsEntity.DATA1});
+        entityCursor.addRow(new Object[] {1L, 1001L, 11L, StructuredName.CONTENT_ITEM_TYPE,
+                "Alice"});
+        entityCursor.addRow(new Object[] {1L, 1001L, 12L, Phone.CONTENT_ITEM_TYPE, "123"});
+        entityCursor.addRow(new Object[] {1L, 1001L, 13L, Phone.CONTENT_ITEM_TYPE, "456"});
+        entityCursor.addRow(new Object[] {3L, 1003L, null, null, null});
+        doReturn(entityCursor).when(mMethodProxy).contentResolverQuery(any(),
+                eq(RawContactsEntity.CONTENT_URI), any(), any(), any(), any());
+        doReturn(new MatrixCursor(new String[] {RawContactsEntity._ID,
+                RawContactsEntity.CONTACT_ID})).when(mMethodProxy).contentResolverQuery(any(),
+                eq(RawContactsEntity.CONTENT_URI), any(), any(), eq(new String[] {"1002"}),
+                any());
+        RawContactEntityLoader loader =
+                new RawContactEntityLoader(mock(ContentResolver.class), contactIdCursor, 0);
+
+        contactIdCursor.moveToFirst();
+        Map<String, List<ContentValues>> data = loader.getContactData(1001);
+        assertThat(data.get(StructuredName.CONTENT_ITEM_TYPE)).hasSize(1);
+        assertThat(data.get(Phone.CONTENT_ITEM_TYPE)).hasSize(2);
+        assertThat(data.get(Phone.CONTENT_ITEM_TYPE).get(1).getAsString(Phone.NUMBER))
+                .isEqualTo("456");
+        // The cursor position is left untouched
+        assertThat(contactIdCursor.getPosition()).isEqualTo(0);
+
+        contactIdCursor.moveToNext();
+        // Deleted contact, queried again on its own
+        assertThat(loader.getContactData(1002)).isNull();
+
+        contactIdCursor.moveToNext();
+        // Contact without data
+        assertThat(loader.getContactData(1003)).isEmpty();
+
+        verify(mMethodProxy, times(2)).contentResolverQuery(any(), any(), any(), any(), any(),
+                any());
+    }
+
+    @Test
+    public void RawContactEntityLoader_getContactData_contactMissingFromBlock_queriesContact() {
+        MatrixCursor contactIdCursor = new MatrixCursor(
+                new String[] {ContactsContract.Data.CONTACT_ID});
+        contactIdCursor.addRow(new Object[] {1001L});
+        contactIdCursor.addRow(new Object[] {1002L});
+        String[] columns = new String[] {RawContactsEntity._ID, RawContactsEntity.CONTACT_ID,
+                RawContactsEntity.DATA_ID, RawContactsEntity.MIMETYPE, RawContactsEntity.DATA1};
+        MatrixCursor blockCursor = new MatrixCursor(columns);
+        blockCursor.addRow(new Object[] {1L, 1001L, 11L, StructuredName.CONTENT_ITEM_TYPE,
+                "Alice"});
+        // Contact 1002 is added back, e.g. by a sync, after the block was loaded
+        MatrixCursor contactCursor = new MatrixCursor(columns);
+        contactCursor.addRow(new Object[] {2L, 1002L, 21L, StructuredName.CONTENT_ITEM_TYPE,
+                "Bob"});
+        when(mMethodProxy.contentResolverQuery(any(), eq(RawContactsEntity.CONTENT_URI), any(),
+                any(), any(), any())).thenReturn(blockCursor, contactCursor);
+        RawContactEntityLoader loader =
+                new RawContactEntityLoader(mock(ContentResolver.class), contactIdCursor, 0);
+
+        contactIdCursor.moveToFirst();
+        assertThat(loader.getContactData(1001)).isNotNull();
+        contactIdCursor.moveToNext();
+        Map<String, List<ContentValues>> data = loader.getContactData(1002);
+
+        assertThat(data.get(StructuredName.CONTENT_ITEM_TYPE)).hasSize(1);
+        verify(mMethodProxy).contentResolverQuery(any(), any(), any(), any(),
+                eq(new String[] {"1002"}), any());
+    }
+
+    @Test
+    public void RawContactEntityLoader_getContactData_loadsFollowingBlocks() {
+        int contactCount = RawContactEntityLoader.FIRST_BLOCK_SIZE
+                + RawContactEntityLoader.BLOCK_SIZE + 1;
+        MatrixCursor contactIdCursor = new MatrixCursor(
+                new String[] {ContactsContract.Data.CONTACT_ID});
+        for (long id = 0; id < contactCount; id++) {
+            contactIdCursor.addRow(new Object[] {id});
+        }
+        when(mMethodProxy.contentResolverQuery(any(), any(), any(), any(), any(), any()))
+                .thenAnswer(invocation -> {
+                    MatrixCursor cursor = new MatrixCursor(
+                            new String[] {RawContactsEntity._ID, RawContactsEntity.CONTACT_ID});
+                    for (String contactId : (String[]) invocation.getArgument(4)) {
+                        cursor.addRow(new Object[] {contactId, contactId});
+                    }
+                    return cursor;
+                });
+        RawContactEntityLoader loader =
+                new RawContactEntityLoader(mock(ContentResolver.class), contactIdCursor, 0);
+
+        while (contactIdCursor.moveToNext()) {
+            loader.getContactData(contactIdCursor.getLong(0));
+        }
+
+        verify(mMethodProxy, times(3)).contentResolverQuery(any(), any(), any(), any(), any(),
+                any());
+    }
+
     private long getContactsIdFromCursor(Cursor cursor, int position) {
         int index = cursor.getColumnIndex(ContactsContract.Data.CONTACT_ID);
         cursor.moveToPosition(position);
@@ -22,6 +22,7 @@ import static com.google.common.truth.Truth.assertWithMessage;
 import androidx.test.filters.SmallTest;
 import androidx.test.runner.AndroidJUnit4;
 
+import com.android.bluetooth.ObexAppParameters;
 import com.android.obex.HeaderSet;
 
 import org.junit.Before;
@@ -49,4 +50,29 @@ public class BluetoothPbapRequestPullPhoneBookSizeTest {
             assertWithMessage("Exception should not happen.").fail();
         }
     }
+
+    @Test
+    public void readResponseHeaders_withVersionCounters_returnsFolderVersion() throws Exception {
+        byte[] databaseIdentifier = new byte[16];
+        byte[] primaryVersionCounter = new byte[16];
+        primaryVersionCounter[15] = 7;
+        ObexAppParameters oap = new ObexAppParameters();
+        oap.add(BluetoothPbapRequest.OAP_TAGID_PHONEBOOK_SIZE, (short) 42);
+        oap.add(BluetoothPbapRequest.OAP_TAGID_DATABASE_IDENTIFIER, databaseIdentifier);
+        oap.add(BluetoothPbapRequest.OAP_TAGID_PRIMARY_VERSION_COUNTER, primaryVersionCounter);
+        HeaderSet headerSet = new HeaderSet();
+        oap.addToHeaderSet(headerSet);
+
+        mRequest.readResponseHeaders(headerSet);
+
+        assertThat(mRequest.getFolderVersion()).isEqualTo(new PbapClientSyncState.FolderVersion(
+                databaseIdentifier, primaryVersionCounter, 42));
+    }
+
+    @Test
+    public void readResponseHeaders_withoutVersionCounters_returnsNullFolderVersion() {
+        mRequest.readResponseHeaders(new HeaderSet());
+
+        assertThat(mRequest.getFolderVersion()).isNull();
+    }
 }
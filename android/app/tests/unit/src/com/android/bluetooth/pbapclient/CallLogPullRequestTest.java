@@ -20,13 +20,23 @@ import static com.google.common.truth.Truth.assertThat;
 
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 import android.accounts.Account;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.Context;
 import android.database.MatrixCursor;
+import android.os.SystemClock;
 import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.PhoneLookup;
+import android.util.Log;
 
 import androidx.test.filters.SmallTest;
 import androidx.test.platform.app.InstrumentationRegistry;
@@ -41,6 +51,7 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.MockitoAnnotations;
 import org.mockito.Spy;
 
@@ -51,6 +62,7 @@ import java.util.List;
 @SmallTest
 @RunWith(AndroidJUnit4.class)
 public class CallLogPullRequestTest {
+    private static final String TAG = "CallLogPullRequestTest";
 
     private final Account mAccount = mock(Account.class);
     private final HashMap<String, Integer> mCallCounter = new HashMap<>();
@@ -175,17 +187,19 @@ public class CallLogPullRequestTest {
     }
 
     @Test
-    public void updateTimesContacted_cursorIsClosed() {
+    public void updateTimesContacted_cursorIsClosed() throws Exception {
         final String path = PbapClientConnectionHandler.OCH_PATH;
         final CallLogPullRequest request = new CallLogPullRequest(
                 mTargetContext, path, mCallCounter, mAccount);
-        mCallCounter.put("key", 1);
-
-        MatrixCursor cursor = new MatrixCursor(
-                new String[] {ContactsContract.PhoneLookup.CONTACT_ID});
-        cursor.addRow(new Object[] {"contact_id"});
-        doReturn(cursor).when(mMapMethodProxy).contentResolverQuery(any(), any(), eq(null),
-                eq(null), eq(null));
+        mCallCounter.put("0123456789", 1);
+
+        MatrixCursor cursor = new MatrixCursor(new String[] {Phone.CONTACT_ID, Phone.NUMBER,
+                Phone.NORMALIZED_NUMBER});
+        cursor.addRow(new Object[] {1L, "0123456789", null});
+        doReturn(cursor).when(mMapMethodProxy).contentResolverQuery(any(), any(), any(), any(),
+                any(), any());
+        doReturn(new ContentProviderResult[0]).when(mMapMethodProxy)
+                .contentResolverApplyBatch(any(), any(), any());
         assertThat(cursor.isClosed()).isFalse();
 
         request.updateTimesContacted();
@@ -193,6 +207,94 @@ public class CallLogPullRequestTest {
         assertThat(cursor.isClosed()).isTrue();
     }
 
+    @Test
+    public void updateTimesContacted_syntheticCallLog_queriesInChunksAndUpdatesInOneBatch()
+            throws Exception {
+        final int numberCount = 1000;
+        final String path = PbapClientConnectionHandler.OCH_PATH;
+        final CallLogPullRequest request = new CallLogPullRequest(
+                mTargetContext, path, mCallCounter, mAccount);
+        for (int i = 0; i < numberCount; i++) {
+            mCallCounter.put(String.format("+1555%07d", i), i % 3 + 1);
+        }
+
+        // Every other number of the call log belongs to a contact
+        doAnswer(invocation -> {
+            String[] selectionArgs = invocation.getArgument(4);
+            MatrixCursor cursor = new MatrixCursor(new String[] {Phone.CONTACT_ID, Phone.NUMBER,
+                    Phone.NORMALIZED_NUMBER});
+            for (int i = 0; i < selectionArgs.length / 2; i++) {
+                String number = selectionArgs[i];
+                long id = Long.parseLong(number.substring(5));
+                if (id % 2 == 0) {
+                    cursor.addRow(new Object[] {id, number, number});
+                }
+            }
+            return cursor;
+        }).when(mMapMethodProxy).contentResolverQuery(any(), any(), any(), any(), any(), any());
+        doReturn(new ContentProviderResult[0]).when(mMapMethodProxy)
+                .contentResolverApplyBatch(any(), any(), any());
+
+        long start = SystemClock.elapsedRealtime();
+        request.updateTimesContacted();
+        Log.i(TAG, "Updated TIMES_CONTACTED of " + numberCount + " numbers in "
+                + (SystemClock.elapsedRealtime() - start) + "ms");
+
+        int expectedQueries = (numberCount + CallLogPullRequest.MAX_NUMBERS_PER_QUERY - 1)
+                / CallLogPullRequest.MAX_NUMBERS_PER_QUERY;
+        verify(mMapMethodProxy, times(expectedQueries)).contentResolverQuery(any(), any(), any(),
+                any(), any(), any());
+        ArgumentCaptor<ArrayList<ContentProviderOperation>> ops =
+                ArgumentCaptor.forClass(ArrayList.class);
+        verify(mMapMethodProxy).contentResolverApplyBatch(any(),
+                eq(ContactsContract.AUTHORITY), ops.capture());
+        assertThat(ops.getValue()).hasSize(numberCount / 2);
+    }
+
+    @Test
+    public void updateTimesContacted_noContactFound_doesNotUpdate() throws Exception {
+        final String path = PbapClientConnectionHandler.OCH_PATH;
+        final CallLogPullRequest request = new CallLogPullRequest(
+                mTargetContext, path, mCallCounter, mAccount);
+        mCallCounter.put("0123456789", 1);
+
+        doReturn(new MatrixCursor(new String[] {Phone.CONTACT_ID, Phone.NUMBER,
+                Phone.NORMALIZED_NUMBER})).when(mMapMethodProxy).contentResolverQuery(any(), any(),
+                any(), any(), any(), any());
+
+        request.updateTimesContacted();
+
+        verify(mMapMethodProxy, never()).contentResolverApplyBatch(any(), any(), any());
+    }
+
+    @Test
+    public void updateTimesContacted_formattedNumber_resolvedByPhoneLookup() throws Exception {
+        final String path = PbapClientConnectionHandler.OCH_PATH;
+        final CallLogPullRequest request = new CallLogPullRequest(
+                mTargetContext, path, mCallCounter, mAccount);
+        mCallCounter.put("6505551234", 2);
+
+        // The contact has the number stored as "(650) 555-1234", normalized to "+16505551234"
+        doReturn(new MatrixCursor(new String[] {Phone.CONTACT_ID, Phone.NUMBER,
+                Phone.NORMALIZED_NUMBER})).when(mMapMethodProxy).contentResolverQuery(any(), any(),
+                any(), any(), any(), any());
+        MatrixCursor lookupCursor = new MatrixCursor(new String[] {PhoneLookup.CONTACT_ID});
+        lookupCursor.addRow(new Object[] {7L});
+        doReturn(lookupCursor).when(mMapMethodProxy).contentResolverQuery(any(), any(), any(),
+                any(), any());
+        doReturn(new ContentProviderResult[0]).when(mMapMethodProxy)
+                .contentResolverApplyBatch(any(), any(), any());
+
+        request.updateTimesContacted();
+
+        assertThat(lookupCursor.isClosed()).isTrue();
+        ArgumentCaptor<ArrayList<ContentProviderOperation>> ops =
+                ArgumentCaptor.forClass(ArrayList.class);
+        verify(mMapMethodProxy).contentResolverApplyBatch(any(),
+                eq(ContactsContract.AUTHORITY), ops.capture());
+        assertThat(ops.getValue()).hasSize(1);
+    }
+
     private VCardProperty createProperty(String name, String value) {
         VCardProperty property = new VCardProperty();
         property.setName(name);
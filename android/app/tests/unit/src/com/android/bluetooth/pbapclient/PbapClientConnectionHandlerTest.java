@@ -18,10 +18,13 @@ package com.android.bluetooth.pbapclient;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import android.bluetooth.BluetoothAdapter;
@@ -114,6 +117,7 @@ public class PbapClientConnectionHandlerTest {
     @Test
     public void connectSocket_whenBluetoothIsNotEnabled_returnsFalse() {
         assertThat(mHandler.connectSocket()).isFalse();
+        verify(mAdapterService, never()).invalidateSdpRecords(any());
     }
 
     @Test
@@ -132,6 +136,7 @@ public class PbapClientConnectionHandlerTest {
 
         when(record.getL2capPsm()).thenReturn(1); // Valid PSM ranges 1 to 30;
         assertThat(mHandler.connectSocket()).isFalse();
+        verify(mAdapterService).invalidateSdpRecords(mRemoteDevice);
     }
 
     // TODO: Add connectObexSession_returnsTrue
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.pbapclient;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.bluetooth.pbapclient.PbapClientSyncState.FolderVersion;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.HashMap;
+import java.util.Map;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class PbapClientSyncStateTest {
+    private static final String ADDRESS = "00:01:02:03:04:05";
+    private static final String OTHER_ADDRESS = "00:01:02:03:04:06";
+
+    private PbapClientSyncState mSyncState;
+
+    @Before
+    public void setUp() {
+        mSyncState = new PbapClientSyncState(InstrumentationRegistry.getTargetContext());
+        mSyncState.clear();
+    }
+
+    @After
+    public void tearDown() {
+        mSyncState.clear();
+    }
+
+    @Test
+    public void put_thenGet_returnsSameVersions() {
+        Map<String, FolderVersion> versions = new HashMap<>();
+        versions.put(PbapClientConnectionHandler.PB_PATH, newVersion(1, 100));
+        versions.put(PbapClientConnectionHandler.FAV_PATH, newVersion(2, 3));
+
+        mSyncState.put(ADDRESS, versions);
+
+        assertThat(mSyncState.get(ADDRESS)).isEqualTo(versions);
+        assertThat(mSyncState.contains(ADDRESS)).isTrue();
+        assertThat(mSyncState.contains(OTHER_ADDRESS)).isFalse();
+    }
+
+    @Test
+    public void put_replacesPreviousVersions() {
+        Map<String, FolderVersion> versions = new HashMap<>();
+        versions.put(PbapClientConnectionHandler.PB_PATH, newVersion(1, 100));
+        versions.put(PbapClientConnectionHandler.SIM_PB_PATH, newVersion(1, 5));
+        mSyncState.put(ADDRESS, versions);
+
+        Map<String, FolderVersion> newVersions = new HashMap<>();
+        newVersions.put(PbapClientConnectionHandler.PB_PATH, newVersion(2, 101));
+        mSyncState.put(ADDRESS, newVersions);
+
+        assertThat(mSyncState.get(ADDRESS)).isEqualTo(newVersions);
+    }
+
+    @Test
+    public void remove_onlyForgetsGivenDevice() {
+        Map<String, FolderVersion> versions = new HashMap<>();
+        versions.put(PbapClientConnectionHandler.PB_PATH, newVersion(1, 100));
+        mSyncState.put(ADDRESS, versions);
+        mSyncState.put(OTHER_ADDRESS, versions);
+
+        mSyncState.remove(ADDRESS);
+
+        assertThat(mSyncState.contains(ADDRESS)).isFalse();
+        assertThat(mSyncState.get(OTHER_ADDRESS)).isEqualTo(versions);
+    }
+
+    @Test
+    public void folderVersion_equals_comparesAllFields() {
+        assertThat(newVersion(1, 100)).isEqualTo(newVersion(1, 100));
+        assertThat(newVersion(1, 100)).isNotEqualTo(newVersion(2, 100));
+        assertThat(newVersion(1, 100)).isNotEqualTo(newVersion(1, 101));
+    }
+
+    private static FolderVersion newVersion(int counter, int size) {
+        byte[] databaseIdentifier = new byte[16];
+        databaseIdentifier[0] = 0x42;
+        byte[] primaryVersionCounter = new byte[16];
+        primaryVersionCounter[15] = (byte) counter;
+        return new FolderVersion(databaseIdentifier, primaryVersionCounter, size);
+    }
+}
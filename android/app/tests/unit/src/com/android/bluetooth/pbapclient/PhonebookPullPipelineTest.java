@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.pbapclient;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.vcard.VCardEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class PhonebookPullPipelineTest {
+
+    private final List<List<VCardEntry>> mWritten =
+            Collections.synchronizedList(new ArrayList<>());
+    private final List<Thread> mWriterThreads = Collections.synchronizedList(new ArrayList<>());
+
+    private final PullRequest mProcessor = new PullRequest() {
+        @Override
+        public void onPullComplete() {
+            mWriterThreads.add(Thread.currentThread());
+            mWritten.add(mEntries);
+        }
+    };
+
+    @Test
+    public void finish_writesAllBatchesInOrderOnWriterThread() throws Exception {
+        PhonebookPullPipeline pipeline = new PhonebookPullPipeline(mProcessor, 250);
+        List<VCardEntry> first = List.of(new VCardEntry());
+        List<VCardEntry> second = List.of(new VCardEntry(), new VCardEntry());
+        List<VCardEntry> third = List.of(new VCardEntry());
+
+        pipeline.start();
+        pipeline.submit(first, 10);
+        pipeline.submit(second, 10);
+        pipeline.submit(third, 10);
+        pipeline.finish();
+
+        assertThat(mWritten).containsExactly(first, second, third).inOrder();
+        assertThat(pipeline.getWrittenBatchCount()).isEqualTo(3);
+        for (Thread thread : mWriterThreads) {
+            assertThat(thread).isNotSameInstanceAs(Thread.currentThread());
+        }
+    }
+
+    @Test
+    public void finish_withoutBatches_returns() throws Exception {
+        PhonebookPullPipeline pipeline = new PhonebookPullPipeline(mProcessor, 250);
+
+        pipeline.start();
+        pipeline.finish();
+
+        assertThat(mWritten).isEmpty();
+    }
+
+    @Test
+    public void abort_fromInterruptedThread_stopsWriterAndKeepsInterruptStatus() {
+        PhonebookPullPipeline pipeline = new PhonebookPullPipeline(mProcessor, 250);
+
+        pipeline.start();
+        Thread.currentThread().interrupt();
+        pipeline.abort();
+
+        // Clears the interrupt status for the following tests
+        assertThat(Thread.interrupted()).isTrue();
+        assertThat(mWritten).isEmpty();
+    }
+
+    @Test
+    public void getBatchSize_beforeAnyWrite_returnsInitialSize() throws Exception {
+        PhonebookPullPipeline pipeline = new PhonebookPullPipeline(mProcessor, 250);
+
+        assertThat(pipeline.getBatchSize()).isEqualTo(250);
+    }
+
+    @Test
+    public void getNextBatchSize_pullSlowerThanWrite_grows() {
+        assertThat(PhonebookPullPipeline.getNextBatchSize(250, 2000, 500)).isEqualTo(500);
+        assertThat(PhonebookPullPipeline.getNextBatchSize(
+                PhonebookPullPipeline.MAX_BATCH_SIZE, 2000, 500))
+                .isEqualTo(PhonebookPullPipeline.MAX_BATCH_SIZE);
+    }
+
+    @Test
+    public void getNextBatchSize_writeSlowerThanPull_shrinks() {
+        assertThat(PhonebookPullPipeline.getNextBatchSize(250, 500, 2000)).isEqualTo(125);
+        assertThat(PhonebookPullPipeline.getNextBatchSize(
+                PhonebookPullPipeline.MIN_BATCH_SIZE, 500, 2000))
+                .isEqualTo(PhonebookPullPipeline.MIN_BATCH_SIZE);
+    }
+}
@@ -18,7 +18,9 @@ package com.android.bluetooth.sdp;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 import android.bluetooth.BluetoothAdapter;
@@ -138,4 +140,22 @@ public class DipTest {
         verifyDipSdpRecordIntent(mIntentArgument, AbstractionLayer.BT_STATUS_SUCCESS, mTestDevice,
                 uuid, specificationId, vendorId, vendorIdSource, productId, version, primaryRecord);
     }
+
+    @Test
+    public void testSdpSearch_afterCompleteSearch_usesCachedRecords() {
+        byte[] uuid = Utils.uuidToByteArray(BluetoothUuid.DIP);
+
+        mSdpManager.sdpSearch(mTestDevice, BluetoothUuid.DIP);
+        mSdpManager.sdpDipRecordFoundCallback(AbstractionLayer.BT_STATUS_SUCCESS,
+                Utils.getByteAddress(mTestDevice), uuid, 0x0103, 0x18d1, 1, 0x1234, 0x0100,
+                true, false);
+        mSdpManager.sdpSearch(mTestDevice, BluetoothUuid.DIP);
+
+        verify(mNativeInterface, times(1)).sdpSearch(any(), any());
+
+        mSdpManager.invalidateRecords(mTestDevice);
+        mSdpManager.sdpSearch(mTestDevice, BluetoothUuid.DIP);
+
+        verify(mNativeInterface, times(2)).sdpSearch(any(), any());
+    }
 }
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.sdp;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.bluetooth.BluetoothUuid;
+import android.bluetooth.SdpMasRecord;
+import android.bluetooth.SdpPseRecord;
+import android.os.Parcelable;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class SdpRecordCacheTest {
+    private static final String ADDRESS = "00:01:02:03:04:05";
+    private static final String OTHER_ADDRESS = "00:01:02:03:04:06";
+
+    private final SdpRecordCache mCache = new SdpRecordCache();
+    private final Parcelable mMasRecord = new SdpMasRecord(0, 0x1005, 2, 0x0104, 0x7f, 0x0f, "MAS");
+    private final Parcelable mPseRecord = new SdpPseRecord(0x1007, 3, 0x0102, 0x3ff, 0x01, "PSE");
+
+    @Test
+    public void get_withinTimeout_returnsRecords() {
+        mCache.put(ADDRESS, BluetoothUuid.MAS, List.of(mMasRecord), 1000);
+        mCache.put(ADDRESS, BluetoothUuid.PBAP_PSE, List.of(mPseRecord), 1000);
+
+        assertThat(mCache.get(ADDRESS, BluetoothUuid.MAS, 1000 + SdpRecordCache.ENTRY_TIMEOUT_MS))
+                .containsExactly(mMasRecord);
+        assertThat(mCache.get(ADDRESS, BluetoothUuid.PBAP_PSE, 2000))
+                .containsExactly(mPseRecord);
+        assertThat(mCache.get(OTHER_ADDRESS, BluetoothUuid.MAS, 2000)).isNull();
+    }
+
+    @Test
+    public void get_afterTimeout_returnsNull() {
+        mCache.put(ADDRESS, BluetoothUuid.MAS, List.of(mMasRecord), 1000);
+
+        assertThat(mCache.get(ADDRESS, BluetoothUuid.MAS,
+                1001 + SdpRecordCache.ENTRY_TIMEOUT_MS)).isNull();
+        assertThat(mCache.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void remove_forgetsAllUuidsOfDevice() {
+        mCache.put(ADDRESS, BluetoothUuid.MAS, List.of(mMasRecord), 1000);
+        mCache.put(ADDRESS, BluetoothUuid.PBAP_PSE, List.of(mPseRecord), 1000);
+        mCache.put(OTHER_ADDRESS, BluetoothUuid.MAS, List.of(mMasRecord), 1000);
+
+        mCache.remove(ADDRESS);
+
+        assertThat(mCache.get(ADDRESS, BluetoothUuid.MAS, 1000)).isNull();
+        assertThat(mCache.get(ADDRESS, BluetoothUuid.PBAP_PSE, 1000)).isNull();
+        assertThat(mCache.get(OTHER_ADDRESS, BluetoothUuid.MAS, 1000))
+                .containsExactly(mMasRecord);
+    }
+
+    @Test
+    public void put_overCapacity_dropsLeastRecentlyUsed() {
+        for (int i = 0; i <= SdpRecordCache.MAX_ENTRIES; i++) {
+            mCache.put(String.format("00:01:02:03:%02X:%02X", i / 256, i % 256),
+                    BluetoothUuid.MAS, List.of(mMasRecord), 1000);
+        }
+
+        assertThat(mCache.size()).isEqualTo(SdpRecordCache.MAX_ENTRIES);
+        assertThat(mCache.get("00:01:02:03:00:00", BluetoothUuid.MAS, 1000)).isNull();
+    }
+}
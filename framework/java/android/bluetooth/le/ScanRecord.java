@@ -335,30 +335,55 @@ public final class ScanRecord {
      */
     public static final int DATA_TYPE_MANUFACTURER_SPECIFIC_DATA = 0xFF;
 
+    // Fields of a lazily parsed record which have not been materialized yet.
+    private static final int FIELD_SERVICE_UUIDS = 1;
+    private static final int FIELD_SERVICE_SOLICITATION_UUIDS = 1 << 1;
+    private static final int FIELD_MANUFACTURER_SPECIFIC_DATA = 1 << 2;
+    private static final int FIELD_SERVICE_DATA = 1 << 3;
+    private static final int FIELD_DEVICE_NAME = 1 << 4;
+    private static final int FIELD_ADVERTISING_DATA_MAP = 1 << 5;
+    private static final int ALL_LAZY_FIELDS =
+            FIELD_SERVICE_UUIDS
+                    | FIELD_SERVICE_SOLICITATION_UUIDS
+                    | FIELD_MANUFACTURER_SPECIFIC_DATA
+                    | FIELD_SERVICE_DATA
+                    | FIELD_DEVICE_NAME
+                    | FIELD_ADVERTISING_DATA_MAP;
+
+    // Number of ints per entry of mStructures: field type, data offset and data length.
+    private static final int STRUCTURE_ENTRY_SIZE = 3;
+
     // Flags of the advertising data.
     private final int mAdvertiseFlags;
 
-    @Nullable private final List<ParcelUuid> mServiceUuids;
-    @Nullable private final List<ParcelUuid> mServiceSolicitationUuids;
+    @Nullable private List<ParcelUuid> mServiceUuids;
+    @Nullable private List<ParcelUuid> mServiceSolicitationUuids;
 
-    private final SparseArray<byte[]> mManufacturerSpecificData;
+    private SparseArray<byte[]> mManufacturerSpecificData;
 
-    private final Map<ParcelUuid, byte[]> mServiceData;
+    private Map<ParcelUuid, byte[]> mServiceData;
 
     // Transmission power level(in dB).
     private final int mTxPowerLevel;
 
     // Local name of the Bluetooth LE device.
-    private final String mDeviceName;
+    private String mDeviceName;
 
     // Raw bytes of scan record.
     private final byte[] mBytes;
 
-    private final Map<Integer, byte[]> mAdvertisingDataMap;
+    private Map<Integer, byte[]> mAdvertisingDataMap;
 
     // Transport Discovery data.
     private final TransportDiscoveryData mTransportDiscoveryData;
 
+    // Offset table of a lazily parsed record, null for an eagerly parsed one.
+    @Nullable private final int[] mStructures;
+    private final int mStructureCount;
+
+    // FIELD_* bits of the fields still to be materialized from mStructures.
+    private volatile int mPendingFields;
+
     /**
      * Returns the advertising flags indicating the discoverable mode and capability of the device.
      * Returns -1 if the flag field is not set.
@@ -372,6 +397,9 @@ public final class ScanRecord {
      * bluetooth GATT services.
      */
     public List<ParcelUuid> getServiceUuids() {
+        if ((mPendingFields & FIELD_SERVICE_UUIDS) != 0) {
+            materialize(FIELD_SERVICE_UUIDS);
+        }
         return mServiceUuids;
     }
 
@@ -381,6 +409,9 @@ public final class ScanRecord {
      */
     @NonNull
     public List<ParcelUuid> getServiceSolicitationUuids() {
+        if ((mPendingFields & FIELD_SERVICE_SOLICITATION_UUIDS) != 0) {
+            materialize(FIELD_SERVICE_SOLICITATION_UUIDS);
+        }
         return mServiceSolicitationUuids;
     }
 
@@ -389,6 +420,9 @@ public final class ScanRecord {
      * data.
      */
     public SparseArray<byte[]> getManufacturerSpecificData() {
+        if ((mPendingFields & FIELD_MANUFACTURER_SPECIFIC_DATA) != 0) {
+            materialize(FIELD_MANUFACTURER_SPECIFIC_DATA);
+        }
         return mManufacturerSpecificData;
     }
 
@@ -398,14 +432,18 @@ public final class ScanRecord {
      */
     @Nullable
     public byte[] getManufacturerSpecificData(int manufacturerId) {
-        if (mManufacturerSpecificData == null) {
+        SparseArray<byte[]> manufacturerSpecificData = getManufacturerSpecificData();
+        if (manufacturerSpecificData == null) {
             return null;
         }
-        return mManufacturerSpecificData.get(manufacturerId);
+        return manufacturerSpecificData.get(manufacturerId);
     }
 
     /** Returns a map of service UUID and its corresponding service data. */
     public Map<ParcelUuid, byte[]> getServiceData() {
+        if ((mPendingFields & FIELD_SERVICE_DATA) != 0) {
+            materialize(FIELD_SERVICE_DATA);
+        }
         return mServiceData;
     }
 
@@ -415,10 +453,14 @@ public final class ScanRecord {
      */
     @Nullable
     public byte[] getServiceData(ParcelUuid serviceDataUuid) {
-        if (serviceDataUuid == null || mServiceData == null) {
+        if (serviceDataUuid == null) {
+            return null;
+        }
+        Map<ParcelUuid, byte[]> serviceData = getServiceData();
+        if (serviceData == null) {
             return null;
         }
-        return mServiceData.get(serviceDataUuid);
+        return serviceData.get(serviceDataUuid);
     }
 
     /**
@@ -435,6 +477,9 @@ public final class ScanRecord {
     /** Returns the local name of the BLE device. This is a UTF-8 encoded string. */
     @Nullable
     public String getDeviceName() {
+        if ((mPendingFields & FIELD_DEVICE_NAME) != 0) {
+            materialize(FIELD_DEVICE_NAME);
+        }
         return mDeviceName;
     }
 
@@ -444,6 +489,9 @@ public final class ScanRecord {
      * (https://www.bluetooth.com/specifications/assigned-numbers/)
      */
     public @NonNull Map<Integer, byte[]> getAdvertisingDataMap() {
+        if ((mPendingFields & FIELD_ADVERTISING_DATA_MAP) != 0) {
+            materialize(FIELD_ADVERTISING_DATA_MAP);
+        }
         return mAdvertisingDataMap;
     }
 
@@ -504,6 +552,120 @@ public final class ScanRecord {
         mAdvertisingDataMap = advertisingDataMap;
         mTransportDiscoveryData = transportDiscoveryData;
         mBytes = bytes;
+        mStructures = null;
+        mStructureCount = 0;
+        mPendingFields = 0;
+    }
+
+    private ScanRecord(
+            int[] structures,
+            int structureCount,
+            int advertiseFlags,
+            int txPowerLevel,
+            TransportDiscoveryData transportDiscoveryData,
+            byte[] bytes) {
+        mStructures = structures;
+        mStructureCount = structureCount;
+        mAdvertiseFlags = advertiseFlags;
+        mTxPowerLevel = txPowerLevel;
+        mTransportDiscoveryData = transportDiscoveryData;
+        mBytes = bytes;
+        mPendingFields = ALL_LAZY_FIELDS;
+    }
+
+    // Decodes a field of a lazily parsed record from the offset table.
+    private synchronized void materialize(int field) {
+        if ((mPendingFields & field) == 0) {
+            return;
+        }
+        switch (field) {
+            case FIELD_SERVICE_UUIDS:
+                List<ParcelUuid> serviceUuids = new ArrayList<ParcelUuid>();
+                for (int i = 0; i < mStructureCount * STRUCTURE_ENTRY_SIZE;
+                        i += STRUCTURE_ENTRY_SIZE) {
+                    int uuidLength = getServiceUuidLength(mStructures[i]);
+                    if (uuidLength > 0) {
+                        parseServiceUuid(
+                                mBytes, mStructures[i + 1], mStructures[i + 2], uuidLength,
+                                serviceUuids);
+                    }
+                }
+                mServiceUuids = serviceUuids.isEmpty() ? null : serviceUuids;
+                break;
+            case FIELD_SERVICE_SOLICITATION_UUIDS:
+                List<ParcelUuid> serviceSolicitationUuids = new ArrayList<ParcelUuid>();
+                for (int i = 0; i < mStructureCount * STRUCTURE_ENTRY_SIZE;
+                        i += STRUCTURE_ENTRY_SIZE) {
+                    int uuidLength = getServiceSolicitationUuidLength(mStructures[i]);
+                    if (uuidLength > 0) {
+                        parseServiceSolicitationUuid(
+                                mBytes, mStructures[i + 1], mStructures[i + 2], uuidLength,
+                                serviceSolicitationUuids);
+                    }
+                }
+                mServiceSolicitationUuids = serviceSolicitationUuids;
+                break;
+            case FIELD_MANUFACTURER_SPECIFIC_DATA:
+                SparseArray<byte[]> manufacturerData = new SparseArray<byte[]>();
+                for (int i = 0; i < mStructureCount * STRUCTURE_ENTRY_SIZE;
+                        i += STRUCTURE_ENTRY_SIZE) {
+                    if (mStructures[i] == DATA_TYPE_MANUFACTURER_SPECIFIC_DATA) {
+                        int offset = mStructures[i + 1];
+                        int manufacturerId =
+                                ((mBytes[offset + 1] & 0xFF) << 8) + (mBytes[offset] & 0xFF);
+                        manufacturerData.put(
+                                manufacturerId,
+                                extractBytes(mBytes, offset + 2, mStructures[i + 2] - 2));
+                    }
+                }
+                mManufacturerSpecificData = manufacturerData;
+                break;
+            case FIELD_SERVICE_DATA:
+                Map<ParcelUuid, byte[]> serviceData = new ArrayMap<ParcelUuid, byte[]>();
+                for (int i = 0; i < mStructureCount * STRUCTURE_ENTRY_SIZE;
+                        i += STRUCTURE_ENTRY_SIZE) {
+                    int uuidLength = getServiceDataUuidLength(mStructures[i]);
+                    if (uuidLength > 0) {
+                        int offset = mStructures[i + 1];
+                        serviceData.put(
+                                BluetoothUuid.parseUuidFrom(
+                                        extractBytes(mBytes, offset, uuidLength)),
+                                extractBytes(
+                                        mBytes,
+                                        offset + uuidLength,
+                                        mStructures[i + 2] - uuidLength));
+                    }
+                }
+                mServiceData = serviceData;
+                break;
+            case FIELD_DEVICE_NAME:
+                String localName = null;
+                for (int i = 0; i < mStructureCount * STRUCTURE_ENTRY_SIZE;
+                        i += STRUCTURE_ENTRY_SIZE) {
+                    if (mStructures[i] == DATA_TYPE_LOCAL_NAME_SHORT
+                            || mStructures[i] == DATA_TYPE_LOCAL_NAME_COMPLETE) {
+                        localName =
+                                new String(
+                                        extractBytes(
+                                                mBytes, mStructures[i + 1], mStructures[i + 2]));
+                    }
+                }
+                mDeviceName = localName;
+                break;
+            case FIELD_ADVERTISING_DATA_MAP:
+                HashMap<Integer, byte[]> advertisingDataMap = new HashMap<Integer, byte[]>();
+                for (int i = 0; i < mStructureCount * STRUCTURE_ENTRY_SIZE;
+                        i += STRUCTURE_ENTRY_SIZE) {
+                    advertisingDataMap.put(
+                            mStructures[i],
+                            extractBytes(mBytes, mStructures[i + 1], mStructures[i + 2]));
+                }
+                mAdvertisingDataMap = advertisingDataMap;
+                break;
+            default:
+                break;
+        }
+        mPendingFields &= ~field;
     }
 
     /**
@@ -689,22 +851,172 @@ public final class ScanRecord {
         }
     }
 
+    /**
+     * Parse scan record bytes to a {@link ScanRecord} which decodes its fields on demand.
+     *
+     * <p>A single pass over {@code scanRecord} records the type, offset and length of every AD
+     * structure without copying it. Service UUIDs, service data, manufacturer specific data, the
+     * local name and the advertising data map are only built when their getter is first called.
+     * The resulting record is indistinguishable from one returned by {@link #parseFromBytes}; a
+     * malformed record is handed over to {@link #parseFromBytes} as a whole.
+     *
+     * @param scanRecord The scan record of Bluetooth LE advertisement and/or scan response.
+     * @hide
+     */
+    public static ScanRecord parseFromBytesLazy(byte[] scanRecord) {
+        if (scanRecord == null) {
+            return null;
+        }
+
+        int currentPos = 0;
+        int advertiseFlag = -1;
+        int txPowerLevel = Integer.MIN_VALUE;
+        TransportDiscoveryData transportDiscoveryData = null;
+        int[] structures = new int[8 * STRUCTURE_ENTRY_SIZE];
+        int structureCount = 0;
+
+        while (currentPos < scanRecord.length) {
+            // length is unsigned int.
+            int length = scanRecord[currentPos++] & 0xFF;
+            if (length == 0) {
+                break;
+            }
+            // Note the length includes the length of the field type itself.
+            int dataLength = length - 1;
+            if (currentPos + 1 + dataLength > scanRecord.length) {
+                // Truncated structure.
+                return parseFromBytes(scanRecord);
+            }
+            // fieldType is unsigned int.
+            int fieldType = scanRecord[currentPos++] & 0xFF;
+            switch (fieldType) {
+                case DATA_TYPE_FLAGS:
+                case DATA_TYPE_TX_POWER_LEVEL:
+                    if (currentPos >= scanRecord.length) {
+                        return parseFromBytes(scanRecord);
+                    }
+                    if (fieldType == DATA_TYPE_FLAGS) {
+                        advertiseFlag = scanRecord[currentPos] & 0xFF;
+                    } else {
+                        txPowerLevel = scanRecord[currentPos];
+                    }
+                    break;
+                case DATA_TYPE_SERVICE_DATA_16_BIT:
+                case DATA_TYPE_SERVICE_DATA_32_BIT:
+                case DATA_TYPE_SERVICE_DATA_128_BIT:
+                    if (dataLength < getServiceDataUuidLength(fieldType)) {
+                        return parseFromBytes(scanRecord);
+                    }
+                    break;
+                case DATA_TYPE_MANUFACTURER_SPECIFIC_DATA:
+                    if (dataLength < 2) {
+                        return parseFromBytes(scanRecord);
+                    }
+                    break;
+                case DATA_TYPE_TRANSPORT_DISCOVERY_DATA:
+                    try {
+                        // -1 / +1 to include the type in the extract
+                        transportDiscoveryData =
+                                new TransportDiscoveryData(
+                                        extractBytes(scanRecord, currentPos - 1, dataLength + 1));
+                    } catch (Exception e) {
+                        return parseFromBytes(scanRecord);
+                    }
+                    break;
+                default:
+                    int uuidLength = getServiceUuidLength(fieldType);
+                    if (uuidLength == 0) {
+                        uuidLength = getServiceSolicitationUuidLength(fieldType);
+                    }
+                    // UUIDs are read in whole units, possibly past the end of the structure.
+                    if (uuidLength > 0
+                            && currentPos + (dataLength + uuidLength - 1) / uuidLength * uuidLength
+                                    > scanRecord.length) {
+                        return parseFromBytes(scanRecord);
+                    }
+                    break;
+            }
+            if ((structureCount + 1) * STRUCTURE_ENTRY_SIZE > structures.length) {
+                structures = Arrays.copyOf(structures, structures.length * 2);
+            }
+            int entry = structureCount * STRUCTURE_ENTRY_SIZE;
+            structures[entry] = fieldType;
+            structures[entry + 1] = currentPos;
+            structures[entry + 2] = dataLength;
+            structureCount++;
+            currentPos += dataLength;
+        }
+
+        return new ScanRecord(
+                structures,
+                structureCount,
+                advertiseFlag,
+                txPowerLevel,
+                transportDiscoveryData,
+                scanRecord);
+    }
+
+    // Returns the UUID length of a service UUID list type, 0 for other types.
+    private static int getServiceUuidLength(int fieldType) {
+        switch (fieldType) {
+            case DATA_TYPE_SERVICE_UUIDS_16_BIT_PARTIAL:
+            case DATA_TYPE_SERVICE_UUIDS_16_BIT_COMPLETE:
+                return BluetoothUuid.UUID_BYTES_16_BIT;
+            case DATA_TYPE_SERVICE_UUIDS_32_BIT_PARTIAL:
+            case DATA_TYPE_SERVICE_UUIDS_32_BIT_COMPLETE:
+                return BluetoothUuid.UUID_BYTES_32_BIT;
+            case DATA_TYPE_SERVICE_UUIDS_128_BIT_PARTIAL:
+            case DATA_TYPE_SERVICE_UUIDS_128_BIT_COMPLETE:
+                return BluetoothUuid.UUID_BYTES_128_BIT;
+            default:
+                return 0;
+        }
+    }
+
+    // Returns the UUID length of a service solicitation UUID list type, 0 for other types.
+    private static int getServiceSolicitationUuidLength(int fieldType) {
+        switch (fieldType) {
+            case DATA_TYPE_SERVICE_SOLICITATION_UUIDS_16_BIT:
+                return BluetoothUuid.UUID_BYTES_16_BIT;
+            case DATA_TYPE_SERVICE_SOLICITATION_UUIDS_32_BIT:
+                return BluetoothUuid.UUID_BYTES_32_BIT;
+            case DATA_TYPE_SERVICE_SOLICITATION_UUIDS_128_BIT:
+                return BluetoothUuid.UUID_BYTES_128_BIT;
+            default:
+                return 0;
+        }
+    }
+
+    // Returns the UUID length of a service data type, 0 for other types.
+    private static int getServiceDataUuidLength(int fieldType) {
+        switch (fieldType) {
+            case DATA_TYPE_SERVICE_DATA_16_BIT:
+                return BluetoothUuid.UUID_BYTES_16_BIT;
+            case DATA_TYPE_SERVICE_DATA_32_BIT:
+                return BluetoothUuid.UUID_BYTES_32_BIT;
+            case DATA_TYPE_SERVICE_DATA_128_BIT:
+                return BluetoothUuid.UUID_BYTES_128_BIT;
+            default:
+                return 0;
+        }
+    }
+
     @Override
     public String toString() {
         return "ScanRecord [mAdvertiseFlags="
                 + mAdvertiseFlags
                 + ", mServiceUuids="
-                + mServiceUuids
+                + getServiceUuids()
                 + ", mServiceSolicitationUuids="
-                + mServiceSolicitationUuids
+                + getServiceSolicitationUuids()
                 + ", mManufacturerSpecificData="
-                + BluetoothLeUtils.toString(mManufacturerSpecificData)
+                + BluetoothLeUtils.toString(getManufacturerSpecificData())
                 + ", mServiceData="
-                + BluetoothLeUtils.toString(mServiceData)
+                + BluetoothLeUtils.toString(getServiceData())
                 + ", mTxPowerLevel="
                 + mTxPowerLevel
                 + ", mDeviceName="
-                + mDeviceName
+                + getDeviceName()
                 + ", mTransportDiscoveryData="
                 + mTransportDiscoveryData
                 + "]";
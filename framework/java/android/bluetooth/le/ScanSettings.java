@@ -162,6 +162,13 @@ public final class ScanSettings implements Parcelable {
      */
     public static final int PHY_LE_ALL_SUPPORTED = 255;
 
+    /**
+     * Maximum window for {@link ScanSettings.Builder#setResultCoalescing}.
+     *
+     * @hide
+     */
+    public static final long MAX_RESULT_COALESCING_WINDOW_MILLIS = 1000;
+
     // Bluetooth LE scan mode.
     private int mScanMode;
 
@@ -183,6 +190,12 @@ public final class ScanSettings implements Parcelable {
 
     private int mPhy;
 
+    // Window in which regular scan results are collected before delivery, 0 if disabled.
+    private long mResultCoalescingWindowMillis;
+
+    // Number of collected results which triggers an early delivery.
+    private int mResultCoalescingMaxResults;
+
     public int getScanMode() {
         return mScanMode;
     }
@@ -223,6 +236,26 @@ public final class ScanSettings implements Parcelable {
         return mReportDelayMillis;
     }
 
+    /**
+     * Returns the window in milliseconds in which scan results are coalesced before delivery, or 0
+     * if every result is delivered as soon as it is found.
+     *
+     * @hide
+     */
+    public long getResultCoalescingWindowMillis() {
+        return mResultCoalescingWindowMillis;
+    }
+
+    /**
+     * Returns the number of coalesced scan results which triggers a delivery before the window
+     * expires.
+     *
+     * @hide
+     */
+    public int getResultCoalescingMaxResults() {
+        return mResultCoalescingMaxResults;
+    }
+
     private ScanSettings(
             int scanMode,
             int callbackType,
@@ -231,7 +264,9 @@ public final class ScanSettings implements Parcelable {
             int matchMode,
             int numOfMatchesPerFilter,
             boolean legacy,
-            int phy) {
+            int phy,
+            long resultCoalescingWindowMillis,
+            int resultCoalescingMaxResults) {
         mScanMode = scanMode;
         mCallbackType = callbackType;
         mScanResultType = scanResultType;
@@ -240,6 +275,8 @@ public final class ScanSettings implements Parcelable {
         mMatchMode = matchMode;
         mLegacy = legacy;
         mPhy = phy;
+        mResultCoalescingWindowMillis = resultCoalescingWindowMillis;
+        mResultCoalescingMaxResults = resultCoalescingMaxResults;
     }
 
     private ScanSettings(Parcel in) {
@@ -251,6 +288,8 @@ public final class ScanSettings implements Parcelable {
         mNumOfMatchesPerFilter = in.readInt();
         mLegacy = in.readInt() != 0;
         mPhy = in.readInt();
+        mResultCoalescingWindowMillis = in.readLong();
+        mResultCoalescingMaxResults = in.readInt();
     }
 
     @Override
@@ -263,6 +302,8 @@ public final class ScanSettings implements Parcelable {
         dest.writeInt(mNumOfMatchesPerFilter);
         dest.writeInt(mLegacy ? 1 : 0);
         dest.writeInt(mPhy);
+        dest.writeLong(mResultCoalescingWindowMillis);
+        dest.writeInt(mResultCoalescingMaxResults);
     }
 
     @Override
@@ -293,6 +334,8 @@ public final class ScanSettings implements Parcelable {
         private int mNumOfMatchesPerFilter = MATCH_NUM_MAX_ADVERTISEMENT;
         private boolean mLegacy = true;
         private int mPhy = PHY_LE_ALL_SUPPORTED;
+        private long mResultCoalescingWindowMillis = 0;
+        private int mResultCoalescingMaxResults = 0;
 
         /**
          * Set scan mode for Bluetooth LE scan.
@@ -442,6 +485,32 @@ public final class ScanSettings implements Parcelable {
             return this;
         }
 
+        /**
+         * Set whether results of a scan without report delay should be coalesced. Results found
+         * within {@code windowMillis} of the first pending result, or until {@code maxResults} are
+         * pending, are delivered together through {@link ScanCallback#onBatchScanResults}.
+         * Repeated advertisements with the same device and payload within the window are only
+         * reported once, with the most recent signal strength and timestamp.
+         *
+         * @param windowMillis coalescing window in milliseconds, 0 to deliver every result as soon
+         *     as it is found. At most {@link #MAX_RESULT_COALESCING_WINDOW_MILLIS}.
+         * @param maxResults number of pending results that triggers an early delivery
+         * @throws IllegalArgumentException if {@code windowMillis} or {@code maxResults} is out of
+         *     range
+         * @hide
+         */
+        public Builder setResultCoalescing(long windowMillis, int maxResults) {
+            if (windowMillis < 0 || windowMillis > MAX_RESULT_COALESCING_WINDOW_MILLIS) {
+                throw new IllegalArgumentException("invalid coalescing window " + windowMillis);
+            }
+            if (windowMillis > 0 && maxResults < 1) {
+                throw new IllegalArgumentException("invalid coalescing max results " + maxResults);
+            }
+            mResultCoalescingWindowMillis = windowMillis;
+            mResultCoalescingMaxResults = windowMillis > 0 ? maxResults : 0;
+            return this;
+        }
+
         /**
          * Build {@link ScanSettings}.
          *
@@ -462,7 +531,9 @@ public final class ScanSettings implements Parcelable {
                     mMatchMode,
                     mNumOfMatchesPerFilter,
                     mLegacy,
-                    mPhy);
+                    mPhy,
+                    mResultCoalescingWindowMillis,
+                    mResultCoalescingMaxResults);
         }
     }
 }
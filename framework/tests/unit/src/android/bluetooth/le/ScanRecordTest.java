@@ -180,6 +180,58 @@ public class ScanRecordTest extends TestCase {
 
         assertTrue(data.getServiceData().containsKey(uuid2));
         assertArrayEquals(new byte[] {0x50, 0x64}, data.getServiceData().get(uuid2));
+
+        assertSameContent(data, ScanRecord.parseFromBytesLazy(scanRecord));
+    }
+
+    @SmallTest
+    public void testParseFromBytesLazy_matchesEagerParser() {
+        for (String record :
+                Arrays.asList(
+                        RECORD_URL, RECORD_UUID, RECORD_TLM, RECORD_IBEACON, RECORD_E2EE_EID)) {
+            byte[] bytes = HexDump.hexStringToByteArray(record);
+            assertSameContent(
+                    ScanRecord.parseFromBytes(bytes), ScanRecord.parseFromBytesLazy(bytes));
+        }
+    }
+
+    @SmallTest
+    public void testParseFromBytesLazy_malformedRecord() {
+        byte[] truncatedManufacturerData = new byte[] {0x02, 0x01, 0x06, 0x02, (byte) 0xff, 0x4c};
+        byte[] truncatedStructure = new byte[] {0x02, 0x01, 0x06, 0x05, 0x16, 0x0b};
+        byte[] shortServiceData = new byte[] {0x02, 0x16, 0x0b, 0x02, 0x01, 0x06};
+
+        for (byte[] bytes :
+                Arrays.asList(truncatedManufacturerData, truncatedStructure, shortServiceData)) {
+            ScanRecord lazy = ScanRecord.parseFromBytesLazy(bytes);
+            assertSameContent(ScanRecord.parseFromBytes(bytes), lazy);
+            assertEquals(-1, lazy.getAdvertiseFlags());
+            assertNull(lazy.getServiceData());
+        }
+    }
+
+    private static void assertSameContent(ScanRecord expected, ScanRecord actual) {
+        assertEquals(expected.getAdvertiseFlags(), actual.getAdvertiseFlags());
+        assertEquals(expected.getTxPowerLevel(), actual.getTxPowerLevel());
+        assertEquals(expected.getDeviceName(), actual.getDeviceName());
+        assertEquals(expected.getServiceUuids(), actual.getServiceUuids());
+        assertEquals(
+                expected.getServiceSolicitationUuids(), actual.getServiceSolicitationUuids());
+        assertEquals(
+                BluetoothLeUtils.toString(expected.getManufacturerSpecificData()),
+                BluetoothLeUtils.toString(actual.getManufacturerSpecificData()));
+        assertEquals(
+                BluetoothLeUtils.toString(expected.getServiceData()),
+                BluetoothLeUtils.toString(actual.getServiceData()));
+        assertEquals(
+                expected.getAdvertisingDataMap().keySet(),
+                actual.getAdvertisingDataMap().keySet());
+        for (Integer type : expected.getAdvertisingDataMap().keySet()) {
+            assertArrayEquals(
+                    expected.getAdvertisingDataMap().get(type),
+                    actual.getAdvertisingDataMap().get(type));
+        }
+        assertSame(expected.getBytes(), actual.getBytes());
     }
 
     // Assert two byte arrays are equal.